@@ -2,145 +2,346 @@ package com.xiongsu.backend.common;
 
 import com.xiongsu.common.Error;
 
-import java.util.Deque;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Set;
-import java.util.concurrent.locks.Lock;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
 
 /**
  * AbstractCache 实现了一个引用计数策略的缓存
+ *
+ * 缓存按key分片，每个分片是一个ConcurrentHashMap，命中路径上只做一次map查找和一次CAS，不加任何锁。
+ * 每个缓存项持有一个原子引用计数：
+ *   refs >= 0 表示缓存项有效，值为当前引用个数
+ *   refs == -1 表示缓存项已被驱逐，正在写回或已从map中移除
+ *   refs == -2 表示缓存项正被 tryWithIdle 独占，获取它的线程自旋等待
+ * 同一个key的并发加载只会由第一个线程执行getForCache，其余线程阻塞在该缓存项的future上等待结果。
+ * 有容量上限时，由整个缓存共用的一个驱逐策略（见 EvictionPolicy）在引用计数为0的缓存项中挑选驱逐对象，
+ * 驱逐顺序在所有分片之间统一，不会因为新资源落在哪个分片而驱逐别的分片中更热的资源；没有容量上限时，引用计数归0立即释放。
+ * 策略由policyLock保护。命中时拿不到策略锁的访问记录先放进所在分片的环形缓冲区，
+ * 下一个持有策略锁的线程在使用驱逐策略之前把所有分片缓冲的访问交给策略。
+ * 等待其他线程加载的获取也计为一次未命中。
  */
 public abstract class AbstractCache<T> {
-    private HashMap<Long, T> cache;            //实际缓存的数据
-    private HashMap<Long, Integer> references;  //元素的引用个数
-    private HashMap<Long, Boolean> getting;    //正在获取某资源的线程
 
-    private int maxResource;                   //缓存的最大缓存资源数
-    private int count = 0;                     //缓存中元素的个数
-    private Lock lock;
+    private static final int SHARD_COUNT = 16;          // 分片个数，必须是2的幂
+    private static final int EVICTED = -1;              // 引用计数为-1表示已被驱逐
+    private static final int BUSY = -2;                 // 引用计数为-2表示正被tryWithIdle独占
 
-    //新增的锁分段
-    private final ReentrantLock[] locks;
-    private final int lockCount = 16;
-
-    //新增一个数据结构，存放引用计数为0的key
-    private Deque<Long> evictableKeys;// 使用Deque作为FIFO队列
+    private final Shard<T>[] shards;
+    private final int maxResource;                      // 缓存的最大缓存资源数，0表示不限制
+    private final AtomicInteger count;                  // 缓存中元素的个数（包括正在加载的）
+    private final EvictionPolicy policy;                // 有容量上限时记录所有缓存项的驱逐顺序
+    private final ReentrantLock policyLock;             // 保护policy
+    private final CacheStats stats;
 
     public AbstractCache(int maxResource) {
+        this(maxResource, EvictionPolicy.CLOCK);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public AbstractCache(int maxResource, String policy) {
         this.maxResource = maxResource;
-        cache = new HashMap<>();
-        references = new HashMap<>();
-        getting = new HashMap<>();
-        lock = new ReentrantLock();
+        this.count = new AtomicInteger(0);
+        this.policy = EvictionPolicy.newPolicy(policy, Math.max(1, maxResource));
+        this.policyLock = new ReentrantLock();
+        this.stats = new CacheStats();
+        this.shards = new Shard[SHARD_COUNT];
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            shards[i] = new Shard<>();
+        }
+    }
+
+    //缓存项
+    private static class CacheEntry<T> {
+        final long key;
+        final CompletableFuture<T> loaded = new CompletableFuture<>();      // 加载完成后得到资源
+        final CompletableFuture<Void> removed = new CompletableFuture<>();  // 驱逐并写回完成后被完成
+        final AtomicInteger refs = new AtomicInteger(1);                    // 创建者持有第一个引用
+
+        CacheEntry(long key) {
+            this.key = key;
+        }
+    }
+
+    //缓存分片，map用于无锁查找；accesses暂存这个分片中还没有交给驱逐策略的访问记录
+    private static class Shard<T> {
+        final ConcurrentHashMap<Long, CacheEntry<T>> map = new ConcurrentHashMap<>();
+        final AccessBuffer accesses = new AccessBuffer();
+    }
+
+    /**
+     * 多个写入者、一个读取者的环形缓冲区，写入者CAS占用tail处的位置后写入key，读取者持有策略锁从head开始取出
+     * 位置被占用但key还没写入时读取者停在那里，留到下一次取出
+     */
+    private static class AccessBuffer {
+        private static final int SIZE = 64;                 // 必须是2的幂
+        private static final long EMPTY = Long.MIN_VALUE;   // 缓存的key都不小于0
+
+        private final AtomicLongArray keys = new AtomicLongArray(SIZE);
+        private final AtomicLong tail = new AtomicLong();
+        private volatile long head;                         // 只在策略锁内修改
+
+        AccessBuffer() {
+            for (int i = 0; i < SIZE; i++) {
+                keys.set(i, EMPTY);
+            }
+        }
+
+        //缓冲区已满时返回false
+        boolean offer(long key) {
+            while (true) {
+                long t = tail.get();
+                if (t - head >= SIZE) {
+                    return false;
+                }
+                if (tail.compareAndSet(t, t + 1)) {
+                    keys.set((int) t & (SIZE - 1), key);
+                    return true;
+                }
+            }
+        }
 
-        //新增的锁分段
-        locks = new ReentrantLock[lockCount];
-        for (int i = 0; i < lockCount; i++) {
-            locks[i] = new ReentrantLock();
+        //调用时持有策略锁
+        void drain(LongConsumer action) {
+            long h = head;
+            while (h < tail.get()) {
+                int i = (int) h & (SIZE - 1);
+                long key = keys.get(i);
+                if (key == EMPTY) {
+                    break;
+                }
+                keys.set(i, EMPTY);
+                head = ++h;
+                action.accept(key);
+            }
         }
-        evictableKeys = new LinkedList<>();
     }
 
-    //新增锁分段的辅助方法
-    private ReentrantLock getLock(long key) {
-        //使用key的哈希值来选择锁
-        // &(lockCount-1)是一个高效的取模操作（当lockCount是2的幂时）
-        return locks[(int)(key & (lockCount-1))];
+    private Shard<T> shardFor(long key) {
+        //uid的页号在高位，偏移在低位，先打散再取模
+        int h = (int)(key ^ (key >>> 32));
+        h ^= (h >>> 16);
+        return shards[h & (SHARD_COUNT - 1)];
     }
 
     //从缓存中获取资源
     protected T get(long key) throws Exception {
-        //循环直到获取资源
+        Shard<T> shard = shardFor(key);
         while (true) {
-            //获取锁
-            lock.lock();
-            if (getting.containsKey(key)) {
-                // 请求的资源正在被其他的资源获取
-                lock.unlock();
-                try {
-                    Thread.sleep(1);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+            CacheEntry<T> e = shard.map.get(key);
+            if (e != null) {
+                if (!tryAcquire(e)) {
+                    // 缓存项正在被驱逐，等待写回完成后重新获取
+                    e.removed.join();
                     continue;
                 }
+                if (!e.loaded.isDone()) {
+                    // 资源正由其他线程加载，这次获取同样要等待读入
+                    stats.recordMiss();
+                    return await(e);
+                }
+                stats.recordHit();
+                recordAccess(shard, key);
+                return await(e);
+            }
+
+            //资源不在缓存中，由当前线程负责加载
+            CacheEntry<T> created = new CacheEntry<>(key);
+            if (shard.map.putIfAbsent(key, created) != null) {
+                // 其他线程抢先开始加载，回到循环开头等待它
                 continue;
             }
-            if (cache.containsKey(key)) {
-                //资源在缓存中，直接返回，并增加引用计数
-                T obj = cache.get(key);
-                references.put(key, references.get(key)+1);
-                lock.unlock();
-                return obj;
-            }
-
-            //如果资源不在缓存中，尝试获取该资源。如果缓存已满，抛出异常
-            if (maxResource > 0 && count == maxResource) {
-                //优化：当缓存满时，尝试驱逐
-                Long evictKey = evictableKeys.poll();
-                if (evictKey == null) {
-                    lock.unlock();
-                    throw new RuntimeException("Cache is full and no item can be evicted!");
-                }
-//                lock.unlock();
-//                throw Error.CacheFullException;
-                T objToRelease = cache.remove(evictKey);
-                references.remove(evictKey);
-                releaseForCache(objToRelease);
-                count--;
-            }
-            count ++;
-            getting.put(key, true);
-            lock.unlock();
-            break;
-        }
-        //尝试获取资源
-        T obj = null;
+            stats.recordMiss();
+            return load(shard, created);
+        }
+    }
+
+    /**
+     * 命中时通知驱逐策略。命中路径不等待锁，锁被占用时把这次访问放进分片的缓冲区，
+     * 只有缓冲区已满时才等待锁
+     */
+    private void recordAccess(Shard<T> shard, long key) {
+        if (maxResource <= 0) {
+            return;
+        }
+        if (!policyLock.tryLock()) {
+            if (shard.accesses.offer(key)) {
+                return;
+            }
+            policyLock.lock();
+        }
         try {
-            obj = getForCache(key);
-        } catch (Exception e) {
-            lock.lock();
-            count --;
-            getting.remove(key);
-            lock.unlock();
-            throw e;
-        }
-
-        //将获取到的资源添加到缓存中，并设置引用计数+1
-        lock.lock();
-        getting.remove(key);
-        cache.put(key, obj);
-        references.put(key, 1);
-        lock.unlock();
+            drainAccesses();
+            policy.onAccess(key);
+        } finally {
+            policyLock.unlock();
+        }
+    }
 
+    //把所有分片缓冲的访问记录交给驱逐策略，调用时持有策略锁
+    private void drainAccesses() {
+        for (Shard<T> shard : shards) {
+            shard.accesses.drain(policy::onAccess);
+        }
+    }
+
+    //增加引用计数，缓存项已被驱逐时返回false
+    private boolean tryAcquire(CacheEntry<T> e) {
+        while (true) {
+            int r = e.refs.get();
+            if (r == EVICTED) {
+                return false;
+            }
+            if (r == BUSY) {
+                Thread.onSpinWait();
+                continue;
+            }
+            if (e.refs.compareAndSet(r, r + 1)) {
+                return true;
+            }
+        }
+    }
+
+    //等待其他线程加载资源
+    private T await(CacheEntry<T> e) throws Exception {
+        try {
+            return e.loaded.get();
+        } catch (ExecutionException ee) {
+            // 加载失败，原样抛出getForCache抛出的异常，上层会用 == 比较异常对象
+            Throwable cause = ee.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private T load(Shard<T> shard, CacheEntry<T> e) throws Exception {
+        T obj;
+        try {
+            //如果缓存已满，先驱逐一个资源腾出位置
+            reserve();
+        } catch (Exception ex) {
+            shard.map.remove(e.key, e);
+            e.refs.set(EVICTED);
+            e.loaded.completeExceptionally(ex);
+            e.removed.complete(null);
+            throw ex;
+        }
+        try {
+            //尝试获取资源
+            obj = getForCache(e.key);
+        } catch (Exception ex) {
+            count.decrementAndGet();
+            shard.map.remove(e.key, e);
+            e.refs.set(EVICTED);
+            e.loaded.completeExceptionally(ex);
+            e.removed.complete(null);
+            throw ex;
+        }
+
+        //有容量上限时交给驱逐策略管理，并唤醒等待同一资源的线程
+        if (maxResource > 0) {
+            policyLock.lock();
+            try {
+                drainAccesses();
+                policy.onInsert(e.key);
+            } finally {
+                policyLock.unlock();
+            }
+        }
+        e.loaded.complete(obj);
         return obj;
     }
 
+    //占用一个缓存位置，缓存已满且没有可以驱逐的资源时抛出异常
+    private void reserve() throws Exception {
+        if (maxResource <= 0) {
+            count.incrementAndGet();
+            return;
+        }
+        while (true) {
+            int c = count.get();
+            if (c < maxResource) {
+                if (count.compareAndSet(c, c + 1)) {
+                    return;
+                }
+                continue;
+            }
+            if (!evictOne()) {
+                throw Error.CacheFullException;
+            }
+        }
+    }
+
+    //按驱逐策略的顺序驱逐一个没有被引用的资源
+    private boolean evictOne() {
+        AtomicReference<CacheEntry<T>> victim = new AtomicReference<>();
+        policyLock.lock();
+        try {
+            drainAccesses();
+            policy.evict(key -> {
+                CacheEntry<T> e = shardFor(key).map.get(key);
+                //只有加载完成且没有被引用的资源可以驱逐
+                if (e == null || !e.loaded.isDone() || !e.refs.compareAndSet(0, EVICTED)) {
+                    return false;
+                }
+                victim.set(e);
+                return true;
+            });
+        } finally {
+            policyLock.unlock();
+        }
+        if (victim.get() == null) {
+            return false;
+        }
+        stats.recordEviction();
+        remove(shardFor(victim.get().key), victim.get());
+        return true;
+    }
+
+    //写回并移除一个已经标记为驱逐的缓存项
+    private void remove(Shard<T> shard, CacheEntry<T> e) {
+        try {
+            releaseForCache(e.loaded.join());
+        } finally {
+            shard.map.remove(e.key, e);
+            count.decrementAndGet();
+            e.removed.complete(null);
+        }
+    }
+
     /**
-     * 强行释放一个缓存
+     * 释放一个缓存的引用
      */
     protected void release(long key) {
-        //获取锁
-        //lock.lock();
-        ReentrantLock currentLock = getLock(key);
-        currentLock.lock();
-        try {
-            //获取资源的引用计数并-1
-            int ref = references.get(key)-1;
-            if (ref == 0) { // 若引用计数为0
-//                T obj = cache.get(key);//从缓存中获取资源
-//                releaseForCache(obj);//处理资源的释放
-//                references.remove(key);//从引用计数的映射中移除资源
-//                cache.remove(key);//从缓存中移除资源
-//                count --;//将缓存中的资源计数-1
-                //引用计数为0，加入可驱逐队列，但是不立即删除
-                evictableKeys.add(key);
-            } else {//如果引用计数不为0
-                references.put(key, ref);//更新资源的引用计数
+        Shard<T> shard = shardFor(key);
+        CacheEntry<T> e = shard.map.get(key);
+        if (e == null) {
+            return;
+        }
+        int ref;
+        while (true) {
+            ref = e.refs.get();
+            if (ref <= 0) {
+                return;
+            }
+            if (e.refs.compareAndSet(ref, ref - 1)) {
+                break;
+            }
+        }
+        if (ref == 1 && maxResource <= 0) {
+            //没有容量上限的缓存不保留无人引用的资源，引用计数为0立即释放
+            if (e.refs.compareAndSet(0, EVICTED)) {
+                remove(shard, e);
             }
-        } finally {
-            lock.unlock();//释放锁
         }
     }
 
@@ -148,24 +349,96 @@ public abstract class AbstractCache<T> {
      * 关闭缓存，写回所有资源
      */
     protected void close() {
-        lock.lock();
+        policyLock.lock();
+        try {
+            for (Shard<T> shard : shards) {
+                for (CacheEntry<T> e : shard.map.values()) {
+                    if (e.loaded.isDone() && !e.loaded.isCompletedExceptionally()) {
+                        releaseForCache(e.loaded.join());
+                    }
+                    e.refs.set(EVICTED);
+                    e.removed.complete(null);
+                }
+                shard.map.clear();
+            }
+            drainAccesses();
+            policy.clear();
+        } finally {
+            policyLock.unlock();
+        }
+        count.set(0);
+    }
+
+    /**
+     * 对缓存中每个已加载的资源执行action，不增加引用计数，也不阻止资源被并发获取或驱逐
+     */
+    protected void forEachCached(Consumer<T> action) {
+        for (Shard<T> shard : shards) {
+            for (CacheEntry<T> e : shard.map.values()) {
+                if (e.loaded.isDone() && !e.loaded.isCompletedExceptionally() && e.refs.get() >= 0) {
+                    action.accept(e.loaded.join());
+                }
+            }
+        }
+    }
+
+    /**
+     * 如果key对应的资源在缓存中且没有被引用，在独占它的情况下执行action并返回true
+     * action执行期间获取该资源的线程会自旋等待，所以action必须很短
+     */
+    protected boolean tryWithIdle(long key, Consumer<T> action) {
+        Shard<T> shard = shardFor(key);
+        CacheEntry<T> e = shard.map.get(key);
+        if (e == null || !e.loaded.isDone() || !e.refs.compareAndSet(0, BUSY)) {
+            return false;
+        }
         try {
-            //获取所有资源key
-            Set<Long> keys = cache.keySet();
-            for (long key : keys) {
-                //获取缓存
-                T obj = cache.get(key);
-                //释放缓存
-                releaseForCache(obj);
-                //引用计数移除缓存
-                references.remove(key);
-                //实际缓存移除缓存
-                cache.remove(key);
-            }
-        }finally {
-            //释放锁
-            lock.unlock();
+            action.accept(e.loaded.join());
+        } finally {
+            e.refs.set(0);
         }
+        return true;
+    }
+
+    /**
+     * 把没有被引用的资源移出缓存，资源被引用或者不在缓存中时什么也不做
+     * 有容量上限的缓存会保留没有被引用的资源，资源失效（例如数据项被释放）后需要调用它
+     */
+    protected void discard(long key) {
+        Shard<T> shard = shardFor(key);
+        CacheEntry<T> e = shard.map.get(key);
+        if (e == null || !e.loaded.isDone() || !e.refs.compareAndSet(0, EVICTED)) {
+            return;
+        }
+        if (maxResource > 0) {
+            policyLock.lock();
+            try {
+                drainAccesses();
+                policy.onRemove(key);
+            } finally {
+                policyLock.unlock();
+            }
+        }
+        remove(shard, e);
+    }
+
+    /**
+     * 如果key对应的资源已经加载在缓存中，增加引用计数并返回它，否则返回null
+     * 不会加载资源，也不计入命中和未命中次数，使用完后需要release
+     */
+    protected T getIfCached(long key) {
+        CacheEntry<T> e = shardFor(key).map.get(key);
+        if (e == null || !e.loaded.isDone() || e.loaded.isCompletedExceptionally() || !tryAcquire(e)) {
+            return null;
+        }
+        return e.loaded.join();
+    }
+
+    /**
+     * 缓存的命中、未命中和驱逐次数
+     */
+    public CacheStats getStats() {
+        return stats;
     }
 
     /**
@@ -0,0 +1,48 @@
+package com.xiongsu.backend.common;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 缓存的命中、未命中和驱逐次数统计
+ */
+public class CacheStats {
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    void recordHit() {
+        hits.increment();
+    }
+
+    void recordMiss() {
+        misses.increment();
+    }
+
+    void recordEviction() {
+        evictions.increment();
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    public double hitRate() {
+        long h = hitCount();
+        long total = h + missCount();
+        return total == 0 ? 1.0 : (double) h / total;
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + hitCount() + ", misses=" + missCount() + ", evictions=" + evictionCount()
+                + ", hitRate=" + String.format("%.4f", hitRate());
+    }
+}
@@ -0,0 +1,66 @@
+package com.xiongsu.backend.common;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongPredicate;
+
+/**
+ * CLOCK：每个资源一个访问位，指针扫过时清除访问位，再次扫到仍未被访问才驱逐
+ */
+public class ClockEvictionPolicy implements EvictionPolicy {
+
+    private final Deque<Long> ring = new ArrayDeque<>();
+    private final Map<Long, Boolean> referenced = new HashMap<>();
+
+    @Override
+    public void onInsert(long key) {
+        if (referenced.put(key, Boolean.TRUE) == null) {
+            ring.addLast(key);
+        }
+    }
+
+    @Override
+    public void onAccess(long key) {
+        referenced.replace(key, Boolean.TRUE);
+    }
+
+    @Override
+    public void onRemove(long key) {
+        referenced.remove(key);// 环中的key在指针扫到时再清理
+    }
+
+    @Override
+    public boolean evict(LongPredicate tryEvict) {
+        //每个资源最多被扫过两圈：第一圈清除访问位，第二圈驱逐
+        int budget = ring.size() * 2;
+        while (budget-- > 0) {
+            Long key = ring.pollFirst();
+            if (key == null) {
+                return false;
+            }
+            Boolean ref = referenced.get(key);
+            if (ref == null) {
+                continue;
+            }
+            if (ref) {
+                referenced.put(key, Boolean.FALSE);
+                ring.addLast(key);
+                continue;
+            }
+            if (tryEvict.test(key)) {
+                referenced.remove(key);
+                return true;
+            }
+            ring.addLast(key);
+        }
+        return false;
+    }
+
+    @Override
+    public void clear() {
+        ring.clear();
+        referenced.clear();
+    }
+}
@@ -0,0 +1,11 @@
+package com.xiongsu.backend.common;
+
+/**
+ * 逐个返回uid的游标：索引的范围扫描（RangeCursor）或者堆的顺序扫描（HeapCursor）
+ * 调用者可以随时停止，不需要关闭
+ */
+public interface Cursor {
+    boolean hasNext() throws Exception;
+    //调用前需要hasNext返回true
+    long next();
+}
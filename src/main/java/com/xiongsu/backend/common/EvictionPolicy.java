@@ -0,0 +1,47 @@
+package com.xiongsu.backend.common;
+
+import java.util.function.LongPredicate;
+
+/**
+ * 缓存驱逐策略
+ *
+ * AbstractCache 的所有分片共用一个策略实例，并在策略锁内调用它，所以实现类不需要考虑线程安全。
+ * 策略只负责记录key的访问顺序并给出驱逐顺序，被引用的资源能否驱逐由 tryEvict 回调决定：
+ * tryEvict 返回true表示该key已经被驱逐，策略应同时把它从自己的结构中移除。
+ */
+public interface EvictionPolicy {
+
+    String LRU = "lru";
+    String CLOCK = "clock";
+    String TWO_QUEUE = "2q";
+    String TINY_LFU = "tinylfu";
+
+    void onInsert(long key);     // 新加载的资源进入缓存
+    void onAccess(long key);     // 命中缓存中的资源
+    void onRemove(long key);     // 资源不经过evict被移出缓存
+    boolean evict(LongPredicate tryEvict);// 按策略顺序尝试驱逐一个资源，成功返回true
+    void clear();
+
+    /**
+     * 根据策略名创建一个驱逐策略
+     * @param name     策略名，为null时使用CLOCK
+     * @param capacity 该策略实例负责的资源个数，用于划分2Q和W-TinyLFU的各个区域
+     */
+    public static EvictionPolicy newPolicy(String name, int capacity) {
+        if (name == null) {
+            name = CLOCK;
+        }
+        switch (name) {
+            case LRU:
+                return new LruEvictionPolicy();
+            case CLOCK:
+                return new ClockEvictionPolicy();
+            case TWO_QUEUE:
+                return new TwoQueueEvictionPolicy(capacity);
+            case TINY_LFU:
+                return new TinyLfuEvictionPolicy(capacity);
+            default:
+                throw new IllegalArgumentException("Unknown eviction policy: " + name);
+        }
+    }
+}
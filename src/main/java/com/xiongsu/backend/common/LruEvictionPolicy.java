@@ -0,0 +1,51 @@
+package com.xiongsu.backend.common;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.LongPredicate;
+
+/**
+ * LRU：驱逐最久未被访问的资源
+ */
+public class LruEvictionPolicy implements EvictionPolicy {
+
+    private final LinkedHashMap<Long, Boolean> order = new LinkedHashMap<>(16, 0.75f, true);
+
+    @Override
+    public void onInsert(long key) {
+        order.put(key, Boolean.TRUE);
+    }
+
+    @Override
+    public void onAccess(long key) {
+        order.get(key);// accessOrder为true时，get会把key移动到链表尾部
+    }
+
+    @Override
+    public void onRemove(long key) {
+        order.remove(key);
+    }
+
+    @Override
+    public boolean evict(LongPredicate tryEvict) {
+        return evictFrom(order, tryEvict) != null;
+    }
+
+    @Override
+    public void clear() {
+        order.clear();
+    }
+
+    //从头部开始找到第一个可以驱逐的key并移除，返回被驱逐的key，没有则返回null
+    static Long evictFrom(LinkedHashMap<Long, ?> queue, LongPredicate tryEvict) {
+        Iterator<Long> it = queue.keySet().iterator();
+        while (it.hasNext()) {
+            long key = it.next();
+            if (tryEvict.test(key)) {
+                it.remove();
+                return key;
+            }
+        }
+        return null;
+    }
+}
@@ -1,15 +1,22 @@
 package com.xiongsu.backend.common;
 
+import java.nio.ByteBuffer;
+
+//raw中[start, end)的一段，raw通常是页面所在的缓冲区，只能用带下标的get/put访问，不能改变它的position
 public class SubArray {
-    public byte[] raw;
+    public ByteBuffer raw;
     public int start;
     public int end;
 
-    public SubArray(byte[] raw, int start, int end) {
+    public SubArray(ByteBuffer raw, int start, int end) {
         this.raw = raw;
         this.start = start;
         this.end = end;
     }
+
+    public SubArray(byte[] raw, int start, int end) {
+        this(ByteBuffer.wrap(raw), start, end);
+    }
 }
 
 //import java.util.Arrays;
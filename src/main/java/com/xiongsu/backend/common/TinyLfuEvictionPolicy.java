@@ -0,0 +1,163 @@
+package com.xiongsu.backend.common;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.LongPredicate;
+
+/**
+ * W-TinyLFU：
+ * 新资源先进入一个很小的LRU窗口（容量的1%），窗口溢出的资源直接进入主区。需要驱逐时，窗口中最久未访问的资源作为候选者，
+ * 与主区的牺牲者比较访问频率，频率低的一方被驱逐。主区是分段LRU，probation段存放刚被接纳的资源，
+ * 再次命中后晋升到protected段（主区的80%）。
+ * 访问频率由一个会定期减半的Count-Min Sketch估计，因此历史热点会慢慢老化。
+ */
+public class TinyLfuEvictionPolicy implements EvictionPolicy {
+
+    private final int windowMax;
+    private final int protectedMax;
+
+    private final LinkedHashMap<Long, Boolean> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Long, Boolean> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Long, Boolean> protect = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch sketch;
+
+    public TinyLfuEvictionPolicy(int capacity) {
+        capacity = Math.max(1, capacity);
+        this.windowMax = Math.max(1, capacity / 100);
+        this.protectedMax = Math.max(1, (capacity - windowMax) * 4 / 5);
+        this.sketch = new FrequencySketch(capacity);
+    }
+
+    @Override
+    public void onInsert(long key) {
+        sketch.increment(key);
+        window.put(key, Boolean.TRUE);
+        //窗口只保留最近的windowMax个资源，更早的进入probation段，在需要驱逐时再与候选者比较
+        while (window.size() > windowMax) {
+            Iterator<Long> it = window.keySet().iterator();
+            long oldest = it.next();
+            it.remove();
+            probation.put(oldest, Boolean.TRUE);
+        }
+    }
+
+    @Override
+    public void onAccess(long key) {
+        sketch.increment(key);
+        if (window.get(key) != null || protect.get(key) != null) {
+            return;
+        }
+        if (probation.remove(key) != null) {
+            // probation中的资源再次命中，晋升到protected段，protected段溢出时把最久未访问的降级回probation
+            protect.put(key, Boolean.TRUE);
+            if (protect.size() > protectedMax) {
+                Iterator<Long> it = protect.keySet().iterator();
+                long demoted = it.next();
+                it.remove();
+                probation.put(demoted, Boolean.TRUE);
+            }
+        }
+    }
+
+    @Override
+    public void onRemove(long key) {
+        if (window.remove(key) == null && probation.remove(key) == null) {
+            protect.remove(key);
+        }
+    }
+
+    @Override
+    public boolean evict(LongPredicate tryEvict) {
+        if (!window.isEmpty() && !probation.isEmpty()) {
+            //窗口中最久未访问的资源作为候选者，probation段中最久未访问的资源作为牺牲者
+            long candidate = window.keySet().iterator().next();
+            long victim = probation.keySet().iterator().next();
+            if (sketch.frequency(candidate) > sketch.frequency(victim)) {
+                //准入过滤：候选者频率更高时进入probation段，驱逐牺牲者
+                window.remove(candidate);
+                probation.put(candidate, Boolean.TRUE);
+            } else if (tryEvict.test(candidate)) {
+                window.remove(candidate);
+                return true;
+            }
+        }
+        return LruEvictionPolicy.evictFrom(probation, tryEvict) != null
+                || LruEvictionPolicy.evictFrom(window, tryEvict) != null
+                || LruEvictionPolicy.evictFrom(protect, tryEvict) != null;
+    }
+
+    @Override
+    public void clear() {
+        window.clear();
+        probation.clear();
+        protect.clear();
+        sketch.clear();
+    }
+
+    /**
+     * 4行的Count-Min Sketch，每个计数器最大为15，总增量达到10倍容量时所有计数器减半
+     */
+    static class FrequencySketch {
+        private static final long[] SEEDS = {
+                0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L
+        };
+        private static final int MAX_COUNT = 15;
+
+        private final byte[][] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int capacity) {
+            int width = Integer.highestOneBit(Math.max(16, capacity * 2) - 1) << 1;
+            this.table = new byte[SEEDS.length][width];
+            this.mask = width - 1;
+            this.sampleSize = Math.max(10, capacity * 10);
+        }
+
+        private int indexOf(long key, int row) {
+            long h = (key + SEEDS[row]) * SEEDS[row];
+            h ^= (h >>> 32);
+            return (int) h & mask;
+        }
+
+        void increment(long key) {
+            boolean added = false;
+            for (int row = 0; row < SEEDS.length; row++) {
+                int i = indexOf(key, row);
+                if (table[row][i] < MAX_COUNT) {
+                    table[row][i]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(long key) {
+            int min = MAX_COUNT;
+            for (int row = 0; row < SEEDS.length; row++) {
+                min = Math.min(min, table[row][indexOf(key, row)]);
+            }
+            return min;
+        }
+
+        private void reset() {
+            for (byte[] row : table) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = (byte) (row[i] >>> 1);
+                }
+            }
+            additions /= 2;
+        }
+
+        void clear() {
+            for (byte[] row : table) {
+                Arrays.fill(row, (byte) 0);
+            }
+            additions = 0;
+        }
+    }
+}
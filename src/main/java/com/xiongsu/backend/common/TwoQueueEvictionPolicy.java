@@ -0,0 +1,77 @@
+package com.xiongsu.backend.common;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.function.LongPredicate;
+
+/**
+ * 2Q：首次进入缓存的资源放在FIFO队列A1in，被驱逐后key记在幽灵队列A1out中，
+ * 在A1out中的key再次加载时才进入LRU队列Am。一次全表扫描只会冲刷A1in，不会挤掉Am中的热点资源。
+ */
+public class TwoQueueEvictionPolicy implements EvictionPolicy {
+
+    private final int kIn;   // A1in的目标大小，容量的25%
+    private final int kOut;  // A1out的最大大小，容量的50%
+
+    private final LinkedHashMap<Long, Boolean> a1in = new LinkedHashMap<>();
+    private final LinkedHashSet<Long> a1out = new LinkedHashSet<>();
+    private final LinkedHashMap<Long, Boolean> am = new LinkedHashMap<>(16, 0.75f, true);
+
+    public TwoQueueEvictionPolicy(int capacity) {
+        this.kIn = Math.max(1, capacity / 4);
+        this.kOut = Math.max(1, capacity / 2);
+    }
+
+    @Override
+    public void onInsert(long key) {
+        if (a1out.remove(key)) {
+            am.put(key, Boolean.TRUE);
+        } else {
+            a1in.put(key, Boolean.TRUE);
+        }
+    }
+
+    @Override
+    public void onAccess(long key) {
+        am.get(key);// A1in中的资源被访问时不移动位置
+    }
+
+    @Override
+    public void onRemove(long key) {
+        a1in.remove(key);
+        am.remove(key);
+    }
+
+    @Override
+    public boolean evict(LongPredicate tryEvict) {
+        if (a1in.size() > kIn || am.isEmpty()) {
+            if (evictFromIn(tryEvict)) {
+                return true;
+            }
+            return LruEvictionPolicy.evictFrom(am, tryEvict) != null;
+        }
+        if (LruEvictionPolicy.evictFrom(am, tryEvict) != null) {
+            return true;
+        }
+        return evictFromIn(tryEvict);
+    }
+
+    private boolean evictFromIn(LongPredicate tryEvict) {
+        Long key = LruEvictionPolicy.evictFrom(a1in, tryEvict);
+        if (key == null) {
+            return false;
+        }
+        a1out.add(key);
+        if (a1out.size() > kOut) {
+            a1out.remove(a1out.iterator().next());
+        }
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        a1in.clear();
+        a1out.clear();
+        am.clear();
+    }
+}
@@ -0,0 +1,20 @@
+package com.xiongsu.backend.dm;
+
+/**
+ * 检查点，保存在第一页中
+ * redoPosition 之前的日志对应的页面修改都已经落盘，恢复时只需要重做这之后的日志
+ * undoPosition 是检查点时仍活跃的事务的第一条日志的位置，恢复时从这里开始扫描日志以便撤销未完成的事务
+ * pageNumber   检查点时数据库文件的页数，这些页面都已经落盘
+ * 三个值都为0表示还没有做过检查点，需要从头扫描日志
+ */
+public class Checkpoint {
+    public long redoPosition;
+    public long undoPosition;
+    public int pageNumber;
+
+    public Checkpoint(long redoPosition, long undoPosition, int pageNumber) {
+        this.redoPosition = redoPosition;
+        this.undoPosition = undoPosition;
+        this.pageNumber = pageNumber;
+    }
+}
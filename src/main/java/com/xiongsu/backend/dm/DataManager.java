@@ -1,41 +1,95 @@
 package com.xiongsu.backend.dm;
 
+import com.xiongsu.backend.common.CacheStats;
+import com.xiongsu.backend.common.EvictionPolicy;
+import com.xiongsu.backend.common.SubArray;
 import com.xiongsu.backend.dm.dataltem.DataItem;
 import com.xiongsu.backend.dm.logger.Logger;
 import com.xiongsu.backend.dm.page.PageOne;
 import com.xiongsu.backend.dm.pageCache.PageCache;
 import com.xiongsu.backend.tm.TransactionManager;
 
+import java.util.function.Predicate;
+
 public interface DataManager {
     DataItem read(long uid) throws Exception;
     long insert(long xid, byte[] data) throws Exception;
+    //插入到owner的堆中，堆只由以owner为Owner的页面组成，见PageX
+    long insert(long xid, long owner, byte[] data) throws Exception;
+    //按页号顺序扫描owner的堆，返回Data满足filter的数据项的uid，filter为null时返回所有有效的数据项
+    HeapCursor scan(long owner, Predicate<SubArray> filter);
+    void free(long uid) throws Exception;// 释放一个不再被任何事务和索引引用的数据项
     void close();
+    CacheStats getPageCacheStats();// 页面缓存的命中、未命中和驱逐次数
+    CacheStats getDataItemCacheStats();// DataItem缓存的命中、未命中和驱逐次数
 
     //静态方法，用于创建DataManager实例
     public static DataManager create(String path, long mem, TransactionManager tm) {
+        return create(path, mem, tm, EvictionPolicy.CLOCK);
+    }
+
+    //policy是页面缓存使用的驱逐策略名，见EvictionPolicy
+    public static DataManager create(String path, long mem, TransactionManager tm, String policy) {
+        return create(path, mem, tm, policy, false);
+    }
+
+    //mmap为true时页面缓存通过内存映射读写数据库文件
+    public static DataManager create(String path, long mem, TransactionManager tm, String policy, boolean mmap) {
+        return create(path, mem, tm, policy, mmap, 0, EvictionPolicy.CLOCK);
+    }
+
+    /**
+     * maxDataItems为DataItem缓存的容量，dataItemPolicy为它的驱逐策略名
+     * maxDataItems为0时不限制容量，DataItem不再被引用就立即释放；大于0时没有被引用的DataItem留在缓存中直到被驱逐，
+     * 期间它所在的页面也一直被引用，不会被页面缓存驱逐，插入时也不会被压缩，所以容量应远小于页面缓存能容纳的数据项个数
+     */
+    public static DataManager create(String path, long mem, TransactionManager tm, String policy, boolean mmap,
+                                     int maxDataItems, String dataItemPolicy) {
         //创建一个PageCache实例，path是文件路径，mem是内存大小
-        PageCache pc = PageCache.create(path, mem);
+        PageCache pc = PageCache.create(path, mem, policy, mmap);
         //创建一个Logger实例，path是文件路径
         Logger lg = Logger.create(path);
         //创建一个DataManagerImpl实例，pc是PageCache实例，lg是Logger实例，tm是TransactionManager实例
-        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
+        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm, maxDataItems, dataItemPolicy);
         //初始化PageOne
         dm.initPageOne();
+        //启动定期检查点
+        dm.startCheckpointer();
         //返回创建的DataManagerImpl实例
         return dm;
     }
 
     // 静态方法，用于打开已存在的DataManager实例
     public static DataManager open(String path, long mem, TransactionManager tm) {
+        return open(path, mem, tm, EvictionPolicy.CLOCK);
+    }
+
+    public static DataManager open(String path, long mem, TransactionManager tm, String policy) {
+        return open(path, mem, tm, policy, false);
+    }
+
+    public static DataManager open(String path, long mem, TransactionManager tm, String policy, boolean mmap) {
+        return open(path, mem, tm, policy, mmap, Recover.Progress.NONE);
+    }
+
+    //需要恢复时通过progress报告恢复的进度和吞吐量
+    public static DataManager open(String path, long mem, TransactionManager tm, String policy, boolean mmap, Recover.Progress progress) {
+        return open(path, mem, tm, policy, mmap, 0, EvictionPolicy.CLOCK, progress);
+    }
+
+    //maxDataItems和dataItemPolicy见create
+    public static DataManager open(String path, long mem, TransactionManager tm, String policy, boolean mmap,
+                                   int maxDataItems, String dataItemPolicy, Recover.Progress progress) {
         // 打开一个PageCache实例，path是文件路径，mem是内存大小
-        PageCache pc = PageCache.open(path, mem);
+        PageCache pc = PageCache.open(path, mem, policy, mmap);
         // 打开一个Logger实例，path是文件路径
         Logger lg = Logger.open(path);
         // 创建一个DataManagerImpl实例，pc是PageCache实例，lg是Logger实例，tm是TransactionManager实例
-        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
+        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm, maxDataItems, dataItemPolicy);
         // 加载并检查PageOne，如果检查失败，则进行恢复操作
         if (!dm.loadCheckPageOne()) {
-            Recover.recover(tm, lg, pc);
+            // 从第一页记录的检查点开始恢复
+            Recover.recover(tm, lg, pc, dm.loadCheckpoint(), progress);
         }
         // 填充PageIndex，遍历从第二页开始的每一页，将每一页的页面编号和空闲空间大小添加到 PageIndex 中
         dm.fillPageIndex();
@@ -43,6 +97,8 @@ public interface DataManager {
         PageOne.setVcOpen(dm.pageOne);
         // 将PageOne立即写入到磁盘中，确保PageOne的数据被持久化
         dm.pc.flushPage(dm.pageOne);
+        // 启动定期检查点
+        dm.startCheckpointer();
 
         // 返回创建的DataManagerImpl实例
         return dm;
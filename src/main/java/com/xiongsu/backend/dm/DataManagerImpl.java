@@ -1,6 +1,9 @@
 package com.xiongsu.backend.dm;
 
 import com.xiongsu.backend.common.AbstractCache;
+import com.xiongsu.backend.common.CacheStats;
+import com.xiongsu.backend.common.EvictionPolicy;
+import com.xiongsu.backend.common.SubArray;
 import com.xiongsu.backend.dm.dataltem.DataItem;
 import com.xiongsu.backend.dm.dataltem.DataItemImpl;
 import com.xiongsu.backend.dm.logger.Logger;
@@ -11,27 +14,56 @@ import com.xiongsu.backend.dm.pageCache.PageCache;
 import com.xiongsu.backend.dm.pageIndex.PageIndex;
 import com.xiongsu.backend.dm.pageIndex.PageInfo;
 import com.xiongsu.backend.tm.TransactionManager;
+import com.xiongsu.backend.tm.TransactionManagerImpl;
 import com.xiongsu.backend.utils.Panic;
 import com.xiongsu.backend.utils.Types;
 import com.xiongsu.common.Error;
 
 import javax.xml.crypto.Data;
 import java.lang.reflect.Type;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
 
 public class DataManagerImpl extends AbstractCache<DataItem> implements DataManager{
 
+    private static final long CHECKPOINT_INTERVAL_MS = 30 * 1000;// 检查点间隔
+
     TransactionManager tm;
     PageCache pc;
     Logger logger;
-    PageIndex pIndex;
+    Map<Long, PageIndex> pIndexes;// 每个堆各自的PageIndex
+    Map<Long, Set<Integer>> heaps;// 每个堆的页面，按页号排序
     Page pageOne;
 
+    //写日志并修改页面的过程持有读锁，检查点持有写锁，保证检查点时所有已写入日志的修改都已经作用到页面上
+    private ReadWriteLock checkpointLock;
+    //每个事务第一条日志的位置，检查点用它计算恢复时撤销阶段的起点
+    private Map<Long, Long> firstLogPosition;
+    private ScheduledExecutorService checkpointer;
+
     public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm) {
-        super(0);
+        this(pc, logger, tm, 0, EvictionPolicy.CLOCK);
+    }
+
+    //maxDataItems为0时DataItem不再被引用就立即释放，见DataManager.create
+    public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm, int maxDataItems, String policy) {
+        super(maxDataItems, policy);
         this.pc = pc;
         this.logger = logger;
         this.tm = tm;
-        this.pIndex = new PageIndex();
+        this.pIndexes = new ConcurrentHashMap<>();
+        this.heaps = new ConcurrentHashMap<>();
+        this.checkpointLock = new ReentrantReadWriteLock();
+        this.firstLogPosition = new ConcurrentHashMap<>();
     }
 
     @Override
@@ -49,6 +81,11 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 
     @Override
     public long insert(long xid, byte[] data) throws Exception {
+        return insert(xid, 0, data);
+    }
+
+    @Override
+    public long insert(long xid, long owner, byte[] data) throws Exception {
         //将输入的数据包装成DataItem的原始格式
         byte[] raw = DataItem.wrapDataItemRaw(data);
         //如果数据项的大小超过了页面的最大空闲空间，抛出异常
@@ -56,57 +93,130 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
             throw Error.DataTooLargeException;
         }
 
-        //初始化一个页面信息对象
-        PageInfo pi = null;
-        //尝试5词找到一个可以容纳新数据项的页面
+        //尝试5次在已有的页面中插入新数据项
         for (int i = 0; i < 5; i++) {
-            //从页面索引中选择一个可以容纳新数据项的页面
-            pi = pIndex.select(raw.length);
-            //如果找到了合适的页面，跳出循环
-            if (pi != null) {
+            //从这个堆的页面索引中选择一个可以容纳新数据项的页面
+            PageInfo pi = pIndex(owner).select(raw.length);
+            if (pi == null) {
                 break;
-            } else {
-                //如果没有找到合适的页面，创建一个新的页面，并将其添加到页面索引中
-                int newPgno = pc.newPage(PageX.initRaw());
-                pIndex.add(newPgno, PageX.MAX_FREE_SPACE);
+            }
+            long uid = insertInto(xid, owner, pi.pgno, raw);
+            if (uid != 0) {
+                return uid;
             }
         }
-        //如果还是没有找到合适的页面，抛出异常
-        if (pi==null) {
+        //没有合适的页面时创建一个新的页面直接插入，插入完成前它不在页面索引中，不会被其他线程取走
+        int newPgno = pc.newPage(PageX.initRaw(owner));
+        heap(owner).add(newPgno);
+        long uid = insertInto(xid, owner, newPgno, raw);
+        if (uid == 0) {
             throw Error.DatabaseBusyException;
         }
+        return uid;
+    }
 
-        //初始化一个页面对象
+    /**
+     * 在取出的页面中插入数据项，返回uid，页面放不下时返回0
+     * 页面中有DataItem被加载时不能压缩，只能使用连续的空闲空间，放不下时按连续空间重新放回PageIndex
+     * 先取检查点读锁再取页面锁，与检查点写回脏页的顺序一致
+     */
+    private long insertInto(long xid, long owner, int pgno, byte[] raw) throws Exception {
         Page pg = null;
-        //初始化空闲空间大小为0
         int freeSpace = 0;
         try {
-            //获取页面信息对象中的页面
-            pg = pc.getPage(pi.pgno);
-            //生成插入日志
-            byte[] log = Recover.insertLog(xid, pg, raw);
-            //将日志写入日志文件
-            logger.log(log);
-
-            //在页面中插入新的数据项，并获取其在页面中的偏移量
-            short offset = PageX.insert(pg, raw);
+            pg = pc.getPage(pgno);
+            checkpointLock.readLock().lock();
+            pg.lock();
+            try {
+                short slot = PageX.allocate(pg, raw.length, !pg.hasPinnedItems());
+                if (slot < 0) {
+                    freeSpace = PageX.getContiguousFreeSpace(pg);
+                    return 0;
+                }
+                //生成插入日志并写入日志文件
+                byte[] log = Recover.insertLog(xid, pg, slot, raw);
+                recordLog(xid, logger.log(log));
 
-            //释放页面
-            pg.release();
-            //返回新插入的数据项的唯一标识符
-            return Types.addressToUid(pi.pgno, offset);
+                PageX.insert(pg, raw, slot);
+                freeSpace = PageX.getFreeSpace(pg);
+                return Types.addressToUid(pgno, slot);
+            } finally {
+                pg.unlock();
+                checkpointLock.readLock().unlock();
+            }
         } finally {
-            // 将取出的pg重新插入pIndex
             if (pg != null) {
-                pIndex.add(pi.pgno, PageX.getFreeSpace(pg));
-            } else {
-                pIndex.add(pi.pgno, freeSpace);
+                pg.release();
+            }
+            // 将取出的页面重新插入所属堆的PageIndex
+            pIndex(owner).add(pgno, freeSpace);
+        }
+    }
+
+    private PageIndex pIndex(long owner) {
+        return pIndexes.computeIfAbsent(owner, k -> new PageIndex());
+    }
+
+    private Set<Integer> heap(long owner) {
+        return heaps.computeIfAbsent(owner, k -> new ConcurrentSkipListSet<>());
+    }
+
+    @Override
+    public HeapCursor scan(long owner, Predicate<SubArray> filter) {
+        return new HeapCursor(pc, heap(owner), filter);
+    }
+
+    /**
+     * 释放数据项：标记为已释放并记录日志，然后按新的空闲空间把页面重新放入PageIndex
+     * 已释放的数据项的槽位和空间在之后的插入中复用，需要时压缩页面
+     */
+    @Override
+    public void free(long uid) throws Exception {
+        DataItem di = super.get(uid);
+        try {
+            di.before();
+            DataItem.setDataItemRawFreed(di.getRaw());
+            di.after(TransactionManagerImpl.SUPER_XID);
+        } finally {
+            di.release();
+        }
+        //槽位之后会被新的数据项复用，不能让缓存中留着旧的DataItem
+        discard(uid);
+        reindex((int)(uid >>> 32));
+    }
+
+    private void reindex(int pgno) throws Exception {
+        Page pg = pc.getPage(pgno);
+        try {
+            //页面的Owner在新建时确定，之后不会改变
+            PageIndex pIndex = pIndex(PageX.getOwner(pg));
+            //页面被插入线程取走时跳过，插入结束后会按新的空闲空间放回
+            if (pIndex.take(pgno) == null) {
+                return;
             }
+            int freeSpace;
+            pg.lock();
+            try {
+                freeSpace = PageX.getFreeSpace(pg);
+            } finally {
+                pg.unlock();
+            }
+            pIndex.add(pgno, freeSpace);
+        } finally {
+            pg.release();
         }
     }
 
     @Override
     public void close() {
+        if (checkpointer != null) {
+            checkpointer.shutdown();
+            try {
+                checkpointer.awaitTermination(CHECKPOINT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+        }
         super.close();
         logger.close();
 
@@ -115,10 +225,84 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         pc.close();
     }
 
+    @Override
+    public CacheStats getPageCacheStats() {
+        return pc.getStats();
+    }
+
+    @Override
+    public CacheStats getDataItemCacheStats() {
+        return getStats();
+    }
+
     //为xid生成update日志
     public void logDataItem(long xid, DataItem di) {
         byte[] log = Recover.updateLog(xid, di);
-        logger.log(log);
+        recordLog(xid, logger.log(log));
+    }
+
+    private void recordLog(long xid, long position) {
+        if (xid != TransactionManagerImpl.SUPER_XID) {
+            firstLogPosition.putIfAbsent(xid, position);
+        }
+    }
+
+    //DataItem修改开始前调用，与logDataItem或放弃修改配对
+    public void beginUpdate() {
+        checkpointLock.readLock().lock();
+    }
+
+    public void endUpdate() {
+        checkpointLock.readLock().unlock();
+    }
+
+    /**
+     * 做一次检查点
+     * 1. 在写锁内取得日志末尾位置和当前的脏页，此时所有位于它之前的日志对应的修改都已经作用到这些页面上
+     * 2. 写回这些脏页。每个页面只在复制时短暂持有写锁，保证副本中没有日志还没写入的修改，写入文件在锁外进行
+     * 3. force页面文件
+     * 4. 把检查点记录到第一页并落盘
+     */
+    public void checkpoint() {
+        Checkpoint ckpt;
+        List<Integer> dirty;
+        checkpointLock.writeLock().lock();
+        try {
+            long redo = logger.end();
+            dirty = pc.dirtyPageNumbers();
+            ckpt = new Checkpoint(redo, redo, pc.getPageNumber());
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+        pc.writePages(dirty, checkpointLock.writeLock());
+        pc.sync();
+
+        //已经结束的事务不需要撤销，剩下的活跃事务中最早的一条日志就是撤销阶段的起点
+        firstLogPosition.entrySet().removeIf(e -> !tm.isActive(e.getKey()));
+        for (long pos : firstLogPosition.values()) {
+            ckpt.undoPosition = Math.min(ckpt.undoPosition, pos);
+        }
+        //回滚不等待状态落盘，这些事务的日志删除之前它们的状态必须已经落盘，否则崩溃后它们重新成为活跃事务却没有日志可以撤销
+        tm.sync();
+        PageOne.setCheckpoint(pageOne, ckpt);
+        pc.flushPage(pageOne);
+        //恢复只会读取撤销起点之后的日志，更早的段可以删除
+        logger.removeBefore(ckpt.undoPosition);
+    }
+
+    //启动定期检查点线程
+    void startCheckpointer() {
+        checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "checkpointer");
+            t.setDaemon(true);
+            return t;
+        });
+        checkpointer.scheduleWithFixedDelay(this::checkpoint, CHECKPOINT_INTERVAL_MS, CHECKPOINT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    //读取第一页中记录的检查点
+    Checkpoint loadCheckpoint() {
+        return PageOne.getCheckpoint(pageOne);
     }
 
     public void releaseDataItem(DataItem di) {
@@ -127,9 +311,9 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 
     @Override
     protected DataItem getForCache(long uid) throws Exception {
-        //从 uid中提取出偏移量(offset) ,这是通过位操作实现的，偏移量是uid的低16位
+        //从 uid中提取出槽号(slot) ,这是通过位操作实现的，槽号是uid的低16位
         // &运算： 有0则0，全1才1
-        short offset = (short)(uid & ((1L << 16) - 1));
+        short slot = (short)(uid & ((1L << 16) - 1));
         //将uid右移32位，以便接下来提取出页面编号(pgno)
         uid >>>= 32;
         //从uid中提取出页面编号(pgno),页面编号是uid的高32位
@@ -137,13 +321,19 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         int pgno = (int)(uid & ((1L << 32) - 1));
         //使用页面缓存（pc）的getPage(int pgno)方法根据页面编号获取一个Page对象
         Page pg = pc.getPage(pgno);
-        //使用DataItem接口的静态方法parseDataItem(Page pg, short offset, DataManagerImpl dm)
-        //根据获取到的Page对象，偏移量和当前的DataManagerImpl对象(this)解析出一个DataItem对象，并返回这个对象
-        return DataItem.parseDataItem(pg, offset, this);
+        //根据获取到的Page对象，槽号和当前的DataManagerImpl对象(this)解析出一个DataItem对象
+        DataItem di = DataItem.parseDataItem(pg, slot, this);
+        if (di == null) {
+            //槽位为空，数据项已经被释放
+            pg.release();
+            throw Error.NullEntryException;
+        }
+        return di;
     }
 
     @Override
     protected void releaseForCache(DataItem di) {
+        di.page().unpinItem();
         di.page().release();
     }
 
@@ -171,7 +361,7 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 
     /**
      * 填充PageIndex
-     * 遍历从第二页开始的每一页，将每一页的页面编号和空闲空间大小添加到PageIndex中
+     * 遍历从第二页开始的每一页，将每一页的页面编号和空闲空间大小添加到所属堆的PageIndex中
      */
 
     //初始化pageIndex
@@ -184,7 +374,9 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
             } catch (Exception e) {
                 Panic.panic(e); //如果出现异常，处理异常
             }
-            pIndex.add(pg.getPageNumber(), PageX.getFreeSpace(pg));//将页面编号和页面的空闲空间大小添加到PageIndex中
+            long owner = PageX.getOwner(pg);
+            pIndex(owner).add(pg.getPageNumber(), PageX.getFreeSpace(pg));//将页面编号和页面的空闲空间大小添加到PageIndex中
+            heap(owner).add(pg.getPageNumber());
             pg.release();//释放页面
         }
     }
@@ -0,0 +1,67 @@
+package com.xiongsu.backend.dm;
+
+import com.xiongsu.backend.common.Cursor;
+import com.xiongsu.backend.common.SubArray;
+import com.xiongsu.backend.dm.page.Page;
+import com.xiongsu.backend.dm.page.PageX;
+import com.xiongsu.backend.dm.pageCache.PageCache;
+import com.xiongsu.backend.utils.Types;
+
+import java.util.Iterator;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * 堆的顺序扫描游标，按页号顺序返回一个堆中Data满足filter的数据项的uid，由DataManager.scan创建
+ * 每次在页面锁内把一页中符合条件的槽号复制到缓冲数组，两次读取之间不持有任何页面；
+ * 进入一页时让页面缓存预读后面第READ_AHEAD页，读到它时通常已经在缓存中。
+ * 扫描期间加入堆的页面可能被扫描到，也可能不会
+ */
+public class HeapCursor implements Cursor {
+
+    private static final int READ_AHEAD = 8;// 预读的页面个数
+
+    private PageCache pc;
+    private Predicate<SubArray> filter;
+    private Iterator<Integer> pages;
+    private Iterator<Integer> ahead;// 比pages领先READ_AHEAD页
+    private int pgno;
+    private short[] slots;
+    private int count, pos;
+
+    HeapCursor(PageCache pc, Set<Integer> pages, Predicate<SubArray> filter) {
+        this.pc = pc;
+        this.filter = filter;
+        this.pages = pages.iterator();
+        this.ahead = pages.iterator();
+        this.slots = new short[PageX.maxSlots()];
+        for (int i = 0; i < READ_AHEAD && ahead.hasNext(); i ++) {
+            pc.prefetch(ahead.next());
+        }
+    }
+
+    public boolean hasNext() throws Exception {
+        //页面中可能没有符合条件的数据项，继续读下一页
+        while (pos == count && pages.hasNext()) {
+            pgno = pages.next();
+            if (ahead.hasNext()) {
+                pc.prefetch(ahead.next());
+            }
+            Page pg = pc.getPage(pgno);
+            pg.lock();
+            try {
+                count = PageX.scanSlots(pg, filter, slots);
+            } finally {
+                pg.unlock();
+                pg.release();
+            }
+            pos = 0;
+        }
+        return pos < count;
+    }
+
+    //调用前需要hasNext返回true
+    public long next() {
+        return Types.addressToUid(pgno, slots[pos ++]);
+    }
+}
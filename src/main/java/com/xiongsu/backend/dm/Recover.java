@@ -12,6 +12,8 @@ import com.xiongsu.backend.utils.Panic;
 import com.xiongsu.backend.utils.Parser;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
 
 public class Recover {
 
@@ -19,181 +21,236 @@ public class Recover {
     private static final byte LOG_TYPE_UPDATE = 1;
 
     // updateLog:
-    // [LogType] [XID] [UID] [OldRaw] [NewRaw]
+    // [LogType] [XID] [UID] [Length] [Offset] [OldRaw] [NewRaw]
+    // 只记录DataItem中被修改的一段，Offset为这一段在DataItem中的位置，Length为整个DataItem的长度
 
-    // insertLog:lll
-    // [LogType] [XID] [Pgno] [Offset] [Raw]
+    // insertLog:
+    // [LogType] [XID] [Pgno] [Slot] [Owner] [Raw]
+    // Owner为页面所属的堆，见PageX
 
     private static final int REDO = 0;
     private static final int UNDO = 1;
 
+    private static final int BATCH_SIZE = 1024;// 每个重做分区攒够多少条日志提交一次
+    private static final long REPORT_INTERVAL_MS = 1000;// 进度报告间隔
+
     static class InsertLogInfo {
         long xid;
         int pgno;
-        short offset;
-        byte[] raw;
+        short slot;
+        long owner;
     }
 
     static class UpdateLogInfo {
         long xid;
         int pgno;
-        short offset;
-        byte[] oldRaw;
-        byte[] newRaw;
+        short slot;
+        int length;
+        int offset;
+        int rawLength;// OldRaw和NewRaw各自的长度，两者直接在日志中读取，不复制
+    }
+
+    /**
+     * 恢复进度的回调
+     * 扫描日志时大约每秒报告一次已经读取的日志条数、字节数和用时，全部恢复完成后以done为true再报告一次
+     */
+    public interface Progress {
+        void report(long logs, long bytes, long elapsedMs, boolean done);
+
+        Progress NONE = (logs, bytes, elapsedMs, done) -> {};
     }
 
     public static void recover(TransactionManager tm, Logger lg, PageCache pc) {
-        System.out.println("Recovering...");
+        recover(tm, lg, pc, new Checkpoint(0, 0, 0));
+    }
+
+    public static void recover(TransactionManager tm, Logger lg, PageCache pc, Checkpoint ckpt) {
+        recover(tm, lg, pc, ckpt, Progress.NONE);
+    }
+
+    /**
+     * 从检查点开始恢复
+     * 检查点之前的日志对应的修改都已经落盘，只需要从undoPosition开始扫描一遍日志：
+     *   位于redoPosition之后的已结束事务的日志需要重做，按页号分区交给线程池，每个分区内按日志顺序执行，
+     *   扫描的同时重做就在进行；
+     *   活跃事务的日志按事务收集起来，重做全部完成后，各个事务并行地倒序撤销。
+     * 同一个页面只属于一个重做分区，不同事务撤销时可能修改同一个页面，所以每次修改都在页面锁内进行。
+     */
+    public static void recover(TransactionManager tm, Logger lg, PageCache pc, Checkpoint ckpt, Progress progress) {
+        System.out.println("Recovering from log position " + ckpt.undoPosition + "...");
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            recover(tm, lg, pc, ckpt, new Meter(progress), pool);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static void recover(TransactionManager tm, Logger lg, PageCache pc, Checkpoint ckpt, Meter meter, ForkJoinPool pool) {
+        int partitions = pool.getParallelism();
+        List<List<byte[]>> batches = new ArrayList<>();
+        List<CompletableFuture<Void>> tails = new ArrayList<>();
+        for (int i = 0; i < partitions; i++) {
+            batches.add(new ArrayList<>());
+            tails.add(CompletableFuture.completedFuture(null));
+        }
+        Map<Long, List<byte[]>> undoLogs = new HashMap<>();
 
-        //阶段一
-        //找出所有再崩溃时尚未完成（Active）的事务，并且确定需要恢复的数据页范围
-        lg.rewind();
-        int maxPgno = 0;
-        while(true) {
+        //扫描日志，确定需要恢复的数据页范围，同时分发重做和收集撤销
+        lg.rewind(ckpt.undoPosition);
+        int maxPgno = ckpt.pageNumber;
+        while (true) {
+            long pos = lg.position();
             byte[] log = lg.next();
-            if(log == null) break;
-            int pgno;
-            if(isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                pgno = li.pgno;
-            } else {
-                UpdateLogInfo li = parseUpdateLog(log);
-                pgno = li.pgno;
-            }
-            if(pgno > maxPgno) {
+            if (log == null) break;
+            meter.record(log.length);
+
+            long xid = Parser.parseLong(log, OF_XID);
+            int pgno = getPgno(log);
+            if (pgno > maxPgno) {
                 maxPgno = pgno;
             }
+            if (tm.isActive(xid)) {
+                undoLogs.computeIfAbsent(xid, k -> new ArrayList<>()).add(log);
+            } else if (pos >= ckpt.redoPosition) {
+                int p = pgno % partitions;
+                List<byte[]> batch = batches.get(p);
+                batch.add(log);
+                if (batch.size() >= BATCH_SIZE) {
+                    tails.set(p, submitRedo(pc, tails.get(p), batch, pool));
+                    batches.set(p, new ArrayList<>());
+                }
+            }
         }
-        if(maxPgno == 0) {
+        for (int p = 0; p < partitions; p++) {
+            tails.set(p, submitRedo(pc, tails.get(p), batches.get(p), pool));
+        }
+        CompletableFuture.allOf(tails.toArray(new CompletableFuture<?>[0])).join();
+        System.out.println("Redo Transactions Over.");
+
+        if (maxPgno == 0) {
             maxPgno = 1;
         }
         pc.truncateByBgno(maxPgno);
         System.out.println("Truncate to " + maxPgno + " pages.");
 
-        redoTranscations(tm, lg, pc);
-        System.out.println("Redo Transactions Over.");
-
-        undoTranscations(tm, lg, pc);
-        System.out.println("Undo Transactions Over.");
+        //对所有活跃的事务的日志进行倒序撤销，然后中止事务
+        List<CompletableFuture<Void>> undos = new ArrayList<>();
+        for (Map.Entry<Long, List<byte[]>> entry : undoLogs.entrySet()) {
+            undos.add(CompletableFuture.runAsync(() -> {
+                List<byte[]> logs = new ArrayList<>(entry.getValue());
+                Collections.reverse(logs);
+                apply(pc, logs, UNDO);
+                tm.abort(entry.getKey());
+            }, pool));
+        }
+        CompletableFuture.allOf(undos.toArray(new CompletableFuture<?>[0])).join();
+        System.out.println("Undo Transactions Over. " + undoLogs.size() + " transactions aborted.");
+        meter.report(true);
 
         System.out.println("Recovery Over.");
     }
 
+    //在分区上一批重做完成后重做这一批日志，保证同一分区内按日志顺序执行
+    private static CompletableFuture<Void> submitRedo(PageCache pc, CompletableFuture<Void> tail, List<byte[]> batch, ForkJoinPool pool) {
+        if (batch.isEmpty()) {
+            return tail;
+        }
+        return tail.thenRunAsync(() -> apply(pc, batch, REDO), pool);
+    }
 
-    //阶段二
-    //重做--Redo
-    //目标: 将数据库恢复到崩溃前的最后一刻的状态。这意味着，不管是已提交的还是未提交的事务，只要它们的操作记录在日志里，就通通给我重做一遍
-
-    private static void redoTranscations(TransactionManager tm, Logger lg, PageCache pc) {
-        //重置日志文件的读取位置到开始
-        lg.rewind();
-        //循环读取日志文件中的所有日志记录
-        while(true) {
-            //读取下一条日志记录
-            byte[] log = lg.next();
-            //如果读取到的日志记录为空，标识已经读取到日志文件的末尾，跳出循环
-            if(log == null) break;
-            //判断日志记录的类型
-            if(isInsertLog(log)) {
-                //如果是插入日志，解析日志记录，获取插入日志信息
-                InsertLogInfo li = parseInsertLog(log);
-                //获取事务ID
-                long xid = li.xid;
-                //如果当前事务已经提交，进行重做操作
-                if(!tm.isActive(xid)) {//这里有一个小简化
-                    //幂等性 (Idempotence): doInsertLog 和 doUpdateLog 必须是幂等的。也就是说，即使某个修改已经写盘了，再重做一遍也不会产生错误。
-                    // 这个实现通过直接覆盖指定位置的数据（PageX.recoverUpdate）来保证幂等性。
-                    doInsertLog(pc, log, REDO);
+    /**
+     * 按顺序应用一组日志。连续修改同一个页面的日志（例如连续插入同一个页面）只获取和锁定一次页面
+     */
+    private static void apply(PageCache pc, List<byte[]> logs, int flag) {
+        Page pg = null;
+        try {
+            for (byte[] log : logs) {
+                int pgno = getPgno(log);
+                if (pg == null || pg.getPageNumber() != pgno) {
+                    if (pg != null) {
+                        pg.unlock();
+                        pg.release();
+                        pg = null;
+                    }
+                    try {
+                        pg = pc.getPage(pgno);
+                    } catch (Exception e) {
+                        Panic.panic(e);
+                    }
+                    pg.lock();
                 }
-            } else {
-                //如果是更新日志，解析日志记录，获取更新日志信息
-                UpdateLogInfo xi = parseUpdateLog(log);
-                //获取事务ID
-                long xid = xi.xid;
-                //如果当前事务已经提交，进行重做操作
-                if(!tm.isActive(xid)) {
-                    doUpdateLog(pc, log, REDO);
+                if (isInsertLog(log)) {
+                    doInsertLog(pg, log, flag);
+                } else {
+                    doUpdateLog(pg, log, flag);
                 }
             }
+        } finally {
+            if (pg != null) {
+                pg.unlock();
+                pg.release();
+            }
         }
     }
 
-    //阶段三：撤销
-    private static void undoTranscations(TransactionManager tm, Logger lg, PageCache pc) {
-        // 创建一个用于存储日志的映射，键为事务ID，值为日志列表
-        Map<Long, List<byte[]>> logCache = new HashMap<>();
-        // 将日志文件的读取位置重置到开始
-        lg.rewind();
-        // 循环读取日志文件中的所有日志记录
-        while(true) {
-            // 读取下一条日志记录
-            byte[] log = lg.next();
-            // 如果读取到的日志记录为空，表示已经读取到日志文件的末尾，跳出循环
-            if(log == null) break;
-            // 判断日志记录的类型
-            if(isInsertLog(log)) {
-                // 如果是插入日志，解析日志记录，获取插入日志信息
-                InsertLogInfo li = parseInsertLog(log);
-                // 获取事务ID
-                long xid = li.xid;
-                // 如果当前事务仍然活跃，将日志记录添加到对应的日志列表中
-                if(tm.isActive(xid)) {
-                    if(!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
-                    }
-                    logCache.get(xid).add(log);
-                }
-            } else {
-                // 如果是更新日志，解析日志记录，获取更新日志信息
-                UpdateLogInfo xi = parseUpdateLog(log);
-                // 获取事务ID
-                long xid = xi.xid;
-                // 如果当前事务仍然活跃，将日志记录添加到对应的日志列表中
-                if(tm.isActive(xid)) {
-                    if(!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
-                    }
-                    // 将事务id对应的log添加到集合中
-                    logCache.get(xid).add(log);
-                }
+    //统计恢复的进度，定期交给Progress
+    private static class Meter {
+        private final Progress progress;
+        private final long start = System.currentTimeMillis();
+        private long lastReport = start;
+        private long logs;
+        private long bytes;
+
+        Meter(Progress progress) {
+            this.progress = progress;
+        }
+
+        void record(int size) {
+            logs ++;
+            bytes += size;
+            if ((logs & (BATCH_SIZE - 1)) == 0) {
+                report(false);
             }
         }
 
-        // 对所有活跃的事务的日志进行倒序撤销
-        for(Map.Entry<Long, List<byte[]>> entry : logCache.entrySet()) {
-            List<byte[]> logs = entry.getValue();
-            for (int i = logs.size()-1; i >= 0; i --) { //！！！！这里是倒序的
-                byte[] log = logs.get(i);
-                // 判断日志记录的类型
-                if(isInsertLog(log)) {
-                    // 如果是插入日志，进行撤销插入操作
-                    doInsertLog(pc, log, UNDO);//用逻辑删除撤销
-                } else {
-                    // 如果是更新日志，进行撤销更新操作
-                    doUpdateLog(pc, log, UNDO);// 用oldRaw恢复
-                }
+        void report(boolean done) {
+            long now = System.currentTimeMillis();
+            if (!done && now - lastReport < REPORT_INTERVAL_MS) {
+                return;
             }
-            // 中止当前事务
-            tm.abort(entry.getKey());
+            lastReport = now;
+            progress.report(logs, bytes, now - start, done);
         }
     }
 
+    // 两种日志的页号都不需要解析整条日志
+    private static int getPgno(byte[] log) {
+        if (isInsertLog(log)) {
+            return Parser.parseInt(log, OF_INSERT_PGNO);
+        }
+        long uid = Parser.parseLong(log, OF_UPDATE_UID);
+        return (int)(uid >>> 32);
+    }
+
     private static boolean isInsertLog(byte[] log) {
         return log[0] == LOG_TYPE_INSERT;
     }
 
-    // [LogType] [XID] [UID] [OldRaw] [NewRaw]
+    // [LogType] [XID] [UID] [Length] [Offset] [OldRaw] [NewRaw]
     private static final int OF_TYPE = 0;
     private static final int OF_XID = OF_TYPE+1;
     private static final int OF_UPDATE_UID = OF_XID+8;
-    private static final int OF_UPDATE_RAW = OF_UPDATE_UID+8;
+    private static final int OF_UPDATE_LENGTH = OF_UPDATE_UID+8;
+    private static final int OF_UPDATE_OFFSET = OF_UPDATE_LENGTH+2;
+    private static final int OF_UPDATE_RAW = OF_UPDATE_OFFSET+2;
 
     /**
      * 创建一个更新日志。
      *
      * @param xid 事务ID
      * @param di  DataItem对象
-     * @return 更新日志，包含日志类型、事务ID、DataItem的唯一标识符、旧原始数据和新原始数据
+     * @return 更新日志，包含日志类型、事务ID、DataItem的唯一标识符、被修改的一段的位置、旧数据和新数据
      */
     public static byte[] updateLog(long xid, DataItem di) {
         byte[] logType = {LOG_TYPE_UPDATE}; // 创建一个表示日志类型的字节数组，并设置其值为LOG_TYPE_UPDATE
@@ -201,108 +258,90 @@ public class Recover {
         byte[] uidRaw = Parser.long2Byte(di.getUid()); // 将DataItem对象的唯一标识符转换为字节数组
         byte[] oldRaw = di.getOldRaw(); // 获取DataItem对象的旧原始数据
         SubArray raw = di.getRaw(); // 获取DataItem对象的新原始数据
-        byte[] newRaw = Arrays.copyOfRange(raw.raw, raw.start, raw.end); // 将新原始数据转换为字节数组
-        return Bytes.concat(logType, xidRaw, uidRaw, oldRaw, newRaw); // 将所有字节数组连接在一起，形成一个完整的更新日志，并返回这个日志
+        int length = raw.end - raw.start;
+        //去掉前后没有变化的部分，B+树节点这样的大DataItem每次只修改其中一小段
+        int begin = 0;
+        while (begin < length && oldRaw[begin] == raw.raw.get(raw.start+begin)) {
+            begin ++;
+        }
+        int end = length;
+        while (end > begin && oldRaw[end-1] == raw.raw.get(raw.start+end-1)) {
+            end --;
+        }
+        byte[] lengthRaw = Parser.short2Byte((short) length);
+        byte[] offsetRaw = Parser.short2Byte((short) begin);
+        byte[] before = Arrays.copyOfRange(oldRaw, begin, end);
+        byte[] after = new byte[end-begin];
+        raw.raw.get(raw.start+begin, after, 0, after.length);
+        return Bytes.concat(logType, xidRaw, uidRaw, lengthRaw, offsetRaw, before, after); // 将所有字节数组连接在一起，形成一个完整的更新日志，并返回这个日志
     }
 
     private static UpdateLogInfo parseUpdateLog(byte[] log) {
         UpdateLogInfo li = new UpdateLogInfo();
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_UPDATE_UID));
-        long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
-        li.offset = (short)(uid & ((1L << 16) - 1));
+        li.xid = Parser.parseLong(log, OF_XID);
+        long uid = Parser.parseLong(log, OF_UPDATE_UID);
+        li.slot = (short)(uid & ((1L << 16) - 1));
         uid >>>= 32;
         li.pgno = (int)(uid & ((1L << 32) - 1));
-        int length = (log.length - OF_UPDATE_RAW) / 2;
-        li.oldRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW, OF_UPDATE_RAW+length);
-        li.newRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW+length, OF_UPDATE_RAW+length*2);
+        li.length = Parser.parseShort(log, OF_UPDATE_LENGTH);
+        li.offset = Parser.parseShort(log, OF_UPDATE_OFFSET);
+        li.rawLength = (log.length - OF_UPDATE_RAW) / 2;
         return li;
     }
 
-    private static void doUpdateLog(PageCache pc, byte[] log, int flag) {
-        int pgno;//用于存储页面编号
-        short offset;//用于存储偏移量
-        byte[] raw;//用于存储原始数据
-
-        //根据标志位判断是进行重做操作还是撤销操作
-        if(flag == REDO) {
-            //如果是重做操作，解析日志记录，获取更新日志信息，主要获取新数据
-            UpdateLogInfo xi = parseUpdateLog(log);
-            pgno = xi.pgno;
-            offset = xi.offset;
-            raw = xi.newRaw;
-        } else {
-            //如果是撤销操作，解析日志记录，获取更新日志信息，主要获取旧数据
-            UpdateLogInfo xi = parseUpdateLog(log);
-            pgno = xi.pgno;
-            offset = xi.offset;
-            raw = xi.oldRaw;
-        }
-        Page pg = null;//用于存储获取到的页面
-        try {
-            //尝试从页面缓存中获取指定页码的页面
-            pg = pc.getPage(pgno);
-        } catch (Exception e) {
-            //如果获取页面过程中发生异常，调用panic方法进行处理
-            Panic.panic(e);
-        }
-        try {
-            //在指定的页面和偏移量处插入解析出的数据，数据页缓存讲解了该方法
-            PageX.recoverUpdate(pg, raw, offset);
-        } finally {
-            //无论是否发生异常，都要释放页面
-            pg.release();
-        }
+    //pg是日志所在的页面，调用者已经锁定
+    private static void doUpdateLog(Page pg, byte[] log, int flag) {
+        UpdateLogInfo xi = parseUpdateLog(log);//解析日志记录，获取更新日志信息
+        //根据标志位判断是进行重做操作还是撤销操作，重做时写入新数据，撤销时写入旧数据
+        int from = flag == REDO ? OF_UPDATE_RAW + xi.rawLength : OF_UPDATE_RAW;
+        //把日志中的这一段直接写入指定页面槽位中的数据项
+        PageX.recoverUpdate(pg, log, from, xi.rawLength, xi.slot, xi.length, xi.offset);
     }
 
-    // [LogType] [XID] [Pgno] [Offset] [Raw]
+    // [LogType] [XID] [Pgno] [Slot] [Owner] [Raw]
     private static final int OF_INSERT_PGNO = OF_XID+8;
-    private static final int OF_INSERT_OFFSET = OF_INSERT_PGNO+4;
-    private static final int OF_INSERT_RAW = OF_INSERT_OFFSET+2;
+    private static final int OF_INSERT_SLOT = OF_INSERT_PGNO+4;
+    private static final int OF_INSERT_OWNER = OF_INSERT_SLOT+2;
+    private static final int OF_INSERT_RAW = OF_INSERT_OWNER+8;
 
     //定义一个静态方法，用于创建日志
-    public static byte[] insertLog(long xid, Page pg, byte[] raw) {
+    public static byte[] insertLog(long xid, Page pg, short slot, byte[] raw) {
         //创建一个表示日志类型的字节数组，并设置其值为LOG_TYPE_INSERT
         byte[] logTypeRaw = {LOG_TYPE_INSERT};
         //将事务ID转换为字节数组
         byte[] xidRaw = Parser.long2Byte(xid);
         //将页面编号转换为字节数组
         byte[] pgnoRaw = Parser.int2Byte(pg.getPageNumber());
-        // 获取页面的第一个空闲空间的偏移量，并将其转换为字节数组
-        byte[] offsetRaw = Parser.short2Byte(PageX.getFSO(pg));
+        // 将数据项所在的槽号转换为字节数组
+        byte[] slotRaw = Parser.short2Byte(slot);
+        // 页面所属的堆
+        byte[] ownerRaw = Parser.long2Byte(PageX.getOwner(pg));
         // 将所有字节数组连接在一起，形成一个完整的插入日志，并返回这个日志
-        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, offsetRaw, raw);
+        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, slotRaw, ownerRaw, raw);
     }
 
     private static InsertLogInfo parseInsertLog(byte[] log) {
         InsertLogInfo li = new InsertLogInfo();
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_INSERT_PGNO));
-        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_OFFSET));
-        li.offset = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_OFFSET, OF_INSERT_RAW));
-        li.raw = Arrays.copyOfRange(log, OF_INSERT_RAW, log.length);
+        li.xid = Parser.parseLong(log, OF_XID);
+        li.pgno = Parser.parseInt(log, OF_INSERT_PGNO);
+        li.slot = Parser.parseShort(log, OF_INSERT_SLOT);
+        li.owner = Parser.parseLong(log, OF_INSERT_OWNER);
         return li;
     }
 
-    private static void doInsertLog(PageCache pc, byte[] log, int flag) {
-        // 解析日志记录，获取插入日志信息
+    //pg是日志所在的页面，调用者已经锁定
+    private static void doInsertLog(Page pg, byte[] log, int flag) {
+        // 解析日志记录，获取插入日志信息，数据项直接在日志中读取
         InsertLogInfo li = parseInsertLog(log);
-        Page pg = null;
-        try {
-            // 根据页码从页面缓存中获取页面，即AbstractCache.get()方法
-            pg = pc.getPage(li.pgno);
-        } catch(Exception e) {
-            // 如果发生异常，调用Panic.panic方法处理
-            Panic.panic(e);
+        // 如果标志位为UNDO，将数据项设置为无效。每条日志只撤销一次，可以直接修改日志
+        if(flag == UNDO) {
+            DataItem.setDataItemRawInvalid(log, OF_INSERT_RAW);
         }
-        try {
-            // 如果标志位为UNDO，将数据项设置为无效
-            if(flag == UNDO) {
-                DataItem.setDataItemRawInvalid(li.raw);
-            }
-            // 在指定的页面和偏移量处插入数据
-            PageX.recoverInsert(pg, li.raw, li.offset);
-        } finally {
-            // 无论是否发生异常，都要释放页面,即AbstractCache.release() 方法
-            pg.release();
+        // 新建的页面可能没有落盘，读到的是全0的页面
+        if(PageX.getOwner(pg) != li.owner) {
+            PageX.setOwner(pg, li.owner);
         }
+        // 在指定页面的槽位中插入数据
+        PageX.recoverInsert(pg, log, OF_INSERT_RAW, log.length - OF_INSERT_RAW, li.slot);
     }
 }
@@ -1,14 +1,14 @@
 package com.xiongsu.backend.dm.dataltem;
 
-import cn.hutool.log.Log;
 import com.google.common.primitives.Bytes;
 import com.xiongsu.backend.common.SubArray;
 import com.xiongsu.backend.dm.DataManagerImpl;
 import com.xiongsu.backend.dm.page.Page;
+import com.xiongsu.backend.dm.page.PageX;
 import com.xiongsu.backend.utils.Parser;
 import com.xiongsu.backend.utils.Types;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 public interface DataItem {
     SubArray data();
@@ -23,6 +23,10 @@ public interface DataItem {
     void rLock();
     void rUnLock();
 
+    //乐观读：version为偶数时没有正在进行的修改，不加锁读完数据后用validate确认期间没有被修改
+    long version();
+    boolean validate(long version);
+
     Page page();
     long getUid();
     byte[] getOldRaw();
@@ -32,7 +36,7 @@ public interface DataItem {
      *  返回一个完整的 DataItem 结构数据
      *  dataItem 结构如下：
      *  [ValidFlag] [DataSize] [Data]
-     *  ValidFlag 1字节，0为合法，1为非法
+     *  ValidFlag 1字节，0为合法，1为非法，2为已被vacuum释放、空间可以回收
      *  DataSize  2字节，标识Data的长度
      * @param raw
      * @return
@@ -43,16 +47,59 @@ public interface DataItem {
         return Bytes.concat(valid, size, raw);//拼接DataItem结构数据
     }
 
-    //从页面的offset出解析出dataitem
-    public static DataItem parseDataItem(Page pg, short offset, DataManagerImpl dm) {
-        byte[] raw = pg.getData();
-        short size = Parser.parseShort(Arrays.copyOfRange(raw, offset+DataItemImpl.OF_SIZE, offset+DataItemImpl.OF_DATA));
-        short length = (short) (size+DataItemImpl.OF_DATA);
-        long uid = Types.addressToUid(pg.getPageNumber(), offset);
-        return new DataItemImpl(new SubArray(raw, offset, offset+length), new byte[length], pg, uid, dm);
+    /**
+     * 从页面的slot中解析出dataitem，空槽返回null
+     * 在页面锁内查找槽位并登记，之后页面不会被压缩，dataitem引用的偏移保持不变
+     */
+    public static DataItem parseDataItem(Page pg, short slot, DataManagerImpl dm) {
+        pg.lock();
+        try {
+            short offset = PageX.getOffset(pg, slot);
+            if (offset == 0) {
+                return null;
+            }
+            ByteBuffer buf = pg.buffer();
+            int start = pg.offset()+offset;
+            int length = rawLength(buf, start);
+            long uid = Types.addressToUid(pg.getPageNumber(), slot);
+            pg.pinItem();
+            return new DataItemImpl(new SubArray(buf, start, start+length), new byte[length], pg, uid, dm);
+        } finally {
+            pg.unlock();
+        }
+    }
+
+    //一个DataItem中Data的最大长度，整个DataItem占满一页中可用的空间
+    public static int maxDataSize() {
+        return PageX.MAX_FREE_SPACE - DataItemImpl.OF_DATA;
+    }
+
+    //raw中从start开始的数据项
+    public static void setDataItemRawInvalid(byte[] raw, int start) {
+        raw[start+DataItemImpl.OF_VALID] = (byte) 1;
+    }
+
+    //标记为已释放，只有已释放的数据项占用的空间可以回收
+    public static void setDataItemRawFreed(SubArray raw) {
+        raw.raw.put(raw.start+DataItemImpl.OF_VALID, DataItemImpl.FREED);
+    }
+
+    //下面的offset都是数据项在buf中的位置，buf通常是页面所在的缓冲区（见Page.buffer）
+    public static boolean isRawFreed(ByteBuffer buf, int offset) {
+        return buf.get(offset+DataItemImpl.OF_VALID) == DataItemImpl.FREED;
+    }
+
+    public static boolean isRawValid(ByteBuffer buf, int offset) {
+        return buf.get(offset+DataItemImpl.OF_VALID) == 0;
+    }
+
+    //buf中offset处的数据项的Data部分
+    public static SubArray rawData(ByteBuffer buf, int offset) {
+        return new SubArray(buf, offset+DataItemImpl.OF_DATA, offset+rawLength(buf, offset));
     }
 
-    public static void setDataItemRawInvalid(byte[] raw) {
-        raw[DataItemImpl.OF_VALID] = (byte) 1;
+    //buf中offset处的数据项的总长度
+    public static int rawLength(ByteBuffer buf, int offset) {
+        return buf.getShort(offset+DataItemImpl.OF_SIZE) + DataItemImpl.OF_DATA;
     }
 }
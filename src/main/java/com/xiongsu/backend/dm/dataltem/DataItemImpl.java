@@ -4,6 +4,7 @@ import com.xiongsu.backend.common.SubArray;
 import com.xiongsu.backend.dm.DataManagerImpl;
 import com.xiongsu.backend.dm.page.Page;
 
+import java.lang.invoke.VarHandle;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -11,7 +12,7 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 /**
  * dataItem 结构如下：
  * [ValidFlag] [DataSize] [Data]
- * ValidFlag 1字节，0为合法， 1为非法
+ * ValidFlag 1字节，0为合法， 1为非法， 2为已释放
  * DataSize 2字节， 标识Data的长度
  */
 
@@ -21,6 +22,8 @@ public class DataItemImpl implements DataItem{
     static final int OF_SIZE = 1;
     static final int OF_DATA = 3;
 
+    static final byte FREED = 2;
+
     private SubArray raw;//原始数据
     private byte[] oldRaw;//旧的原始数据
     private Lock rLock;
@@ -28,6 +31,7 @@ public class DataItemImpl implements DataItem{
     private DataManagerImpl dm;//数据管理器
     private long uid;//唯一标识符
     private Page pg;//页面对象
+    private volatile long version;//修改开始和结束时各加一，只在写锁内修改
 
     public DataItemImpl(SubArray raw, byte[] oldRaw, Page pg, long uid, DataManagerImpl dm) {
         this.raw = raw;
@@ -41,7 +45,7 @@ public class DataItemImpl implements DataItem{
     }
 
     public boolean isValid() {
-        return raw.raw[raw.start+OF_VALID] == (byte)0;
+        return raw.raw.get(raw.start+OF_VALID) == (byte)0;
     }
 
     @Override
@@ -52,22 +56,30 @@ public class DataItemImpl implements DataItem{
 
     @Override
     public void before() {
+        dm.beginUpdate();
         wLock.lock();
+        version++;
+        //之后对数据的写入不能排到version之前，否则乐观读可能读到修改了一半的数据却校验通过
+        VarHandle.releaseFence();
         pg.setDirty(true);
         //保存原始数据的副本，以便在需要时进行回滚
-        System.arraycopy(raw.raw, raw.start, oldRaw, 0, oldRaw.length);
+        raw.raw.get(raw.start, oldRaw, 0, oldRaw.length);
     }
 
     @Override
     public void unBefore() {
-        System.arraycopy(oldRaw, 0, raw.raw, raw.start, oldRaw.length);
+        raw.raw.put(raw.start, oldRaw, 0, oldRaw.length);
+        version++;
         wLock.unlock();
+        dm.endUpdate();
     }
 
     @Override
     public void after(long xid) {
         dm.logDataItem(xid, this);
+        version++;
         wLock.unlock();
+        dm.endUpdate();
     }
 
     @Override
@@ -95,6 +107,18 @@ public class DataItemImpl implements DataItem{
         rLock.unlock();
     }
 
+    @Override
+    public long version() {
+        return version;
+    }
+
+    @Override
+    public boolean validate(long version) {
+        //之前对数据的读取不能排到这次读version之后
+        VarHandle.acquireFence();
+        return this.version == version;
+    }
+
     @Override
     public Page page() {
         return pg;
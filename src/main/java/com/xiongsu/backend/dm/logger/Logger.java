@@ -1,28 +1,26 @@
 package com.xiongsu.backend.dm.logger;
 
 import com.xiongsu.backend.utils.Panic;
-import com.xiongsu.backend.utils.Parser;
 import com.xiongsu.common.Error;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 
 public interface Logger {
-    void log(byte[] data);
+    long log(byte[] data);// 追加一条日志，返回这条日志在日志文件中的位置
     void truncate(long x) throws Exception;
     byte[] next();
     void rewind();
+    void rewind(long position);// 从指定位置开始读取，位置必须是某条日志的开始或日志末尾
+    long position();// 下一条由next读取的日志的位置
+    long end();// 日志末尾，也就是下一条日志将写入的位置
+    void removeBefore(long position);// 删除position所在段之前的日志段
     void close();
 
-    //用于首次创建日志文件。它会确保文件不存在，创建它，写入初始元数据（如校验和0），然后返回一个基于这个新文件初始化的 Logger。
+    //用于首次创建日志。它会确保日志不存在，创建第一个日志段，然后返回一个基于这个段初始化的 Logger。
     public static Logger create(String path) {
-        File f = new File(path+LoggerImpl.LOG_SUFFIX);
+        File f = new File(LoggerImpl.segmentPath(path, 0));
         try {
-            if (!f.createNewFile()) {
+            if (!LoggerImpl.listSegments(path).isEmpty() || !f.createNewFile()) {
                 Panic.panic(Error.FileExistsException);
             }
         } catch (Exception e) {
@@ -32,47 +30,18 @@ public interface Logger {
             Panic.panic(Error.FileCannotRWException);
         }
 
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-            Panic.panic(e);
-        }
-
-        ByteBuffer buf = ByteBuffer.wrap(Parser.int2Byte(0));//将0转换为四字节的数字
-        try {
-            fc.position(0);
-            fc.write(buf);//将其写入到文件
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-
-        return new LoggerImpl(raf, fc, 0);
+        LoggerImpl lg = new LoggerImpl(path);
+        lg.initNew();
+        return lg;
     }
 
-    //用于打开已经存在的日志文件。它会确保文件存在，然后创建一个 Logger 实例，并调用其 init() 方法来读取、验证文件内容，并设置好内部状态以供后续读写
+    //用于打开已经存在的日志。它会确保日志段存在，然后创建一个 Logger 实例，并调用其 init() 方法检查最后一个段，并设置好内部状态以供后续读写
     public static Logger open(String path) {
-        File f = new File(path+LoggerImpl.LOG_SUFFIX);
-        if (!f.exists()) {
+        if (LoggerImpl.listSegments(path).isEmpty()) {
             Panic.panic(Error.FileNotExistsException);
         }
-        if (!f.canRead() || !f.canWrite()) {
-            Panic.panic(Error.FileCannotRWException);
-        }
-
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-            Panic.panic(e);
-        }
 
-        LoggerImpl lg = new LoggerImpl(raf, fc);
+        LoggerImpl lg = new LoggerImpl(path);
         lg.init();
 
         return lg;
@@ -5,29 +5,54 @@ import com.xiongsu.backend.utils.Panic;
 import com.xiongsu.backend.utils.Parser;
 import com.xiongsu.common.Error;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
 
 /**
  * 日志文件读写
  *
- * 日志文件标准格式为:
- * [XChecksum] [Log1] [Log2] ... [LogN] [BadTail]
- * XChecksum 为后续所有日志计算的Checksum.int类型
+ * 日志由若干个段文件组成，文件名为 path.log.段号，段号从0开始连续递增。
+ * 每个段文件的格式为:
+ * [Header] [Log1] [Log2] ... [LogN] [BadTail]
+ * Header 为 [Magic][SegmentNo][Checksum]，共16字节，Checksum 为前12字节的CRC32C
  *
  * 每条正确日志格式为：
  * [Size] [Checksum] [Data]
  * Size 4字节int 标识Data长度
- * Checksum 4字节int
+ * Checksum 4字节int，为Size和Data的CRC32C
+ *
+ * 日志的位置为 段号 * SEGMENT_SIZE + 段内偏移。一条日志不会跨段，当前段放不下时写到下一个段的开头。
+ * 开始写下一个段之前，前一个段已经落盘，所以只有最后一个段可能存在BadTail，打开日志时只检查最后一个段。
+ * 其他段必须恰好在最后一条完整日志处结束，读到不完整或校验失败的日志说明日志文件已经损坏。
+ * 新建段文件后会同步所在目录，保证崩溃后段文件仍然存在。
+ * 检查点之前的段不再需要，由 removeBefore 删除。
+ *
+ * 文件读写都使用带位置参数的read/write，不依赖通道的position。
+ * lock只保护追加写；读取日志用的游标position只属于一个读者（恢复过程），读取时不加锁。
+ *
+ * 追加采用组提交：log先把日志放进共享的缓冲区pending并分配位置，然后等待它落盘。
+ * 没有线程在刷盘时，等待者中的一个成为leader，取走整个缓冲区，在锁外按段写入并逐段force，
+ * 完成后唤醒所有等待者。leader刷盘期间到达的日志进入下一组。
  */
 public class LoggerImpl implements Logger{
 
-    private static final int SEED = 13331;
+    static final long SEGMENT_SIZE = 1 << 24;// 每个段16MB
+
+    private static final int MAGIC = 0x584C4F47;
+    private static final int HEADER_SIZE = 16;
 
     private static final int OF_SIZE = 0;
     private static final int OF_CHECKSUM = OF_SIZE + 4;
@@ -35,134 +60,175 @@ public class LoggerImpl implements Logger{
 
     public static final String LOG_SUFFIX = ".log";
 
-    private RandomAccessFile file;
-    private FileChannel fc;
+    private String path;
+    private ConcurrentSkipListMap<Long, FileChannel> segments; // 段号 -> 段文件
     private Lock lock;
+    private Condition flushed; // 一组日志落盘后通知等待者
 
     private long position; // 当前日志指针的位置
-    private long fileSize; // 初始化时记录，Log操作不更新
-    private int xChecksum;
+    private long end; // 日志末尾的位置，包括还在缓冲区中的日志
+    private long durable; // 已经落盘的日志末尾
 
-    LoggerImpl(RandomAccessFile raf, FileChannel fc) {
-        this.file = raf;
-        this.fc = fc;
-        lock = new ReentrantLock();
-    }
+    private List<Long> pendingPos; // 等待下一次刷盘的日志的位置
+    private List<byte[]> pendingLogs; // 等待下一次刷盘的日志
+    private boolean flushing; // 是否有leader正在刷盘
 
-    LoggerImpl(RandomAccessFile raf, FileChannel fc, int xChecksum) {
-        this.file = raf;
-        this.fc = fc;
-        this.xChecksum = xChecksum;
+    LoggerImpl(String path) {
+        this.path = path;
+        this.segments = new ConcurrentSkipListMap<>();
         lock = new ReentrantLock();
+        flushed = lock.newCondition();
+        pendingPos = new ArrayList<>();
+        pendingLogs = new ArrayList<>();
     }
 
-    void init() {
-        long size = 0;
+    //新建日志，创建第0个段
+    void initNew() {
         try {
-            size = file.length();//读取文件大小
+            newSegment(0);
+            segments.get(0L).force(false);
         } catch (IOException e) {
             Panic.panic(e);
         }
-        if (size<4) { //若文件大小小于4，证明日志文件创建出现问题
+        end = durable = segmentStart(0);
+        rewind();
+    }
+
+    void init() {
+        long prev = -1;
+        for (long seg : listSegments(path)) {
+            //段号必须连续，中间缺少的段无法恢复
+            if (prev != -1 && seg != prev + 1) {
+                Panic.panic(Error.BadLogFileException);
+            }
+            segments.put(seg, openSegment(path, seg));
+            prev = seg;
+        }
+        if (segments.isEmpty()) {
             Panic.panic(Error.BadLogFileException);
         }
 
-        ByteBuffer raw = ByteBuffer.allocate(4);//创建一个容量为4的ByteBuffer
-        try {
-            fc.position(0);
-            fc.read(raw);//读取四字节大小的内容
-        } catch (IOException e) {
-            Panic.panic(e);
+        long last = segments.lastKey();
+        for (Map.Entry<Long, FileChannel> e : segments.entrySet()) {
+            if (checkHeader(e.getValue(), e.getKey())) {
+                continue;
+            }
+            //只有最后一个段可能在写头部时崩溃，此时它还没有任何日志
+            if (e.getKey() != last) {
+                Panic.panic(Error.BadLogFileException);
+            }
+            try {
+                e.getValue().truncate(0);
+                writeFully(e.getValue(), ByteBuffer.wrap(segmentHeader(last)), 0);
+            } catch (IOException ex) {
+                Panic.panic(ex);
+            }
         }
-        int xChecksum = Parser.parseInt(raw.array());//将其转换成int整数
-        this.fileSize = size;
-        this.xChecksum = xChecksum;//赋值给当前对象
 
-        checkAndRemoveTail();//检查是否需要去除BadTail
-    }
-
-    //检查并移除bad tail
-    private void checkAndRemoveTail() {
-        // 将当前位置重置为文件的开始位置
-        // [XChecksum][Log1][Log2]...[LogN][BadTail] --> [Log1][Log2]...[LogN][BadTail]
+        removeBadTail(last);
         rewind();
+    }
 
-        // 初始化校验和为 0
-        int xCheck = 0;
-
-        // 循环读取日志，直到没有更多的日志可以读取
+    //检查最后一个段并移除bad tail
+    private void removeBadTail(long seg) {
+        FileChannel fc = segments.get(seg);
+        long offset = HEADER_SIZE;
         while (true) {
-            //读取下一条日志
-            byte[] log = internNext();
-            //如果读取到的日志为null,说明没有更多的日志可以读取，跳出循环
+            byte[] log = readLog(fc, offset, true);
             if (log == null) break;
-            //计算校验和
-            xCheck = calChecksum(xCheck, log);
+            offset += log.length;
         }
-
-        // 比较计算得到的校验和和文件中的校验和，如果不相等，说明日志已经被破坏，抛出异常
-        if(xCheck != xChecksum) {
-            Panic.panic(Error.BadLogFileException);
-        }
-
-        // 尝试将文件截断到当前位置，移除 "bad tail"
         try {
-            truncate(position);
-        } catch (Exception e) {
-            // 如果发生 IO 异常，调用 Panic.panic 方法处理异常
-            Panic.panic(e);
-        }
-
-        // 尝试将文件的读取位置设置为当前位置
-        try {
-            file.seek(position);
+            fc.truncate(offset);
+            fc.force(false);
         } catch (IOException e) {
-            // 如果发生 IO 异常，调用 Panic.panic 方法处理异常
             Panic.panic(e);
         }
-        // 将当前位置重置为文件的开始位置
-        rewind();
+        end = durable = seg * SEGMENT_SIZE + offset;
     }
 
-    private int calChecksum(int xCheck, byte[] log) {
-        for (byte b : log) {
-            xCheck = xCheck * SEED + b;
-        }
-        return xCheck;
+    private int calChecksum(byte[] log) {
+        CRC32C crc = new CRC32C();
+        crc.update(log, OF_SIZE, 4);
+        crc.update(log, OF_DATA, log.length - OF_DATA);
+        return (int) crc.getValue();
     }
 
     @Override
-    public void log(byte[] data) {
+    public long log(byte[] data) {
         // 解析成一条完整的log日志
         byte[] log = wrapLog(data);
-        ByteBuffer buf = ByteBuffer.wrap(log);
+        if (log.length > SEGMENT_SIZE - HEADER_SIZE) {
+            Panic.panic(Error.DataTooLargeException);
+        }
         lock.lock();
         try {
-            //写入到指定位置
-            fc.position(fc.size());
-            fc.write(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
+            //放入缓冲区并分配位置，当前段放不下时从下一个段开始
+            long pos = end;
+            if (offsetOf(pos) + log.length > SEGMENT_SIZE) {
+                pos = segmentStart(segmentOf(pos) + 1);
+            }
+            pendingPos.add(pos);
+            pendingLogs.add(log);
+            end = pos + log.length;
+            long target = end;
+            //等待这条日志落盘，没有leader时自己刷盘
+            while (durable < target) {
+                if (flushing) {
+                    flushed.awaitUninterruptibly();
+                } else {
+                    flushGroup();
+                }
+            }
+            return pos;
         } finally {
             lock.unlock();
         }
-        // 更新总校验值
-        updateXChecksum(log);
     }
 
     /**
-     * 更新总校验值
-     * @param log
+     * 作为leader把缓冲区中的一组日志写入文件并落盘，调用时持有lock
+     * 写入和force期间释放锁，其他线程可以继续向缓冲区追加日志
      */
-    private void updateXChecksum(byte[] log) {
-        // 计算总校验值
-        this.xChecksum = calChecksum(this.xChecksum, log);
+    private void flushGroup() {
+        List<Long> poss = pendingPos;
+        List<byte[]> logs = pendingLogs;
+        pendingPos = new ArrayList<>();
+        pendingLogs = new ArrayList<>();
+        long groupEnd = end;
+        flushing = true;
+        lock.unlock();
         try {
-            fc.position(0);
-            fc.write(ByteBuffer.wrap(Parser.int2Byte(xChecksum)));
-            fc.force(false);
+            int i = 0;
+            while (i < logs.size()) {
+                //同一个段中的日志是连续的，合并成一次写入，写完这个段再写下一个段
+                long seg = segmentOf(poss.get(i));
+                long start = poss.get(i);
+                ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                while (i < logs.size() && segmentOf(poss.get(i)) == seg) {
+                    buf.writeBytes(logs.get(i));
+                    i ++;
+                }
+                FileChannel fc = segments.get(seg);
+                if (fc == null) {
+                    fc = newSegment(seg);
+                }
+                writeFully(fc, ByteBuffer.wrap(buf.toByteArray()), offsetOf(start));
+                fc.force(false);
+            }
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            lock.lock();
+        }
+        durable = groupEnd;
+        flushing = false;
+        flushed.signalAll();
+    }
+
+    private void writeFully(FileChannel fc, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            pos += fc.write(buf, pos);
         }
     }
 
@@ -170,107 +236,263 @@ public class LoggerImpl implements Logger{
      * 将数据解析成完整log
      */
     private byte[] wrapLog(byte[] data) {
-        // 使用 calChecksum 方法计算数据的校验和，然后将校验和转换为字节数组
-        byte[] checksum = Parser.int2Byte(calChecksum(0, data));
         // 将数据的长度转换为字节数组
         byte[] size = Parser.int2Byte(data.length);
-        // 使用 Bytes.concat 方法将 size、checksum 和 data 连接成一个新的字节数组，然后返回这个字节数组
-        return Bytes.concat(size, checksum, data);
+        byte[] log = Bytes.concat(size, new byte[4], data);
+        // 计算Size和Data的校验和，填入Checksum
+        System.arraycopy(Parser.int2Byte(calChecksum(log)), 0, log, OF_CHECKSUM, 4);
+        return log;
     }
 
+    /**
+     * 把日志截断到位置x，删除之后的段
+     */
     @Override
     public void truncate(long x) throws Exception {
         lock.lock();
         try {
-            fc.truncate(x);
+            long seg = segmentOf(x);
+            for (long s : new ArrayList<>(segments.tailMap(seg, false).keySet())) {
+                deleteSegment(s);
+            }
+            FileChannel fc = segments.get(seg);
+            if (fc != null) {
+                fc.truncate(Math.max(offsetOf(x), HEADER_SIZE));
+            }
+            end = durable = Math.max(x, segmentStart(seg));
         } finally {
             lock.unlock();
         }
     }
 
     /**
-     * 获取下一条日志
-     * @return
+     * 删除position所在段之前的所有段
      */
-    private byte[] internNext() {
-        // 检查当前位置是否已经超过了文件的大小，如果超过了，说明没有更多的日志可以读取，返回 null
-        if (position + OF_DATA >= fileSize) {
-            return null;
+    @Override
+    public void removeBefore(long position) {
+        long seg = segmentOf(position);
+        for (long s : new ArrayList<>(segments.headMap(seg, false).keySet())) {
+            deleteSegment(s);
         }
+    }
 
-        // 创建一个大小为 4 的 ByteBuffer，用于读取日志的大小
-        ByteBuffer tmp = ByteBuffer.allocate(4);
+    private void deleteSegment(long seg) {
+        FileChannel fc = segments.remove(seg);
         try {
-            // 将文件通道的位置设置为当前位置
-            fc.position(position);
-            // 从文件通道中读取 4 个字节的数据到 ByteBuffer 中，即Size日志文件的大小
-            fc.read(tmp);
+            fc.close();
         } catch (IOException e) {
-            // 如果发生 IO 异常，调用 Panic.panic 方法处理异常
             Panic.panic(e);
         }
-        // 使用 Parser.parseInt 方法将读取到的 4 个字节的数据转换为 int 类型，得到日志的大小
-        int size = Parser.parseInt(tmp.array());
-        // 检查当前位置加上日志的大小是否超过了文件的大小，如果超过了，说明日志不完整，返回 null
-        if (position + size + OF_DATA > fileSize) {
-            return null;
+        if (!new File(segmentPath(path, seg)).delete()) {
+            Panic.panic(Error.FileCannotRWException);
         }
+    }
 
-        // 创建一个大小为 OF_DATA + size 的 ByteBuffer，用于读取完整的日志
-        ByteBuffer buf = ByteBuffer.allocate(OF_DATA+size);
+    /**
+     * 获取下一条日志，当前段读完后转到下一个段
+     */
+    private byte[] internNext() {
+        while (true) {
+            long seg = segmentOf(position);
+            Map.Entry<Long, FileChannel> e = segments.ceilingEntry(seg);
+            if (e == null) {
+                return null;
+            }
+            if (e.getKey() != seg) {
+                // 游标所在的段已经被删除，从后面第一个段开始
+                position = segmentStart(e.getKey());
+            }
+            Long next = segments.higherKey(e.getKey());
+            // 只有最后一个段允许存在BadTail
+            byte[] log = readLog(e.getValue(), offsetOf(position), next == null);
+            if (log != null) {
+                // 更新当前位置
+                position += log.length;
+                return log;
+            }
+            if (next == null) {
+                return null;
+            }
+            position = segmentStart(next);
+        }
+    }
+
+    /**
+     * 读取段内offset处的一条日志，已经到达段末尾时返回null
+     * 日志不完整或校验失败时，tail为true（最后一个段）说明这是BadTail，返回null；否则日志文件已经损坏
+     */
+    private byte[] readLog(FileChannel fc, long offset, boolean tail) {
         try {
-            // 将文件通道的位置设置为当前位置
-            fc.position(position);
-            // 从文件通道中读取 OF_DATA + size 个字节的数据到 ByteBuffer 中
+            long size = fc.size();
+            if (offset == size) {
+                return null;
+            }
+            // 剩下的字节不够一个日志头
+            if (offset + OF_DATA > size) {
+                return badLog(tail);
+            }
+            ByteBuffer tmp = ByteBuffer.allocate(4);
+            fc.read(tmp, offset);
+            int len = Parser.parseInt(tmp.array());
+            // 检查日志是否完整
+            if (len < 0 || offset + OF_DATA + len > size) {
+                return badLog(tail);
+            }
             // 读取整条日志 [Size][Checksum][Data]
-            fc.read(buf);
+            ByteBuffer buf = ByteBuffer.allocate(OF_DATA + len);
+            fc.read(buf, offset);
+            byte[] log = buf.array();
+            // 比较计算得到的校验和和日志中的校验和，如果不相等，说明日志已经被破坏
+            if (calChecksum(log) != Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA))) {
+                return badLog(tail);
+            }
+            return log;
         } catch (IOException e) {
-            // 如果发生 IO 异常，调用 Panic.panic 方法处理异常
             Panic.panic(e);
+            return null;
         }
+    }
 
-        // 将 ByteBuffer 中的数据转换为字节数组
-        byte[] log = buf.array();
-
-        // 计算日志数据的校验和
-        int checkSum1 = calChecksum(0, Arrays.copyOfRange(log, OF_DATA, log.length));
-        // 从日志中读取校验和
-        int checksum2 = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA));
-        // 比较计算得到的校验和和日志中的校验和，如果不相等，说明日志已经被破坏，返回 null
-        if (checkSum1 != checksum2) {
-            return null;
+    private static byte[] badLog(boolean tail) {
+        if (!tail) {
+            Panic.panic(Error.BadLogFileException);
         }
-        // 更新当前位置
-        position += log.length;
-        // 返回读取到的日志
-        return log;
+        return null;
     }
 
     @Override
     public byte[] next() {
+        byte[] log = internNext();
+        if (log == null) return null;
+        //返回日志文件data
+        return Arrays.copyOfRange(log, OF_DATA, log.length);
+    }
+
+    @Override
+    public void rewind() {
+        position = segmentStart(segments.firstKey());
+    }
+
+    @Override
+    public void rewind(long position) {
+        this.position = Math.max(position, segmentStart(segments.firstKey()));
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public long end() {
         lock.lock();
         try {
-            byte[] log = internNext();
-            if (log == null) return null;
-            //返回日志文件data
-            return Arrays.copyOfRange(log, OF_DATA, log.length);
+            return end;
         } finally {
             lock.unlock();
         }
     }
 
-    @Override
-    public void rewind() {
-        position = 4;
-    }
-
     @Override
     public void close() {
         try {
-            fc.close();
-            file.close();
+            for (FileChannel fc : segments.values()) {
+                fc.close();
+            }
         }catch (IOException e) {
             Panic.panic(e);
         }
     }
+
+    private static long segmentOf(long position) {
+        return position / SEGMENT_SIZE;
+    }
+
+    private static long offsetOf(long position) {
+        return position % SEGMENT_SIZE;
+    }
+
+    private static long segmentStart(long seg) {
+        return seg * SEGMENT_SIZE + HEADER_SIZE;
+    }
+
+    static String segmentPath(String path, long seg) {
+        return String.format("%s%s.%08d", path, LOG_SUFFIX, seg);
+    }
+
+    //按段号排序的已有段
+    static List<Long> listSegments(String path) {
+        File base = new File(path + LOG_SUFFIX).getAbsoluteFile();
+        String prefix = base.getName() + ".";
+        List<Long> segs = new ArrayList<>();
+        File[] files = base.getParentFile().listFiles();
+        if (files == null) {
+            return segs;
+        }
+        for (File f : files) {
+            String name = f.getName();
+            if (name.startsWith(prefix) && name.length() > prefix.length()
+                    && name.substring(prefix.length()).chars().allMatch(Character::isDigit)) {
+                segs.add(Long.parseLong(name.substring(prefix.length())));
+            }
+        }
+        segs.sort(null);
+        return segs;
+    }
+
+    private static FileChannel openSegment(String path, long seg) {
+        File f = new File(segmentPath(path, seg));
+        if (!f.canRead() || !f.canWrite()) {
+            Panic.panic(Error.FileCannotRWException);
+        }
+        try {
+            return FileChannel.open(f.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            Panic.panic(e);
+            return null;
+        }
+    }
+
+    //创建新的段并写入头部，不force，由调用者和段中的第一组日志一起落盘；段文件的目录项立即落盘
+    private FileChannel newSegment(long seg) throws IOException {
+        File f = new File(segmentPath(path, seg)).getAbsoluteFile();
+        FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        syncDirectory(f.getParentFile());
+        writeFully(fc, ByteBuffer.wrap(segmentHeader(seg)), 0);
+        segments.put(seg, fc);
+        return fc;
+    }
+
+    //force目录，使其中新建的文件在崩溃后仍然存在。有的平台（如Windows）不能打开目录，此时跳过
+    private static void syncDirectory(File dir) {
+        FileChannel fc;
+        try {
+            fc = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            return;
+        }
+        try (FileChannel d = fc) {
+            d.force(true);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    private static byte[] segmentHeader(long seg) {
+        byte[] header = Bytes.concat(Parser.int2Byte(MAGIC), Parser.long2Byte(seg), new byte[4]);
+        CRC32C crc = new CRC32C();
+        crc.update(header, 0, 12);
+        System.arraycopy(Parser.int2Byte((int) crc.getValue()), 0, header, 12, 4);
+        return header;
+    }
+
+    private static boolean checkHeader(FileChannel fc, long seg) {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+        try {
+            fc.read(buf, 0);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return Arrays.equals(buf.array(), segmentHeader(seg));
+    }
 }
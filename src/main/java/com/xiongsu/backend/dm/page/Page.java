@@ -1,5 +1,7 @@
 package com.xiongsu.backend.dm.page;
 
+import java.nio.ByteBuffer;
+
 public interface Page {
 
     void lock();
@@ -8,5 +10,12 @@ public interface Page {
     void setDirty(boolean dirty);
     boolean isDirty();
     int getPageNumber();
-    byte[] getData();
+    //页面的数据位于buffer()中[offset(), offset()+PAGE_SIZE)，buffer由多个页面共享，只能用带下标的get/put访问
+    ByteBuffer buffer();
+    int offset();
+
+    //页面中被加载的DataItem个数，DataItem直接引用页面中的偏移，有DataItem被加载时页面不能压缩
+    void pinItem();
+    void unpinItem();
+    boolean hasPinnedItems();
 }
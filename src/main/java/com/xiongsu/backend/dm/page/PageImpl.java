@@ -2,23 +2,29 @@ package com.xiongsu.backend.dm.page;
 
 import com.xiongsu.backend.dm.pageCache.PageCache;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 //内存中的页面对象
 public class PageImpl implements Page {
     private int pageNumber;//页面的页号，从1开始计数。
-    private byte[] data;//实际包含的字节数据。
-    private boolean dirty;//标志着页面是否是脏页面，在缓存驱逐时，脏页面需要被写回磁盘。
+    private ByteBuffer buffer;//页面所在的缓冲区，与其他页面共享
+    private int offset;//页面在buffer中的起始位置
+    private volatile boolean dirty;//标志着页面是否是脏页面，在缓存驱逐时，脏页面需要被写回磁盘。
     private Lock lock;//用于页面的锁。
+    private AtomicInteger pinnedItems;//被加载的DataItem个数，在页面锁内增加，释放DataItem时减少
 
     private PageCache pc;//保存了一个 PageCache 的引用，方便在拿到 Page 的引用时可以快速对页面的缓存进行释放操作。
 
-    public PageImpl(int pageNumber, byte[] data, PageCache pc) {
+    public PageImpl(int pageNumber, ByteBuffer buffer, int offset, PageCache pc) {
         this.pageNumber = pageNumber;//设置页面的页号
-        this.data = data;//设置页面实际包含的字节数据
+        this.buffer = buffer;
+        this.offset = offset;
         this.pc = pc;//设置页面缓存
         lock = new ReentrantLock();//初始化一个新的可重入锁
+        pinnedItems = new AtomicInteger();
     }
 
     public void lock() {
@@ -45,7 +51,23 @@ public class PageImpl implements Page {
         return pageNumber;
     }
 
-    public byte[] getData() {
-        return data;
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public int offset() {
+        return offset;
+    }
+
+    public void pinItem() {
+        pinnedItems.incrementAndGet();
+    }
+
+    public void unpinItem() {
+        pinnedItems.decrementAndGet();
+    }
+
+    public boolean hasPinnedItems() {
+        return pinnedItems.get() > 0;
     }
 }
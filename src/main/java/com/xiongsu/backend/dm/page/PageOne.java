@@ -1,24 +1,31 @@
 package com.xiongsu.backend.dm.page;
 
 
+import com.xiongsu.backend.dm.Checkpoint;
 import com.xiongsu.backend.dm.pageCache.PageCache;
 import com.xiongsu.backend.utils.RandomUtil;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 /**
  * 特殊管理第一页
  * ValidCheck
  * db启动时给100~107字节处填入一个随机字节，db关闭时将其拷贝到108~115字节
  * 用来判断上一次数据库是否正常关闭
+ *
+ * Checkpoint
+ * 116~135字节处记录最近一次检查点：[RedoPosition 8字节] [UndoPosition 8字节] [PageNumber 4字节]
  */
 public class PageOne {
     private static final int OF_VC = 100;
     private static final int LEN_VC = 8;
+    private static final int OF_CKPT_REDO = OF_VC + 2*LEN_VC;
+    private static final int OF_CKPT_UNDO = OF_CKPT_REDO + 8;
+    private static final int OF_CKPT_PGNO = OF_CKPT_UNDO + 8;
 
     public static byte[] InitRaw() {
         byte[] raw = new byte[PageCache.PAGE_SIZE];
-        setVcOpen(raw);
+        setVcOpen(ByteBuffer.wrap(raw), 0);
         return raw;
     }
 
@@ -26,11 +33,11 @@ public class PageOne {
     //这个方法会生成 LEN_VC (8) 个随机字节，将这 8 个随机字节写入到第一页的 "Open Slot" (字节 100-107)。
     public static void setVcOpen(Page pg) {
         pg.setDirty(true);
-        setVcOpen(pg.getData());
+        setVcOpen(pg.buffer(), pg.offset());
     }
 
-    private static void setVcOpen(byte[] raw) {
-        System.arraycopy(RandomUtil.randomBytes(LEN_VC), 0, raw, OF_VC, LEN_VC);
+    private static void setVcOpen(ByteBuffer buf, int base) {
+        buf.put(base+OF_VC, RandomUtil.randomBytes(LEN_VC), 0, LEN_VC);
     }
 
     //当数据库准备正常关闭时，会调用 setVcClose 方法。
@@ -40,18 +47,37 @@ public class PageOne {
     //如果两者内容不相同： 这意味着上一次关闭时，setVcClose 没有被执行，或者执行了但对应的页面修改没有成功写回磁盘（比如发生了崩溃）。因此，数据库上次是异常关闭的。checkVc 返回 false。
     public static void setVcClose(Page pg) {
         pg.setDirty(true);
-        setVcClose(pg.getData());
+        setVcClose(pg.buffer(), pg.offset());
     }
 
-    private static void setVcClose(byte[] raw) {
-        System.arraycopy(raw, OF_VC, raw, OF_VC+LEN_VC, LEN_VC);
+    private static void setVcClose(ByteBuffer buf, int base) {
+        buf.put(base+OF_VC+LEN_VC, buf, base+OF_VC, LEN_VC);
     }
 
     public static boolean checkVc(Page pg) {
-        return checkVc(pg.getData());
+        return checkVc(pg.buffer(), pg.offset());
     }
 
-    private static boolean checkVc(byte[] raw) {
-        return Arrays.equals(Arrays.copyOfRange(raw, OF_VC, OF_VC+LEN_VC), Arrays.copyOfRange(raw, OF_VC+LEN_VC, OF_VC+2*LEN_VC));
+    private static boolean checkVc(ByteBuffer buf, int base) {
+        return buf.getLong(base+OF_VC) == buf.getLong(base+OF_VC+LEN_VC);
+    }
+
+    //记录检查点，调用者负责随后把第一页落盘
+    public static void setCheckpoint(Page pg, Checkpoint ckpt) {
+        ByteBuffer buf = pg.buffer();
+        int base = pg.offset();
+        buf.putLong(base+OF_CKPT_REDO, ckpt.redoPosition);
+        buf.putLong(base+OF_CKPT_UNDO, ckpt.undoPosition);
+        buf.putInt(base+OF_CKPT_PGNO, ckpt.pageNumber);
+        pg.setDirty(true);
+    }
+
+    public static Checkpoint getCheckpoint(Page pg) {
+        ByteBuffer buf = pg.buffer();
+        int base = pg.offset();
+        long redo = buf.getLong(base+OF_CKPT_REDO);
+        long undo = buf.getLong(base+OF_CKPT_UNDO);
+        int pgno = buf.getInt(base+OF_CKPT_PGNO);
+        return new Checkpoint(redo, undo, pgno);
     }
 }
@@ -1,69 +1,292 @@
 package com.xiongsu.backend.dm.page;
 
+import com.xiongsu.backend.common.SubArray;
+import com.xiongsu.backend.dm.dataltem.DataItem;
 import com.xiongsu.backend.dm.pageCache.PageCache;
-import com.xiongsu.backend.utils.Parser;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
 
 /**
  * PageX管理普通页
  * 普通页结构
- * [FreeSpaceOffset] [Date]
- * FreeSpaceOffset: 2字节 空闲位置开始偏移
+ * [SlotCount] [FreeEnd] [Owner] [Slot0] [Slot1] ... [SlotN-1] ...空闲... [Data]
+ * SlotCount: 2字节 槽位个数
+ * FreeEnd:   2字节 数据区的起始位置，数据项从页尾向前存放
+ * Owner:     8字节 页面所属的堆，表的记录只存放在以表的uid为Owner的页面中，0为元数据和索引节点共用的页面
+ * Slot:      2字节 数据项在页内的偏移，0表示空槽
+ * 数据项的uid由页号和槽号组成。已释放的数据项（见DataItem）的槽位可以复用，
+ * 压缩页面时数据项在页内移动，只修改槽位中的偏移，uid不变
+ * 页面的字节位于 pg.buffer() 中从 pg.offset() 开始的一段，下面的 base 就是这个起始位置，偏移都相对于页面
  */
 public class PageX {
 
-    private static final short OF_FREE = 0;
-    private static final short OF_DATA = 2;
-    public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_DATA;
+    private static final short OF_SLOT_COUNT = 0;
+    private static final short OF_FREE_END = 2;
+    private static final short OF_OWNER = 4;
+    private static final short OF_SLOTS = 12;
+    private static final int SLOT_SIZE = 2;
+    public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_SLOTS - SLOT_SIZE;
 
-    public static byte[] initRaw() {
+    public static byte[] initRaw(long owner) {
         byte[] raw = new byte[PageCache.PAGE_SIZE];
-        setFSO(raw, OF_DATA);
+        ByteBuffer buf = ByteBuffer.wrap(raw);
+        setSlotCount(buf, 0, 0);
+        setFreeEnd(buf, 0, PageCache.PAGE_SIZE);
+        buf.putLong(OF_OWNER, owner);
         return raw;
     }
 
-    private static void setFSO(byte[] raw, short ofDate) {
-        System.arraycopy(Parser.short2Byte(ofDate), 0, raw, OF_FREE, OF_DATA);
+    public static long getOwner(Page pg) {
+        return pg.buffer().getLong(pg.offset()+OF_OWNER);
     }
 
-    //获取pg的FSO
-    public static short getFSO(Page pg) {
-        return getFSO(pg.getData());
+    //恢复时新建页面的初始内容可能没有落盘，按插入日志中记录的Owner补上
+    public static void setOwner(Page pg, long owner) {
+        pg.setDirty(true);
+        pg.buffer().putLong(pg.offset()+OF_OWNER, owner);
+    }
+
+    private static int getSlotCount(ByteBuffer buf, int base) {
+        return buf.getShort(base + OF_SLOT_COUNT);
+    }
+
+    private static void setSlotCount(ByteBuffer buf, int base, int count) {
+        buf.putShort(base + OF_SLOT_COUNT, (short) count);
+    }
+
+    //FreeEnd可能等于PAGE_SIZE，按无符号数读取
+    private static int getFreeEnd(ByteBuffer buf, int base) {
+        return buf.getShort(base + OF_FREE_END) & 0xFFFF;
+    }
+
+    private static void setFreeEnd(ByteBuffer buf, int base, int end) {
+        buf.putShort(base + OF_FREE_END, (short) end);
+    }
+
+    private static int getSlot(ByteBuffer buf, int base, int slot) {
+        return buf.getShort(base + OF_SLOTS + slot * SLOT_SIZE);
     }
 
-    private static short getFSO(byte[] raw) {
-        return Parser.parseShort(Arrays.copyOfRange(raw, 0, 2));
+    private static void setSlot(ByteBuffer buf, int base, int slot, int offset) {
+        buf.putShort(base + OF_SLOTS + slot * SLOT_SIZE, (short) offset);
     }
 
-    //将raw插入pg中， 返回插入位置
-    public static short insert(Page pg, byte[] raw) {
-        pg.setDirty(true);// 将pg的dirty标志设置为true，表示pg的数据已经被修改
-        short offset = getFSO(pg.getData());// 获取pg的空闲空间偏移量
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);// 将raw的数据复制到pg的数据中的offset位置
-        setFSO(pg.getData(), (short)(offset + raw.length));// 更新pg的空闲空间偏移量
-        return offset;// 返回插入位置
+    //槽位是否可以分配给新的数据项：空槽，或者指向已释放的数据项
+    private static boolean isFreeSlot(ByteBuffer buf, int base, int slot) {
+        int offset = getSlot(buf, base, slot);
+        return offset == 0 || DataItem.isRawFreed(buf, base + offset);
     }
 
-    //获取页面的空闲时间大小
+    //slot中数据项在页内的偏移，空槽返回0
+    public static short getOffset(Page pg, short slot) {
+        ByteBuffer buf = pg.buffer();
+        int base = pg.offset();
+        if (slot < 0 || slot >= getSlotCount(buf, base)) {
+            return 0;
+        }
+        return (short) getSlot(buf, base, slot);
+    }
+
+    /**
+     * 顺序扫描页面中有效的数据项，把Data满足filter的数据项的槽号依次写入slots，返回个数；filter为null时不检查
+     * 数据项的Data写入后不会再被修改，在页面锁内可以直接在页面的字节上检查。调用者持有页面锁
+     */
+    public static int scanSlots(Page pg, Predicate<SubArray> filter, short[] slots) {
+        ByteBuffer buf = pg.buffer();
+        int base = pg.offset();
+        int count = getSlotCount(buf, base);
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            int offset = getSlot(buf, base, i);
+            if (offset == 0 || !DataItem.isRawValid(buf, base + offset)) {
+                continue;
+            }
+            if (filter == null || filter.test(DataItem.rawData(buf, base + offset))) {
+                slots[n ++] = (short) i;
+            }
+        }
+        return n;
+    }
+
+    //页面中最多能有多少个槽位
+    public static int maxSlots() {
+        return (PageCache.PAGE_SIZE - OF_SLOTS) / SLOT_SIZE;
+    }
+
+    /**
+     * 页面的空闲空间：去掉目录和未释放的数据项后剩下的空间，包括已释放数据项留下的空洞。
+     * 没有可复用的槽位时，再扣除一个新槽位的大小，保证能放下这么长的数据项
+     */
     public static int getFreeSpace(Page pg) {
-        return PageCache.PAGE_SIZE - (int)getFSO(pg.getData());
+        ByteBuffer buf = pg.buffer();
+        int base = pg.offset();
+        int count = getSlotCount(buf, base);
+        int used = OF_SLOTS + count * SLOT_SIZE;
+        boolean freeSlot = false;
+        for (int i = 0; i < count; i++) {
+            if (isFreeSlot(buf, base, i)) {
+                freeSlot = true;
+            } else {
+                used += DataItem.rawLength(buf, base + getSlot(buf, base, i));
+            }
+        }
+        if (!freeSlot) {
+            used += SLOT_SIZE;
+        }
+        return Math.max(0, PageCache.PAGE_SIZE - used);
+    }
+
+    //不压缩页面时能插入的最大数据项长度
+    public static int getContiguousFreeSpace(Page pg) {
+        ByteBuffer buf = pg.buffer();
+        int base = pg.offset();
+        int count = getSlotCount(buf, base);
+        for (int i = 0; i < count; i++) {
+            if (isFreeSlot(buf, base, i)) {
+                return getContiguousSpace(buf, base);
+            }
+        }
+        return Math.max(0, getContiguousSpace(buf, base) - SLOT_SIZE);
+    }
+
+    //目录和数据区之间的连续空间
+    private static int getContiguousSpace(ByteBuffer buf, int base) {
+        return getFreeEnd(buf, base) - OF_SLOTS - getSlotCount(buf, base) * SLOT_SIZE;
+    }
+
+    /**
+     * 为长度为length的数据项选择槽位，连续空间不够时压缩页面。返回槽号，放不下时返回-1
+     * compactable为false时不能移动数据项（页面中有数据项正在被引用）
+     * 只选择位置，写入由insert完成，两者之间先写日志，调用者持有页面锁
+     */
+    public static short allocate(Page pg, int length, boolean compactable) {
+        ByteBuffer buf = pg.buffer();
+        int base = pg.offset();
+        int count = getSlotCount(buf, base);
+        int slot = count;
+        for (int i = 0; i < count; i++) {
+            if (isFreeSlot(buf, base, i)) {
+                slot = i;
+                break;
+            }
+        }
+        int need = length + (slot == count ? SLOT_SIZE : 0);
+        if (getContiguousSpace(buf, base) < need) {
+            if (!compactable || getFreeSpace(pg) < length) {
+                return -1;
+            }
+            compact(pg);
+            //压缩会去掉末尾的空槽，重新选择
+            return allocate(pg, length, false);
+        }
+        return (short) slot;
+    }
+
+    //将raw插入pg的slot中，slot由allocate选出
+    public static void insert(Page pg, byte[] raw, short slot) {
+        insert(pg, raw, 0, raw.length, slot);
+    }
+
+    //将raw中从from开始的length字节插入pg的slot中
+    private static void insert(Page pg, byte[] raw, int from, int length, short slot) {
+        pg.setDirty(true);
+        ByteBuffer buf = pg.buffer();
+        int base = pg.offset();
+        int count = getSlotCount(buf, base);
+        if (slot >= count) {
+            for (int i = count; i < slot; i++) {
+                setSlot(buf, base, i, 0);
+            }
+            setSlotCount(buf, base, slot + 1);
+        }
+        int offset = getFreeEnd(buf, base) - length;
+        buf.put(base + offset, raw, from, length);
+        setFreeEnd(buf, base, offset);
+        setSlot(buf, base, slot, offset);
     }
 
-    //将raw插入pg中的offset位置，并将pg的offset设置为较大的offset
-    public static void recoverInsert(Page pg, byte[] raw, short offset) {
+    /**
+     * 压缩页面：把未释放的数据项按原来的顺序紧挨着移到页尾，释放的数据项的槽位清空，末尾的空槽去掉
+     * 数据项的位置只保存在槽位中，压缩不需要记录日志
+     */
+    public static void compact(Page pg) {
         pg.setDirty(true);
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
+        ByteBuffer buf = pg.buffer();
+        int base = pg.offset();
+        int count = getSlotCount(buf, base);
+        List<int[]> live = new ArrayList<>();// [槽号, 偏移]
+        for (int i = 0; i < count; i++) {
+            if (isFreeSlot(buf, base, i)) {
+                setSlot(buf, base, i, 0);
+            } else {
+                live.add(new int[]{i, getSlot(buf, base, i)});
+            }
+        }
+        //从最靠近页尾的数据项开始移动，目标位置不会在源位置之前
+        live.sort((a, b) -> Integer.compare(b[1], a[1]));
+        int end = PageCache.PAGE_SIZE;
+        for (int[] s : live) {
+            int len = DataItem.rawLength(buf, base + s[1]);
+            end -= len;
+            buf.put(base + end, buf, base + s[1], len);
+            setSlot(buf, base, s[0], end);
+        }
+        setFreeEnd(buf, base, end);
+        while (count > 0 && getSlot(buf, base, count - 1) == 0) {
+            count--;
+        }
+        setSlotCount(buf, base, count);
+    }
 
-        short rawFSO = getFSO(pg.getData());
-        if (rawFSO < offset + raw.length) {
-            setFSO(pg.getData(), (short)(offset+raw.length));
+    /**
+     * 恢复时重做插入：slot中已有同样长度的数据项时原地覆盖，否则重新分配空间
+     * 槽位中可能是更晚复用了这个槽位的数据项，之后的日志会再次覆盖它。
+     * 运行时插入这条数据项时页面放得下，压缩后仍然放不下说明页面已经是更晚的状态，
+     * 这条数据项之后已经被释放、空间被别的数据项占用，跳过即可
+     * 数据项是raw中从from开始的length字节，恢复时直接从日志中读取
+     */
+    public static void recoverInsert(Page pg, byte[] raw, int from, int length, short slot) {
+        pg.setDirty(true);
+        ByteBuffer buf = pg.buffer();
+        int base = pg.offset();
+        int count = getSlotCount(buf, base);
+        if (slot < count) {
+            int offset = getSlot(buf, base, slot);
+            if (offset != 0 && DataItem.rawLength(buf, base + offset) == length) {
+                buf.put(base + offset, raw, from, length);
+                return;
+            }
+            setSlot(buf, base, slot, 0);
+        }
+        int need = length + Math.max(0, slot + 1 - count) * SLOT_SIZE;
+        if (getContiguousSpace(buf, base) < need) {
+            compact(pg);
+            if (getContiguousSpace(buf, base) < length + Math.max(0, slot + 1 - getSlotCount(buf, base)) * SLOT_SIZE) {
+                return;
+            }
         }
+        insert(pg, raw, from, length, slot);
     }
 
-    //将raw插入到pg中的offset位置，不更新update
-    public static void recoverUpdate(Page pg, byte[] raw, short offset) {
+    /**
+     * 恢复时重做或撤销更新：把raw写入slot中数据项的offset处，数据项的长度length不会改变
+     * slot为空或者长度不同，说明槽位已经被更晚插入的数据项复用，这条日志已经没有作用
+     * 写入的是raw中从from开始的rawLength字节
+     */
+    public static void recoverUpdate(Page pg, byte[] raw, int from, int rawLength, short slot, int length, int offset) {
+        ByteBuffer buf = pg.buffer();
+        int base = pg.offset();
+        if (slot >= getSlotCount(buf, base)) {
+            return;
+        }
+        int itemOffset = getSlot(buf, base, slot);
+        if (itemOffset == 0 || DataItem.rawLength(buf, base + itemOffset) != length) {
+            return;
+        }
         pg.setDirty(true);
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
+        buf.put(base + itemOffset + offset, raw, from, rawLength);
     }
 }
@@ -0,0 +1,92 @@
+package com.xiongsu.backend.dm.pageCache;
+
+import com.xiongsu.backend.utils.Panic;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+//通过FileChannel读写页面
+//读写都使用带位置参数的read/write，不改变通道的position，不同页面的读写可以并发进行
+public class ChannelPageFile implements PageFile {
+
+    private RandomAccessFile file;
+    private FileChannel fc;
+
+    ChannelPageFile(RandomAccessFile file, FileChannel fc) {
+        this.file = file;
+        this.fc = fc;
+    }
+
+    @Override
+    public void read(int pgno, ByteBuffer buf, int offset) {
+        //计算页码对应的偏移量
+        long position = PageCacheImpl.pageOffset(pgno);
+        //buf由多个页面共享，在独立的视图上读写，不改变buf的position
+        ByteBuffer bb = buf.slice(offset, PageCache.PAGE_SIZE);
+        try {
+            // 从偏移量处读取数据到页面，直到读满或到达文件末尾
+            while (bb.hasRemaining() && fc.read(bb, position + bb.position()) > 0) {
+            }
+        } catch (IOException e) {
+            //如果发生异常，调用Panic.panic方法处理
+            Panic.panic(e);
+        }
+        // 页帧是复用的，文件末尾之后的部分需要清零
+        while (bb.hasRemaining()) {
+            bb.put((byte)0);
+        }
+    }
+
+    @Override
+    public void write(int pgno, ByteBuffer buf, int offset) {
+        long position = PageCacheImpl.pageOffset(pgno); //计算Page在文件中的偏移量
+        try {
+            ByteBuffer bb = buf.slice(offset, PageCache.PAGE_SIZE);
+            while (bb.hasRemaining()) {
+                fc.write(bb, position + bb.position());//将数据写入到文件的偏移量处
+            }
+        } catch (IOException e) {
+            Panic.panic(e);//如果发生异常，调用Panic.panic方法处理
+        }
+    }
+
+    @Override
+    public void sync() {
+        try {
+            fc.force(false);//强制将数据从操作系统的缓存刷新到磁盘
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    @Override
+    public long length() {
+        try {
+            return file.length();
+        } catch (IOException e) {
+            Panic.panic(e);
+            return 0;
+        }
+    }
+
+    @Override
+    public void truncate(long size) {
+        try {
+            file.setLength(size);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            fc.close();
+            file.close();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+}
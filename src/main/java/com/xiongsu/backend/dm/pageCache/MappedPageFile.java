@@ -0,0 +1,167 @@
+package com.xiongsu.backend.dm.pageCache;
+
+import com.xiongsu.backend.utils.Panic;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 通过内存映射读写页面
+ * 文件按 SEGMENT_SIZE 分段映射，页面直接以映射段中的一段作为存储（见 mapping），读入页面不需要拷贝也不占用页帧。
+ *
+ * 映射使用 PRIVATE（写时复制）模式：对页面的修改只留在本进程的映射中，操作系统不会在日志落盘之前把它写回文件，
+ * 写回仍然由页面缓存按日志的顺序通过 write 完成，sync 时 force 文件。代价是被修改过的页面在映射中保留私有副本，
+ * 这部分内存不受页面缓存容量的限制。
+ *
+ * 映射会把文件扩展到段的整数倍，所以逻辑长度单独记录在 logicalLength 中，关闭时再把文件截断到逻辑长度。
+ * 如果没有正常关闭，下次打开时文件末尾是全0的页面，恢复时按检查点和日志中的最大页号截断。
+ */
+public class MappedPageFile implements MappedPages {
+
+    private static final int PAGES_PER_SEGMENT = 8192;
+    private static final long SEGMENT_SIZE = (long) PAGES_PER_SEGMENT * PageCache.PAGE_SIZE;// 64MB
+
+    private RandomAccessFile file;
+    private FileChannel fc;
+    private volatile MappedByteBuffer[] segments;
+    private Lock growLock;// 只在追加映射和修改逻辑长度时使用
+    private volatile long logicalLength;
+
+    MappedPageFile(RandomAccessFile file, FileChannel fc) {
+        this.file = file;
+        this.fc = fc;
+        this.segments = new MappedByteBuffer[0];
+        this.growLock = new ReentrantLock();
+        try {
+            this.logicalLength = file.length();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    //返回pgno所在的段，必要时追加映射
+    private MappedByteBuffer segment(int pgno) {
+        int idx = (pgno - 1) / PAGES_PER_SEGMENT;
+        MappedByteBuffer[] segs = segments;
+        if (idx < segs.length) {
+            return segs[idx];
+        }
+        growLock.lock();
+        try {
+            segs = segments;
+            if (idx >= segs.length) {
+                MappedByteBuffer[] grown = Arrays.copyOf(segs, idx + 1);
+                for (int i = segs.length; i <= idx; i++) {
+                    grown[i] = fc.map(FileChannel.MapMode.PRIVATE, i * SEGMENT_SIZE, SEGMENT_SIZE);
+                }
+                segments = grown;
+                segs = grown;
+            }
+            return segs[idx];
+        } catch (IOException e) {
+            Panic.panic(e);
+            return null;
+        } finally {
+            growLock.unlock();
+        }
+    }
+
+    private static int offsetInSegment(int pgno) {
+        return ((pgno - 1) % PAGES_PER_SEGMENT) * PageCache.PAGE_SIZE;
+    }
+
+    @Override
+    public ByteBuffer mapping(int pgno) {
+        return segment(pgno);
+    }
+
+    @Override
+    public int mappingOffset(int pgno) {
+        return offsetInSegment(pgno);
+    }
+
+    @Override
+    public void read(int pgno, ByteBuffer buf, int offset) {
+        buf.put(offset, segment(pgno), offsetInSegment(pgno), PageCache.PAGE_SIZE);
+    }
+
+    /**
+     * 写回一页。页面缓存中的页面就位于映射中，直接从映射写入文件；
+     * 新建页面的初始内容不在映射中，先拷贝进映射，映射中这一页可能还是被截断之前的旧内容
+     */
+    @Override
+    public void write(int pgno, ByteBuffer buf, int offset) {
+        MappedByteBuffer seg = segment(pgno);
+        int off = offsetInSegment(pgno);
+        if (buf != seg) {
+            seg.put(off, buf, offset, PageCache.PAGE_SIZE);
+        }
+        long position = PageCacheImpl.pageOffset(pgno);
+        try {
+            ByteBuffer bb = seg.slice(off, PageCache.PAGE_SIZE);
+            while (bb.hasRemaining()) {
+                fc.write(bb, position + bb.position());
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        //新建页面时推进逻辑长度
+        long end = PageCacheImpl.pageOffset(pgno + 1);
+        growLock.lock();
+        try {
+            if (end > logicalLength) {
+                logicalLength = end;
+            }
+        } finally {
+            growLock.unlock();
+        }
+    }
+
+    @Override
+    public void sync() {
+        try {
+            fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    @Override
+    public long length() {
+        return logicalLength;
+    }
+
+    @Override
+    public void truncate(long size) {
+        //映射期间不能缩短文件，只调整逻辑长度，多出来的页面会被新建页面覆盖，关闭时再截断
+        growLock.lock();
+        try {
+            logicalLength = size;
+        } finally {
+            growLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        sync();
+        segments = new MappedByteBuffer[0];
+        try {
+            file.setLength(logicalLength);
+        } catch (IOException e) {
+            // 部分平台不允许截断仍被映射的文件，多出来的部分下次打开时由恢复处理
+        }
+        try {
+            fc.close();
+            file.close();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+}
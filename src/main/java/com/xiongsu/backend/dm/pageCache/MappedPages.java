@@ -0,0 +1,12 @@
+package com.xiongsu.backend.dm.pageCache;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 页面直接以文件映射作为存储的PageFile
+ * 页面缓存读入页面时不拷贝也不分配页帧，而是把映射中的这一段包装成页面
+ */
+public interface MappedPages extends PageFile {
+    ByteBuffer mapping(int pgno);// 页面所在的映射段，页面位于其中 mappingOffset(pgno) 处
+    int mappingOffset(int pgno);
+}
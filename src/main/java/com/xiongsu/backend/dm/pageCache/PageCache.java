@@ -1,5 +1,7 @@
 package com.xiongsu.backend.dm.pageCache;
 
+import com.xiongsu.backend.common.CacheStats;
+import com.xiongsu.backend.common.EvictionPolicy;
 import com.xiongsu.backend.dm.page.Page;
 import com.xiongsu.backend.utils.Panic;
 import com.xiongsu.common.Error;
@@ -8,6 +10,8 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
 
 public interface PageCache {
 
@@ -15,14 +19,29 @@ public interface PageCache {
 
     int newPage(byte[] initData);
     Page getPage(int pgno) throws Exception;
+    void prefetch(int pgno);// 在后台把页面读入缓存，供顺序扫描预读
     void close();
     void release(Page page);
 
     void truncateByBgno(int maxPgno);
     int getPageNumber();
     void flushPage(Page pg);
+    List<Integer> dirtyPageNumbers();// 按页号排序的当前脏页的页号
+    void writePages(List<Integer> pgnos, Lock guard);// 在guard内复制并写回其中仍然是脏页的页面，不force
+    void sync();// 将已写回的页面落盘
+    CacheStats getStats();
 
     public static PageCacheImpl create(String path, long memory) {
+        return create(path, memory, EvictionPolicy.CLOCK);
+    }
+
+    //policy 为驱逐策略名，见 EvictionPolicy
+    public static PageCacheImpl create(String path, long memory, String policy) {
+        return create(path, memory, policy, false);
+    }
+
+    //mmap 为true时通过内存映射读写数据库文件，见 MappedPageFile
+    public static PageCacheImpl create(String path, long memory, String policy, boolean mmap) {
         File f = new File(path+PageCacheImpl.DB_SUFFIX);
         try {
             if (!f.createNewFile()) {
@@ -43,10 +62,19 @@ public interface PageCache {
         } catch (FileNotFoundException e) {
             Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int)memory/PAGE_SIZE);
+        PageFile pf = mmap ? new MappedPageFile(raf, fc) : new ChannelPageFile(raf, fc);
+        return new PageCacheImpl(pf, (int)(memory/PAGE_SIZE), policy);
     }
 
     public static PageCacheImpl open(String path, long memory) {
+        return open(path, memory, EvictionPolicy.CLOCK);
+    }
+
+    public static PageCacheImpl open(String path, long memory, String policy) {
+        return open(path, memory, policy, false);
+    }
+
+    public static PageCacheImpl open(String path, long memory, String policy, boolean mmap) {
         File f = new File(path+PageCacheImpl.DB_SUFFIX);
         if (!f.exists()) {
             Panic.panic(Error.FileCannotRWException);
@@ -63,6 +91,7 @@ public interface PageCache {
         } catch (FileNotFoundException e) {
             Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int)memory/PAGE_SIZE);
+        PageFile pf = mmap ? new MappedPageFile(raf, fc) : new ChannelPageFile(raf, fc);
+        return new PageCacheImpl(pf, (int)(memory/PAGE_SIZE), policy);
     }
 }
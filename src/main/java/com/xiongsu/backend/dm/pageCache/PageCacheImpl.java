@@ -6,49 +6,75 @@ import com.xiongsu.backend.dm.page.PageImpl;
 import com.xiongsu.backend.utils.Panic;
 import com.xiongsu.common.Error;
 
-import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 //缓存管理器实现
+//页面写回分为三种：
+//  1. 驱逐脏页时只写入文件，不force，页面的修改此时已经记录在强制落盘的日志中
+//  2. 后台写线程定期把没有被引用的脏页按页号排序批量写入，整批只force一次
+//  3. 检查点调用 writePages + sync 把它开始时的脏页写入并落盘
+//所有写回都在页面锁内完成，保证同一页面的多次写回按顺序落到文件上。
+//后台写线程和检查点只在复制页面时独占页面，写入文件的是副本，写入期间页面可以被获取和修改
+//文件读写由 PageFile 完成，可以是 FileChannel（ChannelPageFile）或内存映射（MappedPageFile）
+//使用FileChannel时页面存放在页帧池的页帧中，使用内存映射时页面直接位于映射中，不分配页帧
 public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
 
     private static final int MEM_MIN_LIM = 10;
     public static final String DB_SUFFIX = ".db";
+    private static final long FLUSH_INTERVAL_MS = 500;// 后台写线程的刷盘间隔
 
-    private RandomAccessFile file;
-    private FileChannel fc;
-    private Lock fileLock;
+    private PageFile pf;
+    private MappedPages mapped;// 内存映射时页面直接位于映射中，否则为null
+    private PageFramePool frames;// 页面的存储，创建时按容量一次性分配，被驱逐页面的页帧在这里复用；内存映射时为null
 
     private AtomicInteger pageNumbers;
+    private ReadWriteLock writes;// 写回页面时从清除脏标记到写入完成持有读锁，sync先获取一次写锁，等待已经开始的写回完成
+    private ByteBuffer flushBuffer;// 后台写线程复制页面用的缓冲区
+    private ScheduledExecutorService writer;// 后台脏页写线程
+    private ExecutorService prefetcher;// 后台预读线程
 
-    PageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int maxResourse) {
-        super(maxResourse);
+    PageCacheImpl(PageFile pf, int maxResourse, String policy) {
+        super(maxResourse, policy);
         if (maxResourse < MEM_MIN_LIM) {
             Panic.panic(Error.MemTooSmallException);
         }
-        long length = 0;
-        try {
-            length = file.length();
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-        this.file = file;
-        this.fc = fileChannel;
-        this.fileLock = new ReentrantLock();
-        this.pageNumbers = new AtomicInteger((int)length / PAGE_SIZE);
+        this.pf = pf;
+        this.mapped = pf instanceof MappedPages ? (MappedPages) pf : null;
+        this.frames = mapped != null ? null : new PageFramePool(maxResourse);
+        this.pageNumbers = new AtomicInteger((int)(pf.length() / PAGE_SIZE));
+        this.writes = new ReentrantReadWriteLock();
+        this.flushBuffer = ByteBuffer.allocateDirect(PAGE_SIZE);
+        this.writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "page-writer");
+            t.setDaemon(true);
+            return t;
+        });
+        writer.scheduleWithFixedDelay(this::backgroundFlush, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        this.prefetcher = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "page-prefetch");
+            t.setDaemon(true);
+            return t;
+        });
     }
 
     //PageCache 还使用了一个 AtomicInteger，来记录了当前打开的数据库文件有多少页。
     //这个数字在数据库文件被打开时就会被计算，并在新建页面时自增。
     public int newPage(byte[] initData) {
         int pgno = pageNumbers.incrementAndGet();
-        Page pg = new PageImpl(pgno, initData, null);
-        flush(pg);//新建的页面需要立刻写回
+        //新建的页面写入文件以扩展文件长度，不需要立刻force：崩溃后恢复会根据日志补齐页面
+        pf.write(pgno, ByteBuffer.wrap(initData), 0);
         return pgno;
     }
 
@@ -56,57 +82,161 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         return get((long) pgno);
     }
 
+    /**
+     * 在后台读入页面后立即释放引用，页面留在缓存中，之后的getPage直接命中
+     * 预读只是提示：缓存已满或者已经关闭时放弃
+     */
+    public void prefetch(int pgno) {
+        try {
+            prefetcher.execute(() -> {
+                try {
+                    release(getPage(pgno));
+                } catch (Exception e) {
+                    // 缓存已满，放弃预读
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // 已经关闭
+        }
+    }
+
     /**
      * 根据pageNumber 从数据库文件中读取页数据，并包裹成Page
      */
     @Override
     protected Page getForCache(long key) throws Exception {
-        //将key转换为页码
         int pgno = (int)key;
-        //计算页码对应的偏移量
-        long offset = PageCacheImpl.pageOffset(pgno);
-
-        //分配一个大小为PAGE_SIZE的ByteBuffer
-        ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
-        //锁定文件，保证线程安全
-        fileLock.lock();
-        try {
-            //设置文件通道的位置为计算出的偏移量
-            fc.position(offset);
-            // 从文件通道读取数据到ByteBuffer
-            fc.read(buf);
-        } catch (IOException e) {
-            //如果发生异常，调用Panic.panic方法处理
-            Panic.panic(e);
+        if (mapped != null) {
+            return new PageImpl(pgno, mapped.mapping(pgno), mapped.mappingOffset(pgno), this);
         }
-        //无论是否发生异常，都要解锁
-        fileLock.unlock();
-        //使用读取到的数据，页码和当前对象创建一个新的PageImpl对象并返回
-        return new PageImpl(pgno, buf.array(), this);
+        int frame = frames.acquire();
+        ByteBuffer buf = frames.buffer(frame);
+        int offset = frames.offset(frame);
+        pf.read(pgno, buf, offset);
+        return new PageImpl(pgno, buf, offset, this);
     }
 
     @Override
     protected void releaseForCache(Page pg) {
-        if (pg.isDirty()) {
-            flush(pg);
+        writeIfDirty(pg);
+        //引用计数已经为0，不会再有人通过这个Page访问数据，页帧可以交给下一个页面
+        if (frames != null) {
+            frames.release(frames.frameOf(pg.buffer(), pg.offset()));
+        }
+    }
+
+    //在页面锁内检查并写回脏页，不force
+    private boolean writeIfDirty(Page pg) {
+        pg.lock();
+        writes.readLock().lock();
+        try {
+            if (!pg.isDirty()) {
+                return false;
+            }
             pg.setDirty(false);
+            write(pg);
+            return true;
+        } finally {
+            writes.readLock().unlock();
+            pg.unlock();
         }
     }
 
-    private void flush(Page pg) {
-        int pgno = pg.getPageNumber();//获取Page的页码
-        long offset = pageOffset(pgno); //计算Page在文件中的偏移量
+    private void write(Page pg) {
+        pf.write(pg.getPageNumber(), pg.buffer(), pg.offset());
+    }
+
+    /**
+     * 在页面锁内把脏页复制到copy并清除脏标记
+     * 返回true时页面锁仍被持有，由writeCopy写入副本后释放，之后驱逐时的写回一定排在这次写入之后
+     */
+    private boolean copyIfDirty(Page pg, ByteBuffer copy) {
+        pg.lock();
+        writes.readLock().lock();
+        if (!pg.isDirty()) {
+            writes.readLock().unlock();
+            pg.unlock();
+            return false;
+        }
+        pg.setDirty(false);
+        copy.put(0, pg.buffer(), pg.offset(), PAGE_SIZE);
+        return true;
+    }
 
-        fileLock.lock();//加锁，确保线程安全
+    //写入copyIfDirty复制出的副本，并释放页面锁
+    private void writeCopy(Page pg, ByteBuffer copy) {
         try {
-            ByteBuffer buf = ByteBuffer.wrap(pg.getData());//将Page的数据包装成ByteBuffer
-            fc.position(offset);//设置文件通道的位置
-            fc.write(buf);//将数据写入到文件中
-            fc.force(false);//强制将数据从操作系统的缓存刷新到磁盘
-        } catch (IOException e) {
-            Panic.panic(e);//如果发生异常，调用Panic.panic方法处理
+            pf.write(pg.getPageNumber(), copy, 0);
         } finally {
-            fileLock.unlock();//最后，无论是否发生异常，都要解锁
+            writes.readLock().unlock();
+            pg.unlock();
+        }
+    }
+
+    //force之前等待已经开始的写回完成：脏标记已被清除的页面一定在这次force中落盘
+    public void sync() {
+        writes.writeLock().lock();
+        writes.writeLock().unlock();
+        pf.sync();
+    }
+
+    //按页号排序的当前脏页的页号
+    public List<Integer> dirtyPageNumbers() {
+        List<Integer> dirty = new ArrayList<>();
+        forEachCached(pg -> {
+            if (pg.isDirty()) {
+                dirty.add(pg.getPageNumber());
+            }
+        });
+        dirty.sort(Comparator.naturalOrder());
+        return dirty;
+    }
+
+    /**
+     * 后台写线程的一轮刷盘
+     * 只写回没有被引用的脏页：被引用的页面可能正被修改，而修改对应的日志还没有写入。
+     * 只在复制页面时独占它，写入副本时获取页面的线程不需要等待；写完整批后只force一次
+     */
+    private void backgroundFlush() {
+        boolean written = false;
+        for (int pgno : dirtyPageNumbers()) {
+            Page[] copied = new Page[1];
+            if (tryWithIdle(pgno, p -> copied[0] = copyIfDirty(p, flushBuffer) ? p : null) && copied[0] != null) {
+                writeCopy(copied[0], flushBuffer);
+                written = true;
+            }
+        }
+        if (written) {
+            sync();
+        }
+    }
+
+    /**
+     * 写回pgnos中仍然是脏页的页面，包括正被引用的页面，不force
+     * 每个页面在guard内复制并清除脏标记，调用者通过guard保证复制时页面上没有正在进行的修改；
+     * 写入副本在guard外进行。已经被驱逐的页面在驱逐时写回，这里跳过
+     */
+    public void writePages(List<Integer> pgnos, Lock guard) {
+        ByteBuffer copy = ByteBuffer.allocateDirect(PAGE_SIZE);
+        for (int pgno : pgnos) {
+            Page pg = getIfCached(pgno);
+            if (pg == null) {
+                continue;
+            }
+            try {
+                boolean copied;
+                guard.lock();
+                try {
+                    copied = copyIfDirty(pg, copy);
+                } finally {
+                    guard.unlock();
+                }
+                if (copied) {
+                    writeCopy(pg, copy);
+                }
+            } finally {
+                release(pg);
+            }
         }
     }
 
@@ -114,36 +244,45 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         release((long)page.getPageNumber());
     }
 
+    //立即写回并落盘一个页面
     public void flushPage(Page pg) {
-        flush(pg);
+        pg.lock();
+        writes.readLock().lock();
+        try {
+            pg.setDirty(false);
+            write(pg);
+        } finally {
+            writes.readLock().unlock();
+            pg.unlock();
+        }
+        sync();
     }
 
     public void truncateByBgno(int maxPgno) {
-        long size = pageOffset(maxPgno + 1);
-        try {
-            file.setLength(size);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
+        pf.truncate(pageOffset(maxPgno + 1));
         pageNumbers.set(maxPgno);
     }
 
     @Override
     public void close(){
-        super.close();
+        prefetcher.shutdownNow();
+        writer.shutdown();
         try {
-            fc.close();
-            file.close();
-        } catch (IOException e) {
+            prefetcher.awaitTermination(FLUSH_INTERVAL_MS * 10, TimeUnit.MILLISECONDS);
+            writer.awaitTermination(FLUSH_INTERVAL_MS * 10, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
             Panic.panic(e);
         }
+        super.close();
+        sync();
+        pf.close();
     }
 
     public int getPageNumber() {
         return pageNumbers.intValue();
     }
 
-    private static long pageOffset(int pgno) {
-        return (pgno-1) * PAGE_SIZE;
+    static long pageOffset(int pgno) {
+        return (long)(pgno-1) * PAGE_SIZE;
     }
 }
@@ -0,0 +1,16 @@
+package com.xiongsu.backend.dm.pageCache;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 数据库文件的页面读写
+ * 页号从1开始，每页 PageCache.PAGE_SIZE 字节
+ */
+public interface PageFile {
+    void read(int pgno, ByteBuffer buf, int offset);// 读取一页到buf的offset处，超出文件末尾的部分填0
+    void write(int pgno, ByteBuffer buf, int offset);// 写入buf中offset处的一页，不保证落盘
+    void sync();// 将已写入的页面落盘
+    long length();// 文件长度
+    void truncate(long size);// 将文件截断到size
+    void close();
+}
@@ -0,0 +1,67 @@
+package com.xiongsu.backend.dm.pageCache;
+
+import com.xiongsu.common.Error;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * 页帧池
+ * 创建页面缓存时按缓存的容量一次性分配堆外的页帧区，每个页帧是其中 PAGE_SIZE 字节的一段，页面直接使用页帧作为存储。
+ * 页面被驱逐后它的页帧回到池中，下一次缓存未命中时直接复用，运行期间不再为页面分配内存，页面数据也不占用堆。
+ * 单个 ByteBuffer 最大2GB，页帧区按 FRAMES_PER_CHUNK 分块分配
+ */
+class PageFramePool {
+
+    private static final int FRAMES_PER_CHUNK = 1 << 16;// 每块512MB
+
+    private final ByteBuffer[] chunks;
+    private final ArrayBlockingQueue<Integer> free;// 空闲页帧的编号
+
+    PageFramePool(int capacity) {
+        this.chunks = new ByteBuffer[(capacity + FRAMES_PER_CHUNK - 1) / FRAMES_PER_CHUNK];
+        for (int i = 0; i < chunks.length; i++) {
+            int frames = Math.min(FRAMES_PER_CHUNK, capacity - i * FRAMES_PER_CHUNK);
+            chunks[i] = ByteBuffer.allocateDirect(frames * PageCache.PAGE_SIZE);
+        }
+        this.free = new ArrayBlockingQueue<>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            free.offer(i);
+        }
+    }
+
+    //取一个页帧，内容是上一个页面留下的数据，调用者需要整页覆盖
+    //缓存中的页面数不超过capacity，页帧只会在页帧泄漏时取不到
+    int acquire() throws Exception {
+        Integer frame = free.poll();
+        if (frame == null) {
+            throw Error.CacheFullException;
+        }
+        return frame;
+    }
+
+    //页帧所在的缓冲区
+    ByteBuffer buffer(int frame) {
+        return chunks[frame / FRAMES_PER_CHUNK];
+    }
+
+    //页帧在缓冲区中的起始位置
+    int offset(int frame) {
+        return (frame % FRAMES_PER_CHUNK) * PageCache.PAGE_SIZE;
+    }
+
+    //由页面的缓冲区和偏移找回页帧
+    int frameOf(ByteBuffer buffer, int offset) {
+        for (int i = 0; i < chunks.length; i++) {
+            if (chunks[i] == buffer) {
+                return i * FRAMES_PER_CHUNK + offset / PageCache.PAGE_SIZE;
+            }
+        }
+        throw new IllegalArgumentException("not a page frame");
+    }
+
+    //归还页帧，调用者之后不能再访问它
+    void release(int frame) {
+        free.offer(frame);
+    }
+}
@@ -3,7 +3,9 @@ package com.xiongsu.backend.dm.pageIndex;
 import com.xiongsu.backend.dm.pageCache.PageCache;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -14,6 +16,7 @@ public class PageIndex {
 
     private Lock lock;
     private List<PageInfo>[] lists;
+    private Map<Integer, PageInfo> pages;// 页号到索引中的PageInfo，空闲空间变化后也能找到页面
 
     @SuppressWarnings("unchecked")
     public PageIndex() {
@@ -22,6 +25,7 @@ public class PageIndex {
         for (int i = 0; i < INTERVALS_NO+1; i++) {
             lists[i] = new ArrayList<>();
         }
+        pages = new HashMap<>();
     }
 
     //因为同一个页面是不允许并发写的，在上层模块使用完这个页面之后，需要重新将其插入到`PaegIndex`;
@@ -35,12 +39,30 @@ public class PageIndex {
         lock.lock();//获取锁，保证线程安全
         try {
             int number = freeSpace / THRESHOLD;//计算空闲空间大小对应的区间编号
-            lists[number].add(new PageInfo(pgno, freeSpace));//在对应的区间列表中添加一个新的PageInfo对象
+            PageInfo pi = new PageInfo(pgno, freeSpace);
+            lists[number].add(pi);//在对应的区间列表中添加一个新的PageInfo对象
+            pages.put(pgno, pi);
         } finally {
             lock.unlock();//释放锁
         }
     }
 
+    /**
+     * 取出指定的页面，页面不在索引中（正在被插入使用）时返回null
+     */
+    public PageInfo take(int pgno) {
+        lock.lock();
+        try {
+            PageInfo pi = pages.remove(pgno);
+            if (pi != null) {
+                lists[pi.freeSpace / THRESHOLD].remove(pi);
+            }
+            return pi;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * 根据空闲空间的大小计算所处的编号位置，从PageIndex中获取页面
      * @param spaceSize  需要的空间大小
@@ -62,7 +84,9 @@ public class PageIndex {
                     number++;
                     continue;
                 }
-                return lists[number].remove(0);//如果当前区间有PageInfo,返回第一个PageInfo,并从列表中移除
+                PageInfo pi = lists[number].remove(0);//如果当前区间有PageInfo,返回第一个PageInfo,并从列表中移除
+                pages.remove(pi.pgno);
+                return pi;
             }
             return null;//如果没有找到合适的PageInfo,返回null
         } finally {
@@ -1,19 +1,30 @@
 package com.xiongsu.backend.im;
 
+import com.google.common.primitives.Bytes;
 import com.xiongsu.backend.common.SubArray;
 import com.xiongsu.backend.dm.DataManager;
 import com.xiongsu.backend.dm.dataltem.DataItem;
-import com.xiongsu.backend.tm.TransactionManager;
 import com.xiongsu.backend.tm.TransactionManagerImpl;
 import com.xiongsu.backend.utils.Parser;
-import org.checkerframework.checker.units.qual.A;
+import com.xiongsu.common.Error;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * 并发的B-link树
+ * 每个节点都有指向右兄弟的指针，节点分裂后、父节点插入新的分隔键之前，在原节点中找不到的key可以向右兄弟查找，
+ * 因此查找和插入在下降时都不需要同时持有多个节点：读节点不加锁（见Node），插入只在修改节点时持有这一个节点的写锁，
+ * 分裂先完成子节点，再向上一层插入分隔键。每个节点都有上界，插入时key大于叶子的上界就向右兄弟插入
+ * 删除后节点中的键太少时与相邻节点合并或者重新分配（见Rebalancer），合并掉的节点标记为已合并，插入和删除遇到它时从根重新查找
+ */
 public class BPlusTree {
 
     //作用: 这是 B+ 树与底层存储交互的接口。它负责将 Node 对象的字节数组 (raw) 存储到磁盘或内存，并根据 UID 重新加载它们。
@@ -22,25 +33,57 @@ public class BPlusTree {
     //作用: 这是这个 B+ 树索引的固定标识符。它不是根节点的UID，而是存储根节点UID的那个 DataItem 的UID。
     // 这样做的好处是，即使根节点因为分裂而变化（UID改变），指向根节点的 bootUid 保持不变，外部只需要知道这个固定的 bootUid 就能找到这个 B+ 树的当前根。
     long bootUid;
-    //作用: 存储了 bootUid 对应的那个 DataItem 对象。这个 DataItem 的数据内容就是一个 long 值，即当前 B+ 树的根节点的 UID。
+    //作用: 存储了 bootUid 对应的那个 DataItem 对象。这个 DataItem 的数据内容是 [RootUid 8字节][BalanceNumber 2字节]，
+    // 即当前 B+ 树的根节点的 UID 和这棵树节点的平衡因子。
     DataItem bootDataItem;
-    //作用: 一个 ReentrantLock，用于保护 bootDataItem，确保在并发环境下对根节点 UID 的读写是线程安全的。当需要读取或更新根节点 UID 时，需要获取这个锁。
+    //节点的平衡因子，决定节点的大小，创建后不再改变
+    int balanceNumber;
+    //作用: 一个 ReentrantLock，用于保护 bootDataItem，更新根节点 UID 时需要获取这个锁。
     Lock bootLock;
+    //根节点被替换时通知等待新根的插入线程
+    Condition rootChanged;
+    //保护structureVersion，锁内不做其他事情，可以在持有节点的锁时获取
+    Lock structureLock;
+    //非叶子节点插入分隔键、删除后调整结构时通知等待紧挨在前面的节点插入上一层的插入线程
+    Condition structureChanged;
+    //structureChanged通知的次数，在structureLock内读写
+    long structureVersion;
+    //当前根节点的UID，读取不需要加锁，只在bootLock内随bootDataItem一起更新
+    volatile long root;
+    //删除时调整树的结构
+    Rebalancer rebalancer;
+    //已经合并掉、等待调用者释放的节点
+    Queue<Long> retired;
 
     /**
-     * 用于在DataManager中创建一个新的空的B+树索引
+     * 用于在DataManager中创建一个新的空的B+树索引，节点占满一页
      * @param dm
      * @return
      * @throws Exception
      */
     public static long create(DataManager dm) throws Exception {
-        byte[] rawRoot = Node.newNilRootRaw();
+        return create(dm, Node.DEFAULT_BALANCE_NUMBER);
+    }
+
+    /**
+     * 创建一个节点平衡因子为balanceNumber的B+树索引，一个节点最多包含balanceNumber*2个key
+     * @param dm
+     * @param balanceNumber 2到Node.MAX_BALANCE_NUMBER之间
+     * @return
+     * @throws Exception
+     */
+    public static long create(DataManager dm, int balanceNumber) throws Exception {
+        if (balanceNumber < 2 || balanceNumber > Node.MAX_BALANCE_NUMBER) {
+            throw Error.InvalidValuesException;
+        }
+        byte[] rawRoot = Node.newNilRootRaw(balanceNumber);
         long rootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rawRoot);
-        return dm.insert(TransactionManagerImpl.SUPER_XID, Parser.long2Byte(rootUid));
+        byte[] boot = Bytes.concat(Parser.long2Byte(rootUid), Parser.short2Byte((short) balanceNumber));
+        return dm.insert(TransactionManagerImpl.SUPER_XID, boot);
     }
 
     /**
-     * 用于从DataManager中加载一个已存在的B+树索引
+     * 用于从DataManager中加载一个已存在的B+树索引，bootUid中没有记录平衡因子时抛出BadIndexBootException
      * @param bootUid
      * @param dm
      * @return
@@ -49,11 +92,23 @@ public class BPlusTree {
     public static BPlusTree load(long bootUid, DataManager dm) throws Exception {
         DataItem bootDataItem = dm.read(bootUid);
         assert bootDataItem != null;
+        SubArray sa = bootDataItem.data();
+        if (sa.end - sa.start < 10) {
+            bootDataItem.release();
+            throw Error.BadIndexBootException;
+        }
         BPlusTree t = new BPlusTree();
         t.bootUid = bootUid;
         t.dm = dm;
         t.bootDataItem = bootDataItem;
         t.bootLock = new ReentrantLock();
+        t.rootChanged = t.bootLock.newCondition();
+        t.structureLock = new ReentrantLock();
+        t.structureChanged = t.structureLock.newCondition();
+        t.root = sa.raw.getLong(sa.start);
+        t.balanceNumber = sa.raw.getShort(sa.start+8);
+        t.rebalancer = new Rebalancer(t);
+        t.retired = new ConcurrentLinkedQueue<>();
         return t;
     }
 
@@ -61,35 +116,77 @@ public class BPlusTree {
      * 获取当前B+树的根节点的UID
      * @return
      */
-    private long rootUid() {
+    long rootUid() {
+        return root;
+    }
+
+    /**
+     * 根节点left分裂出right时，创建新的根节点并更新bootDataItem中的根节点UID
+     * left已经不是根节点时（其他线程已经装上了新的根）返回false
+     * @param left
+     * @param right
+     * @param rightKey
+     * @return
+     * @throws Exception
+     */
+    private boolean updateRootUid(long left, long right, byte[] rightKey) throws Exception {
         bootLock.lock();
         try {
-            SubArray sa = bootDataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start, sa.start+8));
+            if (root != left) {
+                return false;
+            }
+            byte[] rootRaw = Node.newRootRaw(left, right, rightKey, balanceNumber);
+            setRoot(dm.insert(TransactionManagerImpl.SUPER_XID, rootRaw));
+            return true;
         } finally {
             bootLock.unlock();
         }
     }
 
+    //在bootLock内调用
+    void setRoot(long newRootUid) {
+        bootDataItem.before();
+        SubArray diRaw = bootDataItem.data();
+        diRaw.raw.putLong(diRaw.start, newRootUid);
+        bootDataItem.after(TransactionManagerImpl.SUPER_XID);
+        root = newRootUid;
+        rootChanged.signalAll();
+    }
+
+    //键的最大长度，由节点的大小决定
+    public int maxKeySize() {
+        return Node.maxKeySize(balanceNumber);
+    }
+
     /**
-     * 用于在根节点因为分裂而产生新的根节点时，更新bootDataItem中的根节点UID
-     * @param left
-     * @param right
-     * @param rightKey
+     * 批量构建这棵树，树必须为空，构建期间不能有其他线程访问这棵树
+     * @param fillFactor 每个节点装入的键占节点容量的比例，(0, 1]
+     * @return
      * @throws Exception
      */
-    private void updateRootUid(long left, long right, long rightKey) throws Exception {
+    public BulkLoader bulkLoader(double fillFactor) throws Exception {
+        Node rootNode = Node.loadNode(this, rootUid());
+        try {
+            if (!rootNode.isLeaf() || Node.getRawNoKeys(rootNode.raw) != 0) {
+                throw Error.InvalidValuesException;
+            }
+        } finally {
+            rootNode.release();
+        }
+        return new BulkLoader(this, fillFactor);
+    }
+
+    //批量构建完成后装上新的根，原来的空根节点不会再被访问，释放它
+    void replaceRoot(long newRootUid) throws Exception {
+        long old;
         bootLock.lock();
         try {
-            byte[] rootRaw = Node.newRootRaw(left, right, rightKey);
-            long newRootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rootRaw);
-            bootDataItem.before();
-            SubArray diRaw = bootDataItem.data();
-            System.arraycopy(Parser.long2Byte(newRootUid), 0, diRaw.raw, diRaw.start, 8);
-            bootDataItem.after(TransactionManagerImpl.SUPER_XID);
+            old = root;
+            setRoot(newRootUid);
         } finally {
             bootLock.unlock();
         }
+        dm.free(old);
     }
 
     /**
@@ -99,19 +196,24 @@ public class BPlusTree {
      * @return
      * @throws Exception
      */
-    private long searchLeaf(long nodeUid, long key) throws Exception {
-        Node node = Node.loadNode(this, nodeUid);
-        boolean isLeaf = node.isLeaf();
-        node.release();
-
-        if (isLeaf) {
+    long searchLeaf(long nodeUid, byte[] key) throws Exception {
+        if (isLeaf(nodeUid)) {
             return nodeUid;
         } else {
-            long next = searchNext(nodeUid, key);
+            long next = searchNext(nodeUid, key, true);
             return searchLeaf(next, key);
         }
     }
 
+    private boolean isLeaf(long nodeUid) throws Exception {
+        Node node = Node.loadNode(this, nodeUid);
+        try {
+            return node.isLeaf();
+        } finally {
+            node.release();
+        }
+    }
+
     /**
      * 给定一个非叶子节点的UID和一个key,找到一个继续搜索的下一个节点的UID,这个下一个节点可能是当前节点的某个子节点，也可能是当前节点的兄弟节点
      * @param nodeUid
@@ -119,10 +221,10 @@ public class BPlusTree {
      * @return
      * @throws Exception
      */
-    private long searchNext(long nodeUid, long key) throws Exception {
+    private long searchNext(long nodeUid, byte[] key, boolean leftmost) throws Exception {
         while (true) {
             Node node = Node.loadNode(this, nodeUid);
-            Node.SearchNextRes res = node.searchNext(key);
+            Node.SearchNextRes res = node.searchNext(key, leftmost);
             node.release();
             if (res.uid != 0) return res.uid;
             nodeUid = res.siblingUid;
@@ -140,96 +242,287 @@ public class BPlusTree {
     }
 
     /**
-     * 搜索 B+ 树中所有与键在 [leftKey, rightKey] 范围内的关联的数据项 UID。
+     * 搜索 B+ 树中所有与整数键在 [leftKey, rightKey] 范围内的关联的数据项 UID。
      * @param leftKey
      * @param rightKey
      * @return
      * @throws Exception
      */
     public List<Long> searchRange(long leftKey, long rightKey) throws Exception {
-        long rootUid = rootUid();
-        long leafUid = searchLeaf(rootUid, leftKey);
         List<Long> uids = new ArrayList<>();
-        while (true) {
-            Node leaf = Node.loadNode(this, leafUid);
-            Node.LeafSearchRangeRes res = leaf.leafSearchRange(leftKey, rightKey);
-            leaf.release();
-            uids.addAll(res.uids);
-            if (res.siblingUid == 0) {
-                break;
-            } else {
-                leafUid = res.siblingUid;
-            }
+        RangeCursor cursor = cursor(Keys.ofLong(leftKey), Keys.successor(Keys.ofLong(rightKey)));
+        while (cursor.hasNext()) {
+            uids.add(cursor.next());
         }
         return uids;
     }
 
     /**
-     * 将一个新的键值对 (key, uid) 插入到 B+ 树中。这里的 uid 可能是指向实际数据行的指针。
+     * 返回键在 [leftKey, rightKey) 范围内的数据项 UID 的游标，逐个叶子读取，不在内存中收集所有的 UID
+     * @param leftKey
+     * @param rightKey 为null时没有上界
+     * @return
+     */
+    public RangeCursor cursor(byte[] leftKey, byte[] rightKey) {
+        return cursor(leftKey, rightKey, false);
+    }
+
+    //withKeys为true时游标同时返回每个uid对应的键，见RangeCursor.key
+    public RangeCursor cursor(byte[] leftKey, byte[] rightKey, boolean withKeys) {
+        return new RangeCursor(this, leftKey, rightKey, withKeys);
+    }
+
+    //整数键编码后插入，见Keys.ofLong
+    public void insert(long key, long uid) throws Exception {
+        insert(Keys.ofLong(key), uid);
+    }
+
+    /**
+     * 将一个新的键值对 (key, uid) 插入到 B+ 树中。这里的 uid 可能是指向实际数据行的指针。key的长度不能超过Node.maxKeySize
+     * 下降时记录经过的非叶子节点，节点分裂后把分隔键插入记录的上一层节点（必要时向右查找兄弟）
      * @param key
      * @param uid
      * @throws Exception
      */
-    public void insert(long key, long uid) throws Exception {
-        long rootUid = rootUid();
-        InsertRes res = insert(rootUid, uid, key);
-        assert res != null;
-        if (res.newNode != 0) {
-            updateRootUid(rootUid, res.newNode, res.newKey);
+    public void insert(byte[] key, long uid) throws Exception {
+        if (key.length > maxKeySize()) {
+            throw Error.KeyTooLongException;
+        }
+        InsertRes res;
+        Deque<Long> path = new ArrayDeque<>();
+        do {
+            // 叶子节点已经被合并掉时从根重新下降
+            path.clear();
+            long nodeUid = rootUid();
+            while (!isLeaf(nodeUid)) {
+                path.push(nodeUid);
+                nodeUid = searchNext(nodeUid, key, false);
+            }
+            res = insertAndSplit(nodeUid, uid, key, 0);
+        } while (res == null);
+        int level = 0;// 分裂的节点所在的层，叶子为第0层
+        while (res.newNode != 0) {
+            long parent = path.isEmpty() ? parentOf(res, level) : path.pop();
+            if (parent == 0) {
+                signalStructureChange();
+                return;
+            }
+            // 在查找紧挨在新节点之前的节点之前读取，之后的插入和调整都会改变它
+            long version = structureVersion();
+            long left = predecessor(res.node, res.newNode);
+            if (left == 0) {
+                // res.node已经被合并掉，从根沿newKey找到这一层的节点，再向右找
+                left = predecessor(descend(rootUid(), res.newKey, level), res.newNode);
+            }
+            InsertRes pres = left == 0 ? null : insertAndSplit(parent, res.newNode, res.newKey, left);
+            if (pres == null || pres.missing) {
+                // 经过的节点或者记录的上一层节点已经被合并掉，从根重新找上一层。
+                // 紧挨在新节点之前的节点还没有插入上一层（或者刚被合并掉）时，等插入它的线程（或者调整结构的线程）完成后再找
+                path.clear();
+                if (pres != null) {
+                    awaitStructureChange(version);
+                }
+                continue;
+            }
+            signalStructureChange();
+            res = pres;
+            level ++;
         }
     }
 
-    //用于在插入操作中传递结果。当一个节点（无论是叶子还是非叶子）因为插入而发生分裂时，这个类用来报告分裂产生的新节点 (newNode 的 UID) 和作为分隔符的新键 (newKey)。
-    // 如果插入成功但没有分裂，或者插入导致子节点分裂但子节点的上层节点不需要分裂，newNode 通常为 0。
-    class InsertRes {
-        long newNode, newKey;
+    private long structureVersion() {
+        structureLock.lock();
+        try {
+            return structureVersion;
+        } finally {
+            structureLock.unlock();
+        }
+    }
+
+    //非叶子节点插入了分隔键，或者删除后调整了结构，在释放节点之后调用
+    void signalStructureChange() {
+        structureLock.lock();
+        try {
+            structureVersion ++;
+            structureChanged.signalAll();
+        } finally {
+            structureLock.unlock();
+        }
+    }
+
+    //等待version之后的下一次signalStructureChange
+    private void awaitStructureChange(long version) throws InterruptedException {
+        structureLock.lock();
+        try {
+            while (structureVersion == version) {
+                structureChanged.await();
+            }
+        } finally {
+            structureLock.unlock();
+        }
     }
 
     /**
-     * 递归执行插入操作。它负责沿着树找到正确的插入路径，并在找到子节点后进行递归调用，处理子节点返回的分裂结果
-     * @param nodeUid
-     * @param uid
+     * 第level层的节点res.node分裂，而下降时第level层就是根所在的层
+     * res.node仍然是根时创建新的根，返回0；否则根已经或者即将被其他分裂的线程替换，
+     * 在rootChanged上等新的根装上之后，从新的根沿newKey重新下降，返回第level+1层中的节点。
+     * newKey是res.node的上界，下降时进入最左边可能包含它的子节点，res.node的父节点就是得到的节点或者在它的右边
+     * @param res
+     * @param level
+     * @return
+     * @throws Exception
+     */
+    private long parentOf(InsertRes res, int level) throws Exception {
+        while (true) {
+            long rootUid = rootUid();
+            long parent = descend(rootUid, res.newKey, level + 1);
+            if (parent != 0) {
+                return parent;
+            }
+            if (rootUid == res.node && updateRootUid(res.node, res.newNode, res.newKey)) {
+                return 0;
+            }
+            // 原来的根分裂后还没有装上新的根，等分裂它的线程装上
+            bootLock.lock();
+            try {
+                while (root == rootUid) {
+                    rootChanged.await();
+                }
+            } finally {
+                bootLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 从rootUid沿key下降，每层进入最左边可能包含key的子节点，返回经过的第level层的节点；树的高度不够时返回0
+     * @param rootUid
      * @param key
+     * @param level 叶子为第0层
      * @return
      * @throws Exception
      */
-    private InsertRes insert(long nodeUid, long uid, long key) throws Exception {
-        Node node = Node.loadNode(this, nodeUid);
-        boolean isLeaf = node.isLeaf();
-        node.release();
+    private long descend(long rootUid, byte[] key, int level) throws Exception {
+        List<Long> nodes = new ArrayList<>();// 从根到叶子经过的节点
+        long nodeUid = rootUid;
+        nodes.add(nodeUid);
+        while (!isLeaf(nodeUid)) {
+            nodeUid = searchNext(nodeUid, key, true);
+            nodes.add(nodeUid);
+        }
+        int rootLevel = nodes.size() - 1;
+        return rootLevel >= level ? nodes.get(rootLevel - level) : 0;
+    }
 
-        InsertRes res = null;
-        if (isLeaf) {
-            res = insertAndSplit(nodeUid, uid, key);
-        } else {
-            long next = searchNext(nodeUid, key);
-            InsertRes ir = insert(next, uid, key);
-            if (ir.newNode != 0) {
-                res = insertAndSplit(nodeUid, ir.newNode, ir.newKey);
-            } else {
-                res = new InsertRes();
+    /**
+     * 从from开始沿兄弟链向右，找到兄弟指针指向uid的节点，uid插入上一层时要紧挨在它之后
+     * uid插入上一层之前，分裂出它的节点可能又分裂了，新分裂出的节点排在两者之间，所以不一定是分裂出uid的节点
+     * 经过已经被合并掉的节点，或者到达这一层的末尾时返回0
+     * @param from
+     * @param uid
+     * @return
+     * @throws Exception
+     */
+    private long predecessor(long from, long uid) throws Exception {
+        long nodeUid = from;
+        while (nodeUid != 0) {
+            Node node = Node.loadNode(this, nodeUid);
+            long sibling = node.getLiveSibling();
+            node.release();
+            if (sibling == -1) {
+                return 0;
+            }
+            if (sibling == uid) {
+                return nodeUid;
+            }
+            nodeUid = sibling;
+        }
+        return 0;
+    }
+
+    public boolean remove(long key, long uid) throws Exception {
+        return remove(Keys.ofLong(key), uid);
+    }
+
+    /**
+     * 删除键值对(key, uid)，找到并删除时返回true。删除后叶子节点中的键太少时与相邻的节点合并或者重新分配
+     * @param key
+     * @param uid
+     * @return
+     * @throws Exception
+     */
+    public boolean remove(byte[] key, long uid) throws Exception {
+        long leafUid = searchLeaf(rootUid(), key);
+        while (leafUid != 0) {
+            Node leaf = Node.loadNode(this, leafUid);
+            Node.LeafRemoveRes res = leaf.leafRemove(key, uid);
+            leaf.release();
+            if (res.dead) {
+                leafUid = searchLeaf(rootUid(), key);
+                continue;
             }
+            if (res.removed) {
+                if (rebalancer.underflow(res.noKeys, res.size) && leafUid != rootUid()) {
+                    rebalancer.rebalance(key, leafUid);
+                }
+                return true;
+            }
+            leafUid = res.siblingUid;
         }
-        return res;
+        return false;
+    }
+
+    /**
+     * 取出删除时合并掉的节点。之前开始的操作可能还会读取这些节点，调用者需要等它们都结束后再用DataManager.free释放；
+     * 不释放时这些节点只是占用空间
+     * @return
+     */
+    public List<Long> takeRetired() {
+        List<Long> uids = new ArrayList<>();
+        Long uid;
+        while ((uid = retired.poll()) != null) {
+            uids.add(uid);
+        }
+        return uids;
+    }
+
+    //用于在插入操作中传递结果。当一个节点（无论是叶子还是非叶子）因为插入而发生分裂时，这个类用来报告分裂产生的新节点 (newNode 的 UID) 和作为分隔符的新键 (newKey)。
+    // 如果插入成功但没有分裂，newNode 为 0。
+    class InsertRes {
+        boolean missing;// 非叶子节点中还没有紧挨在前面的子节点，见Node.InsertAndSplitRes.missing
+        long node;// 实际插入的节点，向右查找兄弟后可能不是开始插入的节点
+        long newNode;
+        byte[] newKey;
     }
 
     /**
      * 在给定的 nodeUid 节点中尝试插入 uid 和 key，并在必要时处理该节点的分裂。
+     * key 大于节点的上界时，说明节点已经分裂，向右兄弟插入；遇到已经合并掉的节点时返回null，找不到left时返回的结果中missing为true
      * @param nodeUid
      * @param uid
      * @param key
+     * @param left 非叶子节点中分裂出uid的子节点
      * @return
      * @throws Exception
      */
-    private InsertRes insertAndSplit(long nodeUid, long uid, long key) throws Exception {
+    private InsertRes insertAndSplit(long nodeUid, long uid, byte[] key, long left) throws Exception {
         while (true) {
             Node node = Node.loadNode(this, nodeUid);
-            Node.InsertAndSplitRes iasr = node.insertAndSplit(uid, key);
+            Node.InsertAndSplitRes iasr = node.insertAndSplit(uid, key, left);
             node.release();
+            if (iasr.dead) {
+                return null;
+            }
+            if (iasr.missing) {
+                InsertRes res = new InsertRes();
+                res.missing = true;
+                return res;
+            }
             if (iasr.siblingUid != 0) {
                 nodeUid = iasr.siblingUid;
             } else {
                 InsertRes res = new InsertRes();
+                res.node = nodeUid;
                 res.newNode = iasr.newSon;
                 res.newKey = iasr.newKey;
                 return res;
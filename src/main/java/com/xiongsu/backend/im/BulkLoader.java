@@ -0,0 +1,158 @@
+package com.xiongsu.backend.im;
+
+import com.xiongsu.backend.common.SubArray;
+import com.xiongsu.backend.tm.TransactionManagerImpl;
+import com.xiongsu.common.Error;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 自底向上批量构建B+树，由BPlusTree.bulkLoader创建
+ * 按key升序调用add，节点按填充因子装满后写入，再把它的(uid, 上界)交给上一层，每一层只在内存中保留一个正在填充的节点；
+ * 节点写入后把同一层前一个节点的兄弟指针指向它。finish写完所有层的最后一个节点，通过bootDataItem装上新的根
+ * 只能用于空树，构建期间不能有其他线程访问这棵树
+ */
+public class BulkLoader {
+
+    public static final double DEFAULT_FILL_FACTOR = 0.9;
+
+    private BPlusTree tree;
+    private int capacity;// 每个节点装入的键的个数
+    private int limit;// 每个节点编码后的字节数上限
+    private int maxKeySize;
+    private List<Level> levels;
+    private byte[] lastKey;
+
+    //一层中正在填充的节点
+    private class Level {
+        boolean leaf;
+        Entries entries;
+        long prevUid;// 这一层上一个写入的节点
+
+        Level(boolean leaf) {
+            this.leaf = leaf;
+            this.entries = new Entries(capacity, leaf);
+        }
+    }
+
+    /**
+     * 节点装入balanceNumber*2*fillFactor个键，并且编码后不超过节点大小的fillFactor，留出的空间给之后的插入，
+     * 避免刚建好的树一插入就分裂。节点中的键达到balanceNumber*2时会分裂，因此最多装入balanceNumber*2-1个
+     * 节点的上界是它的最后一个键，与分裂得到的节点一致，加入一个键时就能算出编码后的大小
+     */
+    BulkLoader(BPlusTree tree, double fillFactor) throws Exception {
+        if (fillFactor <= 0 || fillFactor > 1) {
+            throw Error.InvalidValuesException;
+        }
+        this.tree = tree;
+        int max = tree.balanceNumber * 2 - 1;
+        this.capacity = Math.max(2, Math.min(max, (int) (tree.balanceNumber * 2 * fillFactor)));
+        int size = Node.nodeSize(tree.balanceNumber);
+        this.maxKeySize = Node.maxKeySize(tree.balanceNumber);
+        this.limit = Math.max(size / 2, (int) (size * fillFactor));
+        this.levels = new ArrayList<>();
+    }
+
+    //整数键编码后加入，见Keys.ofLong
+    public void add(long key, long uid) throws Exception {
+        add(Keys.ofLong(key), uid);
+    }
+
+    /**
+     * 加入一个键值对，key必须不小于之前加入的key
+     * @param key
+     * @param uid
+     * @throws Exception
+     */
+    public void add(byte[] key, long uid) throws Exception {
+        if (key.length > maxKeySize) {
+            throw Error.KeyTooLongException;
+        }
+        if (lastKey != null && Keys.compare(key, lastKey) < 0) {
+            throw Error.InvalidValuesException;
+        }
+        lastKey = key;
+        append(0, uid, key);
+    }
+
+    /**
+     * 写完所有层的最后一个节点并装上新的根，释放原来的空根节点。没有加入任何键时不修改树
+     * @throws Exception
+     */
+    public void finish() throws Exception {
+        if (lastKey == null) {
+            return;
+        }
+        for (int i = 0; i < levels.size(); i ++) {
+            Level lv = levels.get(i);
+            // 每一层最右边的节点没有上界，与分裂产生的树一致
+            if (lv.leaf) {
+                lv.entries.high = null;
+            } else {
+                lv.entries.setKey(lv.entries.size-1, null);
+            }
+            if (i == levels.size()-1 && lv.prevUid == 0) {
+                // 这一层只有一个节点，就是根
+                tree.replaceRoot(write(lv));
+                return;
+            }
+            flush(i);
+        }
+    }
+
+    private Level level(int i) {
+        if (i == levels.size()) {
+            levels.add(new Level(i == 0));
+        }
+        return levels.get(i);
+    }
+
+    /**
+     * 向第i层追加一项，正在填充的节点装满时先写入它
+     * 非叶子节点中第k个键是第k个子节点的上界，叶子节点的上界随着加入的键更新为最后一个键
+     */
+    private void append(int i, long son, byte[] key) throws Exception {
+        Level lv = level(i);
+        Entries entries = lv.entries;
+        entries.add(son, key);
+        entries.high = key;
+        if (entries.size > 1 && (entries.size > capacity || Node.encodedSize(entries) > limit)) {
+            entries.remove(entries.size-1);
+            entries.high = entries.keys[entries.size-1];
+            flush(i);
+            entries = lv.entries;
+            entries.add(son, key);
+            entries.high = key;
+        }
+    }
+
+    /**
+     * 把第i层装满的节点写入，把它的上界交给第i+1层，然后开始一个新节点
+     */
+    private void flush(int i) throws Exception {
+        Level lv = levels.get(i);
+        long uid = write(lv);
+        append(i+1, uid, lv.entries.keys[lv.entries.size-1]);
+        lv.entries = new Entries(capacity, lv.leaf);
+    }
+
+    //写入节点并把同一层前一个节点的兄弟指针指向它
+    private long write(Level lv) throws Exception {
+        byte[] raw = new byte[Node.nodeSize(tree.balanceNumber)];
+        Node.encode(new SubArray(raw, 0, raw.length), lv.leaf, 0, lv.entries);
+        long uid = tree.dm.insert(TransactionManagerImpl.SUPER_XID, raw);
+        if (lv.prevUid != 0) {
+            Node prev = Node.loadNode(tree, lv.prevUid);
+            try {
+                prev.dataItem.before();
+                Node.setRawSibling(prev.raw, uid);
+                prev.dataItem.after(TransactionManagerImpl.SUPER_XID);
+            } finally {
+                prev.release();
+            }
+        }
+        lv.prevUid = uid;
+        return uid;
+    }
+}
@@ -0,0 +1,100 @@
+package com.xiongsu.backend.im;
+
+import java.util.Arrays;
+
+/**
+ * 解码后的节点内容：按键的顺序排列的子节点和键。修改节点时先解码（Node.decode），修改后重新编码（Node.encode）
+ * 非叶子节点最右边的键可以是null，表示正无穷。叶子节点另外记录上界high（见Node），非叶子节点的上界就是最后一个键
+ * 同时记录非null的键的个数和总长度，用来计算编码后的大小
+ */
+class Entries {
+
+    boolean leaf;
+    long[] sons;
+    byte[][] keys;
+    byte[] high;// 叶子节点的上界，null表示没有上界
+    int size;
+    int finite;// 非null的键的个数
+    int keyBytes;// 非null的键的总长度
+
+    Entries(int capacity, boolean leaf) {
+        this.leaf = leaf;
+        this.sons = new long[Math.max(capacity, 4)];
+        this.keys = new byte[sons.length][];
+    }
+
+    void add(long son, byte[] key) {
+        insert(size, son, key);
+    }
+
+    void insert(int i, long son, byte[] key) {
+        if (size == sons.length) {
+            sons = Arrays.copyOf(sons, size * 2);
+            keys = Arrays.copyOf(keys, size * 2);
+        }
+        System.arraycopy(sons, i, sons, i+1, size-i);
+        System.arraycopy(keys, i, keys, i+1, size-i);
+        sons[i] = son;
+        keys[i] = key;
+        size ++;
+        count(key, 1);
+    }
+
+    void remove(int i) {
+        count(keys[i], -1);
+        System.arraycopy(sons, i+1, sons, i, size-i-1);
+        System.arraycopy(keys, i+1, keys, i, size-i-1);
+        size --;
+        keys[size] = null;
+    }
+
+    void setKey(int i, byte[] key) {
+        count(keys[i], -1);
+        keys[i] = key;
+        count(key, 1);
+    }
+
+    //[from, to)之间的部分
+    Entries range(int from, int to) {
+        Entries e = new Entries(to - from, leaf);
+        e.addAll(this, from, to);
+        return e;
+    }
+
+    /**
+     * 追加from中[begin, end)之间的部分，上界变为这部分的上界：
+     * 节点分开时左半部分的上界是它的最后一个键（见Node.split），包含最后一项时上界与from相同
+     */
+    void addAll(Entries from, int begin, int end) {
+        for (int i = begin; i < end; i ++) {
+            add(from.sons[i], from.keys[i]);
+        }
+        high = end < from.size ? from.keys[end-1] : from.high;
+    }
+
+    //叶子节点有上界时，上界也和键一起编码
+    boolean hasHigh() {
+        return leaf && high != null;
+    }
+
+    /**
+     * 所有非null的键（包括叶子节点的上界）的公共前缀的长度
+     * 键是有序的，上界不小于所有的键，第一个和最后一个非null的键的公共前缀就是所有键的公共前缀
+     */
+    int prefixLength() {
+        byte[] last = hasHigh() ? high : (finite > 0 ? keys[finite-1] : null);
+        if (last == null) {
+            return 0;
+        }
+        byte[] first = finite > 0 ? keys[0] : last;
+        int i = Arrays.mismatch(first, last);
+        return i < 0 ? first.length : i;
+    }
+
+    private void count(byte[] key, int sign) {
+        if (key != null) {
+            finite += sign;
+            keyBytes += sign * key.length;
+        }
+    }
+}
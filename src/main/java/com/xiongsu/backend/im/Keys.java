@@ -0,0 +1,68 @@
+package com.xiongsu.backend.im;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * B+树中的键是按无符号字节逐个比较的字节串，较短的串是较长的串的前缀时较短的串更小
+ * 整数编码为8字节大端序并翻转符号位，编码后的顺序与整数的顺序一致；字符串使用UTF-8编码，顺序与码点顺序一致
+ * 查找的范围是左闭右开的[left, right)，right为null表示没有上界
+ */
+public class Keys {
+
+    //最小的键，作为没有下界的范围的左端
+    public static final byte[] MIN = new byte[0];
+
+    public static byte[] ofLong(long v) {
+        long u = v ^ Long.MIN_VALUE;
+        byte[] key = new byte[8];
+        for (int i = 7; i >= 0; i --) {
+            key[i] = (byte) u;
+            u >>>= 8;
+        }
+        return key;
+    }
+
+    public static byte[] ofString(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    //ofLong的逆运算
+    public static long longOf(byte[] key) {
+        long u = 0;
+        for (int i = 0; i < 8; i ++) {
+            u = (u << 8) | (key[i] & 0xFF);
+        }
+        return u ^ Long.MIN_VALUE;
+    }
+
+    public static String stringOf(byte[] key) {
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    //大于key的最小的键：在key后面加一个0字节
+    public static byte[] successor(byte[] key) {
+        return Arrays.copyOf(key, key.length+1);
+    }
+
+    //null表示正无穷
+    public static int compare(byte[] a, byte[] b) {
+        if (a == null || b == null) {
+            return a == b ? 0 : (a == null ? 1 : -1);
+        }
+        return Arrays.compareUnsigned(a, b);
+    }
+
+    //比较buf中[from, to)和key中[keyFrom, keyTo)两段字节，在节点或记录所在的缓冲区上原地比较，不拷贝
+    public static int compare(ByteBuffer buf, int from, int to, byte[] key, int keyFrom, int keyTo) {
+        int n = Math.min(to - from, keyTo - keyFrom);
+        for (int i = 0; i < n; i ++) {
+            int c = Byte.compareUnsigned(buf.get(from + i), key[keyFrom + i]);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return (to - from) - (keyTo - keyFrom);
+    }
+}
@@ -3,25 +3,44 @@ package com.xiongsu.backend.im;
 import com.xiongsu.backend.common.SubArray;
 import com.xiongsu.backend.dm.dataltem.DataItem;
 import com.xiongsu.backend.tm.TransactionManagerImpl;
-import com.xiongsu.backend.utils.Parser;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
+import java.util.function.Supplier;
 
 /**
  * Node 结构如下：
- * [LeafFlag] [KeyNumber] [SiblingUid]
- * [Son0][Key0][Son1][Key1]...[SonN][KeyN]
+ * [LeafFlag] [KeyNumber] [SiblingUid] [PrefixLength]
+ * [Prefix] [Slot0][Slot1]...[SlotN] ...空闲... [EntryN]...[Entry1][Entry0]
+ * Entry: [Son] [SuffixLength] [Suffix]
+ * 键是变长的字节串（见Keys），节点中所有键的公共前缀只存一次，每个键只存去掉前缀后的部分；
+ * Slot是第k个Entry在节点中的偏移，按键的顺序排列，查找时在Slot上二分，不需要解码整个节点。
+ * 非叶子节点最右边的键可以是正无穷，它的SuffixLength为INF_LENGTH，不参与公共前缀
+ * 节点中的键不大于节点的上界：非叶子节点的上界是最后一个键；叶子节点在SlotN之后多一个Slot，指向存放上界的Entry（Son为0），
+ * 最右边的叶子没有上界，存为正无穷。分裂时左边节点的最后一个键就是父节点中的分隔键，也是左边节点新的上界，
+ * 插入时key大于叶子的上界说明叶子已经分裂，向右兄弟插入
+ * 读节点不加锁，直接在原始字节上查找，用DataItem的版本号校验读到的内容；修改节点时通过before/after持有这个节点的写锁，
+ * 把节点解码为Entries，修改后重新编码，编码时重新计算公共前缀。叶子节点放得下并且新的键带有公共前缀时不重新编码，
+ * 新的Entry直接写在空闲空间的末尾，只移动Slot。Entry之间没有空隙，删除时重新编码
+ * LeafFlag的第二位表示节点已经被合并掉（见Rebalancer），这样的节点保留被合并时的内容，读操作仍然可以从中读取，
+ * 修改操作遇到它时需要从根重新查找
  */
 public class Node {
     static final int IS_LEAF_OFFSET = 0;// 表示该节点是否为叶子结点
     static final int NO_KEYS_OFFSET = IS_LEAF_OFFSET+1;// 表示该节点中key的个数
     static final int SIBLING_OFFSET = NO_KEYS_OFFSET+2;// 表示节点的兄弟节点的UID属性
-    static final int NODE_HEADER_SIZE = SIBLING_OFFSET+8;// 表示节点头部的大小的常量
+    static final int PREFIX_LENGTH_OFFSET = SIBLING_OFFSET+8;// 表示节点中所有键的公共前缀的长度
+    static final int NODE_HEADER_SIZE = PREFIX_LENGTH_OFFSET+2;// 表示节点头部的大小的常量
 
-    static final int BALANCE_NUMBER = 32; // 节点的平衡因子的常量，一个节点最多可以包含32个key
-    static final int NODE_SIZE = NODE_HEADER_SIZE + (2*8)*(BALANCE_NUMBER*2+2);// 节点的大小
+    static final int SLOT_SIZE = 2;
+    static final int ENTRY_HEADER_SIZE = 8+2;// 子节点UID和后缀长度
+    static final int INF_LENGTH = 0xFFFF;// 正无穷的键的后缀长度
+
+    static final byte LEAF_FLAG = 1;
+    static final byte DEAD_FLAG = 2;
+
+    //节点的平衡因子，一个节点最多可以包含BALANCE_NUMBER*2个key，并且编码后不超过节点的大小，每棵树可以单独设置（见BPlusTree.create）
+    static final int MAX_BALANCE_NUMBER = ((DataItem.maxDataSize() - NODE_HEADER_SIZE) / (2*8) - 2) / 2;// 一个节点占满一页
+    static final int DEFAULT_BALANCE_NUMBER = MAX_BALANCE_NUMBER;
 
     BPlusTree tree;
     DataItem dataItem;
@@ -35,9 +54,9 @@ public class Node {
      */
     static void setRawIsLeaf(SubArray raw, boolean isLeaf) {
         if (isLeaf) {
-            raw.raw[raw.start + IS_LEAF_OFFSET] = (byte)1;
+            raw.raw.put(raw.start + IS_LEAF_OFFSET, LEAF_FLAG);
         } else {
-            raw.raw[raw.start + IS_LEAF_OFFSET] = (byte)0;
+            raw.raw.put(raw.start + IS_LEAF_OFFSET, (byte)0);
         }
     }
 
@@ -47,7 +66,16 @@ public class Node {
      * @return
      */
     static boolean getRawIfLeaf(SubArray raw) {
-        return raw.raw[raw.start + IS_LEAF_OFFSET] == (byte)1;
+        return (raw.raw.get(raw.start + IS_LEAF_OFFSET) & LEAF_FLAG) != 0;
+    }
+
+    //标记节点已经被合并掉
+    static void setRawDead(SubArray raw) {
+        raw.raw.put(raw.start + IS_LEAF_OFFSET, (byte) (raw.raw.get(raw.start + IS_LEAF_OFFSET) | DEAD_FLAG));
+    }
+
+    static boolean getRawIfDead(SubArray raw) {
+        return (raw.raw.get(raw.start + IS_LEAF_OFFSET) & DEAD_FLAG) != 0;
     }
 
     /**
@@ -56,7 +84,7 @@ public class Node {
      * @param noKeys
      */
     static void setRawNoKeys(SubArray raw, int noKeys) {
-        System.arraycopy(Parser.short2Byte((short) noKeys), 0, raw.raw, raw.start+NO_KEYS_OFFSET, 2);
+        raw.raw.putShort(raw.start+NO_KEYS_OFFSET, (short) noKeys);
     }
 
     /**
@@ -65,7 +93,7 @@ public class Node {
      * @return
      */
     static int getRawNoKeys(SubArray raw) {
-        return (int)Parser.parseShort(Arrays.copyOfRange(raw.raw, raw.start+SIBLING_OFFSET, raw.start+NO_KEYS_OFFSET+2));
+        return (int)raw.raw.getShort(raw.start+NO_KEYS_OFFSET);
     }
 
     /**
@@ -74,7 +102,7 @@ public class Node {
      * @param sibling
      */
     static void setRawSibling(SubArray raw, long sibling) {
-        System.arraycopy(Parser.long2Byte(sibling), 0, raw.raw, raw.start+SIBLING_OFFSET, 8);
+        raw.raw.putLong(raw.start+SIBLING_OFFSET, sibling);
     }
 
     /**
@@ -83,77 +111,248 @@ public class Node {
      * @return
      */
     static long getRawSibling(SubArray raw) {
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, raw.start+SIBLING_OFFSET, raw.start+SIBLING_OFFSET+8));
+        return raw.raw.getLong(raw.start+SIBLING_OFFSET);
     }
 
-    /**
-     * 设置第k个子节点的UID
-     * 注: k 是从0开始的
-     * @param raw 节点的原始字节数组
-     * @param uid 要设置的UID
-     * @param kth 子节点的索引
-     *            raw.start是字节数组的起始位置，NODE_HEADER_SIZE是节点头部的大小
-     *            kth * (8*2)是第k个子节点或键的偏移量，所以，raw.start + NODE_HEADER_SIZE + ket*(8*2)
-     *            就是第k个子节点或键再字节数组中的起始位置
-     */
-    static void setRawKthSon(SubArray raw, long uid, int kth) {
-        int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2);
-        System.arraycopy(Parser.long2Byte(uid), 0, raw.raw, offset, 8);
+    static int getRawPrefixLength(SubArray raw) {
+        return raw.raw.getShort(raw.start+PREFIX_LENGTH_OFFSET) & 0xFFFF;
+    }
+
+    //第k个Entry相对于raw.start的偏移，Slot区紧跟在公共前缀之后
+    private static int getRawSlot(SubArray raw, int prefixLength, int kth) {
+        return raw.raw.getShort(raw.start+NODE_HEADER_SIZE+prefixLength+kth*SLOT_SIZE) & 0xFFFF;
     }
 
     /**
-     * 获取第k个字节点的UID
+     * 获取第k个子节点的UID
      * @param raw
      * @param kth
      * @return
      */
     static long getRawKthSon(SubArray raw, int kth) {
-        int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2);
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset+8));
+        int offset = raw.start+getRawSlot(raw, getRawPrefixLength(raw), kth);
+        return raw.raw.getLong(offset);
     }
 
     /**
-     * 设置第k个键的值
+     * 获取第k个键，拼接公共前缀和后缀，正无穷返回null
      * @param raw
-     * @param key
      * @param kth
+     * @return
      */
-    static void setRawKthKey(SubArray raw, long key, int kth) {
-        int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2)+8;
-        System.arraycopy(Parser.long2Byte(key), 0, raw.raw, offset, 8);
+    static byte[] getRawKthKey(SubArray raw, int kth) {
+        int prefixLength = getRawPrefixLength(raw);
+        int offset = raw.start+getRawSlot(raw, prefixLength, kth);
+        int suffixLength = raw.raw.getShort(offset+8) & 0xFFFF;
+        if (suffixLength == INF_LENGTH) {
+            return null;
+        }
+        byte[] key = new byte[prefixLength+suffixLength];
+        raw.raw.get(raw.start+NODE_HEADER_SIZE, key, 0, prefixLength);
+        raw.raw.get(offset+ENTRY_HEADER_SIZE, key, prefixLength, suffixLength);
+        return key;
     }
 
     /**
-     * 获取第k个键的值
+     * 在原始字节上比较第k个键和key，先比较公共前缀，相同时再比较后缀，不拼接键
      * @param raw
      * @param kth
+     * @param key
+     * @return 第k个键小于、等于、大于key时分别返回负数、0、正数
+     */
+    static int compareRawKthKey(SubArray raw, int kth, byte[] key) {
+        int prefixLength = getRawPrefixLength(raw);
+        int offset = raw.start+getRawSlot(raw, prefixLength, kth);
+        int suffixLength = raw.raw.getShort(offset+8) & 0xFFFF;
+        if (suffixLength == INF_LENGTH) {
+            return 1;
+        }
+        int p = raw.start+NODE_HEADER_SIZE;
+        // key比公共前缀短并且是它的前缀时，这里已经得出第k个键更大
+        int c = Keys.compare(raw.raw, p, p+prefixLength, key, 0, Math.min(prefixLength, key.length));
+        if (c != 0) {
+            return c;
+        }
+        int s = offset+ENTRY_HEADER_SIZE;
+        return Keys.compare(raw.raw, s, s+suffixLength, key, prefixLength, key.length);
+    }
+
+    /**
+     * 节点中的键有序，二分查找第一个大于key（inclusive为true时大于等于key）的键的位置，没有时返回noKeys
+     * @param raw
+     * @param noKeys
+     * @param key
+     * @param inclusive
+     * @return
+     */
+    static int searchKth(SubArray raw, int noKeys, byte[] key, boolean inclusive) {
+        int lo = 0, hi = noKeys;
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = compareRawKthKey(raw, mid, key);
+            if(c < 0 || (!inclusive && c == 0)) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    //子节点uid在节点中的位置，没有时返回-1
+    static int indexOfSon(SubArray raw, int noKeys, long uid) {
+        for(int i = 0; i < noKeys; i ++) {
+            if(getRawKthSon(raw, i) == uid) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    //把节点解码为Entries
+    static Entries decode(SubArray raw) {
+        int noKeys = getRawNoKeys(raw);
+        boolean isLeaf = getRawIfLeaf(raw);
+        Entries entries = new Entries(noKeys+1, isLeaf);
+        for(int i = 0; i < noKeys; i ++) {
+            entries.add(getRawKthSon(raw, i), getRawKthKey(raw, i));
+        }
+        if(isLeaf) {
+            entries.high = getRawKthKey(raw, noKeys);
+        }
+        return entries;
+    }
+
+    //Slot的个数，叶子节点多一个上界的Slot
+    private static int getRawSlots(SubArray raw, int noKeys) {
+        return getRawIfLeaf(raw) ? noKeys+1 : noKeys;
+    }
+
+    /**
+     * 叶子节点的上界，null表示没有上界
+     * @param raw
      * @return
      */
-    static long getRawKthKey(SubArray raw, int kth) {
-        int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2)+8;
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset+8));
+    static byte[] getRawHigh(SubArray raw) {
+        return getRawKthKey(raw, getRawNoKeys(raw));
+    }
+
+    /**
+     * 把entries编码到raw中，覆盖原来的内容（包括已合并的标记），调用者需要保证编码后的大小不超过raw
+     * Entry从raw的末尾向前排列，Slot从公共前缀之后向后排列，叶子节点的上界排在最后
+     * @param raw
+     * @param isLeaf
+     * @param sibling
+     * @param entries
+     */
+    static void encode(SubArray raw, boolean isLeaf, long sibling, Entries entries) {
+        int prefixLength = entries.prefixLength();
+        setRawIsLeaf(raw, isLeaf);
+        setRawNoKeys(raw, entries.size);
+        setRawSibling(raw, sibling);
+        raw.raw.putShort(raw.start+PREFIX_LENGTH_OFFSET, (short) prefixLength);
+        if(prefixLength > 0) {
+            raw.raw.put(raw.start+NODE_HEADER_SIZE, entries.size > 0 ? entries.keys[0] : entries.high, 0, prefixLength);
+        }
+        int slot = raw.start+NODE_HEADER_SIZE+prefixLength;
+        int offset = raw.end-raw.start;
+        for(int i = 0; i < entries.size; i ++) {
+            offset = encodeEntry(raw, slot+i*SLOT_SIZE, offset, prefixLength, entries.sons[i], entries.keys[i]);
+        }
+        if(isLeaf) {
+            encodeEntry(raw, slot+entries.size*SLOT_SIZE, offset, prefixLength, 0, entries.high);
+        }
+    }
+
+    //把(son, key)写在offset之前，Slot写在slot处，返回这个Entry的偏移
+    private static int encodeEntry(SubArray raw, int slot, int offset, int prefixLength, long son, byte[] key) {
+        int suffixLength = key == null ? 0 : key.length-prefixLength;
+        offset -= ENTRY_HEADER_SIZE+suffixLength;
+        int p = raw.start+offset;
+        raw.raw.putLong(p, son);
+        raw.raw.putShort(p+8, (short) (key == null ? INF_LENGTH : suffixLength));
+        if(suffixLength > 0) {
+            raw.raw.put(p+ENTRY_HEADER_SIZE, key, prefixLength, suffixLength);
+        }
+        raw.raw.putShort(slot, (short) offset);
+        return offset;
+    }
+
+    //entries编码后占用的字节数
+    static int encodedSize(Entries entries) {
+        int prefixLength = entries.prefixLength();
+        int size = NODE_HEADER_SIZE + prefixLength + entries.size*(SLOT_SIZE+ENTRY_HEADER_SIZE)
+                + entries.keyBytes - entries.finite*prefixLength;
+        if(entries.leaf) {
+            size += entrySize(entries.high, prefixLength);
+        }
+        return size;
+    }
+
+    //Entry区的开始，即所有Entry中最小的偏移，没有Entry时为节点的末尾
+    private static int getRawEntryStart(SubArray raw, int prefixLength, int slots) {
+        int start = raw.end-raw.start;
+        for(int i = 0; i < slots; i ++) {
+            start = Math.min(start, getRawSlot(raw, prefixLength, i));
+        }
+        return start;
+    }
+
+    //节点当前占用的字节数，Entry之间没有空隙
+    static int getRawSize(SubArray raw) {
+        int prefixLength = getRawPrefixLength(raw);
+        int slots = getRawSlots(raw, getRawNoKeys(raw));
+        return NODE_HEADER_SIZE + prefixLength + slots*SLOT_SIZE + (raw.end-raw.start) - getRawEntryStart(raw, prefixLength, slots);
     }
 
     /**
-     * 从一个节点的原始字节数组中复制一部分数据到另一个节点的原始字节数组中
-     * @param from
-     * @param to
+     * 不重新编码，把(uid, key)作为第kth项直接写入叶子节点：Entry写在空闲空间的末尾，Slot从kth开始（包括上界的Slot）向后移动一位
+     * key不带有节点的公共前缀或者空闲空间不够时返回false，不修改节点
+     * @param raw
+     * @param noKeys
      * @param kth
+     * @param uid
+     * @param key
+     * @return
      */
-    static void copyRawFromKth(SubArray from, SubArray to, int kth) {
-        //计算要复制的数据再源节点的原始字节数组中的起始位置
-        int offset = from.start+NODE_HEADER_SIZE+kth*(8*2);
-        //将源节点的原始字节数组中的数据复制到目标节点的原始字节数组中
-        //复制的数据包括从起始位置到源节点的原始字节数组的末尾的所有数据
-        System.arraycopy(from.raw, offset, to.raw, to.start+NODE_HEADER_SIZE, from.end-offset);
-    }
-
-    static void shiftRawKth(SubArray raw, int kth) {
-        int begin = raw.start+NODE_HEADER_SIZE+(kth+1)*(8*2);
-        int end = raw.start+NODE_SIZE-1;
-        for(int i = end; i >= begin; i --) {
-            raw.raw[i] = raw.raw[i-(8*2)];
+    static boolean insertRawKth(SubArray raw, int noKeys, int kth, long uid, byte[] key) {
+        int prefixLength = getRawPrefixLength(raw);
+        int p = raw.start+NODE_HEADER_SIZE;
+        if(key.length < prefixLength || Keys.compare(raw.raw, p, p+prefixLength, key, 0, prefixLength) != 0) {
+            return false;
         }
+        int suffixLength = key.length-prefixLength;
+        int slots = NODE_HEADER_SIZE+prefixLength;
+        int offset = getRawEntryStart(raw, prefixLength, noKeys+1) - ENTRY_HEADER_SIZE - suffixLength;
+        if(offset < slots + (noKeys+2)*SLOT_SIZE) {
+            return false;
+        }
+        int e = raw.start+offset;
+        raw.raw.putLong(e, uid);
+        raw.raw.putShort(e+8, (short) suffixLength);
+        raw.raw.put(e+ENTRY_HEADER_SIZE, key, prefixLength, suffixLength);
+        int slot = raw.start+slots+kth*SLOT_SIZE;
+        raw.raw.put(slot+SLOT_SIZE, raw.raw, slot, (noKeys+1-kth)*SLOT_SIZE);
+        raw.raw.putShort(slot, (short) offset);
+        setRawNoKeys(raw, noKeys+1);
+        return true;
+    }
+
+    //平衡因子为balanceNumber的节点的大小，可以存放balanceNumber*2+2个8字节的键和子节点
+    static int nodeSize(int balanceNumber) {
+        return NODE_HEADER_SIZE + (2*8)*maxEntries(balanceNumber);
+    }
+
+    //节点最多能存放的键和子节点的个数
+    static int maxEntries(int balanceNumber) {
+        return balanceNumber*2+2;
+    }
+
+    /**
+     * 键的最大长度，保证一个节点至少能放下4个键（叶子节点为3个键和上界），分裂后两边都不为空
+     */
+    static int maxKeySize(int balanceNumber) {
+        return (nodeSize(balanceNumber) - NODE_HEADER_SIZE) / 4 - SLOT_SIZE - ENTRY_HEADER_SIZE;
     }
 
 
@@ -161,7 +360,7 @@ public class Node {
         [LeafFlag: 0]
         [KeyNumber: 2]
         [SiblingUid: 0]
-        [Son0: left][Key0: key][Son1: right][Key1: MAX_VALUE]
+        [Son0: left][Key0: key][Son1: right][Key1: INF]
 
         注：一个简单的演示
 
@@ -175,37 +374,31 @@ public class Node {
 
     /**
      * 创建一个新的根节点的原始字节数组
-     * 这个新的根节点包含两个子节点，它们的键分别是’key‘和'Long.MAX_VALUE'， UID分别是'left'和'right'
+     * 这个新的根节点包含两个子节点，它们的键分别是’key‘和正无穷， UID分别是'left'和'right'
      * @param left
      * @param right
      * @param key
+     * @param balanceNumber
      * @return
      */
-    static byte[] newRootRaw(long left, long right, long key)  {
+    static byte[] newRootRaw(long left, long right, byte[] key, int balanceNumber)  {
         //创建一个新的字节数组，大小为节点的大小
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
-        setRawIsLeaf(raw, false);//设置节点为非叶子节点
-        setRawNoKeys(raw, 2);//设置节点的键的数量为2
-        setRawSibling(raw, 0);//设置节点的兄弟节点的UID为0
-        setRawKthSon(raw, left, 0);//设置第0个子节点的UID为left
-        setRawKthKey(raw, key, 0);//设置第0个键的值为key
-        setRawKthSon(raw, right, 1);//设置第1个子节点的UID为right
-        setRawKthKey(raw, Long.MAX_VALUE, 1);//设置第1个键的值为Long.MAX_VALUE
-
-        return raw.raw;//返回新创建的根节点的原始字节数组
+        byte[] bytes = new byte[nodeSize(balanceNumber)];
+        Entries entries = new Entries(2, false);
+        entries.add(left, key);
+        entries.add(right, null);
+        encode(new SubArray(bytes, 0, bytes.length), false, 0, entries);
+        return bytes;//返回新创建的根节点的原始字节数组
     }
 
     /**
      * 创建一个新的空根节点的原始字节数组，这个新的根节点没有子节点和键
      * @return
      */
-    static byte[] newNilRootRaw()  {
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);//创建一个新的字节数组，大小为节点的大小
-        setRawIsLeaf(raw, true);//设置节点为叶子节点
-        setRawNoKeys(raw, 0);//设置节点的键的数量为0
-        setRawSibling(raw, 0);//设置节点的兄弟节点的UID为0
-
-        return raw.raw;//返回新创建的空根节点的原始字节数组
+    static byte[] newNilRootRaw(int balanceNumber)  {
+        byte[] bytes = new byte[nodeSize(balanceNumber)];//创建一个新的字节数组，大小为节点的大小
+        encode(new SubArray(bytes, 0, bytes.length), true, 0, new Entries(0, true));
+        return bytes;//返回新创建的空根节点的原始字节数组
     }
 
     static Node loadNode(BPlusTree bTree, long uid) throws Exception {
@@ -223,15 +416,43 @@ public class Node {
         dataItem.release();
     }
 
-    public boolean isLeaf() {
+    /**
+     * 乐观地读取节点：不加读锁执行reader，之后校验期间节点没有被修改；
+     * 节点正在被修改或者校验失败时，读到的内容可能不一致（甚至越界），加读锁重新读取
+     */
+    private <T> T read(Supplier<T> reader) {
+        long version = dataItem.version();
+        if ((version & 1) == 0) {
+            try {
+                T res = reader.get();
+                if (dataItem.validate(version)) {
+                    return res;
+                }
+            } catch (RuntimeException e) {
+                // 读到了修改了一半的节点，下面加锁重读
+            }
+        }
         dataItem.rLock();
         try {
-            return getRawIfLeaf(raw);
+            return reader.get();
         } finally {
             dataItem.rUnLock();
         }
     }
 
+    public boolean isLeaf() {
+        return read(() -> getRawIfLeaf(raw));
+    }
+
+    public long getSibling() {
+        return read(() -> getRawSibling(raw));
+    }
+
+    //节点已经被合并掉时返回-1
+    public long getLiveSibling() {
+        return read(() -> getRawIfDead(raw) ? -1L : getRawSibling(raw));
+    }
+
     class SearchNextRes {
         long uid;
         long siblingUid;
@@ -239,59 +460,52 @@ public class Node {
 
     /**
      * 在B+树的节点中搜索下一个节点的方法
+     * 分裂可能把相同的key分到两个节点，leftmost为true时进入可能包含key的最左边的子节点，查找时从这里向右遍历叶子
      * @param key
+     * @param leftmost
      * @return
      */
-    public SearchNextRes searchNext(long key) {
-        dataItem.rLock();//获取节点的读锁
-        try {
+    public SearchNextRes searchNext(byte[] key, boolean leftmost) {
+        return read(() -> {
             SearchNextRes res = new SearchNextRes();// 创建一个SearchNextRes对象，用于存储搜索结果
             int noKeys = getRawNoKeys(raw);// 获取节点个数
-            for(int i = 0; i < noKeys; i ++) {
-                long ik = getRawKthKey(raw, i);// 获取第i个key的值
-                if(key < ik) {// 如果key小于ik，那么找到了下一个节点
-                    res.uid = getRawKthSon(raw, i);// 设置下一个节点的UID
-                    res.siblingUid = 0;// 设置兄弟节点的UID为0
-                    return res;// 返回搜索结果
-                }
+            int i = searchKth(raw, noKeys, key, leftmost);// 第一个大于key的键，leftmost时包括等于
+            if(i < noKeys) {// 找到了下一个节点
+                res.uid = getRawKthSon(raw, i);// 设置下一个节点的UID
+                res.siblingUid = 0;// 设置兄弟节点的UID为0
+                return res;// 返回搜索结果
             }
             res.uid = 0;// 如果没有找到下一个节点，设置uid为0
             res.siblingUid = getRawSibling(raw); // 设置兄弟节点的UID为当前节点的兄弟节点的UID
             return res; // 返回搜索结果
-
-        } finally {
-            dataItem.rUnLock();//释放节点的读锁
-        }
+        });
     }
 
     class LeafSearchRangeRes {
-        List<Long> uids;
+        int count;// 复制到缓冲数组中的uid个数
         long siblingUid;
     }
 
     /**
-     * 在B+树的叶子节点中搜索一个键值范围的办法
+     * 在B+树的叶子节点中搜索键在[leftKey, rightKey)范围内的uid，复制到buf中，rightKey为null表示没有上界
+     * 节点中所有的键都小于rightKey时返回兄弟节点，范围可能延续到兄弟节点
      * @param leftKey
      * @param rightKey
+     * @param buf 容量不小于maxEntries
+     * @param keyBuf 不为null时同时复制uid对应的键，容量与buf相同
      * @return
      */
-    public LeafSearchRangeRes leafSearchRange(long leftKey, long rightKey) {
-        dataItem.rLock();//获取数据项的读锁
-        try {
+    public LeafSearchRangeRes leafSearchRange(byte[] leftKey, byte[] rightKey, long[] buf, byte[][] keyBuf) {
+        return read(() -> {
             int noKeys = getRawNoKeys(raw);//获取节点中的键的数量
-            int kth = 0;
-            while(kth < noKeys) {//找到第一个大于等于左键的键
-                long ik = getRawKthKey(raw, kth);
-                if(ik >= leftKey) {
-                    break;
-                }
-                kth ++;
-            }
-            List<Long> uids = new ArrayList<>();//创建一个列表，用于存储所有在键值范围内的子节点的UID
-            while(kth < noKeys) {//遍历所有的键，将所有小于等于右键的键对应的子节点的UID添加到列表中
-                long ik = getRawKthKey(raw, kth);
-                if(ik <= rightKey) {
-                    uids.add(getRawKthSon(raw, kth));
+            int kth = searchKth(raw, noKeys, leftKey, true);//找到第一个大于等于左键的键
+            int count = 0;
+            while(kth < noKeys) {//遍历所有的键，将所有小于右键的键对应的子节点的UID复制到buf中
+                if(rightKey == null || compareRawKthKey(raw, kth, rightKey) < 0) {
+                    if(keyBuf != null) {
+                        keyBuf[count] = getRawKthKey(raw, kth);
+                    }
+                    buf[count ++] = getRawKthSon(raw, kth);
                     kth ++;
                 } else {
                     break;
@@ -302,40 +516,136 @@ public class Node {
                 siblingUid = getRawSibling(raw);
             }
             LeafSearchRangeRes res = new LeafSearchRangeRes();//创建一个LeafSearchRangeRes对象，用于存储搜索结果
-            res.uids = uids;
+            res.count = count;
             res.siblingUid = siblingUid;
             return res;//返回搜索结果
+        });
+    }
+
+    class LeafRemoveRes {
+        boolean removed;
+        boolean dead;// 节点已经被合并掉，需要从根重新查找
+        int noKeys;// 删除后节点中剩下的键的个数
+        int size;// 删除后节点占用的字节数
+        long siblingUid;
+    }
+
+    /**
+     * 从叶子节点中删除(key, uid)，不合并节点
+     * 没有找到并且节点中所有的键都不大于key时，返回兄弟节点继续查找
+     * @param key
+     * @param uid
+     * @return
+     */
+    public LeafRemoveRes leafRemove(byte[] key, long uid) {
+        LeafRemoveRes res = new LeafRemoveRes();
+        dataItem.before();
+        try {
+            if(getRawIfDead(raw)) {
+                res.dead = true;
+                return res;
+            }
+            int noKeys = getRawNoKeys(raw);
+            int kth = searchKth(raw, noKeys, key, true);
+            while(kth < noKeys && compareRawKthKey(raw, kth, key) == 0) {
+                if(getRawKthSon(raw, kth) == uid) {
+                    Entries entries = decode(raw);
+                    entries.remove(kth);
+                    encode(raw, true, getRawSibling(raw), entries);
+                    res.removed = true;
+                    res.noKeys = entries.size;
+                    res.size = encodedSize(entries);
+                    return res;
+                }
+                kth ++;
+            }
+            if(kth == noKeys) {
+                res.siblingUid = getRawSibling(raw);
+            }
+            return res;
         } finally {
-            dataItem.rUnLock();//释放数据项的读锁
+            if(res.removed) {
+                dataItem.after(TransactionManagerImpl.SUPER_XID);
+            } else {
+                dataItem.unBefore();
+            }
         }
     }
 
     class InsertAndSplitRes {
-        long siblingUid, newSon, newKey;
+        boolean dead;// 节点已经被合并掉，需要从根重新查找
+        boolean missing;// left还没有插入这个节点，或者left又分裂了，要等其他线程插入分隔键或者调整结构后从根重新查找
+        long siblingUid, newSon;
+        byte[] newKey;
+    }
+
+    //读取另一个节点的兄弟指针，节点已经被合并掉时返回-1。分裂时不会在持有子节点的锁时等待父节点，所以这里不会死锁
+    private long liveSibling(long nodeUid) throws Exception {
+        Node node = loadNode(tree, nodeUid);
+        try {
+            return node.getLiveSibling();
+        } finally {
+            node.release();
+        }
     }
 
     /**
      * 在B+树的节点中插入一个键值对，并在需要时分裂节点
+     * key大于节点的上界时返回兄弟节点。非叶子节点中按key找到left那一项，新的子节点插入在它之后；
+     * 相同的键可能有多项，在其中找left，一直延续到节点末尾时向右兄弟查找。
+     * 找到的那一项不是left，或者left的兄弟已经不是uid时，插入在这里会与兄弟链的顺序不一致，返回missing，需要从根重新查找。
+     * left的兄弟指针在持有这个节点的写锁时检查：之后left再分裂，分裂出的节点要等这里完成才能插入，会排在uid之前
      * @param uid
      * @param key
+     * @param left 非叶子节点中兄弟链上紧挨在uid之前的子节点，见BPlusTree.predecessor；叶子节点不使用
      * @return
      * @throws Exception
      */
-    public InsertAndSplitRes insertAndSplit(long uid, long key) throws Exception {
+    public InsertAndSplitRes insertAndSplit(long uid, byte[] key, long left) throws Exception {
         boolean success = false;// 创建一个标志位，用于标记插入操作是否成功
         Exception err = null;// 创建一个异常对象，用于存储在插入或分裂节点时发生的异常
         InsertAndSplitRes res = new InsertAndSplitRes();// 创建一个InsertAndSplitRes对象，用于存储插入和分裂节点的结果
 
         dataItem.before();// 在数据项上设置一个保存点
         try {
-            success = insert(uid, key); // 尝试在节点中插入键值对，并获取插入结果
-            if(!success) {// 如果插入失败，设置兄弟节点的UID，并返回结果
-                res.siblingUid = getRawSibling(raw);
+            if(getRawIfDead(raw)) {
+                res.dead = true;
                 return res;
             }
-            if(needSplit()) {// 如果需要分裂节点
+            int noKeys = getRawNoKeys(raw);// 获取节点中的键的数量
+            boolean isLeaf = getRawIfLeaf(raw);
+            int kth = searchKth(raw, noKeys, key, true);// 找到第一个大于或等于要插入的键的键的位置
+            if(isLeaf) {
+                if(getRawSibling(raw) != 0 && compareRawKthKey(raw, noKeys, key) < 0) {// key大于上界，叶子已经分裂，返回兄弟节点
+                    res.siblingUid = getRawSibling(raw);
+                    return res;
+                }
+            } else {
+                while(kth < noKeys && getRawKthSon(raw, kth) != left && compareRawKthKey(raw, kth, key) == 0) {
+                    kth ++;
+                }
+                if(kth == noKeys) {// key大于上界，或者等于key的项一直延续到右兄弟
+                    if(getRawSibling(raw) != 0) {
+                        res.siblingUid = getRawSibling(raw);
+                    } else {
+                        res.missing = true;
+                    }
+                    return res;
+                }
+                // left不在这里（它还没有插入这个节点，或者已经被合并掉），或者查找left之后它又分裂了
+                if(getRawKthSon(raw, kth) != left || liveSibling(left) != uid) {
+                    res.missing = true;
+                    return res;
+                }
+            }
+            success = true;
+            if(isLeaf && noKeys+1 < tree.balanceNumber*2 && insertRawKth(raw, noKeys, kth, uid, key)) {
+                return res;// 叶子节点放得下，直接写入
+            }
+            Entries entries = insert(kth, uid, key); // 在节点中插入键值对，并获取插入后的内容
+            if(needSplit(entries)) {// 如果需要分裂节点
                 try {
-                    SplitRes r = split();// 分裂节点，并获取分裂结果
+                    SplitRes r = split(entries);// 分裂节点，并获取分裂结果
                     res.newSon = r.newSon;// 设置新节点的UID和新键，并返回结果
                     res.newKey = r.newKey;
                     return res;
@@ -344,6 +654,7 @@ public class Node {
                     throw e;
                 }
             } else {
+                encode(raw, isLeaf, getRawSibling(raw), entries);
                 return res;// 如果不需要分裂节点，直接返回结果
             }
         } finally {
@@ -356,80 +667,100 @@ public class Node {
     }
 
     /**
-     * 在B+树的节点中插入一个键值对的方法
+     * 把节点解码后在第kth个位置插入键值对，返回插入后的内容，还没有写回节点
+     * 非叶子节点中第kth个子节点分裂，它的键换成新的分隔键，新的子节点继承原来的键
+     * @param kth
      * @param uid
      * @param key
      * @return
      */
-    private boolean insert(long uid, long key) {
-        int noKeys = getRawNoKeys(raw);// 获取节点中的键的数量
-        int kth = 0;// 初始化插入位置的索引
-        while(kth < noKeys) {// 找到第一个大于或等于要插入的键的键的位置
-            long ik = getRawKthKey(raw, kth);
-            if(ik < key) {
-                kth ++;
-            } else {
-                break;
-            }
-        }
-        if(kth == noKeys && getRawSibling(raw) != 0) return false;// 如果所有的键都被遍历过，并且存在兄弟节点，插入失败
-
-        if(getRawIfLeaf(raw)) {// 如果节点是叶子节点
-            shiftRawKth(raw, kth);// 在插入位置后的所有键和子节点向后移动一位
-            setRawKthKey(raw, key, kth); // 在插入位置插入新的键和子节点的UID
-            setRawKthSon(raw, uid, kth);
-            setRawNoKeys(raw, noKeys+1);// 更新节点中的键的数量
+    private Entries insert(int kth, long uid, byte[] key) {
+        Entries entries = decode(raw);
+        if(getRawIfLeaf(raw)) {// 如果节点是叶子节点，在插入位置插入新的键和子节点的UID
+            entries.insert(kth, uid, key);
         } else {            // 如果节点是非叶子节点
-            long kk = getRawKthKey(raw, kth);// 获取插入位置的键
-            setRawKthKey(raw, key, kth);// 在插入位置插入新的键
-            shiftRawKth(raw, kth+1);// 在插入位置后的所有键和子节点向后移动一位
-            setRawKthKey(raw, kk, kth+1);// 在插入位置的下一个位置插入原来的键和新的子节点的UID
-            setRawKthSon(raw, uid, kth+1);
-            setRawNoKeys(raw, noKeys+1);// 更新节点中的键的数量
+            byte[] kk = entries.keys[kth];// 获取插入位置的键
+            entries.setKey(kth, key);// 在插入位置插入新的键
+            entries.insert(kth+1, uid, kk);// 在插入位置的下一个位置插入原来的键和新的子节点的UID
         }
-        return true;// 插入成功
+        return entries;// 插入成功
     }
 
-    private boolean needSplit() {
-        return BALANCE_NUMBER*2 == getRawNoKeys(raw);
+    //键的个数达到balanceNumber*2，或者编码后超出节点的大小时分裂
+    private boolean needSplit(Entries entries) {
+        return entries.size >= tree.balanceNumber*2 || encodedSize(entries) > raw.end-raw.start;
     }
 
     class SplitRes {
-        long newSon, newKey;
+        long newSon;
+        byte[] newKey;
     }
 
     /**
      * 分裂B+树的节点
-     * 当一个节点的键的数量达到'BALANCE_NUMBER * 2'时， 就意味着这个节点已经满了，需要进行分裂操作
-     * 分裂操作的目的是将一个满的节点分裂成两个节点，每个节点包含一半的键
+     * 键的个数达到'BALANCE_NUMBER * 2'或者放不下时，将节点分裂成两个节点，每个节点包含大约一半的字节
+     * 先写入新的右节点，再把左半部分写回原节点，原节点的兄弟指针指向新节点
+     * 左半部分的最后一个键是分隔键，成为原节点的上界，新节点继承原节点的上界（见Entries.addAll）
+     * @param entries 插入后的内容
      * @return
      * @throws Exception
      */
-    private SplitRes split() throws Exception {
-        SubArray nodeRaw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);// 创建一个新的字节数组，用于存储新节点的原始数据
-        setRawIsLeaf(nodeRaw, getRawIfLeaf(raw));// 设置新节点的叶子节点标志，与原节点相同
-        setRawNoKeys(nodeRaw, BALANCE_NUMBER); // 设置新节点的键的数量为BALANCE_NUMBER
-        setRawSibling(nodeRaw, getRawSibling(raw)); // 设置新节点的兄弟节点的UID，与原节点的兄弟节点的UID相同
-        copyRawFromKth(raw, nodeRaw, BALANCE_NUMBER);    // 从原节点的原始字节数组中复制一部分数据到新节点的原始字节数组中
-        long son = tree.dm.insert(TransactionManagerImpl.SUPER_XID, nodeRaw.raw);// 在数据管理器中插入新节点的原始数据，并获取新节点的UID
-        setRawNoKeys(raw, BALANCE_NUMBER);// 更新原节点的键的数量为BALANCE_NUMBER
-        setRawSibling(raw, son);// 更新原节点的兄弟节点的UID为新节点的UID
+    private SplitRes split(Entries entries) throws Exception {
+        int mid = splitPoint(entries);
+        boolean isLeaf = getRawIfLeaf(raw);
+        // 叶子节点的左半部分多了上界，按字节数分开后可能放不下，左移分开的位置；第一个放得下的位置右半部分也放得下
+        while(isLeaf && mid > 1 && encodedSize(entries.range(0, mid)) > raw.end-raw.start) {
+            mid --;
+        }
+        byte[] nodeRaw = new byte[raw.end-raw.start];// 创建一个新的字节数组，用于存储新节点的原始数据
+        Entries right = entries.range(mid, entries.size);
+        encode(new SubArray(nodeRaw, 0, nodeRaw.length), isLeaf, getRawSibling(raw), right);// 新节点的兄弟节点与原节点的兄弟节点相同
+        long son = tree.dm.insert(TransactionManagerImpl.SUPER_XID, nodeRaw);// 在数据管理器中插入新节点的原始数据，并获取新节点的UID
+        encode(raw, isLeaf, son, entries.range(0, mid));// 原节点保留左半部分，兄弟节点为新节点
 
         SplitRes res = new SplitRes();// 创建一个SplitRes对象，用于存储分裂结果
         res.newSon = son;// 设置新节点的UID
-        res.newKey = getRawKthKey(nodeRaw, 0);// 设置新键为新节点的第一个键的值
+        res.newKey = entries.keys[mid-1];// 设置新键为原节点留下的最后一个键
         return res;// 返回分裂结果
     }
 
+    /**
+     * 按编码后的字节数把entries分成大小接近的两半，返回右半部分的开始位置
+     * 两半的公共前缀都不短于整体的公共前缀，因此各自编码后不超过估计的大小
+     * 右半部分至少有两项，保证它的第一个键不是正无穷
+     */
+    static int splitPoint(Entries entries) {
+        int prefixLength = entries.prefixLength();
+        int total = 0;
+        for(int i = 0; i < entries.size; i ++) {
+            total += entrySize(entries.keys[i], prefixLength);
+        }
+        int mid = 0, acc = 0;
+        while(mid < entries.size && acc*2 < total) {
+            acc += entrySize(entries.keys[mid ++], prefixLength);
+        }
+        return Math.max(1, Math.min(mid, entries.size-2));
+    }
+
+    //公共前缀为prefixLength时一个键和子节点占用的字节数
+    static int entrySize(byte[] key, int prefixLength) {
+        return SLOT_SIZE + ENTRY_HEADER_SIZE + (key == null ? 0 : key.length-prefixLength);
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
         sb.append("Is leaf: ").append(getRawIfLeaf(raw)).append("\n");
+        sb.append("Is dead: ").append(getRawIfDead(raw)).append("\n");
         int KeyNumber = getRawNoKeys(raw);
         sb.append("KeyNumber: ").append(KeyNumber).append("\n");
         sb.append("sibling: ").append(getRawSibling(raw)).append("\n");
+        sb.append("prefix length: ").append(getRawPrefixLength(raw)).append("\n");
         for(int i = 0; i < KeyNumber; i ++) {
-            sb.append("son: ").append(getRawKthSon(raw, i)).append(", key: ").append(getRawKthKey(raw, i)).append("\n");
+            sb.append("son: ").append(getRawKthSon(raw, i)).append(", key: ").append(Arrays.toString(getRawKthKey(raw, i))).append("\n");
+        }
+        if(getRawIfLeaf(raw)) {
+            sb.append("high: ").append(Arrays.toString(getRawHigh(raw))).append("\n");
         }
         return sb.toString();
     }
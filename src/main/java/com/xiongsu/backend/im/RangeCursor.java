@@ -0,0 +1,60 @@
+package com.xiongsu.backend.im;
+
+import com.xiongsu.backend.common.Cursor;
+
+/**
+ * 范围扫描游标，按key的顺序返回键在[leftKey, rightKey)内的uid，rightKey为null时没有上界
+ * 每次把一个叶子节点中符合范围的uid复制到缓冲数组，用完后沿兄弟指针读取下一个叶子，两次读取之间不持有任何节点。
+ * 创建时指定withKeys则同时复制每个uid对应的键，可以不读取记录就得到被索引的值（见key）。
+ * 调用者可以随时停止，不需要关闭
+ */
+public class RangeCursor implements Cursor {
+
+    private BPlusTree tree;
+    private byte[] leftKey, rightKey;
+    private long leafUid;// 下一个要读取的叶子，0表示没有了
+    private boolean started;
+    private long[] buf;
+    private byte[][] keys;// 不复制键时为null
+    private int count, pos;
+
+    RangeCursor(BPlusTree tree, byte[] leftKey, byte[] rightKey, boolean withKeys) {
+        this.tree = tree;
+        this.leftKey = leftKey;
+        this.rightKey = rightKey;
+        this.buf = new long[Node.maxEntries(tree.balanceNumber)];
+        if (withKeys) {
+            this.keys = new byte[buf.length][];
+        }
+    }
+
+    public boolean hasNext() throws Exception {
+        if (!started) {
+            started = true;
+            leafUid = tree.searchLeaf(tree.rootUid(), leftKey);
+        }
+        //叶子中可能没有符合范围的项，继续读下一个叶子
+        while (pos == count && leafUid != 0) {
+            Node leaf = Node.loadNode(tree, leafUid);
+            try {
+                Node.LeafSearchRangeRes res = leaf.leafSearchRange(leftKey, rightKey, buf, keys);
+                count = res.count;
+                leafUid = res.siblingUid;
+            } finally {
+                leaf.release();
+            }
+            pos = 0;
+        }
+        return pos < count;
+    }
+
+    //调用前需要hasNext返回true
+    public long next() {
+        return buf[pos ++];
+    }
+
+    //上一次next返回的uid对应的键，创建时需要指定withKeys
+    public byte[] key() {
+        return keys[pos-1];
+    }
+}
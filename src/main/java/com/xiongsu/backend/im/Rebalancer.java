@@ -0,0 +1,297 @@
+package com.xiongsu.backend.im;
+
+import com.xiongsu.backend.common.SubArray;
+import com.xiongsu.backend.tm.TransactionManagerImpl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 删除后节点太空时调整树的结构，由BPlusTree.remove调用
+ * 节点编码后占用的空间少于容量的1/4（或者只剩一个子节点）时，与它在父节点中相邻的节点一起处理：两个节点加起来不多时把右边的节点合并到左边，
+ * 否则先分裂较大的节点，再把分裂后相邻的两个节点合并，使两边的字节数接近。
+ * 每次只写一个节点，每写完一个节点树都是合法的B-link树，崩溃后也是，合并按这样的顺序写入：
+ * 1. 父节点去掉右节点，左节点的范围扩大到右节点的范围，此时在左节点中找不到的key沿兄弟指针在右节点中找到
+ * 2. 左节点追加右节点的键，兄弟指针越过右节点
+ * 3. 右节点标记为已合并，遇到它的插入和删除从根重新查找
+ * 合并掉的节点不立即释放：之前拿到它的uid的操作可能还要读取它，由调用者在这些操作结束后释放（见BPlusTree.takeRetired）
+ * 调整结构的操作之间互斥，依次锁住父节点、左节点、右节点；插入和删除同时只锁住一个节点，不会死锁
+ */
+class Rebalancer {
+
+    private BPlusTree tree;
+    private int nodeSize;
+    private int capacity;// 节点中存放键和子节点的空间
+    private int mergeLimit;// 两个节点的键加起来不超过这个数、并且合并后不超过容量的3/4时合并，否则重新分配
+    private Lock lock;
+
+    Rebalancer(BPlusTree tree) {
+        this.tree = tree;
+        this.nodeSize = Node.nodeSize(tree.balanceNumber);
+        this.capacity = nodeSize - Node.NODE_HEADER_SIZE;
+        this.mergeLimit = tree.balanceNumber * 3 / 2;
+        this.lock = new ReentrantLock();
+    }
+
+    // 只有一个子节点的非叶子节点没有意义，至少为2
+    boolean underflow(int noKeys, int size) {
+        return noKeys < 2 || size - Node.NODE_HEADER_SIZE < capacity / 4;
+    }
+
+    /**
+     * 从叶子节点leafUid开始向上调整，key是刚从叶子中删除的键
+     * 父节点已经分裂、节点已经被其他线程调整过等情况下放弃，之后的删除会再次尝试
+     * @param key
+     * @param leafUid
+     * @throws Exception
+     */
+    void rebalance(byte[] key, long leafUid) throws Exception {
+        lock.lock();
+        try {
+            List<Long> path = pathTo(key);
+            long child = leafUid;
+            for (int i = path.size()-1; i >= 0; i --) {
+                boolean underflow = rebalanceChild(path.get(i), child);
+                if (i == 0) {
+                    // 根节点只剩一个子节点时降低树的高度
+                    collapseRoot();
+                }
+                if (!underflow) {
+                    return;
+                }
+                child = path.get(i);
+            }
+        } finally {
+            lock.unlock();
+            // 合并掉的节点可能正是插入线程在等的、紧挨在新节点之前的节点
+            tree.signalStructureChange();
+        }
+    }
+
+    /**
+     * 从根沿key向下，经过的非叶子节点，每一层是实际包含下一层节点的那个节点
+     * 分隔键是左边节点的上界，删除的key是叶子中最大的键时可能等于分隔键，所以进入最左边可能包含key的子节点
+     */
+    private List<Long> pathTo(byte[] key) throws Exception {
+        List<Long> path = new ArrayList<>();
+        long nodeUid = tree.rootUid();
+        while (true) {
+            Node node = Node.loadNode(tree, nodeUid);
+            Node.SearchNextRes res;
+            try {
+                if (node.isLeaf()) {
+                    return path;
+                }
+                res = node.searchNext(key, true);
+            } finally {
+                node.release();
+            }
+            if (res.uid == 0) {
+                nodeUid = res.siblingUid;
+            } else {
+                path.add(nodeUid);
+                nodeUid = res.uid;
+            }
+        }
+    }
+
+    /**
+     * 调整parent的子节点child，调整后parent太空时返回true，需要继续调整上一层
+     */
+    private boolean rebalanceChild(long parentUid, long childUid) throws Exception {
+        Node parent = Node.loadNode(tree, parentUid);
+        Node left = null, right = null;
+        try {
+            parent.dataItem.before();
+            SubArray p = parent.raw;
+            int n = Node.getRawNoKeys(p);
+            int i = Node.getRawIfDead(p) ? -1 : Node.indexOfSon(p, n, childUid);
+            if (i < 0 || n < 2) {
+                parent.dataItem.unBefore();
+                return i >= 0 && underflow(n, Node.getRawSize(p));
+            }
+            int li = i+1 < n ? i : i-1;
+            try {
+                left = Node.loadNode(tree, Node.getRawKthSon(p, li));
+                right = Node.loadNode(tree, Node.getRawKthSon(p, li+1));
+            } catch (Exception e) {
+                parent.dataItem.unBefore();
+                throw e;
+            }
+            left.dataItem.before();
+            right.dataItem.before();
+            Node child = childUid == left.uid ? left : right;
+            // 左节点分裂后还没有把新节点插入父节点时，两者不相邻，放弃
+            if (!underflow(Node.getRawNoKeys(child.raw), Node.getRawSize(child.raw))
+                    || Node.getRawSibling(left.raw) != right.uid
+                    || Node.getRawIfDead(left.raw) || Node.getRawIfDead(right.raw)) {
+                giveUp(parent, left, right);
+                return false;
+            }
+            Entries pe = Node.decode(p);
+            Entries le = Node.decode(left.raw), re = Node.decode(right.raw);
+            Entries merged = le.range(0, le.size);
+            merged.addAll(re, 0, re.size);
+            if (merged.size <= mergeLimit && Node.encodedSize(merged) - Node.NODE_HEADER_SIZE <= capacity * 3 / 4) {
+                merge(parent, pe, li, left, right, merged);
+                return underflow(pe.size, Node.encodedSize(pe));
+            }
+            int m = Node.splitPoint(merged);
+            // 分开后两边都要放得下，父节点换上新的分隔键（左边的最后一个键，与Node.split一致）后也要放得下
+            pe.setKey(li, merged.keys[m-1]);
+            if (m == le.size || !fits(merged.range(0, m)) || !fits(merged.range(m, merged.size)) || !fits(pe)) {
+                giveUp(parent, left, right);
+                return false;
+            }
+            if (m > le.size) {
+                moveLeft(parent, pe, li, left, right, re, merged, m);
+            } else {
+                moveRight(parent, pe, li, left, right, merged, m);
+            }
+            return false;
+        } finally {
+            parent.release();
+            if (left != null) left.release();
+            if (right != null) right.release();
+        }
+    }
+
+    private boolean fits(Entries entries) {
+        return entries.size < tree.balanceNumber * 2 && Node.encodedSize(entries) <= nodeSize;
+    }
+
+    private void giveUp(Node parent, Node left, Node right) {
+        right.dataItem.unBefore();
+        left.dataItem.unBefore();
+        parent.dataItem.unBefore();
+    }
+
+    /**
+     * 把right合并到left，left是parent的第li个子节点，三个节点都已经before，依次写入
+     */
+    private void merge(Node parent, Entries pe, int li, Node left, Node right, Entries merged) {
+        pe.setKey(li, pe.keys[li+1]);
+        pe.remove(li+1);
+        Node.encode(parent.raw, false, Node.getRawSibling(parent.raw), pe);
+        parent.dataItem.after(TransactionManagerImpl.SUPER_XID);
+
+        Node.encode(left.raw, Node.getRawIfLeaf(left.raw), Node.getRawSibling(right.raw), merged);
+        left.dataItem.after(TransactionManagerImpl.SUPER_XID);
+
+        retire(right);
+    }
+
+    /**
+     * left太空，right较大：right分裂出后半部分，父节点中right换成分裂出的节点，再把right剩下的部分合并到left
+     * right在整个过程中保持before，分裂后的内容和已合并标记在最后一起写入；在这之前崩溃时，
+     * 父节点和left都已经不指向right，right只是一个访问不到的节点
+     * @param pe 已经换上新的分隔键的父节点
+     * @param m 合并后的前m项留在left
+     */
+    private void moveLeft(Node parent, Entries pe, int li, Node left, Node right, Entries re, Entries merged, int m) throws Exception {
+        boolean isLeaf = Node.getRawIfLeaf(right.raw);
+        int h = m - (merged.size - re.size);// right留下并合并到left的键的个数
+        long newUid;
+        try {
+            newUid = tree.dm.insert(TransactionManagerImpl.SUPER_XID,
+                    newRaw(isLeaf, Node.getRawSibling(right.raw), re.range(h, re.size)));
+        } catch (Exception e) {
+            giveUp(parent, left, right);
+            throw e;
+        }
+        pe.sons[li+1] = newUid;
+        Node.encode(parent.raw, false, Node.getRawSibling(parent.raw), pe);
+        parent.dataItem.after(TransactionManagerImpl.SUPER_XID);
+
+        Node.encode(left.raw, isLeaf, newUid, merged.range(0, m));
+        left.dataItem.after(TransactionManagerImpl.SUPER_XID);
+
+        Node.encode(right.raw, isLeaf, newUid, re.range(0, h));
+        retire(right);
+    }
+
+    /**
+     * right太空，left较大：left分裂出后半部分mid，父节点中right换成mid，再把right合并到mid
+     * mid在left指向它之前就已经before，其他线程访问不到写了一半的mid
+     * @param pe 已经换上新的分隔键的父节点
+     * @param m 合并后的前m项留在left
+     */
+    private void moveRight(Node parent, Entries pe, int li, Node left, Node right, Entries merged, int m) throws Exception {
+        boolean isLeaf = Node.getRawIfLeaf(left.raw);
+        int nl = merged.size - Node.getRawNoKeys(right.raw);
+        Node mid;
+        try {
+            long midUid = tree.dm.insert(TransactionManagerImpl.SUPER_XID, newRaw(isLeaf, right.uid, merged.range(m, nl)));
+            mid = Node.loadNode(tree, midUid);
+        } catch (Exception e) {
+            giveUp(parent, left, right);
+            throw e;
+        }
+        try {
+            mid.dataItem.before();
+            Node.encode(left.raw, isLeaf, mid.uid, merged.range(0, m));
+            left.dataItem.after(TransactionManagerImpl.SUPER_XID);
+
+            pe.sons[li+1] = mid.uid;
+            Node.encode(parent.raw, false, Node.getRawSibling(parent.raw), pe);
+            parent.dataItem.after(TransactionManagerImpl.SUPER_XID);
+
+            Node.encode(mid.raw, isLeaf, Node.getRawSibling(right.raw), merged.range(m, merged.size));
+            mid.dataItem.after(TransactionManagerImpl.SUPER_XID);
+        } finally {
+            mid.release();
+        }
+        retire(right);
+    }
+
+    /**
+     * 根节点只有一个子节点时，让这个子节点成为新的根
+     * 子节点有右兄弟时说明它刚分裂、还没有插入根节点，不能替换
+     */
+    private void collapseRoot() throws Exception {
+        tree.bootLock.lock();
+        try {
+            Node root = Node.loadNode(tree, tree.rootUid());
+            try {
+                root.dataItem.before();
+                if (Node.getRawIfLeaf(root.raw) || Node.getRawNoKeys(root.raw) != 1) {
+                    root.dataItem.unBefore();
+                    return;
+                }
+                long son = Node.getRawKthSon(root.raw, 0);
+                Node sonNode = Node.loadNode(tree, son);
+                long sibling;
+                try {
+                    sibling = sonNode.getSibling();
+                } finally {
+                    sonNode.release();
+                }
+                if (sibling != 0) {
+                    root.dataItem.unBefore();
+                    return;
+                }
+                tree.setRoot(son);
+                retire(root);
+            } finally {
+                root.release();
+            }
+        } finally {
+            tree.bootLock.unlock();
+        }
+    }
+
+    private byte[] newRaw(boolean isLeaf, long sibling, Entries entries) {
+        byte[] raw = new byte[nodeSize];
+        Node.encode(new SubArray(raw, 0, nodeSize), isLeaf, sibling, entries);
+        return raw;
+    }
+
+    //标记已经before的节点为已合并，写入后交给BPlusTree等待释放
+    private void retire(Node node) {
+        Node.setRawDead(node.raw);
+        node.dataItem.after(TransactionManagerImpl.SUPER_XID);
+        tree.retired.add(node.uid);
+    }
+}
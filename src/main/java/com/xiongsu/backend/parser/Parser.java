@@ -85,6 +85,12 @@ public class Parser {
         if("".equals(tmp)) {
             return new Show();
         }
+        if("locks".equals(tmp)) {
+            tokenizer.pop();
+            Show show = new Show();
+            show.locks = true;
+            return show;
+        }
         throw Error.InvalidCommandException;
     }
 
@@ -1,4 +1,5 @@
 package com.xiongsu.backend.parser.statement;
 
 public class Show {
+    public boolean locks;// show locks：查看锁等待统计
 }
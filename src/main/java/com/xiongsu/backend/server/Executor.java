@@ -62,7 +62,7 @@ public class Executor {
         try {
             byte[] res = null;
             if(Show.class.isInstance(stat)) {
-                res = tbm.show(xid);
+                res = ((Show)stat).locks ? tbm.showLocks() : tbm.show(xid);
             } else if(Create.class.isInstance(stat)) {
                 res = tbm.create(xid, (Create)stat);
             } else if(Select.class.isInstance(stat)) {
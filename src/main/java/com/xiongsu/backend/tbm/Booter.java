@@ -61,7 +61,7 @@ public class Booter {
      * @param path
      */
     private static void removeBadTmp(String path) {
-        new File(path+BOOTER_SUFFIX).delete();// 删除路径加上临时文件后缀的文件
+        new File(path+BOOTER_TMP_SUFFIX).delete();// 删除路径加上临时文件后缀的文件
     }
 
     private Booter(String path, File file) {
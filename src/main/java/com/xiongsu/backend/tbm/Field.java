@@ -2,6 +2,8 @@ package com.xiongsu.backend.tbm;
 
 import com.google.common.primitives.Bytes;
 import com.xiongsu.backend.im.BPlusTree;
+import com.xiongsu.backend.im.Keys;
+import com.xiongsu.backend.im.RangeCursor;
 import com.xiongsu.backend.parser.statement.SingleExpression;
 import com.xiongsu.backend.tm.TransactionManagerImpl;
 import com.xiongsu.backend.utils.Panic;
@@ -9,6 +11,7 @@ import com.xiongsu.backend.utils.ParseStringRes;
 import com.xiongsu.backend.utils.Parser;
 import com.xiongsu.common.Error;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
 
@@ -127,12 +130,29 @@ public class Field {
     }
 
     public void insert(Object key, long uid) throws Exception {
-        long uKey = value2Uid(key);
+        byte[] uKey = value2Key(key);
         bt.insert(uKey, uid);
     }
 
-    public List<Long> search(long left, long right) throws Exception {
-        return bt.searchRange(left, right);
+    public void remove(Object key, long uid) throws Exception {
+        bt.remove(value2Key(key), uid);
+    }
+
+    //写入记录之前检查索引键的长度，避免记录已经写入而索引插入失败
+    void checkKey(Object key) throws Exception {
+        if(value2Key(key).length > bt.maxKeySize()) {
+            throw Error.KeyTooLongException;
+        }
+    }
+
+    //删除索引项时合并掉的节点，见BPlusTree.takeRetired
+    List<Long> takeRetiredNodes() {
+        return bt.takeRetired();
+    }
+
+    //按索引顺序逐个返回键在[left, right)内的uid，right为null时没有上界，withKeys见RangeCursor
+    public RangeCursor scan(byte[] left, byte[] right, boolean withKeys) {
+        return bt.cursor(left, right, withKeys);
     }
 
     public Object string2Value(String str) {
@@ -147,20 +167,38 @@ public class Field {
         return null;
     }
 
-    public long value2Uid(Object key) {
-        long uid = 0;
+    /**
+     * 字段值对应的索引键，键的字节序与值的顺序一致（见Keys），字符串按原值比较，不再取哈希
+     * @param key
+     * @return
+     */
+    public byte[] value2Key(Object key) {
+        byte[] k = null;
         switch(fieldType) {
             case "string":
-                uid = Parser.str2Uid((String)key);
+                k = Keys.ofString((String)key);
                 break;
             case "int32":
-                int uint = (int)key;
-                return (long)uint;
+                k = Keys.ofLong((int)key);
+                break;
             case "int64":
-                uid = (long)key;
+                k = Keys.ofLong((long)key);
                 break;
         }
-        return uid;
+        return k;
+    }
+
+    //value2Key的逆运算，从索引键得到字段值
+    public Object key2Value(byte[] key) {
+        switch(fieldType) {
+            case "string":
+                return Keys.stringOf(key);
+            case "int32":
+                return (int)Keys.longOf(key);
+            case "int64":
+                return Keys.longOf(key);
+        }
+        return null;
     }
 
     public byte[] value2Raw(Object v) {
@@ -204,6 +242,35 @@ public class Field {
         return res;
     }
 
+    //记录raw中从pos开始的这个字段的值占用的字节数
+    int rawLength(ByteBuffer raw, int pos) {
+        switch(fieldType) {
+            case "int32":
+                return 4;
+            case "int64":
+                return 8;
+        }
+        return 4 + raw.getInt(pos);
+    }
+
+    /**
+     * 不解析成值，直接比较记录raw中从pos开始的这个字段的值与索引键key的顺序，key为null表示正无穷
+     * 字符串的字节就是它的键，原地比较
+     */
+    int compareRaw(ByteBuffer raw, int pos, byte[] key) {
+        if(key == null) {
+            return -1;
+        }
+        switch(fieldType) {
+            case "int32":
+                return Keys.compare(Keys.ofLong(raw.getInt(pos)), key);
+            case "int64":
+                return Keys.compare(Keys.ofLong(raw.getLong(pos)), key);
+        }
+        int start = pos + 4;
+        return Keys.compare(raw, start, start + raw.getInt(pos), key, 0, key.length);
+    }
+
     public String printValue(Object v) {
         String str = null;
         switch(fieldType) {
@@ -236,22 +303,19 @@ public class Field {
         FieldCalRes res = new FieldCalRes();
         switch(exp.compareOp) {
             case "<":
-                res.left = 0;
+                res.left = Keys.MIN;
                 v = string2Value(exp.value);
-                res.right = value2Uid(v);
-                if(res.right > 0) {
-                    res.right --;
-                }
+                res.right = value2Key(v);
                 break;
             case "=":
                 v = string2Value(exp.value);
-                res.left = value2Uid(v);
-                res.right = res.left;
+                res.left = value2Key(v);
+                res.right = Keys.successor(res.left);
                 break;
             case ">":
-                res.right = Long.MAX_VALUE;
+                res.right = null;
                 v = string2Value(exp.value);
-                res.left = value2Uid(v) + 1;
+                res.left = Keys.successor(value2Key(v));
                 break;
         }
         return res;
@@ -1,6 +1,7 @@
 package com.xiongsu.backend.tbm;
 
+//索引键的范围[left, right)，right为null时没有上界
 public class FieldCalRes {
-    public long left;
-    public long right;
+    public byte[] left;
+    public byte[] right;
 }
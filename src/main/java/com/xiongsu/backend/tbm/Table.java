@@ -1,13 +1,19 @@
 package com.xiongsu.backend.tbm;
 
 import com.google.common.primitives.Bytes;
+import com.xiongsu.backend.common.Cursor;
+import com.xiongsu.backend.im.Keys;
+import com.xiongsu.backend.im.RangeCursor;
 import com.xiongsu.backend.parser.statement.*;
 import com.xiongsu.backend.tm.TransactionManagerImpl;
+import com.xiongsu.backend.vm.LockTable;
+import com.xiongsu.backend.vm.VersionManager;
 import com.xiongsu.backend.utils.Panic;
 import com.xiongsu.backend.utils.ParseStringRes;
 import com.xiongsu.backend.utils.Parser;
 import com.xiongsu.common.Error;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -114,18 +120,24 @@ public class Table {
     }
 
     public int delete(long xid, Delete delete) throws Exception {
-        List<Long> uids = parseWhere(delete.where);
+        ((TableManagerImpl)tbm).vm.lock(xid, uid, LockTable.IX);
         int count = 0;
-        for (Long uid : uids) {
-            if(((TableManagerImpl)tbm).vm.delete(xid, uid)) {
-                count ++;
+        for (Cursor cursor : parseWhere(delete.where)) {
+            while (cursor.hasNext()) {
+                long uid = cursor.next();
+                if(((TableManagerImpl)tbm).vm.delete(xid, uid)) {
+                    ((TableManagerImpl)tbm).vacuum.deleted(xid, this, uid);
+                    count ++;
+                }
             }
         }
         return count;
     }
 
     public int update(long xid, Update update) throws Exception {
-        List<Long> uids = parseWhere(update.where);
+        //没有WHERE时会改写整张表，直接锁住整张表，否则只加意向锁，由delete逐行加锁
+        ((TableManagerImpl)tbm).vm.lock(xid, uid, update.where == null ? LockTable.X : LockTable.IX);
+        List<Cursor> cursors = parseWhere(update.where);
         Field fd = null;
         for (Field f : fields) {
             if(f.fieldName.equals(update.fieldName)) {
@@ -137,45 +149,114 @@ public class Table {
             throw Error.FieldNotFoundException;
         }
         Object value = fd.string2Value(update.value);
+        if(fd.isIndexed()) {
+            fd.checkKey(value);
+        }
         int count = 0;
-        for (Long uid : uids) {
-            byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
-            if(raw == null) continue;
+        //游标边扫描边插入新版本，新版本可能出现在游标还没有读到的叶子或者页面中，按语句序号跳过它们
+        int statement = ((TableManagerImpl)tbm).vm.beginStatement(xid);
+        for (Cursor cursor : cursors) {
+            while (cursor.hasNext()) {
+                long uid = cursor.next();
+                if(updateOne(xid, uid, fd, value, statement)) {
+                    count ++;
+                }
+            }
+        }
+        return count;
+    }
 
-            ((TableManagerImpl)tbm).vm.delete(xid, uid);
+    //更新一行。这一行对当前事务不可见，或者是这条语句自己插入的新版本时返回false
+    private boolean updateOne(long xid, long uid, Field fd, Object value, int statement) throws Exception {
+        byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid, statement);
+        if(raw == null) return false;
 
-            Map<String, Object> entry = parseEntry(raw);
-            entry.put(fd.fieldName, value);
-            raw = entry2Raw(entry);
-            long uuid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
+        if(((TableManagerImpl)tbm).vm.delete(xid, uid)) {
+            ((TableManagerImpl)tbm).vacuum.deleted(xid, this, uid);
+        }
 
-            count ++;
+        Map<String, Object> entry = parseEntry(raw);
+        entry.put(fd.fieldName, value);
+        raw = entry2Raw(entry);
+        long uuid = ((TableManagerImpl)tbm).vm.insert(xid, this.uid, raw);
+        ((TableManagerImpl)tbm).vacuum.inserted(xid, this, uuid);
 
-            for (Field field : fields) {
-                if(field.isIndexed()) {
-                    field.insert(entry.get(field.fieldName), uuid);
-                }
+        for (Field field : fields) {
+            if(field.isIndexed()) {
+                field.insert(entry.get(field.fieldName), uuid);
             }
         }
-        return count;
+        return true;
     }
 
     public String read(long xid, Select read) throws Exception {
-        List<Long> uids = parseWhere(read.where);
+        List<Field> proj = projection(read.fields);
+        Field fd = whereField(read.where);
+        if(read.where == null && proj.size() == 1 && proj.get(0).isIndexed()) {
+            // 没有条件时，只查询一个有索引的字段就扫描这个字段自己的索引
+            fd = proj.get(0);
+        }
+        if(fd != null && fd.isIndexed() && proj.size() == 1 && proj.get(0) == fd) {
+            return readCovering(xid, fd, read.where);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Cursor cursor : parseWhere(fd, read.where)) {
+            while (cursor.hasNext()) {
+                byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, cursor.next());
+                if(raw == null) continue;
+                Map<String, Object> entry = parseEntry(raw);
+                sb.append(printEntry(entry, proj)).append("\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    //只查询条件所在的索引字段时，字段的值就是索引中的键，只需检查版本是否可见，不用读出和解析记录
+    private String readCovering(long xid, Field fd, Where where) throws Exception {
+        VersionManager vm = ((TableManagerImpl)tbm).vm;
         StringBuilder sb = new StringBuilder();
-        for (Long uid : uids) {
-            byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
-            if(raw == null) continue;
-            Map<String, Object> entry = parseEntry(raw);
-            sb.append(printEntry(entry)).append("\n");
+        for (RangeCursor cursor : indexScan(fd, where, true)) {
+            while (cursor.hasNext()) {
+                if(!vm.isVisible(xid, cursor.next())) continue;
+                sb.append("[").append(fd.printValue(fd.key2Value(cursor.key()))).append("]\n");
+            }
         }
         return sb.toString();
     }
 
+    //SELECT 要输出的字段，* 为所有字段
+    private List<Field> projection(String[] names) throws Exception {
+        if(names.length == 1 && "*".equals(names[0])) {
+            return fields;
+        }
+        List<Field> proj = new ArrayList<>();
+        for (String name : names) {
+            Field fd = null;
+            for (Field field : fields) {
+                if(field.fieldName.equals(name)) {
+                    fd = field;
+                    break;
+                }
+            }
+            if(fd == null) {
+                throw Error.FieldNotFoundException;
+            }
+            proj.add(fd);
+        }
+        return proj;
+    }
+
     public void insert(long xid, Insert insert) throws Exception {
         Map<String, Object> entry = string2Entry(insert.values);
+        for (Field field : fields) {
+            if(field.isIndexed()) {
+                field.checkKey(entry.get(field.fieldName));
+            }
+        }
         byte[] raw = entry2Raw(entry);
-        long uid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
+        ((TableManagerImpl)tbm).vm.lock(xid, this.uid, LockTable.IX);
+        long uid = ((TableManagerImpl)tbm).vm.insert(xid, this.uid, raw);
+        ((TableManagerImpl)tbm).vacuum.inserted(xid, this, uid);
         for (Field field : fields) {
             if(field.isIndexed()) {
                 field.insert(entry.get(field.fieldName), uid);
@@ -183,6 +264,27 @@ public class Table {
         }
     }
 
+    //删除索引中指向版本uid的项，raw为这个版本的数据
+    void removeIndex(byte[] raw, long uid) throws Exception {
+        Map<String, Object> entry = parseEntry(raw);
+        for (Field field : fields) {
+            if(field.isIndexed()) {
+                field.remove(entry.get(field.fieldName), uid);
+            }
+        }
+    }
+
+    //removeIndex时各个索引中合并掉、等待释放的节点
+    List<Long> takeRetiredNodes() {
+        List<Long> uids = new ArrayList<>();
+        for (Field field : fields) {
+            if(field.isIndexed()) {
+                uids.addAll(field.takeRetiredNodes());
+            }
+        }
+        return uids;
+    }
+
     private Map<String, Object> string2Entry(String[] values) throws Exception {
         if(values.length != fields.size()) {
             throw Error.InvalidValuesException;
@@ -196,47 +298,64 @@ public class Table {
         return entry;
     }
 
+    private List<Cursor> parseWhere(Where where) throws Exception {
+        return parseWhere(whereField(where), where);
+    }
+
     /**
-     * 解析WHERE 子句并返回满足条件的记录的uid列表
+     * WHERE 子句中的字段，没有 WHERE 子句时为null
      * @param where
      * @return
      * @throws Exception
      */
-    private List<Long> parseWhere(Where where) throws Exception {
+    private Field whereField(Where where) throws Exception {
+        if(where == null) {
+            return null;
+        }
+        // 寻找 WHERE 子句中涉及的字段
+        for (Field field : fields) {
+            if(field.fieldName.equals(where.singleExp1.field)) {
+                return field;
+            }
+        }
+        // 如果字段不存在，则抛出异常
+        throw Error.FieldNotFoundException;
+    }
+
+    /**
+     * 返回满足WHERE 子句的记录的uid的游标
+     * fd有索引时在索引上扫描；fd没有索引或者没有 WHERE 子句时顺序扫描表的堆，全表扫描不需要从索引逐个跳到记录
+     * @param fd WHERE 子句中的字段，见whereField
+     * @param where
+     * @return
+     * @throws Exception
+     */
+    private List<Cursor> parseWhere(Field fd, Where where) throws Exception {
+        if(fd != null && fd.isIndexed()) {
+            return new ArrayList<>(indexScan(fd, where, false));
+        }
+        return Collections.singletonList(heapScan(fd, where));
+    }
+
+    /**
+     * 在fd的索引上解析WHERE 子句并返回满足条件的记录的uid的游标，OR 时有两个范围，依次扫描
+     * @param fd 有索引的字段
+     * @param where
+     * @param withKeys 游标是否同时返回索引键，见RangeCursor
+     * @return
+     * @throws Exception
+     */
+    private List<RangeCursor> indexScan(Field fd, Where where, boolean withKeys) throws Exception {
         // 初始化搜索范围和标志位
-        long l0=0, r0=0, l1=0, r1=0;
+        byte[] l0=null, r0=null, l1=null, r1=null;
         boolean single = false;
-        Field fd = null;
         // 如果 WHERE 子句为空，则搜索所有记录
         if(where == null) {
-            // 寻找第一个有索引的字段
-            for (Field field : fields) {
-                if(field.isIndexed()) {
-                    fd = field;
-                    break;
-                }
-            }
-            // 设置搜索范围为整个 uid 空间
-            l0 = 0;
-            r0 = Long.MAX_VALUE;
+            // 设置搜索范围为整个键空间
+            l0 = Keys.MIN;
+            r0 = null;
             single = true;
         } else {
-            // 如果 WHERE 子句不为空，则根据 WHERE 子句解析搜索范围
-            // 寻找 WHERE 子句中涉及的字段
-            for (Field field : fields) {
-                if(field.fieldName.equals(where.singleExp1.field)) {
-                    // 如果字段没有索引，则抛出异常
-                    if(!field.isIndexed()) {
-                        throw Error.FieldNotIndexedException;
-                    }
-                    fd = field;
-                    break;
-                }
-            }
-            // 如果字段不存在，则抛出异常
-            if(fd == null) {
-                throw Error.FieldNotFoundException;
-            }
             // 计算 WHERE 子句的搜索范围
             CalWhereRes res = calWhere(fd, where);
             l0 = res.l0; r0 = res.r0;
@@ -244,17 +363,48 @@ public class Table {
             single = res.single;
         }
         // 在计算出的搜索范围内搜索记录
-        List<Long> uids = fd.search(l0, r0);
-        // 如果 WHERE 子句包含 OR 运算符，则需要搜索两个范围，并将结果合并
+        List<RangeCursor> cursors = new ArrayList<>();
+        cursors.add(fd.scan(l0, r0, withKeys));
+        // 如果 WHERE 子句包含 OR 运算符，则需要搜索两个范围
         if(!single) {
-            List<Long> tmp = fd.search(l1, r1);
-            uids.addAll(tmp);
+            cursors.add(fd.scan(l1, r1, withKeys));
+        }
+        return cursors;// 返回搜索结果
+    }
+
+    /**
+     * 顺序扫描表的堆，fd不为null时直接在每个版本的字节上检查WHERE 子句，不满足的版本不会被读出
+     * 条件的范围与索引扫描相同，见calWhere
+     * @param fd WHERE 子句中的字段，没有 WHERE 子句时为null
+     * @param where
+     * @return
+     * @throws Exception
+     */
+    private Cursor heapScan(Field fd, Where where) throws Exception {
+        VersionManager vm = ((TableManagerImpl)tbm).vm;
+        if(fd == null) {
+            return vm.scan(uid, null);
         }
-        return uids;// 返回搜索结果
+        CalWhereRes res = calWhere(fd, where);
+        int index = fields.indexOf(fd);
+        return vm.scan(uid, data -> {
+            // 跳过前面的字段，找到条件字段的位置
+            int pos = data.start;
+            for (int i = 0; i < index; i++) {
+                pos += fields.get(i).rawLength(data.raw, pos);
+            }
+            return inRange(fd, data.raw, pos, res.l0, res.r0)
+                    || (!res.single && inRange(fd, data.raw, pos, res.l1, res.r1));
+        });
+    }
+
+    //记录raw中从pos开始的字段值是否在[left, right)内
+    private boolean inRange(Field fd, ByteBuffer raw, int pos, byte[] left, byte[] right) {
+        return fd.compareRaw(raw, pos, left) >= 0 && fd.compareRaw(raw, pos, right) < 0;
     }
 
     class CalWhereRes {
-        long l0, r0, l1, r1;
+        byte[] l0, r0, l1, r1;// 左闭右开，右端为null时没有上界
         boolean single;
     }
 
@@ -279,8 +429,8 @@ public class Table {
                 res.l0 = r.left; res.r0 = r.right;
                 r = fd.calExp(where.singleExp2);
                 res.l1 = r.left; res.r1 = r.right;
-                if(res.l1 > res.l0) res.l0 = res.l1;
-                if(res.r1 < res.r0) res.r0 = res.r1;
+                if(Keys.compare(res.l1, res.l0) > 0) res.l0 = res.l1;
+                if(Keys.compare(res.r1, res.r0) < 0) res.r0 = res.r1;
                 break;
             default:
                 throw Error.InvalidLogOpException;
@@ -288,12 +438,12 @@ public class Table {
         return res;
     }
 
-    private String printEntry(Map<String, Object> entry) {
+    private String printEntry(Map<String, Object> entry, List<Field> proj) {
         StringBuilder sb = new StringBuilder("[");
-        for (int i = 0; i < fields.size(); i++) {
-            Field field = fields.get(i);
+        for (int i = 0; i < proj.size(); i++) {
+            Field field = proj.get(i);
             sb.append(field.printValue(entry.get(field.fieldName)));
-            if(i == fields.size()-1) {
+            if(i == proj.size()-1) {
                 sb.append("]");
             } else {
                 sb.append(", ");
@@ -11,12 +11,14 @@ public interface TableManager {
     byte[] abort(long xid);
 
     byte[] show(long xid);
+    byte[] showLocks();// 锁等待最多的表和UID
     byte[] create(long xid, Create create) throws Exception;
 
     byte[] insert(long xid, Insert insert) throws Exception;
     byte[] read(long xid, Select select) throws Exception;
     byte[] update(long xid, Update update) throws Exception;
     byte[] delete(long xid, Delete delete) throws Exception;
+    void close();// 停止后台回收，然后关闭VersionManager和DataManager
 
     public static TableManager create(String path, VersionManager vm, DataManager dm) {
         Booter booter = Booter.create(path);
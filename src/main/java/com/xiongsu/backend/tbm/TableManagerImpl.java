@@ -2,7 +2,9 @@ package com.xiongsu.backend.tbm;
 
 import com.xiongsu.backend.dm.DataManager;
 import com.xiongsu.backend.parser.statement.*;
+import com.xiongsu.backend.utils.Panic;
 import com.xiongsu.backend.utils.Parser;
+import com.xiongsu.backend.vm.LockStats;
 import com.xiongsu.backend.vm.VersionManager;
 import com.xiongsu.common.Error;
 
@@ -14,12 +16,15 @@ import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class TableManagerImpl implements TableManager{
+    private static final int SHOW_LOCKS_LIMIT = 10;// show locks 每类最多显示的条数
+
     VersionManager vm; // 版本管理器，用于管理事务的版本
     DataManager dm;// 数据管理器，用于管理数据的存储和读取
     private Booter booter;// 启动信息管理器，用于管理数据库启动信息
     private Map<String, Table> tableCache;// 表缓存，用于缓存已加载的表，键是表名，值是表对象
     private Map<Long, List<Table>> xidTableCache;// 事务表缓存，用于缓存每个事务修改过的表，键是事务ID，值是表对象列表
     private Lock lock;// 锁，用于同步多线程操作
+    Vacuum vacuum;// 回收已经对所有事务不可见的版本
 
     TableManagerImpl(VersionManager vm, DataManager dm, Booter booter) {
         this.vm = vm;
@@ -29,6 +34,13 @@ public class TableManagerImpl implements TableManager{
         this.xidTableCache = new HashMap<>();
         lock = new ReentrantLock();
         loadTables();
+        this.vacuum = new Vacuum(vm);
+        try {
+            vacuum.sweep(tableCache.values());
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        vacuum.start();
     }
 
     /**
@@ -67,12 +79,20 @@ public class TableManagerImpl implements TableManager{
     }
     @Override
     public byte[] commit(long xid) throws Exception {
-        vm.commit(xid);
+        try {
+            vm.commit(xid);
+        } catch (Exception e) {
+            // 提交失败说明事务已经被自动回滚
+            vacuum.aborted(xid);
+            throw e;
+        }
+        vacuum.committed(xid);
         return "commit".getBytes();
     }
     @Override
     public byte[] abort(long xid) {
         vm.abort(xid);
+        vacuum.aborted(xid);
         return "abort".getBytes();
     }
     @Override
@@ -95,6 +115,36 @@ public class TableManagerImpl implements TableManager{
             lock.unlock();
         }
     }
+    @Override
+    public byte[] showLocks() {
+        Map<Long, String> names = new HashMap<>();
+        lock.lock();
+        try {
+            for (Table tb : tableCache.values()) {
+                names.put(tb.uid, tb.name);
+            }
+        } finally {
+            lock.unlock();
+        }
+        StringBuilder sb = new StringBuilder("tables:\n");
+        for (Map.Entry<Long, LockStats> e : topByWait(vm.getTableLockStats())) {
+            sb.append("  ").append(names.getOrDefault(e.getKey(), String.valueOf(e.getKey())))
+                    .append(": ").append(e.getValue()).append("\n");
+        }
+        sb.append("uids:\n");
+        for (Map.Entry<Long, LockStats> e : topByWait(vm.getRowLockStats())) {
+            sb.append("  ").append(e.getKey()).append(": ").append(e.getValue()).append("\n");
+        }
+        return sb.toString().getBytes();
+    }
+
+    //按等待时间从长到短取前SHOW_LOCKS_LIMIT个
+    private static List<Map.Entry<Long, LockStats>> topByWait(Map<Long, LockStats> stats) {
+        List<Map.Entry<Long, LockStats>> list = new ArrayList<>(stats.entrySet());
+        list.sort((a, b) -> Long.compare(b.getValue().waitMillis(), a.getValue().waitMillis()));
+        return list.subList(0, Math.min(SHOW_LOCKS_LIMIT, list.size()));
+    }
+
     @Override
     public byte[] create(long xid, Create create) throws Exception {
         lock.lock();//加锁
@@ -158,4 +208,12 @@ public class TableManagerImpl implements TableManager{
         int count = table.delete(xid, delete);
         return ("delete " + count).getBytes();
     }
+
+    //回收线程会通过DataManager释放空间，必须在它停下之后再关闭DataManager
+    @Override
+    public void close() {
+        vacuum.close();
+        vm.close();
+        dm.close();
+    }
 }
@@ -0,0 +1,185 @@
+package com.xiongsu.backend.tbm;
+
+import com.xiongsu.backend.common.Cursor;
+import com.xiongsu.backend.tm.TransactionManagerImpl;
+import com.xiongsu.backend.utils.Panic;
+import com.xiongsu.backend.vm.VersionManager;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 回收已经对所有事务不可见的版本
+ * 事务删除和插入的版本先按事务记录下来，事务提交后它删除的版本、回滚后它插入的版本成为垃圾：
+ * 1. 删除者的事务号小于vm.vacuumHorizon()后，没有事务能再看到这个版本，从索引中删除指向它的项
+ * 2. 删除索引项时已经开始的事务可能已经从索引中拿到了uid，等这些事务都结束后再释放版本占用的空间，
+ *    删除索引项时合并掉的索引节点也可能还被这些事务读取，和版本一起释放
+ * 垃圾只记录在内存中，启动时由sweep扫描所有表的堆，把关闭或崩溃前没有回收的版本重新交给vacuum
+ */
+class Vacuum {
+
+    private static final long VACUUM_INTERVAL_MS = 10 * 1000;// 两次回收的间隔
+
+    private VersionManager vm;
+    private Map<Long, Pending> pending;// 还没有结束的事务删除和插入的版本
+    private Queue<Batch> dead;// 等待对所有事务不可见的垃圾
+    private Deque<Batch> grace;// 已经删除索引项，等待之前开始的事务结束的垃圾
+    private ScheduledExecutorService worker;
+
+    //表中的一个版本
+    private static class Garbage {
+        Table table;
+        long uid;
+
+        Garbage(Table table, long uid) {
+            this.table = table;
+            this.uid = uid;
+        }
+    }
+
+    private static class Pending {
+        List<Garbage> deleted = new ArrayList<>();
+        List<Garbage> inserted = new ArrayList<>();
+    }
+
+    private static class Batch {
+        long xmax;// 删除这些版本的事务，回滚的插入为SUPER_XID
+        long barrier;// 删除索引项时最新的活跃事务
+        List<Garbage> items;
+
+        Batch(long xmax, List<Garbage> items) {
+            this.xmax = xmax;
+            this.items = items;
+        }
+    }
+
+    Vacuum(VersionManager vm) {
+        this.vm = vm;
+        this.pending = new ConcurrentHashMap<>();
+        this.dead = new ConcurrentLinkedQueue<>();
+        this.grace = new ArrayDeque<>();
+    }
+
+    //启动后台回收线程
+    void start() {
+        worker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "vacuum");
+            t.setDaemon(true);
+            return t;
+        });
+        worker.scheduleWithFixedDelay(() -> {
+            try {
+                vacuum();
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+        }, VACUUM_INTERVAL_MS, VACUUM_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    //停止后台回收线程，并等正在进行的一轮回收结束，之后才能关闭DataManager
+    void close() {
+        if (worker == null) {
+            return;
+        }
+        worker.shutdown();
+        try {
+            worker.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+    }
+
+    void deleted(long xid, Table table, long uid) {
+        pending.computeIfAbsent(xid, k -> new Pending()).deleted.add(new Garbage(table, uid));
+    }
+
+    void inserted(long xid, Table table, long uid) {
+        pending.computeIfAbsent(xid, k -> new Pending()).inserted.add(new Garbage(table, uid));
+    }
+
+    void committed(long xid) {
+        Pending p = pending.remove(xid);
+        if (p != null && !p.deleted.isEmpty()) {
+            dead.add(new Batch(xid, p.deleted));
+        }
+    }
+
+    //回滚的事务插入的版本对所有事务都不可见，不需要等待
+    void aborted(long xid) {
+        Pending p = pending.remove(xid);
+        if (p != null && !p.inserted.isEmpty()) {
+            dead.add(new Batch(TransactionManagerImpl.SUPER_XID, p.inserted));
+        }
+    }
+
+    //在任何事务开始之前调用，找出堆中删除者已提交、或插入者已回滚的版本，按删除者分批
+    void sweep(Collection<Table> tables) throws Exception {
+        Map<Long, List<Garbage>> batches = new TreeMap<>();
+        for (Table table : tables) {
+            Cursor cursor = vm.scan(table.uid, null);
+            while (cursor.hasNext()) {
+                long uid = cursor.next();
+                long xmax = vm.garbageXmax(uid);
+                if (xmax >= 0) {
+                    batches.computeIfAbsent(xmax, k -> new ArrayList<>()).add(new Garbage(table, uid));
+                }
+            }
+        }
+        for (Map.Entry<Long, List<Garbage>> e : batches.entrySet()) {
+            dead.add(new Batch(e.getKey(), e.getValue()));
+        }
+    }
+
+    //做一轮回收
+    synchronized void vacuum() throws Exception {
+        long horizon = vm.vacuumHorizon();
+        Iterator<Batch> it = dead.iterator();
+        while (it.hasNext()) {
+            Batch b = it.next();
+            if (b.xmax >= horizon) {
+                continue;
+            }
+            it.remove();
+            List<Garbage> live = new ArrayList<>(b.items.size());
+            Set<Table> tables = new HashSet<>();
+            for (Garbage g : b.items) {
+                byte[] raw = vm.readVersion(g.uid);
+                if (raw != null) {
+                    g.table.removeIndex(raw, g.uid);
+                    live.add(g);
+                    tables.add(g.table);
+                }
+            }
+            for (Table t : tables) {
+                for (long node : t.takeRetiredNodes()) {
+                    live.add(new Garbage(t, node));
+                }
+            }
+            b.items = live;
+            b.barrier = vm.newestActiveXid();
+            grace.addLast(b);
+        }
+
+        //重新计算：删除索引项期间开始的事务也可能拿到了uid
+        horizon = vm.vacuumHorizon();
+        while (!grace.isEmpty() && grace.peekFirst().barrier < horizon) {
+            for (Garbage g : grace.pollFirst().items) {
+                vm.purge(g.uid);
+            }
+        }
+    }
+}
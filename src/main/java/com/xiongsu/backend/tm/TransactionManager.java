@@ -9,16 +9,20 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.function.LongConsumer;
 
 
 
 public interface TransactionManager {
     long begin();// 开启一个新事务
+    //开启一个新事务，在下一个事务号分配出去之前调用started，事务号更小的事务的started都已经执行完
+    long begin(LongConsumer started);
     void commit(long xid);// 提交一个事务
     void abort(long xid);// 取消一个事务
     boolean isActive(long xid);// 查询一个事务的状态是否是正在进行的状态
     boolean isCommited(long xid);// 查询一个事务的状态是否是已提交
     boolean isAborted(long xid);// 查询一个事务的状态是否是已取消
+    void sync();// 等待到目前为止写入的事务状态落盘
     void close();// 关闭TM
 
     //create 用于从零开始，open 用于从持久化的状态恢复
@@ -49,8 +53,7 @@ public interface TransactionManager {
         //写空文件夹
         ByteBuffer buf = ByteBuffer.wrap(new byte[TransactionManagerImpl.LEN_XID_HEADER_LENGTE]);
         try {
-            fc.position(0);
-            fc.write(buf);
+            fc.write(buf, 0);
         } catch (IOException e) {
             Panic.panic(e);
         }
@@ -8,9 +8,18 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
 
+//XID文件的读写都使用带位置参数的read/write，不改变通道的position
+//所有事务的状态在打开时读入内存，每个事务占2位，查询状态只读内存
+//状态的修改直接写入文件，只有commit需要等待落盘，并发的commit合并成一次force
+//counterLock只用于分配新的XID，状态的读取和更新不需要加锁
 public class TransactionManagerImpl implements TransactionManager{
 
     //XID文件头长度
@@ -28,21 +37,40 @@ public class TransactionManagerImpl implements TransactionManager{
 
     static final String XID_SUFFIX = ".xid";
 
+    //内存状态表按块分配，每块记录 1 << CHUNK_BITS 个事务，块一旦分配就不再替换，扩容只复制块数组
+    private static final int CHUNK_BITS = 15;
+    private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+
     private RandomAccessFile file;
     private FileChannel fc;
-    private long xidCounter;
+    private volatile long xidCounter;
     private Lock counterLock;
 
+    private volatile AtomicLongArray[] chunks;// 每个long保存32个事务的状态
+
+    private AtomicLong written;// 已经写入文件的状态修改次数
+    private long synced;// 已经落盘的状态修改次数
+    private boolean syncing;// 是否有线程正在force
+    private Lock syncLock;
+    private Condition syncDone;
+
     TransactionManagerImpl(RandomAccessFile raf, FileChannel fc) {
         this.file = raf;
         this.fc = fc;
         counterLock = new ReentrantLock();
+        chunks = new AtomicLongArray[0];
+        written = new AtomicLong();
+        syncLock = new ReentrantLock();
+        syncDone = syncLock.newCondition();
         checkXIDCounter();
+        loadStatus();
     }
 
     /**
      * 检查XID文件是否合法
      * 读取XID_FILE_HEADER中的xidcounter，根据它计算文件的理论长度，对比实际长度
+     * begin和abort不等待落盘，崩溃后头部和状态可能只有一部分落盘：
+     * 文件比头部记录的长，说明后面的事务已经开始；比头部记录的短，缺少的事务状态视为活跃。两种情况都以较大者为准
      */
     private void checkXIDCounter() {
         long fileLen = 0;
@@ -57,15 +85,47 @@ public class TransactionManagerImpl implements TransactionManager{
 
         ByteBuffer buf = ByteBuffer.allocate(LEN_XID_HEADER_LENGTE);
         try {
-            fc.position(0);
-            fc.read(buf);
+            fc.read(buf, 0);
         } catch (IOException e) {
             Panic.panic(e);
         }
-        this.xidCounter = Parser.parseLong(buf.array());
+        this.xidCounter = Math.max(Parser.parseLong(buf.array()), (fileLen - LEN_XID_HEADER_LENGTE) / XID_FIELD_SIZE);
         long end = getXidPosition(this.xidCounter + 1);
-        if (end != fileLen) {
-            Panic.panic(Error.BadXIDFileException);
+        try {
+            if (end != fileLen) {
+                file.setLength(end);
+            }
+            fc.write(ByteBuffer.wrap(Parser.long2Byte(xidCounter)), 0);
+            fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    //把文件中所有事务的状态读入内存
+    private void loadStatus() {
+        ensureCapacity(xidCounter);
+        ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+        long xid = 1;
+        while (xid <= xidCounter) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), xidCounter - xid + 1));
+            try {
+                while (buf.hasRemaining()) {
+                    if (fc.read(buf, getXidPosition(xid) + buf.position()) < 0) {
+                        Panic.panic(Error.BadXIDFileException);
+                    }
+                }
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+            byte[] status = buf.array();
+            for (int i = 0; i < buf.limit(); i++) {
+                if (status[i] != FIELD_TRAN_ACTIVE) {
+                    setStatus(xid + i, status[i]);
+                }
+            }
+            xid += buf.limit();
         }
     }
 
@@ -74,23 +134,74 @@ public class TransactionManagerImpl implements TransactionManager{
         return LEN_XID_HEADER_LENGTE + (xid-1)*XID_FIELD_SIZE;
     }
 
+    //保证内存状态表能容纳xid
+    private void ensureCapacity(long xid) {
+        if (xid <= 0) {
+            return;
+        }
+        int need = (int) ((xid - 1) >>> CHUNK_BITS) + 1;
+        if (need <= chunks.length) {
+            return;
+        }
+        synchronized (this) {
+            AtomicLongArray[] old = chunks;
+            if (need <= old.length) {
+                return;
+            }
+            AtomicLongArray[] grown = Arrays.copyOf(old, Math.max(need, old.length * 2));
+            for (int i = old.length; i < grown.length; i++) {
+                grown[i] = new AtomicLongArray(1 << (CHUNK_BITS - 5));
+            }
+            chunks = grown;
+        }
+    }
+
+    private byte getStatus(long xid) {
+        long idx = xid - 1;
+        AtomicLongArray[] cs = chunks;
+        int c = (int) (idx >>> CHUNK_BITS);
+        if (c >= cs.length) {
+            return FIELD_TRAN_ACTIVE;
+        }
+        int slot = (int) (idx & CHUNK_MASK);
+        long word = cs[c].get(slot >>> 5);
+        return (byte) ((word >>> ((slot & 31) << 1)) & 3);
+    }
 
-    //begin() 方法通过 ReentrantLock 锁来保证事务ID的分配和初始状态写入是原子操作，防止多线程并发创建事务时产生冲突（比如生成了相同的XID）。
+    private void setStatus(long xid, byte status) {
+        ensureCapacity(xid);
+        long idx = xid - 1;
+        AtomicLongArray chunk = chunks[(int) (idx >>> CHUNK_BITS)];
+        int slot = (int) (idx & CHUNK_MASK);
+        int shift = (slot & 31) << 1;
+        while (true) {
+            long word = chunk.get(slot >>> 5);
+            long updated = (word & ~(3L << shift)) | ((long) status << shift);
+            if (chunk.compareAndSet(slot >>> 5, word, updated)) {
+                return;
+            }
+        }
+    }
+
+    //begin() 方法通过 ReentrantLock 锁来保证事务ID的分配和头部写入是原子操作，防止多线程并发创建事务时产生冲突（比如生成了相同的XID）。
     // 开始一个事务，并返回XID
     public long begin() {
+        return begin(xid -> {});
+    }
+
+    public long begin(LongConsumer started) {
         // 锁定计数器，防止并发问题
         counterLock.lock();
         try {
             // xidCounter是当前事务的计数器，每开始一个新的事务，就将其加1
             long xid = xidCounter + 1;
+            ensureCapacity(xid);
             /**
-             * 调用updateXID方法，将新的事务ID和事务状态（这里是活动状态）写入到XID文件中
+             * 新事务的状态是活跃，也就是0，不需要写入：文件中缺少的状态都按活跃处理，
+             * 只需要将事务计数器加1，并更新XID文件的头部信息
              */
-            updateXID(xid, FIELD_TRAN_ACTIVE);//写入新事务的状态，文件长度增加1字节。
-            /**
-             * 调用incrXIDCounter方法，将事务计数器加1，并更新XID文件的头部信息
-             */
-            incrXIDCounter();//更新文件头的 xidCounter。
+            incrXIDCounter();
+            started.accept(xid);
             // 返回新的事务ID
             return xid;
         } finally {
@@ -99,31 +210,55 @@ public class TransactionManagerImpl implements TransactionManager{
         }
     }
 
-    // 更新xid事务的状态为status
+    // 将xid事务的状态status写入文件，不force
     private void updateXID(long xid, byte status) {
+        if (xid > xidCounter) {
+            advanceXIDCounter(xid);
+        }
         //获取事务xid在xid文件中对应的位置
         long offset = getXidPosition(xid);
-        //创建一个长度为XID_FIELD_SIZE的字节数组
-        byte[] tmp = new byte[XID_FIELD_SIZE];
-        //将事务状态设置为status
-        tmp[0] = status;
-        //使用字节数组创建一个ByteBuffer
-        ByteBuffer buf = ByteBuffer.wrap(tmp);
+        //将事务状态写入文件
+        ByteBuffer buf = ByteBuffer.wrap(new byte[]{status});
         try {
-            //将文件通道的位置设置为offset
-            fc.position(offset);
-            //将ByteBuffer中的数据写入到文件通道
-            fc.write(buf);
+            //将ByteBuffer中的数据写入到文件的offset处
+            fc.write(buf, offset);
         } catch (IOException e) {
             //如果出现异常，调用Panic.panic方法处理
             Panic.panic(e);
         }
+        written.incrementAndGet();
+    }
+
+    /**
+     * 等待到目前为止写入的状态落盘
+     * 没有线程在force时由当前线程force，force期间写入的状态由下一次force一起落盘
+     */
+    public void sync() {
+        long target = written.get();
+        syncLock.lock();
         try {
-            //强制将文件通道中的所有未写入的数据写入到磁盘
-            fc.force(false);
-        } catch (IOException e) {
-            //如果出现异常，调用Panic.panic方法处理
-            Panic.panic(e);
+            while (synced < target) {
+                if (syncing) {
+                    syncDone.awaitUninterruptibly();
+                    continue;
+                }
+                syncing = true;
+                long batch = written.get();
+                syncLock.unlock();
+                try {
+                    //强制将文件通道中的所有未写入的数据写入到磁盘
+                    fc.force(false);
+                } catch (IOException e) {
+                    Panic.panic(e);
+                } finally {
+                    syncLock.lock();
+                }
+                synced = Math.max(synced, batch);
+                syncing = false;
+                syncDone.signalAll();
+            }
+        } finally {
+            syncLock.unlock();
         }
     }
 
@@ -134,70 +269,67 @@ public class TransactionManagerImpl implements TransactionManager{
         // 将新的事务总数转换为字节数组，并用ByteBuffer包装
         ByteBuffer buf = ByteBuffer.wrap(Parser.long2Byte(xidCounter));
         try {
-            // 将文件通道的位置设置为0，即文件的开始位置
-            fc.position(0);
-            // 将ByteBuffer中的数据写入到文件通道，即更新了XID文件的头部信息
-            fc.write(buf);
+            // 将ByteBuffer中的数据写入到文件的开始位置，即更新了XID文件的头部信息
+            fc.write(buf, 0);
         } catch (IOException e) {
             // 如果出现异常，调用Panic.panic方法处理
             Panic.panic(e);
         }
+        written.incrementAndGet();
+    }
+
+    /**
+     * begin不等待头部落盘，崩溃前开始的事务可能超过打开时的xidCounter，恢复时才在日志中看到它们。
+     * 把计数器推进到xid并落盘，之后的begin不会再分配这个XID
+     */
+    private void advanceXIDCounter(long xid) {
+        counterLock.lock();
         try {
-            // 强制将文件通道中的所有未写入的数据写入到磁盘
+            if (xid <= xidCounter) {
+                return;
+            }
+            ensureCapacity(xid);
+            xidCounter = xid;
+            fc.write(ByteBuffer.wrap(Parser.long2Byte(xidCounter)), 0);
             fc.force(false);
         } catch (IOException e) {
-            // 如果出现异常，调用Panic.panic方法处理
             Panic.panic(e);
+        } finally {
+            counterLock.unlock();
         }
     }
 
-    //提交XID事务
+    //提交XID事务，提交状态落盘后才对其他事务可见
     public void commit(long xid) {
         updateXID(xid, FIELD_TRAN_COMMITTED);
+        sync();
+        setStatus(xid, FIELD_TRAN_COMMITTED);
     }
 
-    //回滚XID事务
+    //回滚XID事务，不等待落盘：崩溃后事务仍是活跃状态，恢复时会被撤销，结果相同
     public void abort(long xid) {
         updateXID(xid, FIELD_TRAN_ABORTED);
+        setStatus(xid, FIELD_TRAN_ABORTED);
     }
 
     public boolean isActive(long xid) {
         if (xid==SUPER_XID) return false;
-        return checkXID(xid, FIELD_TRAN_ACTIVE);
+        return getStatus(xid) == FIELD_TRAN_ACTIVE;
     }
 
     public boolean isCommited(long xid) {
         if (xid == SUPER_XID) return true;
-        return checkXID(xid, FIELD_TRAN_COMMITTED);
+        return getStatus(xid) == FIELD_TRAN_COMMITTED;
     }
 
     public boolean isAborted(long xid) {
         if (xid==SUPER_XID) return false;
-        return checkXID(xid, FIELD_TRAN_ABORTED);
-    }
-
-    // 检测XID事务是否处于status状态
-    private boolean checkXID(long xid, byte status) {
-        // 计算事务ID在XID文件中的位置
-        long offset = getXidPosition(xid);
-        // 创建一个新的字节缓冲区（ByteBuffer），长度为XID_FIELD_SIZE
-        ByteBuffer buf = ByteBuffer.wrap(new byte[XID_FIELD_SIZE]);
-        try {
-            // 将文件通道的位置设置为offset
-            fc.position(offset);
-            // 从文件通道读取数据到字节缓冲区
-            fc.read(buf);
-        } catch (IOException e) {
-            // 如果出现异常，调用Panic.panic方法处理
-            Panic.panic(e);
-        }
-        // 检查字节缓冲区的第一个字节是否等于给定的状态
-        // 如果等于，返回true，否则返回false
-        return buf.array()[0] == status;
+        return getStatus(xid) == FIELD_TRAN_ABORTED;
     }
 
     public void close() {
         try {
+            fc.force(false);
             fc.close();
             file.close();
         }catch (IOException e ){
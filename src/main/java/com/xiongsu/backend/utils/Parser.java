@@ -12,7 +12,12 @@ public class Parser {
     }
 
     public static short parseShort(byte[] buf) {
-        ByteBuffer buffer = ByteBuffer.wrap(buf, 0, 2);
+        return parseShort(buf, 0);
+    }
+
+    //从buf的offset处解析，不复制
+    public static short parseShort(byte[] buf, int offset) {
+        ByteBuffer buffer = ByteBuffer.wrap(buf, offset, 2);
         return buffer.getShort();
     }
 
@@ -21,12 +26,20 @@ public class Parser {
     }
 
     public static int parseInt(byte[] buf) {
-        ByteBuffer buffer = ByteBuffer.wrap(buf, 0, 4);
+        return parseInt(buf, 0);
+    }
+
+    public static int parseInt(byte[] buf, int offset) {
+        ByteBuffer buffer = ByteBuffer.wrap(buf, offset, 4);
         return buffer.getInt();
     }
 
     public static long parseLong(byte[] buf) {
-        ByteBuffer buffer = ByteBuffer.wrap(buf, 0, 8);
+        return parseLong(buf, 0);
+    }
+
+    public static long parseLong(byte[] buf, int offset) {
+        ByteBuffer buffer = ByteBuffer.wrap(buf, offset, 8);
         return buffer.getLong();
     }
 
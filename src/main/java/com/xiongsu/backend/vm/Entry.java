@@ -7,20 +7,21 @@ import com.xiongsu.backend.dm.dataltem.DataItem;
 import com.xiongsu.backend.dm.dataltem.DataItemImpl;
 import com.xiongsu.backend.utils.Parser;
 
-import java.util.Arrays;
 
 /**
  * VM向上层抽象出entry
  * entry结构：
- * [XMIN] [XMAX] [data]
+ * [XMIN] [XMAX] [STMT] [data]
  */
 //XMIN:创建该条记录（版本）的事务编号
 //XMAX:删除该条记录（版本）的事务编号
+//STMT:创建该版本的语句在XMIN事务中的序号，见Transaction.statement
 //DATA:是这条记录持有的数据
 public class Entry {
     private static final int OF_XMIN = 0;//定义了XMIN的偏移量为0
     private static final int OF_XMAX = OF_XMIN+8;// 定义了XMAX的偏移量为XMIN偏移量后的8个字节
-    private static final int OF_DATA = OF_XMAX+8;// 定义了DATA的偏移量为XMAX偏移量后的8个字节
+    private static final int OF_STMT = OF_XMAX+8;// XMAX占8个字节，STMT紧跟在XMAX之后
+    private static final int OF_DATA = OF_STMT+4;// STMT占4个字节，DATA紧跟在STMT之后
 
     private long uid;//uid字段，用来唯一标识一个Entry的
     private DataItem dataItem;//DataItem对象，用来存储数据
@@ -46,13 +47,19 @@ public class Entry {
     /**
      * 生成日志格式数据
      * @param xid
+     * @param statement
      * @param data
      * @return
      */
-    public static byte[] wrapEntryRaw(long xid, byte[] data) {
+    public static byte[] wrapEntryRaw(long xid, int statement, byte[] data) {
         byte[] xmin = Parser.long2Byte(xid);// 将事务id转为8字节数组
         byte[] xmax = new byte[8];// 创建一个空的8字节数组，等待版本修改或删除是才修改
-        return Bytes.concat(xmin, xmax, data);// 拼接成日志格式
+        return Bytes.concat(xmin, xmax, Parser.int2Byte(statement), data);// 拼接成日志格式
+    }
+
+    //数据项的Data中，版本的数据所在的部分
+    public static SubArray rawData(SubArray raw) {
+        return new SubArray(raw.raw, raw.start+OF_DATA, raw.end);
     }
 
     public void release() {
@@ -73,8 +80,8 @@ public class Entry {
         dataItem.rLock();// 加锁，确保数据安全
         try {
             SubArray sa = dataItem.data();// 获取日志数据
-            byte[] data = new byte[sa.end - sa.start - OF_DATA];// 创建一个去除前16字节的数组，因为前16字节表示 xmin and xmax
-            System.arraycopy(sa.raw, sa.start+OF_DATA, data, 0, data.length);// 拷贝数据到data数组上
+            byte[] data = new byte[sa.end - sa.start - OF_DATA];// 创建一个去除前20字节的数组，因为前20字节表示 xmin, xmax and stmt
+            sa.raw.get(sa.start+OF_DATA, data, 0, data.length);// 拷贝数据到data数组上
             return data;
         } finally {
             dataItem.rUnLock();//释放锁
@@ -85,7 +92,7 @@ public class Entry {
         dataItem.rLock();
         try {
             SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_XMIN, sa.start+OF_XMAX));
+            return sa.raw.getLong(sa.start+OF_XMIN);
         } finally {
             dataItem.rUnLock();
         }
@@ -95,12 +102,18 @@ public class Entry {
         dataItem.rLock();
         try {
             SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_XMAX, sa.start+OF_DATA));
+            return sa.raw.getLong(sa.start+OF_XMAX);
         } finally {
             dataItem.rUnLock();
         }
     }
 
+    //STMT在插入后不会改变，不需要加锁
+    public int getStatement() {
+        SubArray sa = dataItem.data();
+        return sa.raw.getInt(sa.start+OF_STMT);
+    }
+
     /**
      * 当需要对数据进行修改时，就需要设置xmax的值
      * @param xid
@@ -109,7 +122,7 @@ public class Entry {
         dataItem.before();// 在修改或删除之前先拷贝好旧数值
         try {
             SubArray sa = dataItem.data();// 获取需要删除的日志数据
-            System.arraycopy(Parser.long2Byte(xid), 0, sa.raw, sa.start+OF_XMAX, 8);// 将事务编号拷贝到 8~15 处字节
+            sa.raw.putLong(sa.start+OF_XMAX, xid);// 将事务编号写入 8~15 处字节
         } finally {
             dataItem.after(xid);// 生成一个修改日志
         }
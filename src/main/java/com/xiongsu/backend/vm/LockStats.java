@@ -0,0 +1,52 @@
+package com.xiongsu.backend.vm;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 一个UID或一张表上的锁等待统计
+ */
+public class LockStats {
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder deadlocks = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+
+    void recordWait(long nanos) {
+        waits.increment();
+        waitNanos.add(nanos);
+    }
+
+    void recordDeadlock() {
+        deadlocks.increment();
+    }
+
+    void recordTimeout() {
+        timeouts.increment();
+    }
+
+    public long waitCount() {
+        return waits.sum();
+    }
+
+    public long waitMillis() {
+        return waitNanos() / 1_000_000;
+    }
+
+    long waitNanos() {
+        return waitNanos.sum();
+    }
+
+    public long deadlockCount() {
+        return deadlocks.sum();
+    }
+
+    public long timeoutCount() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "waits=" + waitCount() + ", waitMs=" + waitMillis() + ", deadlocks=" + deadlockCount()
+                + ", timeouts=" + timeoutCount();
+    }
+}
@@ -2,173 +2,483 @@ package com.xiongsu.backend.vm;
 
 import com.xiongsu.common.Error;
 
-import java.util.*;
-import java.util.concurrent.locks.Lock;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 /**
  * 维护了一个依赖等待图，以进行死锁检测
+ *
+ * 锁表按UID分片，每个分片由自己的锁保护，加锁和释放只锁住UID所在的分片，没有全局锁。
+ * 表和行都用UID标识，支持多粒度加锁：对行加S/X锁前，先对所在的表加IS/IX锁；对整张表加S/X锁则不需要再锁行。
+ * 每个UID上可以有多个相容的持有者，不相容的请求按先来后到排队，锁升级的请求排在队首。
+ * 一个事务开始等待时，从它出发沿着等待关系做一次深度优先搜索，回到自己就说明出现了死锁，只检查它能到达的事务。
+ * 也可以关闭这种即时检测，改为由后台线程定期检查所有等待中的事务，适合等待非常频繁的场景。
+ * 等待可以设置超时。每次等待、死锁和超时都按UID和所在的表分别统计，用于找出热点行。
+ * 按UID的统计最多保留maxUidStats个，满了以后新的UID替换掉等待时间最短的那个，只留下等待最多的热点行。
  */
 public class LockTable {
 
-    private Map<Long, List<Long>> x2u; // 某个XID已经获得的资源的UID列表,键是事务ID,值是该事务持有的资源ID列表
-    private Map<Long, Long> u2x; // UID被某个XID持有，键是资源ID,值是持有该资源的事务ID
-    private Map<Long, List<Long>> wait; //正在等待UID的XID列表,键是资源ID,值是正在等待该资源的事务ID
-    private Map<Long, Lock> waitLock; // 正在等待资源的XID的锁,键是事务ID,值是该事务的锁对象
-    private Map<Long, Long> waitU; // XID正在等待的UID，键是事务ID,值是该事务正在等待的资源ID
-    private Lock lock;//一个全局锁，用于同步
+    //锁模式，数值越大越强
+    public static final int IS = 0;// 意向共享
+    public static final int IX = 1;// 意向排他
+    public static final int S = 2;// 共享
+    public static final int X = 3;// 排他
+
+    private static final boolean[][] COMPATIBLE = {
+            //           IS     IX     S      X
+            /* IS */ {true,  true,  true,  false},
+            /* IX */ {true,  true,  false, false},
+            /* S  */ {true,  false, true,  false},
+            /* X  */ {false, false, false, false},
+    };
+
+    private static final int STRIPE_COUNT = 64;// 分片个数，必须是2的幂
+    private static final int MAX_UID_STATS = 1024;// 按UID统计的默认上限
+    private static final long NONE = -1;
+
+    private final Stripe[] stripes;
+    private final Map<Long, TxState> txs;// 持有或等待锁的事务
+    private ScheduledExecutorService detector;// 后台死锁检测线程，为null时在add中即时检测
+    private volatile long waitTimeoutNanos;// 等待锁的超时时间，0表示一直等待
+
+    private final Map<Long, LockStats> uidStats = new ConcurrentHashMap<>();// 发生过等待的UID，最多maxUidStats个
+    private final ReentrantLock uidStatsLock = new ReentrantLock();// 加入新的UID和替换掉最冷的UID互斥
+    int maxUidStats = MAX_UID_STATS;
+    private final Map<Long, LockStats> tableStats = new ConcurrentHashMap<>();// 发生过等待的表
+
+    //一个UID上的锁，由所在分片的锁保护
+    private static class LockState {
+        Map<Long, Integer> holders = new HashMap<>(4);// xid -> 持有的模式
+        ArrayDeque<Waiter> queue = new ArrayDeque<>();
+    }
+
+    //一个等待中的加锁请求，由所在分片的锁保护
+    private static class Waiter {
+        final TxState tx;
+        final int mode;
+        final Condition cond;
+        boolean granted;
+        Exception err;
+
+        Waiter(TxState tx, int mode, Condition cond) {
+            this.tx = tx;
+            this.mode = mode;
+            this.cond = cond;
+        }
+    }
+
+    private static class TxState {
+        final long xid;
+        final Map<Long, Integer> held = new ConcurrentHashMap<>();// 已经获得的UID -> 模式
+        volatile long waitingFor = NONE;// 正在等待的UID
+        volatile Waiter waiter;
+        volatile long table = NONE;// 最近加锁的表，行上的等待计入这张表
+
+        TxState(long xid) {
+            this.xid = xid;
+        }
+    }
+
+    private static class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        final Map<Long, LockState> locks = new HashMap<>();
+    }
 
     public LockTable() {
-        x2u = new HashMap<>();
-        u2x = new HashMap<>();
-        wait = new HashMap<>();
-        waitLock = new HashMap<>();
-        waitU = new HashMap<>();
-        lock = new ReentrantLock();
+        stripes = new Stripe[STRIPE_COUNT];
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            stripes[i] = new Stripe();
+        }
+        txs = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * 使用后台线程检测死锁，每隔detectIntervalMs检查一次，add不再即时检测
+     */
+    public LockTable(long detectIntervalMs) {
+        this();
+        detector = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "deadlock-detector");
+            t.setDaemon(true);
+            return t;
+        });
+        detector.scheduleWithFixedDelay(this::detect, detectIntervalMs, detectIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    //设置等待锁的超时时间，timeoutMs为0时一直等待
+    public void setWaitTimeout(long timeoutMs) {
+        waitTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    }
+
+    private Stripe stripeFor(long uid) {
+        int h = (int)(uid ^ (uid >>> 32));
+        h ^= (h >>> 16);
+        return stripes[h & (STRIPE_COUNT - 1)];
+    }
+
+    //已经持有held时再请求mode，实际需要持有的模式。IX和S合并时没有SIX模式，直接升级为X
+    private static int combine(int held, int mode) {
+        if (held == mode) return held;
+        if ((held == IX && mode == S) || (held == S && mode == IX)) return X;
+        return Math.max(held, mode);
+    }
+
+    //表上的tableMode锁是否已经覆盖了表中行上的rowMode锁：X覆盖所有模式，S覆盖IS和S
+    private static boolean covers(int tableMode, int rowMode) {
+        return tableMode == X || (tableMode == S && rowMode <= S);
     }
 
-    //不需要等待则返回null,否则返回锁对象会造成死锁则抛出异常
-    public Lock add(long xid, long uid) throws Exception {
-        lock.lock();//锁定全局锁
+    //mode是否与除xid外的所有持有者相容
+    private static boolean compatible(LockState ls, long xid, int mode) {
+        for (Map.Entry<Long, Integer> h : ls.holders.entrySet()) {
+            if (h.getKey() != xid && !COMPATIBLE[h.getValue()][mode]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //为xid加上uid的排他锁
+    public void add(long xid, long uid) throws Exception {
+        add(xid, uid, X);
+    }
+
+    //为xid加上表table的mode锁，之后这个事务在行上的等待都计入这张表
+    public void addTable(long xid, long table, int mode) throws Exception {
+        TxState tx = txs.computeIfAbsent(xid, TxState::new);
+        tx.table = table;
+        acquire(tx, table, mode, table);
+    }
+
+    //为xid加上uid的mode锁，已经持有较弱的锁时升级。需要等待时阻塞到获得锁为止，会造成死锁或者超时则抛出异常
+    public void add(long xid, long uid, int mode) throws Exception {
+        TxState tx = txs.computeIfAbsent(xid, TxState::new);
+        acquire(tx, uid, mode, tx.table);
+    }
+
+    private void acquire(TxState tx, long uid, int mode, long table) throws Exception {
+        long xid = tx.xid;
+        //已经对所在的表加了足够强的S/X锁时，行上不再加锁，也不在held中登记
+        if (uid != table && table != NONE) {
+            Integer t = tx.held.get(table);
+            if (t != null && covers(t, mode)) {
+                return;
+            }
+        }
+        Integer cur = tx.held.get(uid);
+        if (cur != null && combine(cur, mode) == cur) {
+            return;
+        }
+        int want = cur == null ? mode : combine(cur, mode);
+        Stripe s = stripeFor(uid);
+        Waiter w;
+        s.lock.lock();
         try {
-            if (isInList(x2u, xid, uid)) {//检查x2u是否已经拥有这个资源
-                return null;//如果已经拥有，直接返回null
-            }
-            //检查UID资源是否已经被其他XID事务持有
-            if (!u2x.containsKey(uid)) {
-                x2u.put(uid, Collections.singletonList(xid));//如果没有被持有，将资源分配给当前事务
-                putIntoList(x2u, xid, uid);//将资源添加到事务的资源列表中
-                return null;//返回null
-            }
-            waitU.put(xid, uid);//如果资源已经被其他事务持有，将当前事务添加到等待列表中
-            putIntoList(wait, uid, xid);
-            if (hasDeadLock()) {//检查是否存在死锁
-                waitU.remove(xid);//如果存在死锁，从等待列表中移除当前事务
-                removeFromList(wait, uid, xid);
-                throw Error.DeadlockException;//抛出死锁异常
-            }
-            Lock l = new ReentrantLock();//如果不存在死锁，为当前事务创建一个新的锁，并锁定它
-            l.lock();
-            waitLock.put(xid, l);//将新的锁添加到等待锁列表中
-            return l;//返回新的锁
+            LockState ls = s.locks.computeIfAbsent(uid, k -> new LockState());
+            //升级不需要排队；新的请求只有在没有人排队时才能直接获得，避免饿死排队的事务
+            if ((cur != null || ls.queue.isEmpty()) && compatible(ls, xid, want)) {
+                ls.holders.put(xid, want);
+                tx.held.put(uid, want);
+                return;
+            }
+            w = new Waiter(tx, want, s.lock.newCondition());
+            if (cur != null) {
+                ls.queue.addFirst(w);
+            } else {
+                ls.queue.addLast(w);
+            }
+            tx.waiter = w;
+            tx.waitingFor = uid;
         } finally {
-            lock.unlock();//解锁全局锁
+            s.lock.unlock();
         }
-    }
 
-    public void remove(long xid) {
-        lock.lock();//获取全局锁
+        if (detector == null && findCycle(tx) != null) {
+            if (cancel(s, uid, w)) {
+                record(uid, table, LockStats::recordDeadlock);
+                throw Error.DeadlockException;
+            }
+            return;
+        }
+
+        long start = System.nanoTime();
+        long timeout = waitTimeoutNanos;
+        boolean interrupted = false;
+        s.lock.lock();
         try {
-            List<Long> l = x2u.get(xid);//从x2u映射中获取当前事务ID已经获得的资源的UID列表
-            if (l != null) {
-                while (l.size() > 0) {
-                    Long uid = l.remove(0);// 获取并移除列表中的第一个资源ID
-                    selectNewXID(uid);//从等待队列中选择一个新的事务ID来占用这个资源
+            while (!w.granted && w.err == null) {
+                if (timeout == 0) {
+                    w.cond.awaitUninterruptibly();
+                    continue;
+                }
+                long remaining = start + timeout - System.nanoTime();
+                if (remaining <= 0) {
+                    w.err = Error.LockWaitTimeoutException;
+                    break;
+                }
+                try {
+                    w.cond.awaitNanos(remaining);
+                } catch (InterruptedException e) {
+                    interrupted = true;
                 }
             }
-            waitU.remove(xid);//从waitU映射中移除当前事务ID
-            x2u.remove(xid);//从x2u映射中移除当前事务ID
-            waitLock.remove(xid);//从waitLock映射中移除当前事务ID
+            if (!w.granted) {
+                //超时，或者被后台检测选为牺牲者
+                //牺牲者的请求可能已经被其他线程的grant移出队列，UID上没有其他持有者时锁状态也随之删除
+                LockState ls = s.locks.get(uid);
+                if (ls != null) {
+                    ls.queue.remove(w);
+                    grant(s, uid, ls);
+                }
+                tx.waiter = null;
+                tx.waitingFor = NONE;
+            }
         } finally {
-            lock.unlock();//解锁全局锁
+            s.lock.unlock();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        long waited = System.nanoTime() - start;
+        record(uid, table, st -> st.recordWait(waited));
+        if (w.err == Error.LockWaitTimeoutException) {
+            record(uid, table, LockStats::recordTimeout);
+            throw w.err;
+        } else if (w.err != null) {
+            record(uid, table, LockStats::recordDeadlock);
+            throw w.err;
         }
     }
 
-    // 从等待队列中选择一个xid来占用uid
-    private void selectNewXID(long uid) {
-        x2u.remove(uid);//从u2x映射中移除当前资源ID
-        List<Long> l = wait.get(uid);//从wait映射中获取当前资源ID的等待队列
-        if (l == null) return;//如果等待队列为空，立即返回
-        //如果 l 不为 null，那么它就必须是非空的。如果它是一个非空的空列表，说明我的程序逻辑有错误，请立即报告这个错误 (如果断言开启的话)。
-        assert l.size() > 0;//断言等待队列不为空
+    private void record(long uid, long table, Consumer<LockStats> action) {
+        action.accept(uidStatsOf(uid));
+        if (table != NONE) {
+            action.accept(tableStats.computeIfAbsent(table, k -> new LockStats()));
+        }
+    }
 
-        //遍历等待队列
-        while (l.size() > 0) {
-            long xid = l.remove(0); // 获取并移除队列中的第一个事务ID
-            if (!waitLock.containsKey(xid)) {//检查事务ID是否在waitLock映射中
-                continue;//如果不在，跳过这个事务ID,继续下一个
-            } else {
-                u2x.put(uid, xid);//将事务ID和资源ID添加到u2x映射中
-                Lock lo = waitLock.remove(xid);//从waitLock映射中移除这个事务ID
-                waitU.remove(xid);//从waitU映射中移除这个事务ID
-                lo.unlock();//解锁这个事务ID的锁
-                break;//跳出循环
+    /**
+     * uid的统计，没有时加入。已经有maxUidStats个UID时先去掉等待时间最短的那个，
+     * 它的统计丢失；正在更新它的线程的这次记录也随之丢失，对找出热点行没有影响
+     */
+    private LockStats uidStatsOf(long uid) {
+        LockStats st = uidStats.get(uid);
+        if (st != null) {
+            return st;
+        }
+        uidStatsLock.lock();
+        try {
+            st = uidStats.get(uid);
+            if (st == null) {
+                if (uidStats.size() >= maxUidStats) {
+                    evictColdestUid();
+                }
+                st = new LockStats();
+                uidStats.put(uid, st);
+            }
+            return st;
+        } finally {
+            uidStatsLock.unlock();
+        }
+    }
+
+    //在uidStatsLock内调用。只在出现新的UID时遍历，与这次等待的时间相比开销很小
+    private void evictColdestUid() {
+        long coldest = NONE;
+        long min = Long.MAX_VALUE;
+        for (Map.Entry<Long, LockStats> e : uidStats.entrySet()) {
+            long nanos = e.getValue().waitNanos();
+            if (nanos < min) {
+                min = nanos;
+                coldest = e.getKey();
             }
         }
+        uidStats.remove(coldest);
+    }
 
-        //如果等待队列为空，从wait映射中移除当前资源ID
-        if (l.size() == 0) wait.remove(uid);
+    //等待最多的（最多maxUidStats个）UID的统计，包括表锁所在的UID
+    public Map<Long, LockStats> getUidStats() {
+        return uidStats;
     }
 
-    private Map<Long, Integer> xidStamp;
-    private int stamp;
+    //按表汇总的统计，包括表锁本身和表中行锁上的等待
+    public Map<Long, LockStats> getTableStats() {
+        return tableStats;
+    }
 
-    private boolean hasDeadLock() {
-        xidStamp = new HashMap<>();//创建一个新的xidStamp哈希映射
-        stamp = 1; // 将stamp设置为1
-        for (long xid : x2u.keySet()) {//遍历所有已经获得资源的事务ID
-            Integer s = xidStamp.get(xid);//获取xidStamp中对应事务ID的记录
-            if (s != null && s > 0) {//如果记录存在，并且值大于0
-                continue;//跳过这个事务ID,继续下一个
+    //撤销等待中的请求，如果在撤销前已经获得了锁，返回false
+    private boolean cancel(Stripe s, long uid, Waiter w) {
+        s.lock.lock();
+        try {
+            if (w.granted) {
+                return false;
             }
-            stamp++;
-            if (dfs(xid)) {//调用dfs方法进行深搜
-                return true;//如果dfs方法返回true,表示存在死锁，那么hasDeadLock方法也返回true
+            LockState ls = s.locks.get(uid);
+            ls.queue.remove(w);
+            grant(s, uid, ls);
+            w.tx.waiter = null;
+            w.tx.waitingFor = NONE;
+            return true;
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    //按顺序把锁分配给队列中可以获得的请求，遇到第一个不能获得的请求为止。调用者持有分片锁
+    private void grant(Stripe s, long uid, LockState ls) {
+        while (!ls.queue.isEmpty()) {
+            Waiter w = ls.queue.peekFirst();
+            if (w.err != null) {
+                ls.queue.pollFirst();
+                continue;
             }
+            if (!compatible(ls, w.tx.xid, w.mode)) {
+                break;
+            }
+            ls.queue.pollFirst();
+            ls.holders.put(w.tx.xid, w.mode);
+            w.tx.held.put(uid, w.mode);
+            w.tx.waiter = null;
+            w.tx.waitingFor = NONE;
+            w.granted = true;
+            w.cond.signal();
+        }
+        if (ls.holders.isEmpty() && ls.queue.isEmpty()) {
+            s.locks.remove(uid);
         }
-        return false;//如果所有的事务ID都被检查过，并且没有发现死锁，那么hasDeadLock方法返回false
     }
 
-    private boolean dfs(long xid) {
-        Integer stp = xidStamp.get(xid);//从xidStamp映射中获取当前事务ID的时间戳
-        if (stp != null && stp == stamp) {//如果时间戳存在并且等待全局时间戳
-            return true;//存在死锁，返回true
+    //tx正在等待的事务：不相容的持有者，以及排在它前面的不相容的请求
+    private List<Long> blockers(TxState tx) {
+        List<Long> res = new ArrayList<>();
+        Waiter w = tx.waiter;
+        long uid = tx.waitingFor;
+        if (w == null || uid == NONE) {
+            return res;
         }
-        if (stp != null && stp < stamp) {//如果时间戳存在并且小于全局时间戳
-            return false;// 这个事务ID已经被检查过，并且没有发现死锁，返回false
+        Stripe s = stripeFor(uid);
+        s.lock.lock();
+        try {
+            LockState ls = s.locks.get(uid);
+            if (ls == null || w.granted) {
+                return res;
+            }
+            for (Map.Entry<Long, Integer> h : ls.holders.entrySet()) {
+                if (h.getKey() != tx.xid && !COMPATIBLE[h.getValue()][w.mode]) {
+                    res.add(h.getKey());
+                }
+            }
+            for (Waiter o : ls.queue) {
+                if (o == w) break;
+                if (o.tx != tx && !COMPATIBLE[o.mode][w.mode]) {
+                    res.add(o.tx.xid);
+                }
+            }
+        } finally {
+            s.lock.unlock();
         }
-        xidStamp.put(xid, stamp);//将当前事务ID和全局时间戳添加到xidStamp映射中
+        return res;
+    }
 
-        Long uid = waitU.get(xid);//从waitU映射中获取当前事务Id正在等待的资源ID
-        if (uid == null) return false;// 如果资源ID不存在，表示当前事务ID不在等待任何资源，返回false
-        Long x = u2x.get(uid);// 从u2x映射中获取当前资源ID被哪个事务ID持有
-        assert x != null;// 断言这个事务ID存在
-        return dfs(x); // 递归调用dfs方法检查这个事务ID
+    //从start出发沿等待关系深度优先搜索，找到回到start的环时返回环上的事务，否则返回null
+    private List<Long> findCycle(TxState start) {
+        Set<Long> visited = new HashSet<>();
+        List<Long> path = new ArrayList<>();
+        return dfs(start, start.xid, visited, path) ? path : null;
     }
 
-    private void removeFromList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        List<Long> l = listMap.get(uid0);
-        if (l == null) return;
-        Iterator<Long> i = l.iterator();
-        while (i.hasNext()) {
-            long e = i.next();
-            if (e == uid1) {
-                i.remove();
-                break;
+    private boolean dfs(TxState tx, long target, Set<Long> visited, List<Long> path) {
+        path.add(tx.xid);
+        for (long next : blockers(tx)) {
+            if (next == target) {
+                return true;
+            }
+            if (!visited.add(next)) {
+                continue;
+            }
+            TxState o = txs.get(next);
+            if (o != null && dfs(o, target, visited, path)) {
+                return true;
             }
         }
-        if (l.size() == 0) {
-            listMap.remove(uid0);
+        path.remove(path.size() - 1);
+        return false;
+    }
+
+    //后台检测：对每个等待中的事务检查是否处在环中，选择环上事务号最大的事务作为牺牲者
+    private void detect() {
+        for (TxState tx : txs.values()) {
+            if (tx.waitingFor == NONE) {
+                continue;
+            }
+            List<Long> cycle = findCycle(tx);
+            if (cycle == null) {
+                continue;
+            }
+            long victim = tx.xid;
+            for (long xid : cycle) {
+                victim = Math.max(victim, xid);
+            }
+            abortWaiting(txs.get(victim));
         }
     }
 
-    private void putIntoList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        if (!listMap.containsKey(uid0)) {
-            listMap.put(uid0, new ArrayList<>());
+    private void abortWaiting(TxState tx) {
+        if (tx == null) return;
+        Waiter w = tx.waiter;
+        long uid = tx.waitingFor;
+        if (w == null || uid == NONE) return;
+        Stripe s = stripeFor(uid);
+        s.lock.lock();
+        try {
+            if (!w.granted && w.err == null) {
+                w.err = Error.DeadlockException;
+                w.cond.signal();
+            }
+        } finally {
+            s.lock.unlock();
         }
-        listMap.get(uid0).add(0, uid1);
     }
 
-    private boolean isInList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        List<Long> l = listMap.get(uid0);
-        if (l == null) return false;
-        Iterator<Long> i = l.iterator();
-        while (i.hasNext()) {
-            long e = i.next();
-            if (e == uid1) {
-                return true;
+    //释放xid持有的所有锁，唤醒可以获得锁的等待者
+    public void remove(long xid) {
+        TxState tx = txs.remove(xid);
+        if (tx == null) return;
+        abortWaiting(tx);
+        Iterator<Long> it = tx.held.keySet().iterator();
+        while (it.hasNext()) {
+            long uid = it.next();
+            Stripe s = stripeFor(uid);
+            s.lock.lock();
+            try {
+                LockState ls = s.locks.get(uid);
+                if (ls == null || ls.holders.remove(xid) == null) {
+                    continue;
+                }
+                grant(s, uid, ls);
+            } finally {
+                s.lock.unlock();
             }
         }
-        return false;
+    }
+
+    public void close() {
+        if (detector != null) {
+            detector.shutdownNow();
+        }
     }
 }
@@ -0,0 +1,31 @@
+package com.xiongsu.backend.vm;
+
+import java.util.Arrays;
+
+/**
+ * 可重复读事务的快照
+ * 事务号按开始顺序递增，快照只需要记录开始时还没有结束的事务：
+ *   low    快照建立时最早的活跃事务，比它小的事务在快照建立前都已结束
+ *   high   快照所属事务自己的事务号，不小于它的事务都在快照建立之后开始
+ *   active [low, high) 中快照建立时仍活跃的事务，升序排列
+ */
+public class Snapshot {
+    public long low;
+    public long high;
+    public long[] active;
+
+    public Snapshot(long high, long[] active) {
+        Arrays.sort(active);
+        this.high = high;
+        this.active = active;
+        this.low = active.length == 0 ? high : active[0];
+    }
+
+    //快照建立时xid是否是活跃事务
+    public boolean isActive(long xid) {
+        if (xid < low || xid >= high) {
+            return false;
+        }
+        return Arrays.binarySearch(active, xid) >= 0;
+    }
+}
@@ -1,18 +1,74 @@
 package com.xiongsu.backend.vm;
 
+import com.xiongsu.backend.common.CacheStats;
+import com.xiongsu.backend.common.Cursor;
+import com.xiongsu.backend.common.EvictionPolicy;
+import com.xiongsu.backend.common.SubArray;
 import com.xiongsu.backend.dm.DataManager;
 import com.xiongsu.backend.tm.TransactionManager;
 
+import java.util.Map;
+import java.util.function.Predicate;
+
 public interface VersionManager {
     byte[] read(long xid, long uid) throws Exception;
+    //同read，但当前事务在序号为statement及之后的语句中插入的版本不可见，语句不会读到自己写入的版本
+    byte[] read(long xid, long uid, int statement) throws Exception;
+    //开始事务中的一条新语句，返回它的序号，之后插入的版本都记录这个序号
+    int beginStatement(long xid);
+    //只检查版本对事务是否可见，不复制数据，供只需要索引中的值的查询使用
+    boolean isVisible(long xid, long uid) throws Exception;
     long insert(long xid, byte[] data) throws Exception;
+    //插入到owner的堆中，表的记录以表的uid为owner
+    long insert(long xid, long owner, byte[] data) throws Exception;
+    //按页面顺序返回owner的堆中数据满足filter的版本的uid，filter只看版本的数据，可见性由read判断
+    Cursor scan(long owner, Predicate<SubArray> filter);
     boolean delete(long xid, long uid) throws Exception;
+    //为表加锁，mode见LockTable，事务结束时释放
+    void lock(long xid, long tableUid, int mode) throws Exception;
+    Map<Long, LockStats> getRowLockStats();// 按UID统计的锁等待
+    Map<Long, LockStats> getTableLockStats();// 按表统计的锁等待
+
+    //xmax已提交且小于它的版本对所有事务都不可见
+    long vacuumHorizon();
+    //当前最新的活跃事务号，它结束之后，现在活跃的事务都已经结束
+    long newestActiveXid();
+    //不检查可见性，读取版本的数据，供vacuum删除索引项
+    byte[] readVersion(long uid) throws Exception;
+    //不检查可见性，版本的删除者已提交时返回它，插入者已回滚时返回SUPER_XID，否则返回-1，供启动时找出没有回收的垃圾
+    long garbageXmax(long uid) throws Exception;
+    //释放版本占用的空间，调用者需要保证它不再被任何事务和索引引用
+    void purge(long uid) throws Exception;
 
     long begin(int level);
     void commit(long xid) throws Exception;
     void abort(long xid);
+    void close();// 停止后台死锁检测
+    CacheStats getEntryCacheStats();// Entry缓存的命中、未命中和驱逐次数
 
     public static VersionManager newVersionManager(TransactionManager tm, DataManager dm) {
         return new VersionManagerImpl(tm, dm);
     }
+
+    //lockWaitTimeoutMs 为等待行锁和表锁的超时时间，0表示一直等待
+    public static VersionManager newVersionManager(TransactionManager tm, DataManager dm, long lockWaitTimeoutMs) {
+        return newVersionManager(tm, dm, lockWaitTimeoutMs, 0);
+    }
+
+    //deadlockDetectIntervalMs 大于0时由后台线程每隔这么久检测一次死锁，为0时在等待开始时即时检测，见LockTable
+    public static VersionManager newVersionManager(TransactionManager tm, DataManager dm, long lockWaitTimeoutMs, long deadlockDetectIntervalMs) {
+        return newVersionManager(tm, dm, lockWaitTimeoutMs, deadlockDetectIntervalMs, 0, EvictionPolicy.CLOCK);
+    }
+
+    /**
+     * maxEntries为Entry缓存的容量，entryPolicy为它的驱逐策略名
+     * maxEntries为0时不限制容量，Entry不再被引用就立即释放；大于0时没有被引用的Entry留在缓存中直到被驱逐，
+     * 期间一直引用着它的DataItem，容量应小于DataManager的DataItem缓存（如果有容量上限）
+     */
+    public static VersionManager newVersionManager(TransactionManager tm, DataManager dm, long lockWaitTimeoutMs,
+                                                   long deadlockDetectIntervalMs, int maxEntries, String entryPolicy) {
+        LockTable lt = deadlockDetectIntervalMs > 0 ? new LockTable(deadlockDetectIntervalMs) : new LockTable();
+        lt.setWaitTimeout(lockWaitTimeoutMs);
+        return new VersionManagerImpl(tm, dm, lt, maxEntries, entryPolicy);
+    }
 }
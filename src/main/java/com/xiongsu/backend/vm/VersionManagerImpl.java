@@ -1,6 +1,10 @@
 package com.xiongsu.backend.vm;
 
 import com.xiongsu.backend.common.AbstractCache;
+import com.xiongsu.backend.common.CacheStats;
+import com.xiongsu.backend.common.Cursor;
+import com.xiongsu.backend.common.EvictionPolicy;
+import com.xiongsu.backend.common.SubArray;
 import com.xiongsu.backend.dm.DataManager;
 import com.xiongsu.backend.dm.page.Page;
 import com.xiongsu.backend.tm.TransactionManager;
@@ -9,34 +13,45 @@ import com.xiongsu.backend.utils.Panic;
 import com.xiongsu.backend.utils.Parser;
 import com.xiongsu.common.Error;
 
-import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Predicate;
 
+//活动事务按事务号有序地保存在并发跳表中，查找不加锁，最早的活动事务就是第一个超级事务之后的键
+//新事务在分配事务号的同时登记，事务号更小的事务都已经登记过，之后从跳表中复制快照不需要加锁
 public class VersionManagerImpl extends AbstractCache<Entry> implements VersionManager {
 
     TransactionManager tm;
     DataManager dm;
-    Map<Long, Transaction> activeTransaction;
-    Lock lock;
+    ConcurrentSkipListMap<Long, Transaction> activeTransaction;
     LockTable lt;
 
     public VersionManagerImpl(TransactionManager tm, DataManager dm) {
-        super(0);
+        this(tm, dm, new LockTable());
+    }
+
+    VersionManagerImpl(TransactionManager tm, DataManager dm, LockTable lt) {
+        this(tm, dm, lt, 0, EvictionPolicy.CLOCK);
+    }
+
+    //maxEntries为0时Entry不再被引用就立即释放，见VersionManager.newVersionManager
+    VersionManagerImpl(TransactionManager tm, DataManager dm, LockTable lt, int maxEntries, String policy) {
+        super(maxEntries, policy);
         this.tm = tm;
         this.dm = dm;
-        this.activeTransaction = new HashMap<>();
-        activeTransaction.put(TransactionManagerImpl.SUPER_XID, Transaction.newTransaction(TransactionManagerImpl.SUPER_XID, 0, null));
-        this.lock = new ReentrantLock();
-        this.lt = new LockTable();
+        this.activeTransaction = new ConcurrentSkipListMap<>();
+        activeTransaction.put(TransactionManagerImpl.SUPER_XID, Transaction.newTransaction(TransactionManagerImpl.SUPER_XID, 0));
+        this.lt = lt;
     }
 
     @Override
     public byte[] read(long xid, long uid) throws Exception {
-        lock.lock();//获取锁
+        return read(xid, uid, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public byte[] read(long xid, long uid, int statement) throws Exception {
         Transaction t = activeTransaction.get(xid);// 从活动事务中获取事务对象
-        lock.unlock();//释放锁
 
         if (t.err != null) {//如果事务已经出错，抛出错误
             throw t.err;
@@ -54,6 +69,9 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         }
         try {
             //在事务隔离级别中讲解了该方法
+            if (entry.getXmin() == xid && entry.getStatement() >= statement) {// 当前语句自己插入的版本
+                return null;
+            }
             if (Visibility.isVisible(tm, t, entry)) {// 如果数据项队当前事务可见，那么返回数据项的数据
                 return entry.data();
             } else {// 如果数据项队当前事务不可见，那么返回null
@@ -64,26 +82,63 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         }
     }
 
+    @Override
+    public boolean isVisible(long xid, long uid) throws Exception {
+        Transaction t = activeTransaction.get(xid);
+
+        if (t.err != null) {
+            throw t.err;
+        }
+
+        Entry entry;
+        try {
+            entry = super.get(uid);
+        } catch (Exception e) {
+            if (e == Error.NullEntryException) {
+                return false;
+            }
+            throw e;
+        }
+        try {
+            return Visibility.isVisible(tm, t, entry);
+        } finally {
+            entry.release();
+        }
+    }
+
     @Override
     public long insert(long xid, byte[] data) throws Exception {
-        lock.lock();//获取锁
+        return insert(xid, 0, data);
+    }
+
+    @Override
+    public long insert(long xid, long owner, byte[] data) throws Exception {
         Transaction t = activeTransaction.get(xid);// 从活动事务中获取事务对象
-        lock.unlock();//释放锁
 
         if (t.err != null) { // 如果事务已经出错，那么抛出错误
             throw t.err;
         }
 
-        byte[] raw = Entry.wrapEntryRaw(xid, data);// 将事务ID和数据包装成一个新的数据项
-        return dm.insert(xid, raw);//调用数据管理器的insert方法，插入新的数据项，并返回数据项的唯一标识符
+        byte[] raw = Entry.wrapEntryRaw(xid, t.statement, data);// 将事务ID和数据包装成一个新的数据项
+        return dm.insert(xid, owner, raw);//调用数据管理器的insert方法，插入新的数据项，并返回数据项的唯一标识符
+    }
+
+    //只有事务自己的线程会读写statement
+    @Override
+    public int beginStatement(long xid) {
+        return ++activeTransaction.get(xid).statement;
+    }
+
+    //版本的数据在插入后不会改变，可以在扫描时直接检查，只有XMAX会被修改
+    @Override
+    public Cursor scan(long owner, Predicate<SubArray> filter) {
+        return dm.scan(owner, filter == null ? null : raw -> filter.test(Entry.rawData(raw)));
     }
 
     //删除一个数据项的方法
     @Override
     public boolean delete(long xid, long uid) throws Exception {
-        lock.lock();//获取锁
         Transaction t = activeTransaction.get(xid);// 从活动事务中获取事务对象
-        lock.unlock();// 释放锁
 
         // 如果事务已经出错，那么抛出错误
         if (t.err != null) {
@@ -107,24 +162,17 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             if (!com.xiongsu.backend.vm.Visibility.isVisible(tm, t, entry)) {
                 return false;
             }
-            Lock l = null;
             try {
-                // 尝试为数据项添加锁
-                l = lt.add(xid, uid);
+                // 为数据项加锁，被其他事务持有时阻塞到获得锁为止
+                lt.add(xid, uid);
             } catch (Exception e) {
-                // 如果出现并发更新的错误，那么中止事务，并抛出错误
-                t.err = Error.ConcurrentUpdateException;
+                // 等待超时或者出现死锁，那么中止事务，并抛出错误
+                t.err = e == Error.LockWaitTimeoutException ? e : Error.ConcurrentUpdateException;
                 internAbort(xid, true);
                 t.autoAborted = true;
                 throw t.err;
             }
 
-            // 如果成功获取到锁，那么锁定并立即解锁
-            if(l != null) {
-                l.lock();
-                l.unlock();
-            }
-
             // 如果数据项已经被当前事务删除，那么返回false
             if (entry.getXmax() == xid) {
                 return false;
@@ -148,24 +196,45 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         }
     }
 
+    //为表加锁，不能加锁时像delete一样自动中止事务
     @Override
-    public long begin(int level) {
-        lock.lock();//获取锁
+    public void lock(long xid, long tableUid, int mode) throws Exception {
+        Transaction t = activeTransaction.get(xid);
+        if (t.err != null) {
+            throw t.err;
+        }
         try {
-            long xid = tm.begin();//调用事务管理器的begin方法，开始一个新的事务，并获取事务的ID
-            Transaction t = Transaction.newTransaction(xid, level, activeTransaction); // 创建一个新的事务对象
-            activeTransaction.put(xid, t); //将新的事务对象添加到活动事务的映射中
-            return xid;//返回新的事务ID
-        } finally {
-            lock.unlock();//释放锁
+            lt.addTable(xid, tableUid, mode);
+        } catch (Exception e) {
+            t.err = e == Error.LockWaitTimeoutException ? e : Error.ConcurrentUpdateException;
+            internAbort(xid, true);
+            t.autoAborted = true;
+            throw t.err;
         }
     }
 
+    @Override
+    public Map<Long, LockStats> getRowLockStats() {
+        return lt.getUidStats();
+    }
+
+    @Override
+    public Map<Long, LockStats> getTableLockStats() {
+        return lt.getTableStats();
+    }
+
+    @Override
+    public long begin(int level) {
+        //调用事务管理器的begin方法开始一个新的事务，在下一个事务号分配出去之前把新的事务对象登记到活动事务中
+        long xid = tm.begin(x -> activeTransaction.put(x, Transaction.newTransaction(x, level)));
+        //比它早开始的事务都已经登记，已经移除的都已结束，复制快照不需要加锁
+        activeTransaction.get(xid).takeSnapshot(activeTransaction.headMap(xid));
+        return xid;//返回新的事务ID
+    }
+
     @Override
     public void commit(long xid) throws Exception {
-        lock.lock(); //获取锁
-        Transaction t = activeTransaction.get(xid); //从活动事务中获取事务对象
-        lock.unlock();// 释放锁
+        Transaction t = activeTransaction.get(xid);// 从活动事务中获取事务对象
 
         try {
             if (t.err != null) { //如果事务已经出错，那么抛出错误
@@ -177,12 +246,12 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             Panic.panic(n);
         }
 
-        lock.lock();//获取锁
+        // 先提交再从活动事务中移除：之后开始的事务快照中没有它，此时它必须已经是提交状态
+        tm.commit(xid);// 调用事务管理器的commit方法，进行事务的提交操作
+
         activeTransaction.remove(xid);// 从活动事务中移除这个事务
-        lock.unlock();// 释放锁
 
         lt.remove(xid);// 从锁表中移除这个事务的锁
-        tm.commit(xid);// 调用事务管理器的commit方法，进行事务的提交操作
     }
 
     @Override
@@ -192,21 +261,108 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         internAbort(xid, false);
     }
 
+    @Override
+    public void close() {
+        lt.close();
+        //释放缓存中留着的Entry对DataItem的引用
+        super.close();
+    }
+
+    @Override
+    public CacheStats getEntryCacheStats() {
+        return getStats();
+    }
+
     //内部的abort方法，处理事务的中止
     private void internAbort(long xid, boolean autoAborted) {
-        lock.lock();//获取锁
         Transaction t = activeTransaction.get(xid);//从活动事务中获取事务对象
         //如果这不是一个自动中止的事务，那么从活动事务中移除这个事务
         if (!autoAborted) {
             activeTransaction.remove(xid);
         }
-        lock.unlock();//释放锁
 
         if (t.autoAborted) return;//如果事务已经被自动中止，那么直接返回，不做任何处理
         lt.remove(xid);// 从锁表中移除这个事务的锁
         tm.abort(xid);// 调用事务管理器的abort方法，进行事务的中止操作
     }
 
+    /**
+     * 最早的活跃事务，没有活跃事务时返回Long.MAX_VALUE
+     * 比它小的事务都已经结束，但可重复读事务的快照中可能还有更早的事务
+     */
+    public long oldestActiveXid() {
+        Long xid = activeTransaction.higherKey(TransactionManagerImpl.SUPER_XID);
+        return xid == null ? Long.MAX_VALUE : xid;
+    }
+
+    /**
+     * 可重复读事务看不到快照中的事务和快照之后的事务做的删除，只有xmax小于它快照的low才能确定对它不可见；
+     * 读提交事务看得到所有已提交的删除。再与最早的活跃事务取较小值，因为正在开始的事务的快照不会早于它
+     */
+    @Override
+    public long vacuumHorizon() {
+        long horizon = oldestActiveXid();
+        for (Transaction t : activeTransaction.values()) {
+            if (t.snapshot != null) {
+                horizon = Math.min(horizon, t.snapshot.low);
+            }
+        }
+        return horizon;
+    }
+
+    @Override
+    public long newestActiveXid() {
+        return activeTransaction.lastKey();
+    }
+
+    @Override
+    public byte[] readVersion(long uid) throws Exception {
+        Entry entry;
+        try {
+            entry = super.get(uid);
+        } catch (Exception e) {
+            if (e == Error.NullEntryException) {
+                return null;
+            }
+            throw e;
+        }
+        try {
+            return entry.data();
+        } finally {
+            entry.release();
+        }
+    }
+
+    @Override
+    public long garbageXmax(long uid) throws Exception {
+        Entry entry;
+        try {
+            entry = super.get(uid);
+        } catch (Exception e) {
+            if (e == Error.NullEntryException) {
+                return -1;
+            }
+            throw e;
+        }
+        try {
+            if (tm.isAborted(entry.getXmin())) {
+                return TransactionManagerImpl.SUPER_XID;
+            }
+            long xmax = entry.getXmax();
+            //xmax为0或者删除者已回滚，版本仍然有效
+            return xmax != 0 && tm.isCommited(xmax) ? xmax : -1;
+        } finally {
+            entry.release();
+        }
+    }
+
+    @Override
+    public void purge(long uid) throws Exception {
+        //缓存中的Entry引用着DataItem，先移出缓存，DataItem才能被释放
+        discard(uid);
+        dm.free(uid);
+    }
+
     public void releaseEntry(Entry entry) {
         super.release(entry.getUid());
     }
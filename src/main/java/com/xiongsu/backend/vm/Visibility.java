@@ -2,8 +2,6 @@ package com.xiongsu.backend.vm;
 
 import com.xiongsu.backend.tm.TransactionManager;
 
-import java.lang.annotation.Repeatable;
-
 public class Visibility {
 
     public static boolean isVersionSkip(TransactionManager tm, Transaction t, Entry e) {
@@ -13,7 +11,7 @@ public class Visibility {
         } else {
             //如果事务的隔离级别为0,那么检查删除版本是否已提交，并且删除版本号大于事务的ID或者删除版本号在事务的快照中
             //如果满足上述条件，那么跳过该版本，返回true
-            return tm.isCommited(xmax) && (xmax > t.xid || t.isInSnapshot(xmax));
+            return (xmax > t.xid || t.isInSnapshot(xmax)) && tm.isCommited(xmax);
         }
     }
 
@@ -52,12 +50,13 @@ public class Visibility {
         long xmax = e.getXmax();//获取条目的删除版本号
         if (xmin == xid && xmax == 0) return true;// 如果条目的创建版本号等于事务的ID并且条目未被删除，则返回true
 
-        // 如果条目的创建版本已经提交，并且创建版本号小于事务的ID，并且创建版本号不在事务的快照中
-        if (tm.isCommited(xmin) && xmin < xid && !t.isInSnapshot(xmin)) {
+        // 如果条目的创建版本号小于事务的ID，并且创建版本号不在事务的快照中，并且创建版本已经提交
+        // 先用快照排除，只有快照之前结束的事务才需要查询状态
+        if (xmin < xid && !t.isInSnapshot(xmin) && tm.isCommited(xmin)) {
             if (xmax == 0) return true;// 如果条目未被删除，则返回true
             if (xmax != xid) {// 如果条目的删除版本号不等于事务的ID
                 // 如果条目的删除版本未提交，或者删除版本号大于事务的ID，或者删除版本号在事务的快照中，则返回true
-                if (!tm.isCommited(xmax) || xmax > xid || t.isInSnapshot(xmax)) {
+                if (xmax > xid || t.isInSnapshot(xmax) || !tm.isCommited(xmax)) {
                     return true;
                 }
             }
@@ -20,12 +20,16 @@ public class Error {
     // vm
     public static final Exception DeadlockException = new RuntimeException("Deadlock!");
     public static final Exception ConcurrentUpdateException = new RuntimeException("Concurrent update issue!");
+    public static final Exception LockWaitTimeoutException = new RuntimeException("Lock wait timeout!");
     public static final Exception NullEntryException = new RuntimeException("Null entry!");
 
+    // im
+    public static final Exception KeyTooLongException = new RuntimeException("Index key too long!");
+    public static final Exception BadIndexBootException = new RuntimeException("Bad index boot record!");
+
     // tbm
     public static final Exception InvalidFieldException = new RuntimeException("Invalid field type!");
     public static final Exception FieldNotFoundException = new RuntimeException("Field not found!");
-    public static final Exception FieldNotIndexedException = new RuntimeException("Field not indexed!");
     public static final Exception InvalidLogOpException = new RuntimeException("Invalid logic operation!");
     public static final Exception InvalidValuesException = new RuntimeException("Invalid values!");
     public static final Exception DuplicatedTableException = new RuntimeException("Duplicated table!");
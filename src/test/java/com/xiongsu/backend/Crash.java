@@ -0,0 +1,37 @@
+package com.xiongsu.backend;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * 在子进程中执行一段写入，结束后不做任何关闭直接halt，模拟进程崩溃
+ * Body 必须是带无参构造函数的 public static 类，数据目录之外的结果通过目录中的文件交给测试
+ */
+public class Crash {
+
+    public interface Body {
+        void run(File dir) throws Exception;
+    }
+
+    public static void run(Class<? extends Body> body, File dir) throws Exception {
+        Process p = new ProcessBuilder(System.getProperty("java.home") + "/bin/java",
+                "-cp", System.getProperty("java.class.path"),
+                Crash.class.getName(), body.getName(), dir.getPath())
+                .inheritIO().start();
+        assertTrue(p.waitFor(120, TimeUnit.SECONDS));
+        assertEquals(0, p.exitValue());
+    }
+
+    public static void main(String[] args) {
+        try {
+            Body body = (Body) Class.forName(args[0]).getDeclaredConstructor().newInstance();
+            body.run(new File(args[1]));
+        } catch (Throwable e) {
+            e.printStackTrace();
+            Runtime.getRuntime().halt(1);
+        }
+        Runtime.getRuntime().halt(0);
+    }
+}
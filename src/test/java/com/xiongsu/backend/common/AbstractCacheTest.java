@@ -0,0 +1,221 @@
+package com.xiongsu.backend.common;
+
+import com.xiongsu.common.Error;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class AbstractCacheTest {
+
+    //缓存的资源，记录自己是否已经被写回
+    static class Res {
+        final long key;
+        volatile boolean released;
+
+        Res(long key) {
+            this.key = key;
+        }
+    }
+
+    //记录每个key同时存在的资源个数，同一个key同时最多只能被加载一次
+    static class TestCache extends AbstractCache<Res> {
+        final ConcurrentHashMap<Long, AtomicInteger> live = new ConcurrentHashMap<>();
+        final AtomicInteger loads = new AtomicInteger();
+        final AtomicInteger total = new AtomicInteger();
+        final AtomicInteger maxTotal = new AtomicInteger();
+        volatile boolean doubleLoad;
+
+        TestCache(int maxResource, String policy) {
+            super(maxResource, policy);
+        }
+
+        @Override
+        protected Res getForCache(long key) throws Exception {
+            if (live.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet() > 1) {
+                doubleLoad = true;
+            }
+            loads.incrementAndGet();
+            maxTotal.accumulateAndGet(total.incrementAndGet(), Math::max);
+            return new Res(key);
+        }
+
+        @Override
+        protected void releaseForCache(Res obj) {
+            obj.released = true;
+            total.decrementAndGet();
+            live.get(obj.key).decrementAndGet();
+        }
+    }
+
+    @Test
+    public void testConcurrentGetAndEvict() throws Exception {
+        for (String policy : new String[]{EvictionPolicy.LRU, EvictionPolicy.CLOCK, EvictionPolicy.TWO_QUEUE, EvictionPolicy.TINY_LFU}) {
+            TestCache cache = new TestCache(64, policy);
+            int threads = 8;
+            AtomicReference<Throwable> error = new AtomicReference<>();
+            CountDownLatch done = new CountDownLatch(threads);
+            for (int t = 0; t < threads; t++) {
+                long seed = t;
+                new Thread(() -> {
+                    Random r = new Random(seed);
+                    try {
+                        for (int i = 0; i < 20000; i++) {
+                            long key = r.nextInt(4) == 0 ? r.nextInt(1000) : r.nextInt(32);
+                            Res res = cache.get(key);
+                            assertEquals(key, res.key);
+                            assertFalse(res.released);
+                            Thread.yield();
+                            assertFalse(res.released);
+                            cache.release(key);
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }).start();
+            }
+            done.await();
+            if (error.get() != null) {
+                throw new AssertionError(policy, error.get());
+            }
+            assertFalse(policy, cache.doubleLoad);
+            assertTrue(policy, cache.maxTotal.get() <= 64);
+            assertTrue(policy, cache.getStats().evictionCount() > 0);
+            //等待其他线程加载的获取也计为未命中
+            assertTrue(policy, cache.getStats().missCount() >= cache.loads.get());
+            assertEquals(policy, threads * 20000, cache.getStats().hitCount() + cache.getStats().missCount());
+            cache.close();
+            assertEquals(policy, 0, cache.total.get());
+        }
+    }
+
+    //同一个key的并发获取只加载一次，所有线程拿到同一个资源，等待加载的线程也计为未命中
+    @Test
+    public void testConcurrentLoadOfSameKey() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        AtomicInteger loads = new AtomicInteger();
+        AbstractCache<Res> cache = new AbstractCache<Res>(16) {
+            @Override
+            protected Res getForCache(long key) throws Exception {
+                loads.incrementAndGet();
+                loading.countDown();
+                finish.await();
+                return new Res(key);
+            }
+
+            @Override
+            protected void releaseForCache(Res obj) {
+            }
+        };
+        List<Thread> threads = new ArrayList<>();
+        Res[] got = new Res[8];
+        for (int i = 0; i < got.length; i++) {
+            int idx = i;
+            Thread t = new Thread(() -> {
+                try {
+                    got[idx] = cache.get(1);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        loading.await();
+        //所有线程都在等待加载完成
+        for (Thread t : threads) {
+            while (t.getState() != Thread.State.WAITING) {
+                Thread.sleep(1);
+            }
+        }
+        finish.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(1, loads.get());
+        for (Res r : got) {
+            assertSame(got[0], r);
+        }
+        assertEquals(got.length, cache.getStats().missCount());
+        assertEquals(0, cache.getStats().hitCount());
+    }
+
+    private static void touch(TestCache cache, long key) throws Exception {
+        cache.get(key);
+        cache.release(key);
+    }
+
+    /**
+     * 一次很长的冷扫描之后热点资源仍然都在缓存里。冷扫描的key都是16的倍数，集中在同一个分片，
+     * 热点资源分布在其他分片：驱逐顺序由整个缓存共用的策略决定，不会因为冷资源落在哪个分片而驱逐热点
+     */
+    @Test
+    public void testHotKeysSurviveColdScan() throws Exception {
+        for (String policy : new String[]{EvictionPolicy.TWO_QUEUE, EvictionPolicy.TINY_LFU}) {
+            TestCache cache = new TestCache(64, policy);
+            for (int round = 0; round < 8; round++) {
+                for (long k = 1; k < 16; k++) {
+                    touch(cache, k);
+                }
+            }
+            //2Q中热点资源先被挤到A1out，再次加载时进入Am
+            for (long k = 1; k <= 64; k++) {
+                touch(cache, k * 16);
+            }
+            for (long k = 1; k < 16; k++) {
+                touch(cache, k);
+            }
+            int loads = cache.loads.get();
+            for (long k = 100; k < 4000; k++) {
+                touch(cache, k * 16);
+            }
+            assertEquals(policy, loads + 3900, cache.loads.get());
+            for (long k = 1; k < 16; k++) {
+                assertEquals(policy + " key " + k, 1, cache.live.get(k).get());
+            }
+            cache.close();
+        }
+    }
+
+    //所有资源都被引用时无法驱逐
+    @Test
+    public void testFullWhenAllReferenced() throws Exception {
+        TestCache cache = new TestCache(16, EvictionPolicy.CLOCK);
+        for (int i = 0; i < 16; i++) {
+            cache.get(i);
+        }
+        try {
+            cache.get(100);
+            fail();
+        } catch (Exception e) {
+            assertSame(Error.CacheFullException, e);
+        }
+        cache.release(3);
+        assertEquals(100, cache.get(100).key);
+        assertEquals(1, cache.getStats().evictionCount());
+    }
+
+    //没有容量上限时引用计数归0立即写回
+    @Test
+    public void testUnboundedReleasesImmediately() throws Exception {
+        TestCache cache = new TestCache(0, EvictionPolicy.CLOCK);
+        Res a = cache.get(1);
+        Res b = cache.get(1);
+        assertSame(a, b);
+        cache.release(1);
+        assertFalse(a.released);
+        cache.release(1);
+        assertTrue(a.released);
+        assertNotSame(a, cache.get(1));
+    }
+}
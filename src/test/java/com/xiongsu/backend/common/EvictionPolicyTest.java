@@ -0,0 +1,132 @@
+package com.xiongsu.backend.common;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class EvictionPolicyTest {
+
+    //按策略模拟一个容量为capacity的缓存，返回访问结束后缓存中的key
+    static class Sim {
+        final EvictionPolicy policy;
+        final int capacity;
+        final Set<Long> resident = new HashSet<>();
+        final Set<Long> pinned = new HashSet<>();
+
+        Sim(String name, int capacity) {
+            this.policy = EvictionPolicy.newPolicy(name, capacity);
+            this.capacity = capacity;
+        }
+
+        void access(long key) {
+            if (resident.contains(key)) {
+                policy.onAccess(key);
+                return;
+            }
+            if (resident.size() >= capacity) {
+                assertTrue(policy.evict(k -> !pinned.contains(k) && resident.remove(k)));
+            }
+            resident.add(key);
+            policy.onInsert(key);
+        }
+    }
+
+    @Test
+    public void testLruEvictsLeastRecentlyUsed() {
+        Sim s = new Sim(EvictionPolicy.LRU, 3);
+        s.access(1);
+        s.access(2);
+        s.access(3);
+        s.access(1);
+        s.access(4);
+        assertEquals(Set.of(1L, 3L, 4L), s.resident);
+    }
+
+    @Test
+    public void testClockGivesReferencedKeysASecondChance() {
+        Sim s = new Sim(EvictionPolicy.CLOCK, 3);
+        s.access(1);
+        s.access(2);
+        s.access(3);
+        s.access(4);// 第一圈清除所有访问位，驱逐1
+        assertEquals(Set.of(2L, 3L, 4L), s.resident);
+        s.access(2);
+        s.access(5);// 2刚被访问，驱逐3
+        assertEquals(Set.of(2L, 4L, 5L), s.resident);
+    }
+
+    //被引用的资源不能驱逐，策略跳过它选择下一个
+    @Test
+    public void testPinnedKeysAreSkipped() {
+        for (String name : new String[]{EvictionPolicy.LRU, EvictionPolicy.CLOCK, EvictionPolicy.TWO_QUEUE, EvictionPolicy.TINY_LFU}) {
+            Sim s = new Sim(name, 4);
+            for (long k = 0; k < 4; k++) {
+                s.access(k);
+            }
+            s.pinned.addAll(Set.of(0L, 1L, 2L));
+            s.access(10);
+            assertEquals(name, Set.of(0L, 1L, 2L, 10L), s.resident);
+            s.pinned.add(10L);
+            assertFalse(name, s.policy.evict(k -> !s.pinned.contains(k) && s.resident.remove(k)));
+        }
+    }
+
+    //一次扫描不会挤掉已经在Am中的热点资源
+    @Test
+    public void testTwoQueueIsScanResistant() {
+        Sim s = new Sim(EvictionPolicy.TWO_QUEUE, 16);
+        for (long k = 100; k < 104; k++) {
+            s.access(k);
+        }
+        for (long k = 0; k < 16; k++) {
+            s.access(k);
+        }
+        //100~103已经被驱逐到A1out，再次加载时进入Am
+        for (long k = 100; k < 104; k++) {
+            s.access(k);
+        }
+        for (long k = 1000; k < 2000; k++) {
+            s.access(k);
+        }
+        for (long k = 100; k < 104; k++) {
+            assertTrue(s.resident.contains(k));
+        }
+    }
+
+    //访问频率高的资源不会被只访问一次的资源挤掉
+    @Test
+    public void testTinyLfuKeepsFrequentKeys() {
+        Sim s = new Sim(EvictionPolicy.TINY_LFU, 64);
+        for (int round = 0; round < 8; round++) {
+            for (long k = 0; k < 8; k++) {
+                s.access(k);
+            }
+        }
+        for (long k = 1000; k < 3000; k++) {
+            s.access(k);
+            if (k % 100 == 0) {
+                for (long h = 0; h < 8; h++) {
+                    s.access(h);
+                }
+            }
+        }
+        for (long k = 0; k < 8; k++) {
+            assertTrue("key " + k, s.resident.contains(k));
+        }
+    }
+
+    @Test
+    public void testNewPolicy() {
+        assertTrue(EvictionPolicy.newPolicy(null, 8) instanceof ClockEvictionPolicy);
+        assertTrue(EvictionPolicy.newPolicy(EvictionPolicy.TWO_QUEUE, 8) instanceof TwoQueueEvictionPolicy);
+        try {
+            EvictionPolicy.newPolicy("fifo", 8);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // 未知的策略名
+        }
+    }
+}
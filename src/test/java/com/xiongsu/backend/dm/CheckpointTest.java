@@ -0,0 +1,130 @@
+package com.xiongsu.backend.dm;
+
+import com.xiongsu.backend.Crash;
+import com.xiongsu.backend.common.EvictionPolicy;
+import com.xiongsu.backend.common.SubArray;
+import com.xiongsu.backend.dm.dataltem.DataItem;
+import com.xiongsu.backend.tm.TransactionManager;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class CheckpointTest {
+
+    private static final long MEM = 1 << 20;
+    private static final int COUNT = 500;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static byte[] value(String prefix, int i) {
+        return (prefix + "-" + "x".repeat(100) + i).getBytes();
+    }
+
+    private static byte[] read(DataManager dm, long uid) throws Exception {
+        DataItem di = dm.read(uid);
+        if (di == null) {
+            return null;
+        }
+        try {
+            SubArray sa = di.data();
+            byte[] b = new byte[sa.end - sa.start];
+            sa.raw.get(sa.start, b, 0, b.length);
+            return b;
+        } finally {
+            di.release();
+        }
+    }
+
+    //检查点记录在第一页中：redo为当时的日志末尾，undo为仍活跃事务的第一条日志
+    @Test
+    public void testCheckpointPositions() throws Exception {
+        String path = new File(tmp.getRoot(), "db").getPath();
+        TransactionManager tm = TransactionManager.create(path);
+        DataManagerImpl dm = (DataManagerImpl) DataManager.create(path, MEM, tm, EvictionPolicy.CLOCK, false);
+        assertEquals(0, dm.loadCheckpoint().redoPosition);
+
+        long xid = tm.begin();
+        dm.insert(xid, value("a", 0));
+        tm.commit(xid);
+        dm.checkpoint();
+        Checkpoint first = dm.loadCheckpoint();
+        assertTrue(first.redoPosition > 0);
+        assertEquals(first.redoPosition, first.undoPosition);
+        assertEquals(dm.pc.getPageNumber(), first.pageNumber);
+
+        long active = tm.begin();
+        dm.insert(active, value("b", 0));
+        xid = tm.begin();
+        dm.insert(xid, value("c", 0));
+        tm.commit(xid);
+        dm.checkpoint();
+        Checkpoint second = dm.loadCheckpoint();
+        assertTrue(second.redoPosition > first.redoPosition);
+        //活跃事务的日志在第一个检查点之后，撤销起点停在它的第一条日志上
+        assertTrue(second.undoPosition >= first.redoPosition);
+        assertTrue(second.undoPosition < second.redoPosition);
+
+        tm.commit(active);
+        dm.checkpoint();
+        Checkpoint third = dm.loadCheckpoint();
+        assertEquals(third.redoPosition, third.undoPosition);
+        dm.close();
+        tm.close();
+    }
+
+    /**
+     * 子进程在检查点前后各写入一批数据，检查点时还有一个未提交的事务，然后崩溃。
+     * 重新打开时从检查点恢复：两批数据都在，未提交的插入被撤销
+     */
+    @Test
+    public void testRecoverFromCheckpoint() throws Exception {
+        File dir = tmp.newFolder();
+        Crash.run(WriteAroundCheckpoint.class, dir);
+        String[] out = Files.readString(new File(dir, "out").toPath()).trim().split(" ");
+        long redo = Long.parseLong(out[0]);
+        long uncommitted = Long.parseLong(out[1]);
+
+        String path = new File(dir, "db").getPath();
+        TransactionManager tm = TransactionManager.open(path);
+        DataManagerImpl dm = (DataManagerImpl) DataManager.open(path, MEM, tm, EvictionPolicy.CLOCK, false);
+        assertEquals(redo, dm.loadCheckpoint().redoPosition);
+        for (int i = 0; i < COUNT; i++) {
+            assertArrayEquals(value("before", i), read(dm, Long.parseLong(out[2 + i])));
+            assertArrayEquals(value("after", i), read(dm, Long.parseLong(out[2 + COUNT + i])));
+        }
+        assertNull(read(dm, uncommitted));
+        dm.close();
+        tm.close();
+    }
+
+    public static class WriteAroundCheckpoint implements Crash.Body {
+        @Override
+        public void run(File dir) throws Exception {
+            String path = new File(dir, "db").getPath();
+            TransactionManager tm = TransactionManager.create(path);
+            DataManagerImpl dm = (DataManagerImpl) DataManager.create(path, MEM, tm, EvictionPolicy.CLOCK, false);
+            StringBuilder uids = new StringBuilder();
+            long xid = tm.begin();
+            for (int i = 0; i < COUNT; i++) {
+                uids.append(dm.insert(xid, value("before", i))).append(' ');
+            }
+            tm.commit(xid);
+            long active = tm.begin();
+            long uncommitted = dm.insert(active, value("active", 0));
+            dm.checkpoint();
+            xid = tm.begin();
+            for (int i = 0; i < COUNT; i++) {
+                uids.append(dm.insert(xid, value("after", i))).append(' ');
+            }
+            tm.commit(xid);
+            Files.writeString(new File(dir, "out").toPath(),
+                    dm.loadCheckpoint().redoPosition + " " + uncommitted + " " + uids);
+        }
+    }
+}
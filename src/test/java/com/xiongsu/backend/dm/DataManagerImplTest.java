@@ -0,0 +1,212 @@
+package com.xiongsu.backend.dm;
+
+import com.xiongsu.backend.Crash;
+import com.xiongsu.backend.common.CacheStats;
+import com.xiongsu.backend.common.EvictionPolicy;
+import com.xiongsu.backend.common.SubArray;
+import com.xiongsu.backend.dm.dataltem.DataItem;
+import com.xiongsu.backend.tm.TransactionManager;
+import com.xiongsu.backend.tm.TransactionManagerImpl;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.*;
+
+public class DataManagerImplTest {
+
+    private static final long MEM = 1 << 22;
+    private static final int COUNT = 3000;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static byte[] value(int i, int len) {
+        byte[] b = new byte[len];
+        Arrays.fill(b, (byte) (i % 100));
+        b[0] = (byte) (len & 0x7f);
+        return b;
+    }
+
+    private static byte[] read(DataManager dm, long uid) throws Exception {
+        DataItem di = dm.read(uid);
+        assertNotNull(di);
+        try {
+            SubArray sa = di.data();
+            byte[] b = new byte[sa.end - sa.start];
+            sa.raw.get(sa.start, b, 0, b.length);
+            return b;
+        } finally {
+            di.release();
+        }
+    }
+
+    /**
+     * 释放一半数据项后再插入同样多的长度随机的数据项：新数据项放进已释放的槽位和空洞，
+     * 不需要新的页面，所有数据项内容正确，崩溃恢复后仍然正确
+     */
+    @Test
+    public void testFreedSpaceIsReused() throws Exception {
+        File dir = tmp.newFolder();
+        Crash.run(FreeAndReinsert.class, dir);
+        List<String> lines = Files.readAllLines(new File(dir, "uids").toPath());
+        String[] pages = lines.remove(0).split(" ");
+        assertEquals(pages[0], pages[1]);
+        assertEquals(COUNT, lines.size());
+
+        String path = new File(dir, "db").getPath();
+        TransactionManager tm = TransactionManager.open(path);
+        DataManager dm = DataManager.open(path, MEM, tm);
+        for (int i = 0; i < COUNT; i++) {
+            String[] f = lines.get(i).split(" ");
+            assertArrayEquals(value(i, Integer.parseInt(f[1])), read(dm, Long.parseLong(f[0])));
+        }
+        dm.close();
+        tm.close();
+    }
+
+    /**
+     * 三个堆交错插入，每个堆的扫描只返回自己的数据项，按页号顺序，跳过已释放的，filter作用在数据上；
+     * 数据比缓存大，扫描时预读的页面被驱逐也不影响结果。重新打开后从页面的Owner恢复各个堆
+     */
+    @Test
+    public void testHeapScanByOwner() throws Exception {
+        String path = new File(tmp.newFolder(), "db").getPath();
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, 1 << 20, tm);
+        long[] owners = {0, 11, 22};
+        List<List<Long>> uids = new ArrayList<>();
+        for (int o = 0; o < owners.length; o++) {
+            uids.add(new ArrayList<>());
+        }
+        for (int i = 0; i < COUNT * 2; i++) {
+            int o = i % owners.length;
+            uids.get(o).add(dm.insert(TransactionManagerImpl.SUPER_XID, owners[o], value(i, 200)));
+        }
+        for (int i = 0; i < uids.get(1).size(); i += 5) {
+            dm.free(uids.get(1).get(i));
+        }
+
+        for (int round = 0; round < 2; round++) {
+            for (int o = 1; o < owners.length; o++) {
+                List<Long> expected = new ArrayList<>();
+                for (int i = 0; i < uids.get(o).size(); i++) {
+                    if (o != 1 || i % 5 != 0) {
+                        expected.add(uids.get(o).get(i));
+                    }
+                }
+                assertEquals(expected, scan(dm, owners[o], null));
+                // value的第二个字节是i % 100
+                List<Long> filtered = scan(dm, owners[o], data -> data.raw.get(data.start + 1) == 7);
+                assertFalse(filtered.isEmpty());
+                for (long uid : filtered) {
+                    assertTrue(expected.contains(uid));
+                    assertEquals(7, read(dm, uid)[1]);
+                }
+            }
+            for (long uid : scan(dm, owners[0], null)) {
+                assertFalse(uids.get(1).contains(uid) || uids.get(2).contains(uid));
+            }
+            assertTrue(scan(dm, 33, null).isEmpty());
+            dm.close();
+            dm = DataManager.open(path, 1 << 20, tm);
+        }
+        dm.close();
+        tm.close();
+    }
+
+    private static List<Long> scan(DataManager dm, long owner, Predicate<SubArray> filter) throws Exception {
+        List<Long> uids = new ArrayList<>();
+        HeapCursor cursor = dm.scan(owner, filter);
+        while (cursor.hasNext()) {
+            uids.add(cursor.next());
+        }
+        return uids;
+    }
+
+    /**
+     * 有容量上限的DataItem缓存：没有被引用的DataItem留在缓存中，再次读取命中，超过容量时被驱逐；
+     * 释放后槽位被新的数据项复用，读到的是新的内容
+     */
+    @Test
+    public void testBoundedDataItemCache() throws Exception {
+        String path = new File(tmp.getRoot(), "db").getPath();
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, MEM, tm, EvictionPolicy.CLOCK, false, 64, EvictionPolicy.LRU);
+        int count = 500;
+        long[] uids = new long[count];
+        for (int i = 0; i < count; i++) {
+            uids[i] = dm.insert(TransactionManagerImpl.SUPER_XID, value(i, 50));
+        }
+        for (int i = 0; i < count; i++) {
+            assertArrayEquals(value(i, 50), read(dm, uids[i]));
+            assertArrayEquals(value(i, 50), read(dm, uids[i]));
+        }
+        CacheStats stats = dm.getDataItemCacheStats();
+        assertEquals(count, stats.hitCount());
+        assertEquals(count, stats.missCount());
+        assertTrue(stats.evictionCount() >= count - 64);
+
+        HashSet<Long> freed = new HashSet<>();
+        for (int i = count - 20; i < count; i++) {
+            freed.add(uids[i]);
+            dm.free(uids[i]);
+        }
+        boolean reused = false;
+        for (int i = count - 20; i < count; i++) {
+            uids[i] = dm.insert(TransactionManagerImpl.SUPER_XID, value(i + 1, 50));
+            reused |= freed.contains(uids[i]);
+        }
+        assertTrue(reused);
+        for (int i = count - 20; i < count; i++) {
+            assertArrayEquals(value(i + 1, 50), read(dm, uids[i]));
+        }
+        dm.close();
+        tm.close();
+    }
+
+    public static class FreeAndReinsert implements Crash.Body {
+        @Override
+        public void run(File dir) throws Exception {
+            String path = new File(dir, "db").getPath();
+            TransactionManager tm = TransactionManager.create(path);
+            DataManagerImpl dm = (DataManagerImpl) DataManager.create(path, MEM, tm);
+            Random r = new Random(7);
+            long[] uids = new long[COUNT];
+            int[] lens = new int[COUNT];
+            for (int i = 0; i < COUNT; i++) {
+                lens[i] = 20 + r.nextInt(200);
+                uids[i] = dm.insert(TransactionManagerImpl.SUPER_XID, value(i, lens[i]));
+            }
+            int before = dm.pc.getPageNumber();
+            for (int i = 0; i < COUNT; i += 2) {
+                dm.free(uids[i]);
+            }
+            for (int i = 0; i < COUNT; i += 2) {
+                lens[i] = 20 + r.nextInt(200);
+                uids[i] = dm.insert(TransactionManagerImpl.SUPER_XID, value(i, lens[i]));
+            }
+            HashSet<Long> distinct = new HashSet<>();
+            for (int i = 0; i < COUNT; i++) {
+                assertArrayEquals(value(i, lens[i]), read(dm, uids[i]));
+                distinct.add(uids[i]);
+            }
+            assertEquals(COUNT, distinct.size());
+            StringBuilder sb = new StringBuilder();
+            sb.append(before).append(' ').append(dm.pc.getPageNumber()).append('\n');
+            for (int i = 0; i < COUNT; i++) {
+                sb.append(uids[i]).append(' ').append(lens[i]).append('\n');
+            }
+            Files.writeString(new File(dir, "uids").toPath(), sb.toString());
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.xiongsu.backend.dm;
+
+import com.xiongsu.backend.Crash;
+import com.xiongsu.backend.common.EvictionPolicy;
+import com.xiongsu.backend.common.SubArray;
+import com.xiongsu.backend.dm.dataltem.DataItem;
+import com.xiongsu.backend.dm.logger.LoggerImpl;
+import com.xiongsu.backend.tm.TransactionManager;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RecoverTest {
+
+    private static final long MEM = 1 << 20;// 128页，写入过程中会发生驱逐
+    private static final int THREADS = 8;
+    private static final int TXNS = 40;
+    private static final int PER_TXN = 10;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    //数据项内容：前8字节是版本号，后面由seed决定
+    private static byte[] value(long seed, long version) {
+        ByteBuffer buf = ByteBuffer.allocate(8 + 120);
+        buf.putLong(version);
+        Random r = new Random(seed);
+        while (buf.hasRemaining()) {
+            buf.put((byte) ('a' + r.nextInt(26)));
+        }
+        return buf.array();
+    }
+
+    private static void update(DataItem di, long xid, long version) {
+        di.before();
+        SubArray sa = di.data();
+        sa.raw.putLong(sa.start, version);
+        di.after(xid);
+    }
+
+    private static byte[] read(DataManager dm, long uid) throws Exception {
+        DataItem di = dm.read(uid);
+        if (di == null) {
+            return null;
+        }
+        try {
+            SubArray sa = di.data();
+            byte[] b = new byte[sa.end - sa.start];
+            sa.raw.get(sa.start, b, 0, b.length);
+            return b;
+        } finally {
+            di.release();
+        }
+    }
+
+    /**
+     * 多个线程并发写入后崩溃，最后一条日志只写了一半：
+     * 已提交的插入和更新全部重做，崩溃时活跃事务的插入被撤销、更新恢复为提交过的版本
+     */
+    @Test
+    public void testRecoverConcurrentWriters() throws Exception {
+        File dir = tmp.newFolder();
+        Crash.run(ConcurrentWriters.class, dir);
+        String path = new File(dir, "db").getPath();
+        //写入的日志不到一个段
+        try (RandomAccessFile f = new RandomAccessFile(path + LoggerImpl.LOG_SUFFIX + ".00000000", "rw")) {
+            f.setLength(f.length() - 5);
+        }
+
+        TransactionManager tm = TransactionManager.open(path);
+        List<long[]> reports = new ArrayList<>();// [logs, bytes, done]
+        DataManager dm = DataManager.open(path, MEM, tm, EvictionPolicy.CLOCK, false,
+                (logs, bytes, elapsedMs, done) -> reports.add(new long[]{logs, bytes, done ? 1 : 0}));
+        //最后一次报告在恢复完成时，包含扫描过的全部日志
+        assertFalse(reports.isEmpty());
+        long[] last = reports.get(reports.size() - 1);
+        assertEquals(1, last[2]);
+        assertTrue(last[0] > THREADS * TXNS * PER_TXN);
+        assertTrue(last[1] > last[0]);
+        int committed = 0;
+        for (String line : Files.readAllLines(new File(dir, "committed").toPath())) {
+            String[] f = line.split(" ");
+            long uid = Long.parseLong(f[0]);
+            assertArrayEquals(line, value(Long.parseLong(f[1]), Long.parseLong(f[2])), read(dm, uid));
+            committed++;
+        }
+        assertEquals(THREADS * TXNS * PER_TXN, committed);
+        for (String line : Files.readAllLines(new File(dir, "aborted").toPath())) {
+            assertNull(line, read(dm, Long.parseLong(line)));
+        }
+
+        //恢复后可以继续写入
+        long xid = tm.begin();
+        long uid = dm.insert(xid, value(-1, 0));
+        tm.commit(xid);
+        assertArrayEquals(value(-1, 0), read(dm, uid));
+        dm.close();
+        tm.close();
+    }
+
+    public static class ConcurrentWriters implements Crash.Body {
+        @Override
+        public void run(File dir) throws Exception {
+            String path = new File(dir, "db").getPath();
+            TransactionManager tm = TransactionManager.create(path);
+            DataManager dm = DataManager.create(path, MEM, tm, EvictionPolicy.CLOCK, false);
+            StringBuffer committed = new StringBuffer();
+            StringBuffer aborted = new StringBuffer();
+            List<Thread> list = new ArrayList<>();
+            Throwable[] error = new Throwable[1];
+            for (int t = 0; t < THREADS; t++) {
+                int id = t;
+                Thread th = new Thread(() -> {
+                    try {
+                        List<Long> uids = new ArrayList<>();
+                        List<Long> seeds = new ArrayList<>();
+                        long[] versions = new long[TXNS * PER_TXN];
+                        for (int n = 0; n < TXNS; n++) {
+                            long xid = tm.begin();
+                            for (int i = 0; i < PER_TXN; i++) {
+                                long seed = (long) id << 32 | (n * PER_TXN + i);
+                                uids.add(dm.insert(xid, value(seed, 0)));
+                                seeds.add(seed);
+                            }
+                            //每个事务顺带更新一条之前提交的数据
+                            int k = (n * 7) % uids.size();
+                            DataItem di = dm.read(uids.get(k));
+                            update(di, xid, ++versions[k]);
+                            di.release();
+                            tm.commit(xid);
+                        }
+                        //崩溃时仍活跃的事务：插入新数据并修改已提交的数据
+                        long active = tm.begin();
+                        for (int i = 0; i < PER_TXN; i++) {
+                            aborted.append(dm.insert(active, value(-2, i)) + "\n");
+                        }
+                        for (int k = 0; k < uids.size(); k += 13) {
+                            DataItem di = dm.read(uids.get(k));
+                            update(di, active, 9999);
+                            di.release();
+                        }
+                        //各线程的行拼好后一次追加，避免与其他线程交错
+                        StringBuilder lines = new StringBuilder();
+                        for (int k = 0; k < uids.size(); k++) {
+                            lines.append(uids.get(k)).append(' ').append(seeds.get(k))
+                                    .append(' ').append(versions[k]).append('\n');
+                        }
+                        committed.append(lines);
+                    } catch (Throwable e) {
+                        error[0] = e;
+                    }
+                });
+                list.add(th);
+                th.start();
+            }
+            for (Thread th : list) {
+                th.join();
+            }
+            if (error[0] != null) {
+                throw new Exception(error[0]);
+            }
+            //最后一条日志属于一个没有提交的事务，测试会截掉它的一部分
+            dm.insert(tm.begin(), value(-3, 0));
+            Files.writeString(new File(dir, "committed").toPath(), committed.toString());
+            Files.writeString(new File(dir, "aborted").toPath(), aborted.toString());
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.xiongsu.backend.dm.logger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class LoggerImplTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private String path() {
+        return new File(tmp.getRoot(), "db").getPath();
+    }
+
+    private static byte[] record(int thread, int i) {
+        return ("t" + thread + "-r" + i + "-" + "x".repeat(i % 50)).getBytes();
+    }
+
+    /**
+     * 多个线程同时追加日志，每条日志得到不同的位置，log返回时日志已经写入文件；
+     * 重新打开后按位置顺序读出全部日志，同一线程的日志保持追加顺序
+     */
+    @Test
+    public void testConcurrentAppends() throws Exception {
+        Logger lg = Logger.create(path());
+        int threads = 16;
+        int perThread = 300;
+        Map<Long, byte[]> written = new ConcurrentHashMap<>();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> list = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            Thread th = new Thread(() -> {
+                try {
+                    long last = -1;
+                    for (int i = 0; i < perThread; i++) {
+                        byte[] data = record(id, i);
+                        long pos = lg.log(data);
+                        assertTrue(pos > last);
+                        assertTrue(lg.end() > pos);
+                        assertNull(written.put(pos, data));
+                        last = pos;
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            });
+            list.add(th);
+            th.start();
+        }
+        for (Thread th : list) {
+            th.join();
+        }
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+        assertEquals(threads * perThread, written.size());
+
+        //不关闭，直接用另一个实例读取文件中的日志
+        Logger reader = Logger.open(path());
+        Map<Long, byte[]> read = new HashMap<>();
+        while (true) {
+            long pos = reader.position();
+            byte[] data = reader.next();
+            if (data == null) break;
+            read.put(pos, data);
+        }
+        assertEquals(written.size(), read.size());
+        for (Map.Entry<Long, byte[]> e : written.entrySet()) {
+            assertArrayEquals(e.getValue(), read.get(e.getKey()));
+        }
+        assertEquals(lg.end(), reader.end());
+        reader.close();
+        lg.close();
+    }
+
+    //rewind到某条日志的位置后从它开始读取
+    @Test
+    public void testRewindToPosition() throws Exception {
+        Logger lg = Logger.create(path());
+        long[] pos = new long[10];
+        for (int i = 0; i < pos.length; i++) {
+            pos[i] = lg.log(record(0, i));
+        }
+        lg.rewind(pos[6]);
+        for (int i = 6; i < pos.length; i++) {
+            assertEquals(pos[i], lg.position());
+            assertArrayEquals(record(0, i), lg.next());
+        }
+        assertNull(lg.next());
+        assertEquals(lg.end(), lg.position());
+        lg.close();
+    }
+
+    private static List<byte[]> readAll(Logger lg) {
+        List<byte[]> logs = new ArrayList<>();
+        lg.rewind();
+        byte[] data;
+        while ((data = lg.next()) != null) {
+            logs.add(data);
+        }
+        return logs;
+    }
+
+    /**
+     * 最后一条日志只写了一部分时崩溃：打开时截掉这条残缺的日志，之前的日志完整保留，
+     * 新的日志从截断处继续写
+     */
+    @Test
+    public void testReplayAfterTornRecord() throws Exception {
+        Logger lg = Logger.create(path());
+        for (int i = 0; i < 20; i++) {
+            lg.log(record(0, i));
+        }
+        long tornPos = lg.log(record(0, 20));
+        lg.close();
+        File seg = new File(LoggerImpl.segmentPath(path(), 0));
+        try (RandomAccessFile f = new RandomAccessFile(seg, "rw")) {
+            f.setLength(f.length() - 3);
+        }
+
+        lg = Logger.open(path());
+        assertEquals(tornPos, lg.end());
+        assertEquals(tornPos, seg.length());
+        List<byte[]> logs = readAll(lg);
+        assertEquals(20, logs.size());
+        for (int i = 0; i < 20; i++) {
+            assertArrayEquals(record(0, i), logs.get(i));
+        }
+        assertEquals(tornPos, lg.log(record(1, 0)));
+        lg.close();
+
+        lg = Logger.open(path());
+        logs = readAll(lg);
+        assertEquals(21, logs.size());
+        assertArrayEquals(record(1, 0), logs.get(20));
+        lg.close();
+    }
+
+    //长度完整但内容损坏的日志校验和不匹配，它和之后的日志都被当作bad tail丢弃
+    @Test
+    public void testCorruptRecordTruncatesTail() throws Exception {
+        Logger lg = Logger.create(path());
+        long[] pos = new long[10];
+        for (int i = 0; i < pos.length; i++) {
+            pos[i] = lg.log(record(0, i));
+        }
+        lg.close();
+        try (RandomAccessFile f = new RandomAccessFile(LoggerImpl.segmentPath(path(), 0), "rw")) {
+            long at = pos[7] + 8 + 1;// 第8条日志Data中的一个字节
+            f.seek(at);
+            int b = f.read();
+            f.seek(at);
+            f.write(b ^ 0xff);
+        }
+        lg = Logger.open(path());
+        assertEquals(pos[7], lg.end());
+        assertEquals(7, readAll(lg).size());
+        lg.close();
+    }
+
+    /**
+     * 日志按段存放，当前段放不下时写到下一个段的开头，位置跨段递增；
+     * removeBefore删除给定位置所在段之前的段，之后从剩下的第一个段读起
+     */
+    @Test
+    public void testSegmentsRollOverAndRemove() throws Exception {
+        Logger lg = Logger.create(path());
+        byte[] big = new byte[1 << 20];
+        List<Long> pos = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            big[0] = (byte) i;
+            pos.add(lg.log(big));
+        }
+        List<Long> segs = LoggerImpl.listSegments(path());
+        assertEquals(List.of(0L, 1L, 2L), segs);
+        for (int i = 1; i < pos.size(); i++) {
+            long prevSeg = pos.get(i - 1) / LoggerImpl.SEGMENT_SIZE;
+            long seg = pos.get(i) / LoggerImpl.SEGMENT_SIZE;
+            if (seg != prevSeg) {
+                assertEquals(prevSeg + 1, seg);
+            }
+            //一条日志不跨段
+            assertEquals(seg, (pos.get(i) + big.length + 7) / LoggerImpl.SEGMENT_SIZE);
+        }
+        lg.close();
+
+        lg = Logger.open(path());
+        List<byte[]> logs = readAll(lg);
+        assertEquals(40, logs.size());
+        for (int i = 0; i < logs.size(); i++) {
+            assertEquals((byte) i, logs.get(i)[0]);
+        }
+        int firstInSeg2 = 0;
+        while (pos.get(firstInSeg2) / LoggerImpl.SEGMENT_SIZE < 2) {
+            firstInSeg2++;
+        }
+        lg.removeBefore(pos.get(firstInSeg2) + 1);
+        assertEquals(List.of(2L), LoggerImpl.listSegments(path()));
+        logs = readAll(lg);
+        assertEquals(40 - firstInSeg2, logs.size());
+        assertEquals((byte) firstInSeg2, logs.get(0)[0]);
+        lg.close();
+
+        lg = Logger.open(path());
+        assertEquals(40 - firstInSeg2, readAll(lg).size());
+        lg.close();
+    }
+}
@@ -0,0 +1,156 @@
+package com.xiongsu.backend.dm.page;
+
+import com.xiongsu.backend.common.SubArray;
+import com.xiongsu.backend.dm.dataltem.DataItem;
+import com.xiongsu.backend.dm.pageCache.PageCache;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PageXTest {
+
+    //页面放在缓冲区的第二页上，检查所有读写都相对于页面的起始位置
+    private static Page newPage() {
+        ByteBuffer buf = ByteBuffer.allocateDirect(2 * PageCache.PAGE_SIZE);
+        buf.put(PageCache.PAGE_SIZE, PageX.initRaw(5));
+        return new PageImpl(1, buf, PageCache.PAGE_SIZE, null);
+    }
+
+    private static byte[] item(int i, int len) {
+        byte[] data = new byte[len];
+        Arrays.fill(data, (byte) i);
+        return DataItem.wrapDataItemRaw(data);
+    }
+
+    private static short insert(Page pg, byte[] raw, boolean compactable) {
+        short slot = PageX.allocate(pg, raw.length, compactable);
+        if (slot >= 0) {
+            PageX.insert(pg, raw, slot);
+        }
+        return slot;
+    }
+
+    private static byte[] read(Page pg, short slot) {
+        int start = pg.offset() + PageX.getOffset(pg, slot);
+        byte[] raw = new byte[DataItem.rawLength(pg.buffer(), start)];
+        pg.buffer().get(start, raw);
+        return raw;
+    }
+
+    private static void free(Page pg, short slot) {
+        int start = pg.offset() + PageX.getOffset(pg, slot);
+        DataItem.setDataItemRawFreed(new SubArray(pg.buffer(), start, start + DataItem.rawLength(pg.buffer(), start)));
+    }
+
+    @Test
+    public void testInsertUntilFull() {
+        Page pg = newPage();
+        assertEquals(5, PageX.getOwner(pg));
+        assertEquals(PageX.MAX_FREE_SPACE, PageX.getFreeSpace(pg));
+        List<byte[]> items = new ArrayList<>();
+        while (true) {
+            byte[] raw = item(items.size(), 97);
+            int free = PageX.getFreeSpace(pg);
+            short slot = insert(pg, raw, true);
+            if (slot < 0) {
+                assertTrue(free < raw.length);
+                break;
+            }
+            assertEquals(items.size(), slot);
+            assertEquals(free - raw.length - 2, PageX.getFreeSpace(pg));
+            items.add(raw);
+        }
+        assertEquals(PageX.MAX_FREE_SPACE / 102, items.size());
+        for (short i = 0; i < items.size(); i++) {
+            assertArrayEquals(items.get(i), read(pg, i));
+        }
+        assertEquals(5, PageX.getOwner(pg));
+    }
+
+    //已释放数据项的槽位被复用，槽号不变；空间不连续时压缩页面，未释放的数据项内容和槽号不变
+    @Test
+    public void testFreedSlotsAndSpaceAreReused() {
+        Page pg = newPage();
+        List<byte[]> items = new ArrayList<>();
+        short slot;
+        while ((slot = insert(pg, item(items.size(), 200), false)) >= 0) {
+            assertEquals(items.size(), slot);
+            items.add(item(items.size(), 200));
+        }
+        for (short i = 0; i < items.size(); i += 2) {
+            free(pg, i);
+        }
+        int free = PageX.getFreeSpace(pg);
+        assertTrue(free >= 400);
+        //连续空间不够，不能压缩时放不下
+        byte[] big = item(99, 400);
+        assertEquals(-1, PageX.allocate(pg, big.length, false));
+        slot = insert(pg, big, true);
+        assertEquals(0, slot);
+        assertArrayEquals(big, read(pg, slot));
+        //压缩可能还去掉了末尾已释放的槽位
+        assertTrue(PageX.getFreeSpace(pg) >= free - big.length);
+        for (short i = 1; i < items.size(); i += 2) {
+            assertArrayEquals(items.get(i), read(pg, i));
+        }
+        //下一个插入复用下一个已释放的槽位
+        assertEquals(2, insert(pg, item(98, 50), true));
+    }
+
+    //压缩清空已释放数据项的槽位，并去掉末尾的空槽
+    @Test
+    public void testCompactTrimsTrailingSlots() {
+        Page pg = newPage();
+        for (int i = 0; i < 6; i++) {
+            insert(pg, item(i, 100), false);
+        }
+        free(pg, (short) 1);
+        free(pg, (short) 4);
+        free(pg, (short) 5);
+        int free = PageX.getFreeSpace(pg);
+        PageX.compact(pg);
+        assertEquals(0, PageX.getOffset(pg, (short) 1));
+        assertEquals(0, PageX.getOffset(pg, (short) 4));
+        //去掉两个槽位后多出来的空间
+        assertEquals(free + 4, PageX.getFreeSpace(pg));
+        assertEquals(PageX.getFreeSpace(pg), PageX.getContiguousFreeSpace(pg));
+        for (short i : new short[]{0, 2, 3}) {
+            assertArrayEquals(item(i, 100), read(pg, i));
+        }
+        short[] slots = new short[PageX.maxSlots()];
+        assertEquals(3, PageX.scanSlots(pg, null, slots));
+        assertArrayEquals(new short[]{0, 2, 3}, Arrays.copyOf(slots, 3));
+        assertEquals(1, insert(pg, item(7, 10), false));
+        assertEquals(4, insert(pg, item(8, 10), false));
+    }
+
+    //重做插入是幂等的：槽位中已经有同样长度的数据项时原地覆盖，槽位被复用过时重新放入
+    @Test
+    public void testRecoverInsert() {
+        Page pg = newPage();
+        byte[] a = item(1, 30);
+        PageX.recoverInsert(pg, a, 0, a.length, (short) 2);
+        int free = PageX.getFreeSpace(pg);
+        PageX.recoverInsert(pg, a, 0, a.length, (short) 2);
+        assertEquals(free, PageX.getFreeSpace(pg));
+        assertArrayEquals(a, read(pg, (short) 2));
+        assertEquals(0, PageX.getOffset(pg, (short) 0));
+
+        byte[] b = item(2, 60);
+        PageX.recoverInsert(pg, b, 0, b.length, (short) 2);
+        assertArrayEquals(b, read(pg, (short) 2));
+
+        PageX.recoverUpdate(pg, new byte[]{9, 9}, 0, 2, (short) 2, b.length, 5);
+        byte[] updated = read(pg, (short) 2);
+        assertEquals(9, updated[5]);
+        assertEquals(9, updated[6]);
+        //长度不同说明槽位已经被复用，更新被跳过
+        PageX.recoverUpdate(pg, new byte[]{7}, 0, 1, (short) 2, a.length, 5);
+        assertEquals(9, read(pg, (short) 2)[5]);
+    }
+}
@@ -0,0 +1,98 @@
+package com.xiongsu.backend.dm.pageCache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ChannelPageFileTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private ChannelPageFile open() throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(tmp.newFile(), "rw");
+        return new ChannelPageFile(raf, raf.getChannel());
+    }
+
+    private static void fill(ByteBuffer buf, int offset, int pgno, int round) {
+        for (int i = 0; i < PageCache.PAGE_SIZE; i += 8) {
+            buf.putLong(offset + i, (long) pgno << 32 | round);
+        }
+    }
+
+    private static void check(ByteBuffer buf, int offset, int pgno, int round) {
+        for (int i = 0; i < PageCache.PAGE_SIZE; i += 8) {
+            assertEquals((long) pgno << 32 | round, buf.getLong(offset + i));
+        }
+    }
+
+    //多个线程共用一个通道并发读写不同的页面，带位置参数的读写互不干扰
+    @Test
+    public void testConcurrentReadWriteOfDistinctPages() throws Exception {
+        ChannelPageFile pf = open();
+        int threads = 8;
+        int pagesPerThread = 16;
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> list = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            Thread th = new Thread(() -> {
+                //同一个缓冲区中放两页，读写的是后一页
+                ByteBuffer buf = ByteBuffer.allocateDirect(2 * PageCache.PAGE_SIZE);
+                int offset = PageCache.PAGE_SIZE;
+                try {
+                    for (int round = 0; round < 20; round++) {
+                        for (int k = 0; k < pagesPerThread; k++) {
+                            int pgno = 1 + k * threads + id;
+                            fill(buf, offset, pgno, round);
+                            pf.write(pgno, buf, offset);
+                        }
+                        for (int k = 0; k < pagesPerThread; k++) {
+                            int pgno = 1 + k * threads + id;
+                            fill(buf, offset, 0, -1);
+                            pf.read(pgno, buf, offset);
+                            check(buf, offset, pgno, round);
+                        }
+                        assertEquals(0, buf.position());
+                        assertEquals(buf.capacity(), buf.limit());
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            });
+            list.add(th);
+            th.start();
+        }
+        for (Thread th : list) {
+            th.join();
+        }
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+        assertEquals((long) threads * pagesPerThread * PageCache.PAGE_SIZE, pf.length());
+        pf.close();
+    }
+
+    //页帧是复用的，读取文件末尾之后的页面得到全0而不是上一个页面的内容
+    @Test
+    public void testReadPastEndZeroFills() throws Exception {
+        ChannelPageFile pf = open();
+        ByteBuffer buf = ByteBuffer.allocate(PageCache.PAGE_SIZE);
+        fill(buf, 0, 1, 1);
+        pf.write(1, buf, 0);
+        pf.read(5, buf, 0);
+        check(buf, 0, 0, 0);
+        pf.read(1, buf, 0);
+        check(buf, 0, 1, 1);
+        pf.close();
+    }
+}
@@ -0,0 +1,140 @@
+package com.xiongsu.backend.dm.pageCache;
+
+import com.xiongsu.backend.common.EvictionPolicy;
+import com.xiongsu.backend.common.SubArray;
+import com.xiongsu.backend.dm.DataManager;
+import com.xiongsu.backend.dm.dataltem.DataItem;
+import com.xiongsu.backend.dm.page.Page;
+import com.xiongsu.backend.dm.page.PageX;
+import com.xiongsu.backend.tm.TransactionManager;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MappedPageFileTest {
+
+    private static final long MEM = 1 << 20;// 128页，写入的数据放不下，会发生驱逐
+    private static final int COUNT = 3000;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static byte[] value(int i) {
+        return ("x".repeat(300) + "value-" + i).getBytes();
+    }
+
+    //页面直接位于映射中，驱逐后重新读入仍然是映射中的同一段
+    @Test
+    public void testPagesAreMappingViews() throws Exception {
+        String path = new File(tmp.getRoot(), "db").getPath();
+        PageCacheImpl pc = PageCache.create(path, MEM, EvictionPolicy.CLOCK, true);
+        int pgno = pc.newPage(PageX.initRaw(7));
+        Page pg = pc.getPage(pgno);
+        assertTrue(pg.buffer() instanceof MappedByteBuffer);
+        assertEquals(7, PageX.getOwner(pg));
+        PageX.setOwner(pg, 9);
+        pc.flushPage(pg);
+        pc.release(pg);
+
+        Page again = pc.getPage(pgno);
+        assertSame(pg.buffer(), again.buffer());
+        assertEquals(pg.offset(), again.offset());
+        assertEquals(9, PageX.getOwner(again));
+        pc.release(again);
+        pc.close();
+
+        PageCacheImpl reopened = PageCache.open(path, MEM, EvictionPolicy.CLOCK, true);
+        assertEquals(pgno, reopened.getPageNumber());
+        Page pg2 = reopened.getPage(pgno);
+        assertEquals(9, PageX.getOwner(pg2));
+        reopened.release(pg2);
+        reopened.close();
+    }
+
+    /**
+     * 子进程写入后直接halt，不关闭：映射已经把文件扩展到段的整数倍，页面的修改只在日志中。
+     * 重新打开时恢复应当截断多出来的页面，重做已提交的数据并撤销未提交的插入
+     */
+    @Test
+    public void testReopenAfterUncleanClose() throws Exception {
+        File dir = tmp.newFolder();
+        String path = new File(dir, "db").getPath();
+        Process p = new ProcessBuilder(System.getProperty("java.home") + "/bin/java",
+                "-cp", System.getProperty("java.class.path"), Crash.class.getName(), path)
+                .inheritIO().start();
+        assertTrue(p.waitFor(120, TimeUnit.SECONDS));
+        assertEquals(0, p.exitValue());
+
+        List<Long> uids = new ArrayList<>();
+        for (String s : Files.readString(new File(dir, "uids").toPath()).trim().split(" ")) {
+            uids.add(Long.parseLong(s));
+        }
+        long uncommitted = uids.remove(uids.size() - 1);
+        File db = new File(path + PageCacheImpl.DB_SUFFIX);
+        assertEquals(0, db.length() % (64L << 20));
+
+        TransactionManager tm = TransactionManager.open(path);
+        DataManager dm = DataManager.open(path, MEM, tm, EvictionPolicy.CLOCK, true);
+        assertEquals(COUNT, uids.size());
+        for (int i = 0; i < uids.size(); i++) {
+            assertArrayEquals(value(i), read(dm, uids.get(i)));
+        }
+        assertNull(dm.read(uncommitted));
+        long xid = tm.begin();
+        long extra = dm.insert(xid, value(COUNT));
+        tm.commit(xid);
+        dm.close();
+        tm.close();
+        assertTrue(db.length() < (64L << 20));
+        assertEquals(0, db.length() % PageCache.PAGE_SIZE);
+
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, MEM, tm, EvictionPolicy.CLOCK, true);
+        assertArrayEquals(value(0), read(dm, uids.get(0)));
+        assertArrayEquals(value(COUNT - 1), read(dm, uids.get(COUNT - 1)));
+        assertArrayEquals(value(COUNT), read(dm, extra));
+        dm.close();
+        tm.close();
+    }
+
+    private static byte[] read(DataManager dm, long uid) throws Exception {
+        DataItem di = dm.read(uid);
+        assertNotNull(di);
+        try {
+            SubArray sa = di.data();
+            byte[] b = new byte[sa.end - sa.start];
+            sa.raw.get(sa.start, b, 0, b.length);
+            return b;
+        } finally {
+            di.release();
+        }
+    }
+
+    //在子进程中写入数据后不关闭直接退出，uid写入数据库目录下的uids文件，最后一个是未提交的插入
+    public static class Crash {
+        public static void main(String[] args) throws Exception {
+            String path = args[0];
+            TransactionManager tm = TransactionManager.create(path);
+            DataManager dm = DataManager.create(path, MEM, tm, EvictionPolicy.CLOCK, true);
+            StringBuilder sb = new StringBuilder();
+            long xid = tm.begin();
+            for (int i = 0; i < COUNT; i++) {
+                sb.append(dm.insert(xid, value(i))).append(' ');
+            }
+            tm.commit(xid);
+            long active = tm.begin();
+            sb.append(dm.insert(active, "uncommitted".getBytes()));
+            Files.writeString(new File(new File(path).getParentFile(), "uids").toPath(), sb.toString());
+            Runtime.getRuntime().halt(0);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.xiongsu.backend.dm.pageCache;
+
+import com.xiongsu.backend.common.EvictionPolicy;
+import com.xiongsu.backend.dm.page.Page;
+import com.xiongsu.backend.dm.page.PageX;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.junit.Assert.*;
+
+public class PageCacheImplTest {
+
+    private static final long MEM = 1 << 20;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    //直接从数据库文件中读取页面的Owner，不经过页面缓存
+    private static long ownerOnDisk(String path, int pgno) throws Exception {
+        try (RandomAccessFile f = new RandomAccessFile(path + PageCacheImpl.DB_SUFFIX, "r")) {
+            f.seek(PageCacheImpl.pageOffset(pgno) + 4);
+            return f.readLong();
+        }
+    }
+
+    //没有被引用的脏页由后台写线程写回，不需要关闭或驱逐
+    @Test
+    public void testBackgroundWriterFlushesIdlePages() throws Exception {
+        String path = new File(tmp.getRoot(), "db").getPath();
+        PageCacheImpl pc = PageCache.create(path, MEM, EvictionPolicy.CLOCK, false);
+        int idle = pc.newPage(PageX.initRaw(1));
+        int held = pc.newPage(PageX.initRaw(1));
+
+        Page pg = pc.getPage(idle);
+        PageX.setOwner(pg, 42);
+        pc.release(pg);
+        Page busy = pc.getPage(held);
+        PageX.setOwner(busy, 43);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (ownerOnDisk(path, idle) != 42 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(42, ownerOnDisk(path, idle));
+        //被引用的页面可能正被修改，后台写线程不会写回它
+        assertEquals(1, ownerOnDisk(path, held));
+        assertTrue(busy.isDirty());
+
+        pc.writePages(pc.dirtyPageNumbers(), new ReentrantLock());
+        pc.sync();
+        assertEquals(43, ownerOnDisk(path, held));
+        assertFalse(busy.isDirty());
+        pc.release(busy);
+        pc.close();
+    }
+
+    //缓存容量只有几页，写入的页面被驱逐后重新读入仍是最后一次修改的内容
+    @Test
+    public void testEvictedPagesAreWrittenBack() throws Exception {
+        String path = new File(tmp.getRoot(), "db").getPath();
+        PageCacheImpl pc = PageCache.create(path, 16 * PageCache.PAGE_SIZE, EvictionPolicy.LRU, false);
+        int pages = 200;
+        for (int i = 1; i <= pages; i++) {
+            assertEquals(i, pc.newPage(PageX.initRaw(0)));
+            Page pg = pc.getPage(i);
+            PageX.setOwner(pg, i * 10L);
+            pc.release(pg);
+        }
+        for (int i = 1; i <= pages; i++) {
+            Page pg = pc.getPage(i);
+            assertEquals(i * 10L, PageX.getOwner(pg));
+            pc.release(pg);
+        }
+        assertTrue(pc.getStats().evictionCount() > 0);
+        pc.close();
+
+        pc = PageCache.open(path, MEM, EvictionPolicy.CLOCK, false);
+        assertEquals(pages, pc.getPageNumber());
+        Page last = pc.getPage(pages);
+        assertEquals(pages * 10L, PageX.getOwner(last));
+        pc.release(last);
+        pc.close();
+    }
+}
@@ -0,0 +1,237 @@
+package com.xiongsu.backend.im;
+
+import com.xiongsu.backend.dm.DataManager;
+import com.xiongsu.backend.dm.dataltem.DataItem;
+import com.xiongsu.backend.tm.TransactionManagerImpl;
+import com.xiongsu.backend.utils.Parser;
+import com.xiongsu.common.Error;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class BPlusTreeTest extends TreeTestBase {
+
+    private static void run(int threads, Body body) throws Exception {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> ts = new ArrayList<>();
+        for (int t = 0; t < threads; t ++) {
+            final int id = t;
+            Thread th = new Thread(() -> {
+                try {
+                    start.await();
+                    body.run(id);
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            th.start();
+            ts.add(th);
+        }
+        start.countDown();
+        for (Thread th : ts) {
+            th.join(120_000);
+            assertFalse("worker hung", th.isAlive());
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+    }
+
+    interface Body {
+        void run(int id) throws Exception;
+    }
+
+    /**
+     * 多个线程交错插入，节点很小，频繁分裂叶子和非叶子节点、替换根；
+     * 同时读线程查找已经插入完成的键，分裂过程中的键必须沿兄弟指针找到
+     */
+    @Test
+    public void testConcurrentInsertsAndLookups() throws Exception {
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm, 2), dm);
+        final int writers = 8, perWriter = 1500;
+        ConcurrentLinkedQueue<Long> inserted = new ConcurrentLinkedQueue<>();
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<Throwable> readFailure = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            try {
+                while (!done.get()) {
+                    for (Long k : inserted) {
+                        List<Long> uids = tree.search(k);
+                        if (!uids.contains(k + 1_000_000)) {
+                            throw new AssertionError("lost key " + k + ": " + uids);
+                        }
+                    }
+                }
+            } catch (Throwable e) {
+                readFailure.set(e);
+            }
+        });
+        reader.start();
+        try {
+            run(writers, id -> {
+                for (int i = 0; i < perWriter; i ++) {
+                    // 各线程的键交错，同时落在相同的叶子上
+                    long key = (long) i * writers + id;
+                    tree.insert(key, key + 1_000_000);
+                    if (i % 64 == 0) {
+                        inserted.add(key);
+                    }
+                }
+            });
+        } finally {
+            done.set(true);
+            reader.join();
+        }
+        if (readFailure.get() != null) {
+            throw new AssertionError(readFailure.get());
+        }
+
+        List<TreeCheck.Entry> entries = TreeCheck.check(tree);
+        assertEquals(writers * perWriter, entries.size());
+        for (int i = 0; i < entries.size(); i ++) {
+            assertEquals(i, Keys.longOf(entries.get(i).key));
+            assertEquals(i + 1_000_000, entries.get(i).uid);
+        }
+        assertTrue(TreeCheck.height(tree) > 3);
+        assertEquals(List.of(77L + 1_000_000), tree.search(77));
+        assertEquals(10, tree.searchRange(100, 109).size());
+        tree.close();
+    }
+
+    /**
+     * 相同的键可以有多个uid，大量重复的键分裂到多个叶子后仍然都能找到，删除其中一个不影响其他的
+     * 同一个节点分裂出的节点插入父节点的顺序取决于线程的交错，重复多轮
+     */
+    @Test
+    public void testDuplicateKeysAcrossLeaves() throws Exception {
+        for (int round = 0; round < 100; round ++) {
+            BPlusTree tree = BPlusTree.load(BPlusTree.create(dm, 2), dm);
+            run(4, id -> {
+                for (int i = 0; i < 200; i ++) {
+                    tree.insert(5, id * 1000 + i);
+                    tree.insert(i % 3 == 0 ? 4 : 6, id * 1000 + i);
+                }
+            });
+            TreeCheck.check(tree);
+            List<Long> uids = tree.search(5);
+            assertEquals(800, uids.size());
+            assertEquals(800, new HashSet<>(uids).size());
+            assertTrue(tree.remove(5, 3007));
+            assertFalse(tree.remove(5, 3007));
+            assertEquals(799, tree.search(5).size());
+            assertFalse(tree.search(5).contains(3007L));
+            tree.close();
+        }
+    }
+
+    /**
+     * 根分裂后bootUid中记录新的根，重新打开DataManager加载得到同样的树
+     */
+    @Test
+    public void testTreeSurvivesReopen() throws Exception {
+        long boot = BPlusTree.create(dm, 4);
+        BPlusTree tree = BPlusTree.load(boot, dm);
+        for (int i = 0; i < 2000; i ++) {
+            tree.insert(i * 7 % 2000, i);
+        }
+        long root = tree.rootUid();
+        tree.close();
+        dm.close();
+        dm = DataManager.open(path, MEM, tm);
+
+        tree = BPlusTree.load(boot, dm);
+        assertEquals(root, tree.rootUid());
+        List<TreeCheck.Entry> entries = TreeCheck.check(tree);
+        assertEquals(2000, entries.size());
+        for (int i = 0; i < 2000; i ++) {
+            assertEquals(i, Keys.longOf(entries.get(i).key));
+        }
+        tree.insert(5000, 5000);
+        assertEquals(List.of(5000L), tree.search(5000));
+        tree.close();
+    }
+
+    /**
+     * 默认的节点占满一页，同样的随机插入，树的高度不超过旧的平衡因子（32，节点约1KB）的一半
+     */
+    @Test
+    public void testPageSizedNodesHalveTheHeight() throws Exception {
+        assertTrue(Node.nodeSize(Node.DEFAULT_BALANCE_NUMBER) <= DataItem.maxDataSize());
+        assertTrue(Node.nodeSize(Node.DEFAULT_BALANCE_NUMBER + 1) > DataItem.maxDataSize());
+
+        BPlusTree page = BPlusTree.load(BPlusTree.create(dm), dm);
+        BPlusTree legacy = BPlusTree.load(BPlusTree.create(dm, 32), dm);
+        assertEquals(Node.DEFAULT_BALANCE_NUMBER, page.balanceNumber);
+        Random random = new Random(19);
+        for (int i = 0; i < 100_000; i ++) {
+            long key = random.nextLong();
+            page.insert(key, i);
+            legacy.insert(key, i);
+        }
+        assertEquals(100_000, TreeCheck.check(page).size());
+        assertEquals(100_000, TreeCheck.check(legacy).size());
+        assertTrue(TreeCheck.height(page) * 2 <= TreeCheck.height(legacy));
+        page.close();
+        legacy.close();
+    }
+
+    /**
+     * 平衡因子记录在bootUid中，重新加载后不变；没有记录平衡因子的bootUid无法加载
+     */
+    @Test
+    public void testFanOutIsPerIndex() throws Exception {
+        long boot = BPlusTree.create(dm, 3);
+        BPlusTree tree = BPlusTree.load(boot, dm);
+        for (int i = 0; i < 100; i ++) {
+            tree.insert(i, i);
+        }
+        tree.close();
+        tree = BPlusTree.load(boot, dm);
+        assertEquals(3, tree.balanceNumber);
+        Node root = Node.loadNode(tree, tree.rootUid());
+        assertEquals(Node.nodeSize(3), root.raw.end - root.raw.start);
+        root.release();
+        assertEquals(100, TreeCheck.check(tree).size());
+        tree.close();
+
+        long rootUid = dm.insert(TransactionManagerImpl.SUPER_XID, Node.newNilRootRaw(3));
+        long legacyBoot = dm.insert(TransactionManagerImpl.SUPER_XID, Parser.long2Byte(rootUid));
+        try {
+            BPlusTree.load(legacyBoot, dm);
+            fail();
+        } catch (Exception e) {
+            assertSame(Error.BadIndexBootException, e);
+        }
+    }
+
+    @Test
+    public void testRejectsBadFanOutAndLongKeys() throws Exception {
+        for (int b : new int[]{1, Node.MAX_BALANCE_NUMBER + 1}) {
+            try {
+                BPlusTree.create(dm, b);
+                fail("balance number " + b);
+            } catch (Exception e) {
+                assertSame(Error.InvalidValuesException, e);
+            }
+        }
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm, 2), dm);
+        tree.insert(new byte[tree.maxKeySize()], 1);
+        try {
+            tree.insert(new byte[tree.maxKeySize() + 1], 2);
+            fail();
+        } catch (Exception e) {
+            assertSame(Error.KeyTooLongException, e);
+        }
+        tree.close();
+    }
+}
@@ -0,0 +1,162 @@
+package com.xiongsu.backend.im;
+
+import com.xiongsu.backend.dm.DataManager;
+import com.xiongsu.common.Error;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BulkLoaderTest extends TreeTestBase {
+
+    /**
+     * 批量构建的树结构合法，键和uid按顺序排列（相同的键按加入的顺序），之后的查找、插入和删除与逐个插入的树一样
+     */
+    @Test
+    public void testLoadedTreeIsValidAndUsable() throws Exception {
+        long boot = BPlusTree.create(dm, 4);
+        BPlusTree tree = BPlusTree.load(boot, dm);
+        BulkLoader loader = tree.bulkLoader(BulkLoader.DEFAULT_FILL_FACTOR);
+        for (int i = 0; i < 3000; i ++) {
+            loader.add(i / 3, i);
+        }
+        loader.finish();
+
+        List<TreeCheck.Entry> entries = TreeCheck.check(tree);
+        assertEquals(3000, entries.size());
+        for (int i = 0; i < 3000; i ++) {
+            assertEquals(i / 3, Keys.longOf(entries.get(i).key));
+            assertEquals(i, entries.get(i).uid);
+        }
+        assertTrue(TreeCheck.height(tree) > 2);
+        assertEquals(List.of(300L, 301L, 302L), tree.search(100));
+        assertEquals(30, tree.searchRange(10, 19).size());
+
+        for (int i = 0; i < 1000; i ++) {
+            tree.insert(i, 10_000 + i);
+        }
+        assertTrue(tree.remove(7, 21));
+        assertEquals(List.of(22L, 23L, 10_007L), tree.search(7));
+        assertEquals(3999, TreeCheck.check(tree).size());
+        long root = tree.rootUid();
+        tree.close();
+
+        dm.close();
+        dm = DataManager.open(path, MEM, tm);
+        tree = BPlusTree.load(boot, dm);
+        assertEquals(root, tree.rootUid());
+        assertEquals(3999, TreeCheck.check(tree).size());
+        tree.close();
+    }
+
+    /**
+     * 填充因子越小节点越空：装满的叶子更少，留有空间的叶子在之后的插入中不会立刻分裂
+     */
+    @Test
+    public void testFillFactor() throws Exception {
+        int[] counts = new int[2];
+        double[] factors = {1.0, 0.5};
+        for (int f = 0; f < factors.length; f ++) {
+            BPlusTree tree = BPlusTree.load(BPlusTree.create(dm, 8), dm);
+            BulkLoader loader = tree.bulkLoader(factors[f]);
+            for (int i = 0; i < 2000; i ++) {
+                loader.add(i * 2, i);
+            }
+            loader.finish();
+            counts[f] = TreeCheck.leaves(tree);
+            if (factors[f] < 1) {
+                // 每个叶子中插入一个键，叶子的个数不变
+                for (int i = 0; i < 2000; i += 8) {
+                    tree.insert(i * 2 + 1, i);
+                }
+                assertEquals(counts[f], TreeCheck.leaves(tree));
+            }
+            assertEquals(2000 + (factors[f] < 1 ? 250 : 0), TreeCheck.check(tree).size());
+            tree.close();
+        }
+        assertTrue(counts[1] >= counts[0] * 3 / 2);
+    }
+
+    /**
+     * 长度不一的字符串键，最长到maxKeySize，装满节点也不超出节点的大小，键的顺序与字符串的顺序一致
+     */
+    @Test
+    public void testVariableLengthKeys() throws Exception {
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm, 6), dm);
+        Random random = new Random(20);
+        List<byte[]> keys = new ArrayList<>();
+        for (int i = 0; i < 2000; i ++) {
+            byte[] key = new byte[1 + random.nextInt(tree.maxKeySize())];
+            for (int j = 0; j < key.length; j ++) {
+                key[j] = (byte) ('a' + random.nextInt(3));
+            }
+            keys.add(key);
+        }
+        keys.sort(Keys::compare);
+        BulkLoader loader = tree.bulkLoader(1.0);
+        for (int i = 0; i < keys.size(); i ++) {
+            loader.add(keys.get(i), i);
+        }
+        loader.finish();
+
+        List<TreeCheck.Entry> entries = TreeCheck.check(tree);
+        assertEquals(keys.size(), entries.size());
+        for (int i = 0; i < keys.size(); i ++) {
+            assertArrayEquals(keys.get(i), entries.get(i).key);
+        }
+        RangeCursor cursor = tree.cursor(keys.get(500), keys.get(600));
+        int n = 0;
+        while (cursor.hasNext()) {
+            long uid = cursor.next();
+            assertTrue(Keys.compare(keys.get((int) uid), keys.get(600)) < 0);
+            n ++;
+        }
+        assertTrue(n >= 100);
+        tree.close();
+    }
+
+    @Test
+    public void testRejectsBadInput() throws Exception {
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm, 4), dm);
+        for (double f : new double[]{0, 1.5}) {
+            try {
+                tree.bulkLoader(f);
+                fail("fill factor " + f);
+            } catch (Exception e) {
+                assertSame(Error.InvalidValuesException, e);
+            }
+        }
+
+        BulkLoader loader = tree.bulkLoader(1.0);
+        loader.add(5, 1);
+        try {
+            loader.add(4, 2);
+            fail();
+        } catch (Exception e) {
+            assertSame(Error.InvalidValuesException, e);
+        }
+        try {
+            loader.add(new byte[tree.maxKeySize() + 1], 3);
+            fail();
+        } catch (Exception e) {
+            assertSame(Error.KeyTooLongException, e);
+        }
+
+        // 没有加入任何键时不修改树
+        long root = tree.rootUid();
+        tree.bulkLoader(1.0).finish();
+        assertEquals(root, tree.rootUid());
+
+        tree.insert(1, 1);
+        try {
+            tree.bulkLoader(1.0);
+            fail();
+        } catch (Exception e) {
+            assertSame(Error.InvalidValuesException, e);
+        }
+        tree.close();
+    }
+}
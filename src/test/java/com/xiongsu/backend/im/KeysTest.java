@@ -0,0 +1,69 @@
+package com.xiongsu.backend.im;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class KeysTest {
+
+    //编码后的键按字节比较的顺序与整数的顺序一致，包括负数和边界值
+    @Test
+    public void testLongKeysKeepOrder() {
+        long[] values = {Long.MIN_VALUE, -1L << 40, -256, -1, 0, 1, 255, 256, 1L << 40, Long.MAX_VALUE};
+        for (int i = 0; i < values.length; i ++) {
+            assertEquals(values[i], Keys.longOf(Keys.ofLong(values[i])));
+            for (int j = 0; j < values.length; j ++) {
+                assertEquals(values[i] + " vs " + values[j],
+                        Integer.signum(Long.compare(values[i], values[j])),
+                        Integer.signum(Keys.compare(Keys.ofLong(values[i]), Keys.ofLong(values[j]))));
+            }
+        }
+        Random random = new Random(23);
+        for (int i = 0; i < 10_000; i ++) {
+            long a = random.nextLong(), b = random.nextLong();
+            assertEquals(Integer.signum(Long.compare(a, b)), Integer.signum(Keys.compare(Keys.ofLong(a), Keys.ofLong(b))));
+        }
+    }
+
+    //字符串按码点的顺序比较，前缀更小；successor是大于键的最小的键
+    @Test
+    public void testStringKeysKeepOrder() {
+        String[] sorted = {"", "a", "ab", "abc", "abd", "b", "z", "é", "中", "中文"};
+        for (int i = 0; i < sorted.length; i ++) {
+            assertEquals(sorted[i], Keys.stringOf(Keys.ofString(sorted[i])));
+            if (i > 0) {
+                assertTrue(sorted[i], Keys.compare(Keys.ofString(sorted[i - 1]), Keys.ofString(sorted[i])) < 0);
+            }
+            byte[] succ = Keys.successor(Keys.ofString(sorted[i]));
+            assertTrue(Keys.compare(Keys.ofString(sorted[i]), succ) < 0);
+            if (i + 1 < sorted.length) {
+                assertTrue(Keys.compare(succ, Keys.ofString(sorted[i + 1])) <= 0);
+            }
+        }
+        assertTrue(Keys.compare(Keys.MIN, Keys.ofString("")) == 0);
+        assertTrue(Keys.compare(Keys.ofString("zzz"), null) < 0);
+        assertTrue(Keys.compare(null, Keys.ofString("zzz")) > 0);
+        assertEquals(0, Keys.compare(null, null));
+    }
+
+    //在缓冲区上原地比较的结果与拷贝出来再比较一致
+    @Test
+    public void testCompareInPlace() {
+        byte[] data = Keys.ofString("xxprefix-123yy");
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        byte[] key = Keys.ofString("prefix-124");
+        for (int from = 0; from < data.length; from ++) {
+            for (int to = from; to <= data.length; to ++) {
+                byte[] copy = Arrays.copyOfRange(data, from, to);
+                assertEquals(Integer.signum(Keys.compare(copy, key)),
+                        Integer.signum(Keys.compare(buf, from, to, key, 0, key.length)));
+                assertEquals(Integer.signum(Keys.compare(copy, Arrays.copyOfRange(key, 3, 7))),
+                        Integer.signum(Keys.compare(buf, from, to, key, 3, 7)));
+            }
+        }
+    }
+}
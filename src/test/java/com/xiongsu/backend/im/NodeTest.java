@@ -0,0 +1,156 @@
+package com.xiongsu.backend.im;
+
+import com.xiongsu.backend.common.SubArray;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class NodeTest {
+
+    private static final int BALANCE = 8;
+
+    private static SubArray newRaw() {
+        byte[] bytes = new byte[Node.nodeSize(BALANCE)];
+        return new SubArray(bytes, 0, bytes.length);
+    }
+
+    private static byte[] key(String s) {
+        return Keys.ofString(s);
+    }
+
+    private static Entries leaf(byte[] high, String... keys) {
+        Entries entries = new Entries(keys.length, true);
+        for (int i = 0; i < keys.length; i ++) {
+            entries.add(100 + i, key(keys[i]));
+        }
+        entries.high = high;
+        return entries;
+    }
+
+    /**
+     * 编码后公共前缀只存一次，解码得到原来的键、子节点和上界，查找和比较直接在原始字节上进行
+     */
+    @Test
+    public void testPrefixEncodeDecode() {
+        Entries entries = leaf(key("user-0099"), "user-0010", "user-0020", "user-0020", "user-0030", "user-0042");
+        SubArray raw = newRaw();
+        Node.encode(raw, true, 77, entries);
+
+        assertEquals("user-00".length(), Node.getRawPrefixLength(raw));
+        assertEquals(Node.encodedSize(entries), Node.getRawSize(raw));
+        assertEquals(5, Node.getRawNoKeys(raw));
+        assertEquals(77, Node.getRawSibling(raw));
+        assertTrue(Node.getRawIfLeaf(raw));
+        assertArrayEquals(key("user-0099"), Node.getRawHigh(raw));
+        Entries decoded = Node.decode(raw);
+        assertEquals(entries.size, decoded.size);
+        for (int i = 0; i < entries.size; i ++) {
+            assertArrayEquals(entries.keys[i], decoded.keys[i]);
+            assertEquals(entries.sons[i], decoded.sons[i]);
+            assertArrayEquals(entries.keys[i], Node.getRawKthKey(raw, i));
+        }
+        assertArrayEquals(entries.high, decoded.high);
+
+        assertEquals(1, Node.searchKth(raw, 5, key("user-0020"), true));
+        assertEquals(3, Node.searchKth(raw, 5, key("user-0020"), false));
+        assertEquals(0, Node.searchKth(raw, 5, key("user"), true));
+        assertEquals(0, Node.searchKth(raw, 5, key("a"), true));
+        assertEquals(5, Node.searchKth(raw, 5, key("user-0050"), true));
+        assertEquals(5, Node.searchKth(raw, 5, key("zz"), true));
+        assertTrue(Node.compareRawKthKey(raw, 0, key("user-")) > 0);
+        assertTrue(Node.compareRawKthKey(raw, 0, key("user-0010\0")) < 0);
+        assertEquals(0, Node.compareRawKthKey(raw, 4, key("user-0042")));
+    }
+
+    /**
+     * 共享前缀的键越长，节点中省下的空间越多；没有公共前缀时与未压缩的大小相同
+     */
+    @Test
+    public void testPrefixSavesSpace() {
+        String p = "a-long-common-prefix/";
+        Entries shared = leaf(null, p + "1", p + "2", p + "3", p + "4");
+        Entries distinct = leaf(null, "1" + p, "2" + p, "3" + p, "4" + p);
+        assertEquals(p.length(), shared.prefixLength());
+        assertEquals(0, distinct.prefixLength());
+        assertEquals(Node.encodedSize(distinct) - 3 * p.length(), Node.encodedSize(shared));
+    }
+
+    /**
+     * 非叶子节点最右边的正无穷不参与公共前缀，解码后仍然是null
+     */
+    @Test
+    public void testInnerNodeWithInfinity() {
+        Entries entries = new Entries(3, false);
+        entries.add(1, key("k-10"));
+        entries.add(2, key("k-20"));
+        entries.add(3, null);
+        SubArray raw = newRaw();
+        Node.encode(raw, false, 0, entries);
+        assertEquals(2, Node.getRawPrefixLength(raw));
+        assertNull(Node.getRawKthKey(raw, 2));
+        assertTrue(Node.compareRawKthKey(raw, 2, key("zzzz")) > 0);
+        assertEquals(2, Node.searchKth(raw, 3, key("k-30"), true));
+        assertEquals(Node.encodedSize(entries), Node.getRawSize(raw));
+        Entries decoded = Node.decode(raw);
+        assertNull(decoded.keys[2]);
+        assertArrayEquals(key("k-20"), decoded.keys[1]);
+    }
+
+    /**
+     * 带有公共前缀的键直接写入空闲空间，只移动Slot；不带前缀或者放不下时不修改节点
+     */
+    @Test
+    public void testInsertInPlace() {
+        SubArray raw = newRaw();
+        Node.encode(raw, true, 0, leaf(key("row-9"), "row-2", "row-4"));
+        assertTrue(Node.insertRawKth(raw, 2, 1, 7, key("row-3")));
+        assertTrue(Node.insertRawKth(raw, 3, 0, 8, key("row-1")));
+        assertTrue(Node.insertRawKth(raw, 4, 4, 9, key("row-5")));
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < Node.getRawNoKeys(raw); i ++) {
+            keys.add(Keys.stringOf(Node.getRawKthKey(raw, i)));
+        }
+        assertEquals(List.of("row-1", "row-2", "row-3", "row-4", "row-5"), keys);
+        assertEquals(8, Node.getRawKthSon(raw, 0));
+        assertEquals(7, Node.getRawKthSon(raw, 2));
+        assertEquals(9, Node.getRawKthSon(raw, 4));
+        assertArrayEquals(key("row-9"), Node.getRawHigh(raw));
+        assertEquals(Node.encodedSize(Node.decode(raw)), Node.getRawSize(raw));
+
+        byte[] before = raw.raw.array().clone();
+        assertFalse(Node.insertRawKth(raw, 5, 0, 10, key("r")));
+        assertFalse(Node.insertRawKth(raw, 5, 0, 10, key("col-1")));
+        assertArrayEquals(before, raw.raw.array());
+
+        // 填满节点，空间不够时返回false
+        int n = 5;
+        while (Node.insertRawKth(raw, n, n, 11, key("row-5" + "x".repeat(20)))) {
+            n ++;
+        }
+        assertEquals(n, Node.getRawNoKeys(raw));
+        assertTrue(Node.getRawSize(raw) <= Node.nodeSize(BALANCE));
+        assertTrue(Node.getRawSize(raw) + Node.entrySize(key("row-5" + "x".repeat(20)), 4) > Node.nodeSize(BALANCE));
+        assertArrayEquals(key("row-9"), Node.getRawHigh(raw));
+    }
+
+    /**
+     * 分开的位置按字节数取中间，两边的键较长时左边的项数更少
+     */
+    @Test
+    public void testSplitPointBySize() {
+        Entries entries = new Entries(8, true);
+        for (int i = 0; i < 6; i ++) {
+            entries.add(i, key("k" + i));
+        }
+        entries.add(6, key("k6" + "x".repeat(60)));
+        entries.add(7, key("k7" + "x".repeat(60)));
+        int m = Node.splitPoint(entries);
+        assertTrue(m >= 1 && m <= entries.size - 2);
+        assertEquals(6, m);
+        assertArrayEquals(entries.keys[m - 1], entries.range(0, m).high);
+        assertNull(entries.range(m, entries.size).high);
+    }
+}
@@ -0,0 +1,141 @@
+package com.xiongsu.backend.im;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class RangeCursorTest extends TreeTestBase {
+
+    private BPlusTree tree;
+
+    @Before
+    public void setUp() throws Exception {
+        tree = BPlusTree.load(BPlusTree.create(dm, 4), dm);
+    }
+
+    @After
+    public void tearDown() {
+        tree.close();
+    }
+
+    private static List<Long> drain(RangeCursor cursor) throws Exception {
+        List<Long> uids = new ArrayList<>();
+        while (cursor.hasNext()) {
+            uids.add(cursor.next());
+        }
+        return uids;
+    }
+
+    private static List<Long> range(long from, long to) {
+        List<Long> list = new ArrayList<>();
+        for (long i = from; i < to; i ++) {
+            list.add(i);
+        }
+        return list;
+    }
+
+    /**
+     * 范围左闭右开，右端为null时没有上界；searchRange两端都包含
+     */
+    @Test
+    public void testBounds() throws Exception {
+        assertFalse(tree.cursor(Keys.MIN, null).hasNext());
+        for (int i = 999; i >= 0; i --) {
+            tree.insert(i, i);
+        }
+        assertEquals(range(100, 200), drain(tree.cursor(Keys.ofLong(100), Keys.ofLong(200))));
+        assertEquals(range(990, 1000), drain(tree.cursor(Keys.ofLong(990), null)));
+        assertEquals(range(0, 1000), drain(tree.cursor(Keys.MIN, null)));
+        assertEquals(List.of(), drain(tree.cursor(Keys.ofLong(500), Keys.ofLong(500))));
+        assertEquals(List.of(), drain(tree.cursor(Keys.ofLong(1000), null)));
+        assertEquals(range(0, 6), tree.searchRange(-5, 5));
+        assertEquals(List.of(999L), tree.searchRange(999, Long.MAX_VALUE));
+    }
+
+    /**
+     * 游标一次只读一个叶子，可以随时停止；withKeys时key返回当前uid的键
+     */
+    @Test
+    public void testKeysAndEarlyStop() throws Exception {
+        for (int i = 0; i < 1000; i ++) {
+            tree.insert(i * 10, i);
+        }
+        RangeCursor cursor = tree.cursor(Keys.ofLong(15), null, true);
+        for (int i = 2; i < 5; i ++) {
+            assertTrue(cursor.hasNext());
+            assertEquals(i, cursor.next());
+            assertEquals(i * 10, Keys.longOf(cursor.key()));
+        }
+        assertTrue(cursor.hasNext());
+        assertTrue(cursor.hasNext());
+        assertEquals(5, cursor.next());
+    }
+
+    /**
+     * 扫描期间其他线程不断插入，叶子被分裂：游标按键的顺序返回，不重复，开始前已经存在的键都能扫描到
+     */
+    @Test
+    public void testScanDuringConcurrentSplits() throws Exception {
+        final int n = 3000;
+        for (int i = 0; i < n; i ++) {
+            tree.insert(i * 2, i * 2);
+        }
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < 4; t ++) {
+            final int id = t;
+            Thread th = new Thread(() -> {
+                try {
+                    for (int i = id; i < n; i += 4) {
+                        tree.insert(i * 2 + 1, i * 2 + 1);
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            th.start();
+            writers.add(th);
+        }
+        Thread reader = new Thread(() -> {
+            try {
+                int scans = 0;
+                while (!done.get() || scans < 2) {
+                    RangeCursor cursor = tree.cursor(Keys.MIN, null, true);
+                    long last = -1;
+                    int evens = 0;
+                    while (cursor.hasNext()) {
+                        long uid = cursor.next();
+                        assertEquals(uid, Keys.longOf(cursor.key()));
+                        assertTrue("out of order " + last + " " + uid, uid > last);
+                        last = uid;
+                        if (uid % 2 == 0) {
+                            evens ++;
+                        }
+                    }
+                    assertEquals(n, evens);
+                    scans ++;
+                }
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            }
+        });
+        reader.start();
+        for (Thread th : writers) {
+            th.join();
+        }
+        done.set(true);
+        reader.join();
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertEquals(range(0, 2 * n), drain(tree.cursor(Keys.MIN, null)));
+    }
+}
@@ -0,0 +1,209 @@
+package com.xiongsu.backend.im;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class RebalancerTest extends TreeTestBase {
+
+    private BPlusTree fill(int balance, int n) throws Exception {
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm, balance), dm);
+        for (int i = 0; i < n; i ++) {
+            tree.insert(i, i);
+        }
+        return tree;
+    }
+
+    /**
+     * 按随机顺序删除大部分的键，每删除一批后树仍然合法；节点随之合并，叶子数和高度下降，合并掉的节点交给调用者释放
+     */
+    @Test
+    public void testDeletesShrinkTheTree() throws Exception {
+        final int n = 4000;
+        BPlusTree tree = fill(2, n);
+        int height = TreeCheck.height(tree), leaves = TreeCheck.leaves(tree);
+        List<Integer> keys = new ArrayList<>();
+        for (int i = 0; i < n; i ++) {
+            keys.add(i);
+        }
+        Collections.shuffle(keys, new Random(22));
+        List<Integer> removed = keys.subList(0, n - 40);
+        for (int i = 0; i < removed.size(); i ++) {
+            assertTrue(tree.remove(removed.get(i), removed.get(i)));
+            if (i % 500 == 0) {
+                TreeCheck.check(tree);
+            }
+        }
+        assertFalse(tree.remove(removed.get(0), removed.get(0)));
+
+        List<Integer> left = new ArrayList<>(keys.subList(n - 40, n));
+        Collections.sort(left);
+        List<TreeCheck.Entry> entries = TreeCheck.check(tree);
+        assertEquals(left.size(), entries.size());
+        for (int i = 0; i < left.size(); i ++) {
+            assertEquals((long) left.get(i), Keys.longOf(entries.get(i).key));
+            assertEquals(List.of((long) left.get(i)), tree.search(left.get(i)));
+        }
+        assertTrue(TreeCheck.height(tree) < height);
+        assertTrue(TreeCheck.leaves(tree) * 10 < leaves);
+
+        List<Long> retired = tree.takeRetired();
+        assertFalse(retired.isEmpty());
+        assertTrue(tree.takeRetired().isEmpty());
+        assertFalse(retired.contains(tree.rootUid()));
+        for (long uid : retired) {
+            Node node = Node.loadNode(tree, uid);
+            assertTrue(Node.getRawIfDead(node.raw));
+            node.release();
+            dm.free(uid);
+        }
+
+        // 释放之后继续插入，树照常增长
+        for (int i = 0; i < n; i += 2) {
+            tree.insert(i, i + 1);
+        }
+        assertEquals(left.size() + n / 2, TreeCheck.check(tree).size());
+        tree.close();
+    }
+
+    /**
+     * 删除所有的键之后只剩一个空的叶子作为根，范围查询什么也找不到
+     */
+    @Test
+    public void testDeleteEverything() throws Exception {
+        BPlusTree tree = fill(3, 2000);
+        for (int i = 1999; i >= 0; i --) {
+            assertTrue(tree.remove(i, i));
+        }
+        assertTrue(TreeCheck.check(tree).isEmpty());
+        assertEquals(1, TreeCheck.height(tree));
+        assertTrue(tree.searchRange(Long.MIN_VALUE, Long.MAX_VALUE).isEmpty());
+        tree.insert(7, 7);
+        assertEquals(List.of(7L), tree.search(7));
+        tree.close();
+    }
+
+    /**
+     * 只删除一侧的键，太空的节点从另一侧较满的邻居取得键；删除中间的一段后两边的键都还在
+     */
+    @Test
+    public void testRedistributeKeepsNeighbours() throws Exception {
+        final int n = 3000;
+        BPlusTree tree = fill(4, n);
+        for (int i = 1000; i < 2000; i ++) {
+            if (i % 10 != 0) {
+                assertTrue(tree.remove(i, i));
+            }
+        }
+        List<TreeCheck.Entry> entries = TreeCheck.check(tree);
+        assertEquals(n - 900, entries.size());
+        assertEquals(10, tree.searchRange(1000, 1099).size());
+        assertEquals(List.of(1500L), tree.search(1500));
+        assertTrue(tree.search(1501).isEmpty());
+        assertEquals(1000, tree.searchRange(0, 999).size());
+        assertEquals(1000, tree.searchRange(2000, n).size());
+        tree.close();
+    }
+
+    /**
+     * 相同的键分布在多个叶子中，逐个删除其中的uid，每次只删掉指定的那一项
+     */
+    @Test
+    public void testRemoveAmongDuplicates() throws Exception {
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm, 2), dm);
+        for (int i = 0; i < 300; i ++) {
+            tree.insert(1, i);
+            tree.insert(i % 2 == 0 ? 0 : 2, i);
+        }
+        for (int i = 0; i < 300; i += 3) {
+            assertTrue(tree.remove(1, i));
+        }
+        TreeCheck.check(tree);
+        List<Long> uids = tree.search(1);
+        assertEquals(200, uids.size());
+        for (int i = 0; i < 300; i ++) {
+            assertEquals(i % 3 != 0, uids.contains((long) i));
+        }
+        assertEquals(150, tree.search(0).size());
+        assertEquals(150, tree.search(2).size());
+        tree.close();
+    }
+
+    /**
+     * 多个线程同时插入和删除，节点同时分裂和合并；读线程查找一直存在的键，总能找到
+     */
+    @Test
+    public void testConcurrentInsertsAndDeletes() throws Exception {
+        final int threads = 6, perThread = 1200;
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm, 2), dm);
+        // 3的倍数一直存在，其余的键在各线程中插入后删除一部分
+        for (int i = 0; i < threads * perThread; i += 3) {
+            tree.insert(i, i);
+        }
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            try {
+                Random random = new Random(1);
+                while (!done.get()) {
+                    long k = random.nextInt(threads * perThread / 3) * 3L;
+                    if (!tree.search(k).contains(k)) {
+                        throw new AssertionError("lost key " + k);
+                    }
+                }
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        reader.start();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t ++) {
+            final int id = t;
+            Thread th = new Thread(() -> {
+                try {
+                    for (int i = id; i < threads * perThread; i += threads) {
+                        if (i % 3 != 0) {
+                            tree.insert(i, i);
+                        }
+                    }
+                    for (int i = id; i < threads * perThread; i += threads) {
+                        if (i % 3 == 1 && !tree.remove(i, i)) {
+                            throw new AssertionError("missing key " + i);
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            th.start();
+            workers.add(th);
+        }
+        for (Thread th : workers) {
+            th.join(120_000);
+            assertFalse("worker hung", th.isAlive());
+        }
+        done.set(true);
+        reader.join();
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        List<TreeCheck.Entry> entries = TreeCheck.check(tree);
+        int expected = 0;
+        for (int i = 0; i < threads * perThread; i ++) {
+            if (i % 3 != 1) {
+                assertEquals(i, Keys.longOf(entries.get(expected).key));
+                expected ++;
+            }
+        }
+        assertEquals(expected, entries.size());
+        tree.close();
+    }
+}
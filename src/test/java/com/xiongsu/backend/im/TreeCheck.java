@@ -0,0 +1,132 @@
+package com.xiongsu.backend.im;
+
+import com.xiongsu.backend.common.SubArray;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 在没有并发修改时检查B+树的结构：
+ * 每一层从最左边的节点沿兄弟指针能走到这一层所有的节点，顺序与上一层的子节点顺序一致，没有已合并的节点；
+ * 节点内的键有序，子节点的键在父节点的分隔键范围内，叶子的上界等于父节点中的分隔键，只有最后一层是叶子
+ */
+class TreeCheck {
+
+    static class Entry {
+        final byte[] key;
+        final long uid;
+
+        Entry(byte[] key, long uid) {
+            this.key = key;
+            this.uid = uid;
+        }
+    }
+
+    private static class Bounded {
+        final long uid;
+        final byte[] low, high;// 父节点给出的范围[low, high]，null表示没有限制
+
+        Bounded(long uid, byte[] low, byte[] high) {
+            this.uid = uid;
+            this.low = low;
+            this.high = high;
+        }
+    }
+
+    //按键的顺序返回叶子中所有的(key, uid)
+    static List<Entry> check(BPlusTree tree) throws Exception {
+        List<Bounded> level = new ArrayList<>();
+        level.add(new Bounded(tree.rootUid(), null, null));
+        while (true) {
+            List<Bounded> next = new ArrayList<>();
+            List<Entry> entries = new ArrayList<>();
+            boolean leaf = false;
+            for (int i = 0; i < level.size(); i ++) {
+                Bounded b = level.get(i);
+                Node node = Node.loadNode(tree, b.uid);
+                try {
+                    SubArray raw = node.raw;
+                    assertFalse("reachable node is dead", Node.getRawIfDead(raw));
+                    if (i == 0) {
+                        leaf = Node.getRawIfLeaf(raw);
+                    }
+                    assertEquals("all nodes on a level are leaves or not", leaf, Node.getRawIfLeaf(raw));
+                    long expectedSibling = i + 1 < level.size() ? level.get(i + 1).uid : 0;
+                    assertEquals("sibling chain follows parent order", expectedSibling, Node.getRawSibling(raw));
+                    int noKeys = Node.getRawNoKeys(raw);
+                    byte[] low = b.low;
+                    for (int k = 0; k < noKeys; k ++) {
+                        byte[] key = Node.getRawKthKey(raw, k);
+                        long son = Node.getRawKthSon(raw, k);
+                        if (b.low != null) {
+                            assertTrue("key below parent range", Keys.compare(key, b.low) >= 0);
+                        }
+                        if (b.high != null) {
+                            assertTrue("key above parent range", Keys.compare(key, b.high) <= 0);
+                        }
+                        if (k > 0) {
+                            assertTrue("keys in node are sorted", Keys.compare(Node.getRawKthKey(raw, k - 1), key) <= 0);
+                        }
+                        if (leaf) {
+                            assertNotNull(key);
+                            entries.add(new Entry(key, son));
+                        } else {
+                            // 非叶子节点最右边的键为正无穷时，子节点的上界继承父节点的上界
+                            next.add(new Bounded(son, low, key == null ? b.high : key));
+                            low = key;
+                        }
+                    }
+                    if (leaf) {
+                        assertArrayEquals("leaf upper bound is the parent separator", b.high, Node.getRawHigh(raw));
+                    }
+                } finally {
+                    node.release();
+                }
+            }
+            if (leaf) {
+                for (int i = 1; i < entries.size(); i ++) {
+                    assertTrue("leaf level is sorted", Keys.compare(entries.get(i - 1).key, entries.get(i).key) <= 0);
+                }
+                return entries;
+            }
+            assertFalse("inner level has children", next.isEmpty());
+            level = next;
+        }
+    }
+
+    //树的高度，只有根节点时为1
+    static int height(BPlusTree tree) throws Exception {
+        int height = 1;
+        long uid = tree.rootUid();
+        while (true) {
+            Node node = Node.loadNode(tree, uid);
+            try {
+                if (Node.getRawIfLeaf(node.raw)) {
+                    return height;
+                }
+                uid = Node.getRawKthSon(node.raw, 0);
+            } finally {
+                node.release();
+            }
+            height ++;
+        }
+    }
+
+    //从最左边的叶子沿兄弟指针数叶子的个数
+    static int leaves(BPlusTree tree) throws Exception {
+        int count = 0;
+        long uid = tree.searchLeaf(tree.rootUid(), Keys.MIN);
+        while (uid != 0) {
+            Node node = Node.loadNode(tree, uid);
+            try {
+                uid = Node.getRawSibling(node.raw);
+            } finally {
+                node.release();
+            }
+            count ++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,37 @@
+package com.xiongsu.backend.im;
+
+import com.xiongsu.backend.dm.DataManager;
+import com.xiongsu.backend.tm.TransactionManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * 索引测试共用的环境：每个测试在临时目录中新建TransactionManager和DataManager，结束后关闭。
+ * 测试中可以关闭dm后用path重新打开
+ */
+public abstract class TreeTestBase {
+
+    static final long MEM = 1 << 22;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    String path;
+    TransactionManager tm;
+    DataManager dm;
+
+    @Before
+    public void openDb() throws Exception {
+        path = tmp.getRoot().getAbsolutePath() + "/idx";
+        tm = TransactionManager.create(path);
+        dm = DataManager.create(path, MEM, tm);
+    }
+
+    @After
+    public void closeDb() {
+        dm.close();
+        tm.close();
+    }
+}
@@ -0,0 +1,179 @@
+package com.xiongsu.backend.tbm;
+
+import com.xiongsu.backend.server.Executor;
+import com.xiongsu.common.Error;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class TableTest {
+
+    private static final int ROWS = 300;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static String exec(Executor e, String sql) throws Exception {
+        return new String(e.execute(sql.getBytes())).trim();
+    }
+
+    private static String[] rows(Executor e, String sql) throws Exception {
+        String out = exec(e, sql);
+        return out.isEmpty() ? new String[0] : out.split("\n");
+    }
+
+    private static void fill(Executor e) throws Exception {
+        exec(e, "create table t id int32, v string (index id)");
+        for (int i = 0; i < ROWS; i ++) {
+            exec(e, "insert into t values " + i + " v" + i);
+        }
+    }
+
+    /**
+     * 更新时边扫描索引边插入新版本，新版本的键落在游标还没有读到的位置：
+     * 每一行只更新一次，不会扫描到这条语句自己插入的版本
+     */
+    @Test
+    public void testUpdateDoesNotRevisitItsOwnVersions() throws Exception {
+        VacuumTest.Db db = new VacuumTest.Db(tmp.newFolder(), true);
+        Executor e = db.session();
+        fill(e);
+        assertEquals("update " + (ROWS - 10), exec(e, "update t set id = 100000 where id > 9"));
+        assertEquals(ROWS - 10, rows(e, "select * from t where id = 100000").length);
+        assertEquals(10, rows(e, "select * from t where id < 10").length);
+
+        exec(e, "begin");
+        assertEquals("update " + ROWS, exec(e, "update t set v = a"));
+        assertEquals("update " + ROWS, exec(e, "update t set v = b where id < 100001"));
+        exec(e, "commit");
+        String[] all = rows(e, "select * from t");
+        assertEquals(ROWS, all.length);
+        assertTrue(Arrays.stream(all).allMatch(r -> r.contains("b")));
+
+        assertEquals("delete " + ROWS, exec(e, "delete from t where id < 100001"));
+        assertEquals(0, rows(e, "select * from t").length);
+        db.close();
+    }
+
+    /**
+     * 字符串索引按原值排序：范围条件按字典序返回，等值查找只返回相等的值，不依赖回表检查
+     * 太长的键在写入记录之前被拒绝
+     */
+    @Test
+    public void testStringIndexIsOrdered() throws Exception {
+        VacuumTest.Db db = new VacuumTest.Db(tmp.newFolder(), true);
+        Executor e = db.session();
+        exec(e, "create table s name string, n int32 (index name)");
+        String[] names = {"pear", "apple", "banana", "apricot", "peach", "plum", "ap", "b"};
+        for (int i = 0; i < names.length; i ++) {
+            exec(e, "insert into s values " + names[i] + " " + i);
+        }
+        for (int i = 0; i < 200; i ++) {
+            exec(e, "insert into s values user_" + String.format("%04d", i) + " " + i);
+        }
+        assertArrayEquals(new String[]{"[ap, 6]", "[apple, 1]", "[apricot, 3]"},
+                rows(e, "select * from s where name > a and name < b"));
+        assertArrayEquals(new String[]{"[peach, 4]", "[pear, 0]"},
+                rows(e, "select * from s where name > pe and name < pf"));
+        assertArrayEquals(new String[]{"[ap, 6]"}, rows(e, "select * from s where name = ap"));
+        assertEquals(0, rows(e, "select * from s where name = a").length);
+        assertEquals(10, rows(e, "select * from s where name > user_0009 and name < user_0020").length);
+        assertEquals("[user_0019, 19]", rows(e, "select * from s where name > user_0009 and name < user_0020")[9]);
+        assertEquals(200, rows(e, "select * from s where name > user_ and name < user_9").length);
+
+        String tooLong = "x".repeat(4096);
+        try {
+            exec(e, "insert into s values " + tooLong + " 1");
+            fail();
+        } catch (Exception ex) {
+            assertSame(Error.KeyTooLongException, ex);
+        }
+        assertEquals(208, rows(e, "select * from s").length);
+        db.close();
+    }
+
+    /**
+     * 只查询索引字段时直接从索引取值：结果与读出记录时相同，已删除、已修改和其他事务未提交的版本同样不可见
+     */
+    @Test
+    public void testCoveringSelectMatchesRowReads() throws Exception {
+        VacuumTest.Db db = new VacuumTest.Db(tmp.newFolder(), true);
+        Executor e = db.session();
+        Executor other = db.session();
+        fill(e);
+        exec(e, "delete from t where id < 20");
+        exec(e, "update t set id = 5000 where id = 250");
+        exec(e, "update t set v = w where id > 100 and id < 110");
+        exec(other, "begin");
+        exec(other, "insert into t values 7000 x");
+        exec(other, "delete from t where id = 30");
+
+        String[] covering = rows(e, "select id from t where id > 25 and id < 40");
+        String[] full = rows(e, "select * from t where id > 25 and id < 40");
+        assertEquals(14, covering.length);
+        assertEquals(full.length, covering.length);
+        for (int i = 0; i < full.length; i ++) {
+            assertEquals(full[i].substring(0, full[i].indexOf(',')) + "]", covering[i]);
+        }
+        assertArrayEquals(new String[]{"[5000]"}, rows(e, "select id from t where id > 4000"));
+        assertEquals(0, rows(e, "select id from t where id = 250").length);
+        assertEquals(9, rows(e, "select id from t where id > 100 and id < 110").length);
+        assertEquals(ROWS - 20, rows(e, "select id from t").length);
+        assertEquals(ROWS - 20, rows(e, "select id from t where id < 10 or id > 15").length);
+        assertArrayEquals(new String[]{"[v50]"}, rows(e, "select v from t where id = 50"));
+
+        exec(other, "commit");
+        assertArrayEquals(new String[]{"[5000]", "[7000]"}, rows(e, "select id from t where id > 4000"));
+        assertEquals(0, rows(e, "select id from t where id = 30").length);
+        try {
+            exec(e, "select nope from t");
+            fail();
+        } catch (Exception ex) {
+            assertSame(Error.FieldNotFoundException, ex);
+        }
+        db.close();
+    }
+
+    /**
+     * 没有索引的字段上的条件和没有索引的表顺序扫描表的堆，按记录的字节判断条件；
+     * 各个表的记录在各自的页面中，扫描一个表不会读到其他表的记录，重新打开后也是
+     */
+    @Test
+    public void testHeapScanForUnindexedPredicates() throws Exception {
+        File dir = tmp.newFolder();
+        VacuumTest.Db db = new VacuumTest.Db(dir, true);
+        Executor e = db.session();
+        fill(e);
+        exec(e, "create table n a int64, b string (index)");
+        for (int i = 0; i < ROWS; i ++) {
+            exec(e, "insert into n values " + i * 10 + " b" + (i % 7));
+        }
+        assertEquals(ROWS, rows(e, "select * from n").length);
+        assertEquals("[0, b0]", rows(e, "select * from n")[0]);
+        assertArrayEquals(new String[]{"[50, b5]", "[60, b6]"}, rows(e, "select * from n where a > 40 and a < 70"));
+        assertEquals(43, rows(e, "select * from n where b = b3").length);
+        assertEquals(43 + 42, rows(e, "select a from n where b = b3 or b = b6").length);
+        assertEquals(1, rows(e, "select * from t where v = v123").length);
+        assertEquals(ROWS - 1, rows(e, "select * from t where v < v123 or v > v123").length);
+
+        assertEquals("update 43", exec(e, "update n set b = c where b = b3"));
+        assertEquals(0, rows(e, "select * from n where b = b3").length);
+        assertEquals(43, rows(e, "select * from n where b = c").length);
+        assertEquals("delete 42", exec(e, "delete from n where b = b6"));
+        assertEquals("update " + ROWS, exec(e, "update t set id = 0 where v > v"));
+        assertEquals(ROWS - 42, rows(e, "select * from n").length);
+        db.close();
+
+        db = new VacuumTest.Db(dir, false);
+        e = db.session();
+        assertEquals(ROWS - 42, rows(e, "select * from n").length);
+        assertEquals(43, rows(e, "select b from n where b = c").length);
+        assertEquals(ROWS, rows(e, "select * from t").length);
+        db.close();
+    }
+}
@@ -0,0 +1,170 @@
+package com.xiongsu.backend.tbm;
+
+import com.xiongsu.backend.Crash;
+import com.xiongsu.backend.dm.DataManager;
+import com.xiongsu.backend.server.Executor;
+import com.xiongsu.backend.tm.TransactionManager;
+import com.xiongsu.backend.vm.VersionManager;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class VacuumTest {
+
+    private static final long MEM = 1 << 22;
+    private static final int ROWS = 200;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    //一个数据库实例，回收线程的间隔很长，测试中手动调用vacuum
+    static class Db {
+        final String path;
+        final TransactionManager tm;
+        final DataManager dm;
+        final TableManagerImpl tbm;
+
+        Db(File dir, boolean create) {
+            path = new File(dir, "db").getPath();
+            tm = create ? TransactionManager.create(path) : TransactionManager.open(path);
+            dm = create ? DataManager.create(path, MEM, tm) : DataManager.open(path, MEM, tm);
+            VersionManager vm = VersionManager.newVersionManager(tm, dm);
+            tbm = (TableManagerImpl) (create ? TableManager.create(path, vm, dm) : TableManager.open(path, vm, dm));
+        }
+
+        Executor session() {
+            return new Executor(tbm);
+        }
+
+        long fileLength() {
+            return new File(path + ".db").length();
+        }
+
+        void close() {
+            tbm.close();
+            tm.close();
+        }
+    }
+
+    private static String exec(Executor e, String sql) throws Exception {
+        return new String(e.execute(sql.getBytes())).trim();
+    }
+
+    private static void fill(Executor e) throws Exception {
+        exec(e, "create table t id int32, v string (index id)");
+        for (int i = 0; i < ROWS; i++) {
+            exec(e, "insert into t values " + i + " v" + i);
+        }
+    }
+
+    private static void updateAll(Executor e, String value) throws Exception {
+        assertEquals("update " + ROWS, exec(e, "update t set v = " + value + " where id < " + ROWS));
+    }
+
+    private static int countRows(Executor e) throws Exception {
+        return exec(e, "select * from t").split("\n").length;
+    }
+
+    //每轮更新后回收，旧版本的空间被新版本复用，文件增长远小于不回收时
+    @Test
+    public void testVacuumReusesDeadVersionSpace() throws Exception {
+        long[] lengths = new long[2];
+        for (int run = 0; run < 2; run++) {
+            Db db = new Db(tmp.newFolder(), true);
+            Executor e = db.session();
+            fill(e);
+            for (int r = 0; r < 12; r++) {
+                updateAll(e, "r" + r);
+                if (run == 1) {
+                    db.tbm.vacuum.vacuum();
+                }
+            }
+            assertEquals(ROWS, countRows(e));
+            assertTrue(exec(e, "select * from t where id = 7").contains("r11"));
+            lengths[run] = db.fileLength();
+            db.close();
+        }
+        assertTrue(lengths[1] + " vs " + lengths[0], lengths[1] * 2 < lengths[0]);
+    }
+
+    //可重复读事务还能看到的版本不会被回收，它结束后才回收
+    @Test
+    public void testSnapshotHoldsBackVacuum() throws Exception {
+        Db db = new Db(tmp.newFolder(), true);
+        Executor writer = db.session();
+        Executor reader = db.session();
+        fill(writer);
+        exec(reader, "begin isolation level repeatable read");
+        String before = exec(reader, "select * from t where id = 5");
+        assertTrue(before.contains("v5"));
+        for (int r = 0; r < 5; r++) {
+            updateAll(writer, "r" + r);
+            db.tbm.vacuum.vacuum();
+        }
+        assertEquals(before, exec(reader, "select * from t where id = 5"));
+        assertEquals(ROWS, countRows(reader));
+        exec(reader, "commit");
+        db.tbm.vacuum.vacuum();
+        db.tbm.vacuum.vacuum();
+        assertTrue(exec(writer, "select * from t where id = 5").contains("r4"));
+        assertEquals(ROWS, countRows(writer));
+        db.close();
+    }
+
+    /**
+     * 回归：垃圾只记录在内存中，关闭或崩溃前没有回收的版本必须在启动时由sweep找回。
+     * 重新打开并回收之后，同样多的更新不需要新的页面
+     */
+    @Test
+    public void testGarbageSweptAfterRestart() throws Exception {
+        for (boolean crash : new boolean[]{false, true}) {
+            File dir = tmp.newFolder();
+            if (crash) {
+                Crash.run(LeaveGarbage.class, dir);
+            } else {
+                Db db = new Db(dir, true);
+                LeaveGarbage.write(db);
+                db.close();
+            }
+
+            Db db = new Db(dir, false);
+            Executor e = db.session();
+            db.tbm.vacuum.vacuum();
+            db.tbm.vacuum.vacuum();
+            long length = db.fileLength();
+            for (int r = 0; r < 5; r++) {
+                updateAll(e, "n" + r);
+            }
+            assertEquals("crash=" + crash, length, db.fileLength());
+            assertEquals(ROWS, countRows(e));
+            assertTrue(exec(e, "select * from t where id = 7").contains("n4"));
+            assertFalse(exec(e, "select * from t where id = 1010").contains("x"));
+            db.close();
+        }
+    }
+
+    //10轮更新留下2000个死版本，外加一个回滚事务插入的50行，然后不经回收就结束
+    public static class LeaveGarbage implements Crash.Body {
+        static void write(Db db) throws Exception {
+            Executor e = db.session();
+            fill(e);
+            for (int r = 0; r < 10; r++) {
+                updateAll(e, "r" + r);
+            }
+            exec(e, "begin");
+            for (int i = 0; i < 50; i++) {
+                exec(e, "insert into t values " + (1000 + i) + " x");
+            }
+            exec(e, "abort");
+        }
+
+        @Override
+        public void run(File dir) throws Exception {
+            write(new Db(dir, true));
+        }
+    }
+}
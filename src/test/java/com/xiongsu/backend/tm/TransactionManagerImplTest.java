@@ -0,0 +1,144 @@
+package com.xiongsu.backend.tm;
+
+import com.xiongsu.backend.utils.Parser;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class TransactionManagerImplTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private String path() {
+        return new File(tmp.getRoot(), "db").getPath();
+    }
+
+    //事务状态在重新打开后保持不变，内存状态表跨越多个块
+    @Test
+    public void testStatusSurvivesReopen() throws Exception {
+        TransactionManager tm = TransactionManager.create(path());
+        int count = (1 << 15) + 100;
+        for (int i = 1; i <= count; i++) {
+            long xid = tm.begin();
+            assertEquals(i, xid);
+            if (i % 3 == 1) {
+                tm.abort(xid);
+            }
+        }
+        for (long xid = 3; xid <= count; xid += 300) {
+            tm.commit(xid);
+        }
+        tm.close();
+
+        tm = TransactionManager.open(path());
+        for (long xid = 1; xid <= count; xid++) {
+            boolean committed = xid % 300 == 3;
+            boolean aborted = xid % 3 == 1;
+            assertEquals(committed, tm.isCommited(xid));
+            assertEquals(aborted, tm.isAborted(xid));
+            assertEquals(!committed && !aborted, tm.isActive(xid));
+        }
+        assertTrue(tm.isCommited(TransactionManagerImpl.SUPER_XID));
+        assertEquals(count + 1, tm.begin());
+        tm.close();
+    }
+
+    //并发的begin得到不同的XID，并发的commit全部落盘
+    @Test
+    public void testConcurrentCommits() throws Exception {
+        TransactionManager created = TransactionManager.create(path());
+        Set<Long> xids = ConcurrentHashMap.newKeySet();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> list = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread th = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 200; i++) {
+                        long xid = created.begin();
+                        assertTrue(xids.add(xid));
+                        assertTrue(created.isActive(xid));
+                        created.commit(xid);
+                        assertTrue(created.isCommited(xid));
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            });
+            list.add(th);
+            th.start();
+        }
+        for (Thread th : list) {
+            th.join();
+        }
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+        created.close();
+
+        TransactionManager tm = TransactionManager.open(path());
+        for (long xid = 1; xid <= 1600; xid++) {
+            assertTrue(tm.isCommited(xid));
+        }
+        tm.close();
+    }
+
+    //把XID文件头部改成counter，模拟头部的写入在崩溃时丢失
+    private void rewriteHeader(long counter) throws Exception {
+        try (RandomAccessFile f = new RandomAccessFile(path() + TransactionManagerImpl.XID_SUFFIX, "rw")) {
+            f.write(Parser.long2Byte(counter));
+        }
+    }
+
+    //头部丢失时按文件中已经写入的状态推算计数器
+    @Test
+    public void testCounterRecoveredFromFileLength() throws Exception {
+        TransactionManager tm = TransactionManager.create(path());
+        for (int i = 0; i < 3; i++) {
+            tm.commit(tm.begin());
+        }
+        tm.close();
+        rewriteHeader(1);
+
+        tm = TransactionManager.open(path());
+        assertTrue(tm.isCommited(3));
+        assertEquals(4, tm.begin());
+        tm.close();
+    }
+
+    /**
+     * 回归：begin的头部没有落盘，崩溃后计数器回退，恢复时在日志中看到更大的活跃事务并把它回滚。
+     * 回滚之后的begin不能再分配这个XID，否则新事务一开始就是已回滚状态
+     */
+    @Test
+    public void testAbortedXidIsNotReused() throws Exception {
+        TransactionManager tm = TransactionManager.create(path());
+        tm.commit(tm.begin());
+        assertEquals(2, tm.begin());
+        tm.close();
+        rewriteHeader(1);
+
+        tm = TransactionManager.open(path());
+        assertTrue(tm.isActive(2));
+        tm.abort(2);
+        long xid = tm.begin();
+        assertEquals(3, xid);
+        assertTrue(tm.isActive(xid));
+        tm.close();
+
+        tm = TransactionManager.open(path());
+        assertTrue(tm.isAborted(2));
+        assertEquals(4, tm.begin());
+        tm.close();
+    }
+}
@@ -0,0 +1,341 @@
+package com.xiongsu.backend.vm;
+
+import com.xiongsu.common.Error;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class LockTableTest {
+
+    //在新线程中加锁，返回的future在获得锁时完成，出错时以异常完成
+    static class Request {
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        final Thread thread;
+
+        Request(LockTable lt, long xid, long uid, int mode) {
+            thread = new Thread(() -> {
+                try {
+                    lt.add(xid, uid, mode);
+                    done.complete(null);
+                } catch (Exception e) {
+                    done.completeExceptionally(e);
+                }
+            });
+            thread.start();
+        }
+
+        //等到请求进入等待状态
+        Request blocked() throws Exception {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (thread.getState() != Thread.State.WAITING && thread.getState() != Thread.State.TIMED_WAITING) {
+                assertFalse("request finished without waiting", done.isDone());
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(5);
+            }
+            return this;
+        }
+
+        void granted() throws Exception {
+            done.get(5, TimeUnit.SECONDS);
+        }
+
+        Exception failure() throws Exception {
+            try {
+                done.get(5, TimeUnit.SECONDS);
+            } catch (java.util.concurrent.ExecutionException e) {
+                return (Exception) e.getCause();
+            }
+            fail("request was granted");
+            return null;
+        }
+    }
+
+    //两个事务互相等待：后开始等待、形成环的请求立即失败，另一个事务在它释放后获得锁
+    @Test
+    public void testRequesterClosingCycleIsVictim() throws Exception {
+        LockTable lt = new LockTable();
+        lt.add(1, 100);
+        lt.add(2, 200);
+        Request r = new Request(lt, 2, 100, LockTable.X).blocked();
+        try {
+            lt.add(1, 200);
+            fail();
+        } catch (Exception e) {
+            assertSame(Error.DeadlockException, e);
+        }
+        assertFalse(r.done.isDone());
+        lt.remove(1);
+        r.granted();
+        assertEquals(1, lt.getUidStats().get(200L).deadlockCount());
+    }
+
+    //三个事务组成的环，检测沿等待关系走完整个环
+    @Test
+    public void testLongerCycle() throws Exception {
+        LockTable lt = new LockTable();
+        lt.add(1, 100);
+        lt.add(2, 200);
+        lt.add(3, 300);
+        Request r1 = new Request(lt, 1, 200, LockTable.X).blocked();
+        Request r2 = new Request(lt, 2, 300, LockTable.X).blocked();
+        try {
+            lt.add(3, 100);
+            fail();
+        } catch (Exception e) {
+            assertSame(Error.DeadlockException, e);
+        }
+        lt.remove(3);
+        r2.granted();
+        lt.remove(2);
+        r1.granted();
+    }
+
+    //只是排队等待的链不是死锁
+    @Test
+    public void testWaitChainIsNotDeadlock() throws Exception {
+        LockTable lt = new LockTable();
+        lt.add(1, 100);
+        lt.add(2, 200);
+        Request r2 = new Request(lt, 2, 100, LockTable.X).blocked();
+        Request r3 = new Request(lt, 3, 200, LockTable.X).blocked();
+        lt.remove(1);
+        r2.granted();
+        lt.remove(2);
+        r3.granted();
+    }
+
+    //后台检测时双方都进入等待，环上事务号最大的事务被选为牺牲者
+    @Test
+    public void testBackgroundDetectorAbortsYoungest() throws Exception {
+        LockTable lt = new LockTable(20);
+        try {
+            lt.add(1, 100);
+            lt.add(2, 200);
+            lt.add(3, 300);
+            Request r1 = new Request(lt, 1, 200, LockTable.X).blocked();
+            Request r3 = new Request(lt, 3, 100, LockTable.X);
+            Request r2 = new Request(lt, 2, 300, LockTable.X);
+            assertSame(Error.DeadlockException, r3.failure());
+            assertFalse(r1.done.isDone());
+            lt.remove(3);
+            r2.granted();
+            lt.remove(2);
+            r1.granted();
+        } finally {
+            lt.close();
+        }
+    }
+
+    /**
+     * 多个事务按随机顺序锁住几个热点UID，死锁时中止并重试：
+     * 所有事务最终都能完成，同一个UID同时只有一个持有者
+     */
+    @Test(timeout = 60000)
+    public void testRandomLockOrderAlwaysCompletes() throws Exception {
+        for (LockTable lt : new LockTable[]{new LockTable(), new LockTable(5)}) {
+            int uids = 6;
+            AtomicInteger[] owners = new AtomicInteger[uids];
+            for (int i = 0; i < uids; i++) {
+                owners[i] = new AtomicInteger();
+            }
+            AtomicInteger nextXid = new AtomicInteger();
+            AtomicInteger deadlocks = new AtomicInteger();
+            AtomicReference<Throwable> error = new AtomicReference<>();
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                long seed = t;
+                threads.add(new Thread(() -> {
+                    Random r = new Random(seed);
+                    try {
+                        for (int n = 0; n < 200; n++) {
+                            while (true) {
+                                long xid = nextXid.incrementAndGet();
+                                List<Integer> held = new ArrayList<>();
+                                try {
+                                    for (int k = 0; k < 3; k++) {
+                                        int u = r.nextInt(uids);
+                                        lt.add(xid, 1000 + u);
+                                        if (!held.contains(u)) {
+                                            assertEquals(1, owners[u].incrementAndGet());
+                                            held.add(u);
+                                        }
+                                    }
+                                    Thread.yield();
+                                    for (int u : held) {
+                                        owners[u].decrementAndGet();
+                                    }
+                                    lt.remove(xid);
+                                    break;
+                                } catch (Exception e) {
+                                    assertSame(Error.DeadlockException, e);
+                                    deadlocks.incrementAndGet();
+                                    for (int u : held) {
+                                        owners[u].decrementAndGet();
+                                    }
+                                    lt.remove(xid);
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }));
+            }
+            for (Thread th : threads) {
+                th.start();
+            }
+            for (Thread th : threads) {
+                th.join();
+            }
+            lt.close();
+            if (error.get() != null) {
+                throw new AssertionError(error.get());
+            }
+            assertTrue(deadlocks.get() > 0);
+        }
+    }
+
+    //两个事务在同一个UID上请求各种模式组合，相容的直接获得，不相容的等到持有者释放
+    @Test
+    public void testCompatibilityMatrix() throws Exception {
+        int[] modes = {LockTable.IS, LockTable.IX, LockTable.S, LockTable.X};
+        boolean[][] expected = {
+                {true, true, true, false},
+                {true, true, false, false},
+                {true, false, true, false},
+                {false, false, false, false},
+        };
+        for (int held : modes) {
+            for (int want : modes) {
+                LockTable lt = new LockTable();
+                lt.add(1, 100, held);
+                Request r = new Request(lt, 2, 100, want);
+                if (expected[held][want]) {
+                    r.granted();
+                } else {
+                    r.blocked();
+                    lt.remove(1);
+                    r.granted();
+                }
+            }
+        }
+    }
+
+    //唯一的S持有者可以直接升级为X；有其他S持有者时升级排在队首，先于之前排队的请求获得
+    @Test
+    public void testUpgrade() throws Exception {
+        LockTable lt = new LockTable();
+        lt.add(1, 100, LockTable.S);
+        lt.add(1, 100, LockTable.X);
+        new Request(lt, 2, 100, LockTable.S).blocked();
+        lt.remove(1);
+
+        lt = new LockTable();
+        lt.add(1, 100, LockTable.S);
+        lt.add(2, 100, LockTable.S);
+        Request waiting = new Request(lt, 3, 100, LockTable.X).blocked();
+        Request upgrade = new Request(lt, 1, 100, LockTable.X).blocked();
+        lt.remove(2);
+        upgrade.granted();
+        assertFalse(waiting.done.isDone());
+        lt.remove(1);
+        waiting.granted();
+    }
+
+    //已经持有IX时再请求S，没有SIX模式，合并为X
+    @Test
+    public void testIntentionAndSharedCombineToExclusive() throws Exception {
+        LockTable lt = new LockTable();
+        lt.add(1, 100, LockTable.IX);
+        lt.add(1, 100, LockTable.S);
+        new Request(lt, 2, 100, LockTable.IS).blocked();
+    }
+
+    /**
+     * 表上的S锁覆盖表中行上的S锁，不再逐行加锁，其他事务仍可以在IS下读同一行；
+     * 要修改行的事务必须先加表的IX锁，与S不相容
+     */
+    @Test
+    public void testTableLockCoversRowLocks() throws Exception {
+        LockTable lt = new LockTable();
+        long table = 10;
+        lt.addTable(1, table, LockTable.S);
+        lt.add(1, 100, LockTable.S);
+        lt.addTable(2, table, LockTable.IS);
+        lt.add(2, 100, LockTable.S);
+        lt.remove(2);
+        //表上的S锁不覆盖行上的X锁
+        lt.addTable(3, table, LockTable.IS);
+        lt.add(3, 200, LockTable.S);
+        Request writer = new Request(lt, 1, 200, LockTable.X).blocked();
+        lt.remove(3);
+        writer.granted();
+        Request ix = new Request(lt, 4, table, LockTable.IX).blocked();
+        lt.remove(1);
+        ix.granted();
+        lt.remove(4);
+
+        //表上的X锁覆盖行上的所有模式，其他事务连表的IS锁都拿不到
+        lt.addTable(1, table, LockTable.X);
+        lt.add(1, 100, LockTable.X);
+        new Request(lt, 2, table, LockTable.IS).blocked();
+    }
+
+    //等待超时后请求从队列中移除，排在它后面的请求不受影响；等待和超时按UID和表统计
+    @Test
+    public void testWaitTimeoutAndStats() throws Exception {
+        LockTable lt = new LockTable();
+        lt.setWaitTimeout(100);
+        long table = 10;
+        lt.addTable(1, table, LockTable.IX);
+        lt.add(1, 100, LockTable.X);
+        lt.addTable(2, table, LockTable.IX);
+        long start = System.nanoTime();
+        Request timedOut = new Request(lt, 2, 100, LockTable.X);
+        assertSame(Error.LockWaitTimeoutException, timedOut.failure());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+
+        lt.setWaitTimeout(0);
+        lt.addTable(3, table, LockTable.IX);
+        Request next = new Request(lt, 3, 100, LockTable.X).blocked();
+        Thread.sleep(20);
+        lt.remove(1);
+        next.granted();
+
+        LockStats uid = lt.getUidStats().get(100L);
+        assertEquals(2, uid.waitCount());
+        assertEquals(1, uid.timeoutCount());
+        assertEquals(0, uid.deadlockCount());
+        assertTrue(uid.waitMillis() >= 100);
+        LockStats t = lt.getTableStats().get(table);
+        assertEquals(2, t.waitCount());
+        assertEquals(1, t.timeoutCount());
+        assertNull(lt.getUidStats().get(table));
+    }
+
+    //按UID的统计有上限，满了以后新的UID替换掉等待时间最短的UID，按表的统计不受影响
+    @Test
+    public void testUidStatsAreBounded() throws Exception {
+        LockTable lt = new LockTable();
+        lt.maxUidStats = 2;
+        long[] uids = {100, 101, 102};
+        long[] timeouts = {200, 20, 20};
+        for (int i = 0; i < uids.length; i++) {
+            lt.setWaitTimeout(timeouts[i]);
+            lt.add(1, uids[i], LockTable.X);
+            assertSame(Error.LockWaitTimeoutException, new Request(lt, 2, uids[i], LockTable.X).failure());
+        }
+        assertEquals(2, lt.getUidStats().size());
+        assertEquals(1, lt.getUidStats().get(100L).timeoutCount());
+        assertNull(lt.getUidStats().get(101L));
+        assertEquals(1, lt.getUidStats().get(102L).waitCount());
+    }
+}
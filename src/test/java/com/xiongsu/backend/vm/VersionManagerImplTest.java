@@ -0,0 +1,268 @@
+package com.xiongsu.backend.vm;
+
+import com.xiongsu.backend.dm.DataManager;
+import com.xiongsu.backend.tm.TransactionManager;
+import com.xiongsu.backend.tm.TransactionManagerImpl;
+import com.xiongsu.common.Error;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class VersionManagerImplTest {
+
+    private static final int READ_COMMITTED = 0;
+    private static final int REPEATABLE_READ = 1;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    TransactionManager tm;
+    DataManager dm;
+    VersionManagerImpl vm;
+
+    @Before
+    public void setUp() {
+        String path = new File(tmp.getRoot(), "db").getPath();
+        tm = TransactionManager.create(path);
+        dm = DataManager.create(path, 1 << 22, tm);
+        vm = (VersionManagerImpl) VersionManager.newVersionManager(tm, dm);
+    }
+
+    @After
+    public void tearDown() {
+        vm.close();
+        dm.close();
+        tm.close();
+    }
+
+    @Test
+    public void testSnapshotBounds() {
+        Snapshot s = new Snapshot(10, new long[]{7, 3, 5});
+        assertEquals(3, s.low);
+        assertEquals(10, s.high);
+        assertTrue(s.isActive(3));
+        assertTrue(s.isActive(7));
+        assertFalse(s.isActive(4));
+        assertFalse(s.isActive(2));
+        assertFalse(s.isActive(10));
+        Snapshot empty = new Snapshot(4, new long[0]);
+        assertEquals(4, empty.low);
+        assertFalse(empty.isActive(3));
+    }
+
+    /**
+     * 可重复读事务看不到开始时仍活跃的事务和之后开始的事务的写入，即使它们已经提交；
+     * 读提交事务看得到所有已提交的写入
+     */
+    @Test
+    public void testRepeatableReadSnapshot() throws Exception {
+        long early = vm.begin(READ_COMMITTED);
+        long before = vm.insert(early, "early".getBytes());
+        long rr = vm.begin(REPEATABLE_READ);
+        long rc = vm.begin(READ_COMMITTED);
+        long late = vm.begin(READ_COMMITTED);
+        long after = vm.insert(late, "late".getBytes());
+
+        assertNull(vm.read(rr, before));
+        assertNull(vm.read(rc, before));
+        vm.commit(early);
+        vm.commit(late);
+        assertNull(vm.read(rr, before));
+        assertNull(vm.read(rr, after));
+        assertArrayEquals("early".getBytes(), vm.read(rc, before));
+        assertArrayEquals("late".getBytes(), vm.read(rc, after));
+
+        //快照之后提交的删除对可重复读事务不可见
+        long deleter = vm.begin(READ_COMMITTED);
+        long committedBefore = vm.begin(READ_COMMITTED);
+        long old = vm.insert(committedBefore, "old".getBytes());
+        vm.commit(committedBefore);
+        long rr2 = vm.begin(REPEATABLE_READ);
+        assertTrue(vm.delete(deleter, old));
+        vm.commit(deleter);
+        assertArrayEquals("old".getBytes(), vm.read(rr2, old));
+        assertNull(vm.read(rc, old));
+
+        long fresh = vm.begin(REPEATABLE_READ);
+        assertArrayEquals("early".getBytes(), vm.read(fresh, before));
+        assertArrayEquals("late".getBytes(), vm.read(fresh, after));
+        assertNull(vm.read(fresh, old));
+        vm.commit(rr);
+        vm.commit(rr2);
+        vm.commit(rc);
+        vm.commit(fresh);
+    }
+
+    /**
+     * 并发开始的事务的快照与提交顺序一致：写入者都会提交，
+     * 事务号更小且不在快照中的写入者在快照建立前已经提交，它的版本必须可见；快照中的写入者始终不可见
+     */
+    @Test
+    public void testConcurrentSnapshotsAreConsistent() throws Exception {
+        List<long[]> written = new CopyOnWriteArrayList<>();// {xid, uid}
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < 300; i++) {
+                        long xid = vm.begin(READ_COMMITTED);
+                        long uid = vm.insert(xid, ("v" + xid).getBytes());
+                        vm.commit(xid);
+                        written.add(new long[]{xid, uid});
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            }));
+        }
+        for (int t = 0; t < 4; t++) {
+            threads.add(new Thread(() -> {
+                try {
+                    while (!stop.get()) {
+                        long xid = vm.begin(REPEATABLE_READ);
+                        Snapshot s = vm.activeTransaction.get(xid).snapshot;
+                        List<long[]> seen = new ArrayList<>(written);
+                        for (long[] w : seen) {
+                            if (w[0] < xid) {
+                                assertEquals(!s.isActive(w[0]), vm.read(xid, w[1]) != null);
+                            }
+                        }
+                        //快照中的事务之后已经提交，仍然不可见
+                        for (long[] w : seen) {
+                            if (s.isActive(w[0])) {
+                                assertNull(vm.read(xid, w[1]));
+                            }
+                        }
+                        vm.commit(xid);
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            }));
+        }
+        for (Thread th : threads) {
+            th.start();
+        }
+        for (int i = 0; i < 4; i++) {
+            threads.get(i).join();
+        }
+        stop.set(true);
+        for (Thread th : threads) {
+            th.join();
+        }
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+        assertEquals(1200, written.size());
+    }
+
+    //活动事务表中最早和最新的事务，以及考虑了可重复读快照的回收水位
+    @Test
+    public void testActiveRegistryBounds() throws Exception {
+        assertEquals(Long.MAX_VALUE, vm.oldestActiveXid());
+        assertEquals(TransactionManagerImpl.SUPER_XID, vm.newestActiveXid());
+
+        long a = vm.begin(READ_COMMITTED);
+        long b = vm.begin(READ_COMMITTED);
+        long rr = vm.begin(REPEATABLE_READ);// 快照中有a和b
+        assertEquals(a, vm.oldestActiveXid());
+        assertEquals(rr, vm.newestActiveXid());
+
+        vm.commit(a);
+        vm.abort(b);
+        assertEquals(rr, vm.oldestActiveXid());
+        //rr的快照里还有a，a做的删除对rr不可见
+        assertEquals(a, vm.vacuumHorizon());
+
+        vm.commit(rr);
+        assertEquals(Long.MAX_VALUE, vm.oldestActiveXid());
+        assertEquals(Long.MAX_VALUE, vm.vacuumHorizon());
+    }
+
+    //并发开始、提交和回滚之后活动事务表中只剩超级事务
+    @Test
+    public void testRegistryUnderConcurrentBeginAndEnd() throws Exception {
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            int id = t;
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < 500; i++) {
+                        long xid = vm.begin(i % 2);
+                        assertTrue(vm.activeTransaction.containsKey(xid));
+                        assertTrue(vm.oldestActiveXid() <= xid);
+                        assertTrue(vm.newestActiveXid() >= xid);
+                        if ((i + id) % 3 == 0) {
+                            vm.abort(xid);
+                            assertTrue(tm.isAborted(xid));
+                        } else {
+                            vm.commit(xid);
+                            assertTrue(tm.isCommited(xid));
+                        }
+                        assertFalse(vm.activeTransaction.containsKey(xid));
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            }));
+        }
+        for (Thread th : threads) {
+            th.start();
+        }
+        for (Thread th : threads) {
+            th.join();
+        }
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+        assertEquals(1, vm.activeTransaction.size());
+        assertEquals(Long.MAX_VALUE, vm.oldestActiveXid());
+    }
+
+    //删除时等待行锁超时，事务被自动中止，之后的操作都返回同一个错误
+    @Test
+    public void testLockWaitTimeoutAbortsTransaction() throws Exception {
+        VersionManager timed = VersionManager.newVersionManager(tm, dm, 100);
+        try {
+            long setup = timed.begin(READ_COMMITTED);
+            long uid = timed.insert(setup, "row".getBytes());
+            timed.commit(setup);
+
+            long holder = timed.begin(READ_COMMITTED);
+            long waiter = timed.begin(READ_COMMITTED);
+            assertTrue(timed.delete(holder, uid));
+            try {
+                timed.delete(waiter, uid);
+                fail();
+            } catch (Exception e) {
+                assertSame(Error.LockWaitTimeoutException, e);
+            }
+            assertTrue(tm.isAborted(waiter));
+            try {
+                timed.read(waiter, uid);
+                fail();
+            } catch (Exception e) {
+                assertSame(Error.LockWaitTimeoutException, e);
+            }
+            timed.abort(waiter);
+            assertEquals(1, timed.getRowLockStats().get(uid).timeoutCount());
+            timed.commit(holder);
+        } finally {
+            timed.close();
+        }
+    }
+}